@@ -0,0 +1,208 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.net.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+import com.sun.net.httpserver.*;
+
+import org.apache.commons.codec.digest.*;
+
+/**
+ * Runs <code>RelayDescriptorDownloader</code> against local stub
+ * directory authorities and checks that all missing server descriptors
+ * are downloaded. One stub answers every other request with 404, and
+ * one answers all requests. One stub answers requests for compressed
+ * descriptors with uncompressed descriptors, and another one does the
+ * same but claims that they are compressed. The last authority is a
+ * closed port. Failed URLs need to be retried on other authorities, and
+ * the unreachable authority needs to be dropped.
+ *
+ * The check writes <code>stats/missing-relay-descriptors</code> to the
+ * working directory and exits with status 1 if anything is missing.
+ * Run it with <code>ant check</code>.
+ */
+public class RelayDescriptorDownloaderCheck {
+
+  /**
+   * Number of server descriptors that we put on the missing list.
+   */
+  private static final int DESCRIPTORS = 1000;
+
+  /**
+   * Descriptors served by the stubs by lower-case and upper-case hex
+   * digest.
+   */
+  private static Map<String, byte[]> descriptors =
+      new HashMap<String, byte[]>();
+
+  /**
+   * Stub modes: answer every other request with 404, answer all
+   * requests, answer without compressing, or answer without compressing
+   * but with a Content-Encoding header saying that we did.
+   */
+  private static final int FLAKY = 0, HEALTHY = 1, PLAIN = 2,
+      MISLABELED = 3;
+
+  /**
+   * Starts a stub authority that serves server descriptors for URLs of
+   * the form /tor/server/d/&lt;digest&gt;+&lt;digest&gt; with optional
+   * ".z" suffix in the given mode and counts requests and served
+   * descriptors. Responses to requests for ".z" URLs are deflated in
+   * modes <code>FLAKY</code> and <code>HEALTHY</code>.
+   */
+  private static HttpServer startStub(final int mode,
+      final AtomicInteger requests, final AtomicInteger served)
+      throws IOException {
+    HttpServer server = HttpServer.create(
+        new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        int request = requests.incrementAndGet();
+        if (mode == FLAKY && request % 2 == 1) {
+          exchange.sendResponseHeaders(404, -1);
+          exchange.close();
+          return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        boolean compressed = path.endsWith(".z");
+        String[] digests = path.substring("/tor/server/d/".length(),
+            path.length() - (compressed ? ".z".length() : 0)).
+            split("\\+");
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        OutputStream os = compressed && (mode == FLAKY ||
+            mode == HEALTHY) ? new DeflaterOutputStream(baos) : baos;
+        int count = 0;
+        for (String digest : digests) {
+          byte[] descriptor = descriptors.get(digest);
+          if (descriptor != null) {
+            os.write(descriptor);
+            count++;
+          }
+        }
+        os.close();
+        if (!(mode == MISLABELED && compressed)) {
+          served.addAndGet(count);
+        }
+        byte[] body = baos.toByteArray();
+        if (compressed && mode != PLAIN) {
+          exchange.getResponseHeaders().set("Content-Encoding",
+              "deflate");
+        }
+        exchange.sendResponseHeaders(200, body.length);
+        exchange.getResponseBody().write(body);
+        exchange.close();
+      }
+    });
+    server.start();
+    return server;
+  }
+
+  /**
+   * Generates server descriptors published an hour ago and writes them
+   * to the missing list, so that the downloader requests all of them.
+   */
+  private static void writeMissingList() throws IOException {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    String published = format.format(System.currentTimeMillis()
+        - 60L * 60L * 1000L);
+    new File("stats").mkdirs();
+    BufferedWriter bw = new BufferedWriter(new FileWriter(
+        "stats/missing-relay-descriptors"));
+    for (int i = 0; i < DESCRIPTORS; i++) {
+      String fingerprint = String.format("%040x", i + 1);
+      String signed = "router check" + i + " 10.0." + (i / 250) + "."
+          + (i % 250) + " 9001 0\n"
+          + "platform Tor 0.2.1.26 on Linux\n"
+          + "published " + published + "\n"
+          + "opt fingerprint " + fingerprint.toUpperCase().
+          replaceAll("(.{4})(?!$)", "$1 ") + "\n"
+          + "uptime 100\n"
+          + "bandwidth 1 2 3\n"
+          + "router-signature\n";
+      String digest = DigestUtils.shaHex(signed.getBytes("US-ASCII"));
+      byte[] descriptor = (signed + "-----BEGIN SIGNATURE-----\n"
+          + "x\n-----END SIGNATURE-----\n").getBytes("US-ASCII");
+      descriptors.put(digest, descriptor);
+      descriptors.put(digest.toUpperCase(), descriptor);
+      bw.write("server," + published + "," + fingerprint + "," + digest
+          + ",NA\n");
+    }
+    bw.close();
+  }
+
+  public static void main(String[] args) throws IOException {
+    writeMissingList();
+    String[] names = new String[] { "flaky", "healthy", "plain",
+        "mislabeled" };
+    AtomicInteger[] requests = new AtomicInteger[names.length],
+        served = new AtomicInteger[names.length];
+    HttpServer[] stubs = new HttpServer[names.length];
+    List<String> dirSources = new ArrayList<String>();
+    for (int mode = 0; mode < names.length; mode++) {
+      requests[mode] = new AtomicInteger();
+      served[mode] = new AtomicInteger();
+      stubs[mode] = startStub(mode, requests[mode], served[mode]);
+      dirSources.add("127.0.0.1:" + stubs[mode].getAddress().getPort());
+    }
+    ServerSocket closed = new ServerSocket(0);
+    dirSources.add("127.0.0.1:" + closed.getLocalPort());
+    closed.close();
+    RelayDescriptorParser rdp = new RelayDescriptorParser(null, null,
+        null, null, null, null);
+    RelayDescriptorDownloader rdd = new RelayDescriptorDownloader(rdp,
+        dirSources, false, false, true, false, 2);
+    rdp.setRelayDescriptorDownloader(rdd);
+    try {
+      rdd.downloadMissingDescriptors();
+      rdd.writeFile();
+    } finally {
+      for (HttpServer stub : stubs) {
+        stub.stop(0);
+      }
+    }
+
+    int lines = 0, stillMissing = 0;
+    BufferedReader br = new BufferedReader(new FileReader(
+        "stats/missing-relay-descriptors"));
+    String line = null;
+    while ((line = br.readLine()) != null) {
+      lines++;
+      if (line.endsWith(",NA")) {
+        stillMissing++;
+      }
+    }
+    br.close();
+    System.out.println("Missing list has " + lines + " lines, "
+        + stillMissing + " of them still missing.");
+    List<String> failures = new ArrayList<String>();
+    if (lines != DESCRIPTORS || stillMissing > 0) {
+      failures.add("not all descriptors were downloaded");
+    }
+    int totalServed = 0;
+    for (int mode = 0; mode < names.length; mode++) {
+      System.out.println("The " + names[mode] + " authority received "
+          + requests[mode] + " requests and served " + served[mode]
+          + " descriptors.");
+      totalServed += served[mode].get();
+      if (served[mode].get() == 0) {
+        failures.add("the " + names[mode] + " authority served no "
+            + "descriptors");
+      }
+    }
+    if (totalServed != DESCRIPTORS) {
+      failures.add("descriptors were not served exactly once");
+    }
+    if (!failures.isEmpty()) {
+      System.out.println("Check failed: " + failures);
+      System.exit(1);
+    }
+    System.out.println("Check passed.");
+  }
+}
@@ -0,0 +1,323 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.sql.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Writes rows of an aggregate statistics table, like
+ * <code>dirreq_stats</code> or <code>torperf_stats</code>, to the
+ * database. Stats handlers put the rows that they added or recomputed in
+ * this execution, and only these rows are written when flushing, without
+ * reading the table first.
+ *
+ * Rows are written in batches. Each batch is inserted into a temporary
+ * delta table, from which it is merged into the table with one statement
+ * updating rows with changed values and one statement inserting rows with
+ * new keys, all in one transaction. The delta table is emptied on commit.
+ *
+ * Stats handlers only know which rows changed in the execution in which
+ * they change, so that rows are written to
+ * <code>stats/&lt;table&gt;-pending</code> before flushing and read again
+ * by the next execution until a flush succeeds. Otherwise, rows would be
+ * missing from the database for good if the database was unavailable
+ * once.
+ */
+public class AggregateStatsSink {
+
+  /**
+   * Number of rows to merge and commit with each database transaction.
+   */
+  private static final int BATCH_SIZE = 1000;
+
+  /**
+   * Database connection string.
+   */
+  private String connectionURL;
+
+  /**
+   * Table name.
+   */
+  private String table;
+
+  /**
+   * Names of primary key columns and of value columns.
+   */
+  private String[] keyColumns, valueColumns;
+
+  /**
+   * SQL types of primary key columns and of value columns as defined in
+   * <code>java.sql.Types</code>.
+   */
+  private int[] keyTypes, valueTypes;
+
+  /**
+   * Rows that changed in this execution and that need to be written, in
+   * the order in which they were put. Later rows replace earlier rows
+   * with the same key.
+   */
+  private Map<List<Object>, Object[]> changedRows;
+
+  /**
+   * File containing rows that have not been written to the database
+   * yet.
+   */
+  private File pendingFile;
+
+  /**
+   * Calendar used to write timestamps in UTC.
+   */
+  private Calendar utcCalendar;
+
+  /**
+   * Logger for this class.
+   */
+  private Logger logger;
+
+  /**
+   * Initializes a sink for the given table, including rows that we
+   * failed to write in previous executions.
+   */
+  public AggregateStatsSink(String connectionURL, String table,
+      String[] keyColumns, int[] keyTypes, String[] valueColumns,
+      int[] valueTypes) {
+    this.connectionURL = connectionURL;
+    this.table = table;
+    this.keyColumns = keyColumns;
+    this.keyTypes = keyTypes;
+    this.valueColumns = valueColumns;
+    this.valueTypes = valueTypes;
+    this.changedRows = new LinkedHashMap<List<Object>, Object[]>();
+    this.utcCalendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    this.logger = Logger.getLogger(AggregateStatsSink.class.getName());
+    this.pendingFile = new File("stats/" + table + "-pending");
+    if (this.pendingFile.exists()) {
+      this.readPendingRows();
+    }
+  }
+
+  /**
+   * Adds a row with the given primary key and values that needs to be
+   * written.
+   */
+  public void put(Object[] key, Object[] values) {
+    this.changedRows.put(Arrays.asList(key), values);
+  }
+
+  /**
+   * Returns the number of rows that need to be written.
+   */
+  public int size() {
+    return this.changedRows.size();
+  }
+
+  /**
+   * Writes all rows that were put since the last flush to the database.
+   * If this fails, rows are kept in the pending file for the next
+   * execution.
+   */
+  public void flush() throws SQLException {
+    if (this.changedRows.isEmpty()) {
+      return;
+    }
+    this.writePendingRows();
+    long started = System.currentTimeMillis();
+    Connection conn = DriverManager.getConnection(this.connectionURL);
+    try {
+      conn.setAutoCommit(false);
+      Statement statement = conn.createStatement();
+      statement.execute("CREATE TEMPORARY TABLE " + this.table
+          + "_delta (LIKE " + this.table + ") ON COMMIT DELETE ROWS");
+      conn.commit();
+      StringBuilder columnNames = new StringBuilder(),
+          parameters = new StringBuilder(),
+          keyCondition = new StringBuilder(),
+          valueAssignment = new StringBuilder(),
+          valueCondition = new StringBuilder();
+      for (int i = 0; i < this.keyColumns.length; i++) {
+        String column = this.keyColumns[i];
+        columnNames.append((i > 0 ? ", " : "") + column);
+        parameters.append(i > 0 ? ", ?" : "?");
+        keyCondition.append((i > 0 ? " AND " : "") + this.table + "."
+            + column + " = d." + column);
+      }
+      for (int i = 0; i < this.valueColumns.length; i++) {
+        String column = this.valueColumns[i];
+        columnNames.append(", " + column);
+        parameters.append(", ?");
+        valueAssignment.append((i > 0 ? ", " : "") + column + " = d."
+            + column);
+        valueCondition.append((i > 0 ? " OR " : "") + this.table + "."
+            + column + " <> d." + column);
+      }
+      PreparedStatement psD = conn.prepareStatement("INSERT INTO "
+          + this.table + "_delta (" + columnNames + ") VALUES ("
+          + parameters + ")");
+      String update = "UPDATE " + this.table + " SET " + valueAssignment
+          + " FROM " + this.table + "_delta d WHERE " + keyCondition
+          + " AND (" + valueCondition + ")";
+      String insert = "INSERT INTO " + this.table + " (" + columnNames
+          + ") SELECT " + columnNames + " FROM " + this.table
+          + "_delta d WHERE NOT EXISTS (SELECT 1 FROM " + this.table
+          + " WHERE " + keyCondition + ")";
+      int updated = 0, inserted = 0, batched = 0;
+      Iterator<Map.Entry<List<Object>, Object[]>> it =
+          this.changedRows.entrySet().iterator();
+      while (it.hasNext()) {
+        Map.Entry<List<Object>, Object[]> e = it.next();
+        int index = 1;
+        List<Object> key = e.getKey();
+        for (int i = 0; i < this.keyColumns.length; i++) {
+          this.setParameter(psD, index++, this.keyTypes[i], key.get(i));
+        }
+        Object[] values = e.getValue();
+        for (int i = 0; i < this.valueColumns.length; i++) {
+          this.setParameter(psD, index++, this.valueTypes[i], values[i]);
+        }
+        psD.addBatch();
+        if (++batched >= BATCH_SIZE || !it.hasNext()) {
+          psD.executeBatch();
+          updated += statement.executeUpdate(update);
+          inserted += statement.executeUpdate(insert);
+          conn.commit();
+          batched = 0;
+        }
+      }
+      psD.close();
+      statement.close();
+      this.logger.fine("Wrote " + this.changedRows.size() + " changed "
+          + "rows to table " + this.table + ", updating " + updated
+          + " and inserting " + inserted + " rows, in "
+          + (System.currentTimeMillis() - started) + " millis.");
+      this.changedRows.clear();
+      if (!this.pendingFile.delete()) {
+        this.logger.warning("Could not delete file "
+            + this.pendingFile.getAbsolutePath() + ". Rows in this file "
+            + "will be written to the database again.");
+      }
+    } catch (SQLException e) {
+      conn.rollback();
+      throw e;
+    } finally {
+      conn.close();
+    }
+  }
+
+  /**
+   * Reads rows that we failed to write in previous executions from the
+   * pending file. Rows consist of tab-separated key and value columns.
+   */
+  private void readPendingRows() {
+    try {
+      this.logger.fine("Reading file "
+          + this.pendingFile.getAbsolutePath() + "...");
+      BufferedReader br = new BufferedReader(new FileReader(
+          this.pendingFile));
+      String line = null;
+      while ((line = br.readLine()) != null) {
+        String[] parts = line.split("\t", -1);
+        if (parts.length != this.keyColumns.length
+            + this.valueColumns.length) {
+          this.logger.warning("Corrupt line '" + line + "' in file "
+              + this.pendingFile.getAbsolutePath() + ". Skipping.");
+          continue;
+        }
+        Object[] key = new Object[this.keyColumns.length];
+        for (int i = 0; i < key.length; i++) {
+          key[i] = this.parseValue(this.keyTypes[i], parts[i]);
+        }
+        Object[] values = new Object[this.valueColumns.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = this.parseValue(this.valueTypes[i],
+              parts[key.length + i]);
+        }
+        this.put(key, values);
+      }
+      br.close();
+      this.logger.fine("Finished reading file "
+          + this.pendingFile.getAbsolutePath() + ".");
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed reading file "
+          + this.pendingFile.getAbsolutePath() + "!", e);
+    } catch (IllegalArgumentException e) {
+      this.logger.log(Level.WARNING, "Failed parsing file "
+          + this.pendingFile.getAbsolutePath() + "!", e);
+    }
+  }
+
+  /**
+   * Writes all rows that have not been written to the database yet to
+   * the pending file.
+   */
+  private void writePendingRows() {
+    try {
+      this.pendingFile.getParentFile().mkdirs();
+      BufferedWriter bw = new BufferedWriter(new FileWriter(
+          this.pendingFile));
+      for (Map.Entry<List<Object>, Object[]> e :
+          this.changedRows.entrySet()) {
+        StringBuilder sb = new StringBuilder();
+        List<Object> key = e.getKey();
+        for (int i = 0; i < key.size(); i++) {
+          sb.append((i > 0 ? "\t" : "")
+              + this.formatValue(this.keyTypes[i], key.get(i)));
+        }
+        Object[] values = e.getValue();
+        for (int i = 0; i < values.length; i++) {
+          sb.append("\t" + this.formatValue(this.valueTypes[i],
+              values[i]));
+        }
+        bw.write(sb.toString() + "\n");
+      }
+      bw.close();
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed writing file "
+          + this.pendingFile.getAbsolutePath() + "!", e);
+    }
+  }
+
+  /**
+   * Formats a value of the given SQL type for the pending file.
+   */
+  private String formatValue(int type, Object value) {
+    if (type == Types.TIMESTAMP) {
+      return String.valueOf(((Timestamp) value).getTime());
+    } else {
+      return String.valueOf(value);
+    }
+  }
+
+  /**
+   * Parses a value of the given SQL type from the pending file.
+   */
+  private Object parseValue(int type, String value) {
+    if (type == Types.TIMESTAMP) {
+      return new Timestamp(Long.parseLong(value));
+    } else if (type == Types.DATE) {
+      return java.sql.Date.valueOf(value);
+    } else if (type == Types.BIGINT) {
+      return Long.parseLong(value);
+    } else {
+      return value;
+    }
+  }
+
+  /**
+   * Sets a statement parameter to the given value of the given SQL type.
+   */
+  private void setParameter(PreparedStatement ps, int index, int type,
+      Object value) throws SQLException {
+    if (type == Types.TIMESTAMP) {
+      ps.setTimestamp(index, (Timestamp) value, this.utcCalendar);
+    } else if (type == Types.DATE) {
+      ps.setDate(index, (java.sql.Date) value);
+    } else if (type == Types.BIGINT) {
+      ps.setLong(index, (Long) value);
+    } else {
+      ps.setString(index, (String) value);
+    }
+  }
+}
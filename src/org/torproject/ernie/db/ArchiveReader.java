@@ -4,89 +4,111 @@ package org.torproject.ernie.db;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import org.apache.commons.compress.compressors.bzip2.*;
 
 /**
  * Read in all files in a given directory and pass buffered readers of
  * them to the relay descriptor parser.
+ *
+ * Files can be read and decompressed by a pool of worker threads. The
+ * file contents are still handed to the relay descriptor parser one
+ * after the other in the order in which the files were found, so that
+ * the parse results don't depend on the number of threads.
  */
 public class ArchiveReader {
+
+  /**
+   * Reads and, if necessary, decompresses a single archive file.
+   */
+  private static class FileReadTask implements Callable<byte[]> {
+    private File file;
+    FileReadTask(File file) {
+      this.file = file;
+    }
+    public byte[] call() throws IOException {
+      return readFile(this.file);
+    }
+  }
+
   public ArchiveReader(RelayDescriptorParser rdp, String archivesDir,
       boolean keepImportHistory) {
+    this(rdp, archivesDir, keepImportHistory, 1);
+  }
+
+  public ArchiveReader(RelayDescriptorParser rdp, String archivesDir,
+      boolean keepImportHistory, int importThreads) {
     int parsedFiles = 0, ignoredFiles = 0;
     Logger logger = Logger.getLogger(ArchiveReader.class.getName());
-    SortedSet<String> archivesImportHistory = new TreeSet<String>();
-    File archivesImportHistoryFile =
-        new File("stats/archives-import-history");
-    if (keepImportHistory && archivesImportHistoryFile.exists()) {
-      try {
-        BufferedReader br = new BufferedReader(new FileReader(
-            archivesImportHistoryFile));
-        String line = null;
-        while ((line = br.readLine()) != null) {
-          archivesImportHistory.add(line);
-        }
-        br.close();
-      } catch (IOException e) {
-        logger.log(Level.WARNING, "Could not read in archives import "
-            + "history file. Skipping.");
-      }
-    }
+    ImportLedger archivesImportHistory = keepImportHistory ?
+        new ImportLedger(new File("stats/archives-import-history.bin"),
+        new File("stats/archives-import-history"), false) : null;
     if (new File(archivesDir).exists()) {
       logger.fine("Importing files in directory " + archivesDir
-          + "/...");
+          + "/ using " + importThreads + " thread(s)...");
+      ExecutorService executor = importThreads > 1 ?
+          Executors.newFixedThreadPool(importThreads) : null;
+      /* Files that are being read by the worker threads, in the order in
+       * which we need to parse them. We don't let this queue grow beyond
+       * twice the number of threads to keep memory usage bounded. */
+      LinkedList<File> pendingFiles = new LinkedList<File>();
+      LinkedList<Future<byte[]>> pendingData =
+          new LinkedList<Future<byte[]>>();
       Stack<File> filesInInputDir = new Stack<File>();
       filesInInputDir.add(new File(archivesDir));
       List<File> problems = new ArrayList<File>();
-      while (!filesInInputDir.isEmpty()) {
-        File pop = filesInInputDir.pop();
-        if (pop.isDirectory()) {
-          for (File f : pop.listFiles()) {
-            filesInInputDir.add(f);
-          }
-        } else {
-          if (rdp != null) {
-            try {
-              BufferedInputStream bis = null;
+      /* Shut down the worker threads even if parsing fails, or they
+       * would keep the JVM from exiting. */
+      try {
+        while (!filesInInputDir.isEmpty() || !pendingFiles.isEmpty()) {
+          if (!filesInInputDir.isEmpty() &&
+              pendingFiles.size() < 2 * importThreads) {
+            File pop = filesInInputDir.pop();
+            if (pop.isDirectory()) {
+              for (File f : keepImportHistory ?
+                  archivesImportHistory.listFiles(pop) : pop.listFiles()) {
+                filesInInputDir.add(f);
+              }
+            } else if (rdp != null) {
               if (keepImportHistory &&
-                  archivesImportHistory.contains(pop.getName())) {
+                  archivesImportHistory.contains(pop)) {
                 ignoredFiles++;
-                continue;
               } else if (pop.getName().endsWith(".tar.bz2")) {
                 logger.warning("Cannot parse compressed tarball "
                     + pop.getAbsolutePath() + ". Skipping.");
-                continue;
-              } else if (pop.getName().endsWith(".bz2")) {
-                FileInputStream fis = new FileInputStream(pop);
-                BZip2CompressorInputStream bcis =
-                    new BZip2CompressorInputStream(fis);
-                bis = new BufferedInputStream(bcis);
               } else {
-                FileInputStream fis = new FileInputStream(pop);
-                bis = new BufferedInputStream(fis);
-              }
-              if (keepImportHistory) {
-                archivesImportHistory.add(pop.getName());
-              }
-              ByteArrayOutputStream baos = new ByteArrayOutputStream();
-              int len;
-              byte[] data = new byte[1024];
-              while ((len = bis.read(data, 0, 1024)) >= 0) {
-                baos.write(data, 0, len);
-              }
-              bis.close();
-              byte[] allData = baos.toByteArray();
-              rdp.parse(allData);
-              parsedFiles++;
-            } catch (IOException e) {
-              problems.add(pop);
-              if (problems.size() > 3) {
-                break;
+                if (keepImportHistory) {
+                  archivesImportHistory.add(pop);
+                }
+                pendingFiles.add(pop);
+                pendingData.add(executor != null ?
+                    executor.submit(new FileReadTask(pop)) : null);
               }
             }
+            continue;
+          }
+          File pop = pendingFiles.removeFirst();
+          Future<byte[]> future = pendingData.removeFirst();
+          try {
+            byte[] allData = future != null ? future.get() : readFile(pop);
+            rdp.parse(allData);
+            parsedFiles++;
+          } catch (InterruptedException e) {
+            problems.add(pop);
+          } catch (ExecutionException e) {
+            problems.add(pop);
+          } catch (IOException e) {
+            problems.add(pop);
+          }
+          if (problems.size() > 3) {
+            break;
           }
         }
+      } finally {
+        if (executor != null) {
+          executor.shutdownNow();
+        }
       }
       if (problems.isEmpty()) {
         logger.fine("Finished importing files in directory " + archivesDir
@@ -105,22 +127,34 @@ public class ArchiveReader {
       }
     }
     if (keepImportHistory) {
-      try {
-        archivesImportHistoryFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            archivesImportHistoryFile));
-        for (String line : archivesImportHistory) {
-          bw.write(line + "\n");
-        }
-        bw.close();
-      } catch (IOException e) {
-        logger.log(Level.WARNING, "Could not write archives import "
-            + "history file.");
-      }
+      archivesImportHistory.write();
     }
     logger.info("Finished importing relay descriptors from local "
         + "directory:\nParsed " + parsedFiles + ", ignored "
         + ignoredFiles + " files.");
   }
-}
 
+  /**
+   * Reads the contents of an archive file, decompressing it if it ends
+   * with .bz2.
+   */
+  private static byte[] readFile(File file) throws IOException {
+    BufferedInputStream bis = null;
+    FileInputStream fis = new FileInputStream(file);
+    if (file.getName().endsWith(".bz2")) {
+      BZip2CompressorInputStream bcis =
+          new BZip2CompressorInputStream(fis);
+      bis = new BufferedInputStream(bcis);
+    } else {
+      bis = new BufferedInputStream(fis);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    int len;
+    byte[] data = new byte[1024];
+    while ((len = bis.read(data, 0, 1024)) >= 0) {
+      baos.write(data, 0, len);
+    }
+    bis.close();
+    return baos.toByteArray();
+  }
+}
@@ -40,11 +40,8 @@ public class ArchiveWriter {
   }
 
   public void storeConsensus(byte[] data, long validAfter) {
-    SimpleDateFormat printFormat = new SimpleDateFormat(
-        "yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
-    printFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     String filename = outputDirectory + "/consensus/"
-        + printFormat.format(new Date(validAfter)) + "-consensus";
+        + TimestampCodec.formatStatusPath(validAfter) + "-consensus";
     if (this.store(data, filename)) {
       this.storedConsensuses++;
     }
@@ -52,11 +49,8 @@ public class ArchiveWriter {
 
   public void storeVote(byte[] data, long validAfter,
       String fingerprint, String digest) {
-    SimpleDateFormat printFormat = new SimpleDateFormat(
-        "yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
-    printFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     String filename = outputDirectory + "/vote/"
-        + printFormat.format(new Date(validAfter)) + "-vote-"
+        + TimestampCodec.formatStatusPath(validAfter) + "-vote-"
         + fingerprint + "-" + digest;
     if (this.store(data, filename)) {
       this.storedVotes++;
@@ -65,10 +59,8 @@ public class ArchiveWriter {
 
   public void storeServerDescriptor(byte[] data, String digest,
       long published) {
-    SimpleDateFormat printFormat = new SimpleDateFormat("yyyy/MM/");
-    printFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     String filename = outputDirectory + "/server-descriptor/"
-        + printFormat.format(new Date(published))
+        + TimestampCodec.formatMonthDirectory(published)
         + digest.substring(0, 1) + "/" + digest.substring(1, 2) + "/"
         + digest;
     if (this.store(data, filename)) {
@@ -78,10 +70,8 @@ public class ArchiveWriter {
 
   public void storeExtraInfoDescriptor(byte[] data,
       String extraInfoDigest, long published) {
-    SimpleDateFormat descriptorFormat = new SimpleDateFormat("yyyy/MM/");
-    descriptorFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     String filename = outputDirectory + "/extra-info/"
-        + descriptorFormat.format(new Date(published))
+        + TimestampCodec.formatMonthDirectory(published)
         + extraInfoDigest.substring(0, 1) + "/"
         + extraInfoDigest.substring(1, 2) + "/"
         + extraInfoDigest;
@@ -114,16 +104,6 @@ public class ArchiveWriter {
         + "descriptors of the last 3 consensuses (Consensus/Vote, "
         + "valid-after, votes, server descriptors, extra-infos):");
     try {
-      SimpleDateFormat validAfterFormat =
-          new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-      validAfterFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-      SimpleDateFormat consensusVoteFormat =
-          new SimpleDateFormat("yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
-      consensusVoteFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-      SimpleDateFormat descriptorFormat =
-          new SimpleDateFormat("yyyy/MM/");
-      descriptorFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-
       SortedSet<File> consensuses = new TreeSet<File>();
       Stack<File> leftToParse = new Stack<File>();
       leftToParse.add(new File(outputDirectory + "/consensus"));
@@ -150,10 +130,10 @@ public class ArchiveWriter {
         while ((line = br.readLine()) != null) {
           if (line.startsWith("valid-after ")) {
             validAfterTime = line.substring("valid-after ".length());
-            long validAfter = validAfterFormat.parse(
-                validAfterTime).getTime();
+            long validAfter = TimestampCodec.parseDateTime(
+                validAfterTime);
             voteFilenamePrefix = outputDirectory + "/vote/"
-                + consensusVoteFormat.format(new Date(validAfter))
+                + TimestampCodec.formatStatusPath(validAfter)
                 + "-vote-";
           } else if (line.startsWith("dir-source ")) {
             dirSource = line.split(" ")[2];
@@ -173,12 +153,11 @@ public class ArchiveWriter {
                   voteAllServerDescs++;
                   String digest = Hex.encodeHexString(Base64.decodeBase64(
                       line3.split(" ")[3] + "=")).toLowerCase();
-                  long published = validAfterFormat.parse(
-                      line3.split(" ")[4] + " "
-                      + line3.split(" ")[5]).getTime();
+                  long published = TimestampCodec.parseDateTime(
+                      line3.split(" ")[4] + " " + line3.split(" ")[5]);
                   String filename = outputDirectory
                       + "/server-descriptor/"
-                      + descriptorFormat.format(new Date(published))
+                      + TimestampCodec.formatMonthDirectory(published)
                       + digest.substring(0, 1) + "/"
                       + digest.substring(1, 2) + "/" + digest;
                   if (new File(filename).exists()) {
@@ -194,7 +173,7 @@ public class ArchiveWriter {
                             line2.split(" ")[1].toLowerCase();
                         String filename2 = outputDirectory
                             + "/extra-info/"
-                            + descriptorFormat.format(new Date(published))
+                            + TimestampCodec.formatMonthDirectory(published)
                             + extraInfoDigest.substring(0, 1) + "/"
                             + extraInfoDigest.substring(1, 2) + "/"
                             + extraInfoDigest;
@@ -222,10 +201,10 @@ public class ArchiveWriter {
             allServerDescs++;
             String digest = Hex.encodeHexString(Base64.decodeBase64(
                 line.split(" ")[3] + "=")).toLowerCase();
-            long published = validAfterFormat.parse(
-                line.split(" ")[4] + " " + line.split(" ")[5]).getTime();
+            long published = TimestampCodec.parseDateTime(
+                line.split(" ")[4] + " " + line.split(" ")[5]);
             String filename = outputDirectory + "/server-descriptor/"
-                + descriptorFormat.format(new Date(published))
+                + TimestampCodec.formatMonthDirectory(published)
                 + digest.substring(0, 1) + "/"
                 + digest.substring(1, 2) + "/" + digest;
             if (new File (filename).exists()) {
@@ -240,7 +219,7 @@ public class ArchiveWriter {
                       line2.split(" ")[2].toLowerCase() :
                       line2.split(" ")[1].toLowerCase();
                   String filename2 = outputDirectory + "/extra-info/"
-                      + descriptorFormat.format(new Date(published))
+                      + TimestampCodec.formatMonthDirectory(published)
                       + extraInfoDigest.substring(0, 1) + "/"
                       + extraInfoDigest.substring(1, 2) + "/"
                       + extraInfoDigest;
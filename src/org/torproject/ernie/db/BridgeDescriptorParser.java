@@ -6,18 +6,21 @@ import java.io.*;
 import java.text.*;
 import java.util.*;
 import java.util.logging.*;
-import org.apache.commons.codec.digest.*;
+import org.apache.commons.codec.binary.*;
 
 public class BridgeDescriptorParser {
   private ConsensusStatsFileHandler csfh;
   private BridgeStatsFileHandler bsfh;
   private SanitizedBridgesWriter sbw;
+  private IdentityHashCache ihc;
   private Logger logger;
   public BridgeDescriptorParser(ConsensusStatsFileHandler csfh,
-      BridgeStatsFileHandler bsfh, SanitizedBridgesWriter sbw) {
+      BridgeStatsFileHandler bsfh, SanitizedBridgesWriter sbw,
+      IdentityHashCache ihc) {
     this.csfh = csfh;
     this.bsfh = bsfh;
     this.sbw = sbw;
+    this.ihc = ihc;
     this.logger =
         Logger.getLogger(BridgeDescriptorParser.class.getName());
   }
@@ -68,7 +71,8 @@ public class BridgeDescriptorParser {
             }
           }
           hashedIdentity = sanitized ? line.split(" ")[2]
-              : DigestUtils.shaHex(line.split(" ")[2]).toUpperCase();
+              : this.ihc.getHashedIdentityHex(StringUtils.getBytesUtf8(
+              line.split(" ")[2])).toUpperCase();
           if (this.bsfh != null) {
             skip = this.bsfh.isKnownRelay(hashedIdentity);
           }
@@ -82,7 +86,8 @@ public class BridgeDescriptorParser {
               "opt fingerprint".length() : "fingerprint".length()).
               replaceAll(" ", "").toLowerCase();
           hashedIdentity = sanitized ? identity
-              : DigestUtils.shaHex(identity).toUpperCase();
+              : this.ihc.getHashedIdentityHex(StringUtils.getBytesUtf8(
+              identity)).toUpperCase();
         } else if (!skip && line.startsWith("geoip-start-time ")) {
           geoipStartTimeLine = line;
         } else if (!skip && line.startsWith("geoip-client-origins")
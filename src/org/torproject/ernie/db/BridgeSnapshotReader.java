@@ -4,149 +4,262 @@ package org.torproject.ernie.db;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 import org.apache.commons.compress.compressors.gzip.*;
 import org.apache.commons.compress.archivers.tar.*;
 
 /**
  * Reads the half-hourly snapshots of bridge descriptors from Tonga.
+ *
+ * Tarballs are decompressed and split into single descriptors by a pool
+ * of reader threads, with every tarball being read by a single thread
+ * in a single pass. Descriptors are passed to the parser through a
+ * bounded queue per tarball. The parser is not thread-safe, so that
+ * descriptors are still parsed one after the other in the order in which
+ * tarballs were found, and the parse results don't depend on the number
+ * of threads.
  */
 public class BridgeSnapshotReader {
+
+  /**
+   * Marker that is put into a queue after the last descriptor of a
+   * tarball.
+   */
+  private static final byte[] END_OF_TARBALL = new byte[0];
+
+  /**
+   * Maximum number of descriptors per tarball that have been read but
+   * not parsed yet.
+   */
+  private static final int QUEUE_CAPACITY = 256;
+
+  private static final byte[] STATUS_TOKEN = asciiBytes("r "),
+      SERVER_DESCRIPTOR_TOKEN = asciiBytes("router "),
+      EXTRA_INFO_TOKEN = asciiBytes("extra-info ");
+  private static final byte[] SIG_TOKEN =
+      asciiBytes("\nrouter-signature\n");
+  private static final byte[] END_TOKEN =
+      asciiBytes("\n-----END SIGNATURE-----\n");
+
+  /**
+   * Reads a tarball and puts its descriptors into a queue. Statuses are
+   * put into the queue as a whole, server descriptors and extra-info
+   * descriptors one by one. Every tarball is read using a buffer that is
+   * reused for all of its entries.
+   */
+  private static class TarballReadTask implements Runnable {
+    private File file;
+    private BlockingQueue<byte[]> descriptors =
+        new ArrayBlockingQueue<byte[]>(QUEUE_CAPACITY);
+    private volatile Exception exception;
+    private byte[] buffer = new byte[64 * 1024];
+    TarballReadTask(File file) {
+      this.file = file;
+    }
+    public void run() {
+      try {
+        this.readTarball();
+      } catch (IOException e) {
+        this.exception = e;
+      } catch (RuntimeException e) {
+        this.exception = e;
+      } catch (InterruptedException e) {
+        return;
+      }
+      try {
+        this.descriptors.put(END_OF_TARBALL);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+    private void readTarball() throws IOException, InterruptedException {
+      if (this.file.length() == 0L) {
+        return;
+      }
+      TarArchiveInputStream tais = new TarArchiveInputStream(
+          new GzipCompressorInputStream(new BufferedInputStream(
+          new FileInputStream(this.file))));
+      try {
+        while ((tais.getNextTarEntry()) != null) {
+          int length = 0, read;
+          while ((read = tais.read(this.buffer, length,
+              this.buffer.length - length)) >= 0) {
+            length += read;
+            if (length == this.buffer.length) {
+              this.buffer = Arrays.copyOf(this.buffer,
+                  2 * this.buffer.length);
+            }
+          }
+          if (length > 0) {
+            this.splitEntry(length);
+          }
+        }
+      } finally {
+        tais.close();
+      }
+    }
+    private void splitEntry(int length) throws InterruptedException {
+      byte[] data = this.buffer;
+
+      /* Skip annotation lines starting with @ to find out whether this
+       * entry contains a status or descriptors. */
+      int firstLine = 0;
+      while (firstLine < length && data[firstLine] == '@') {
+        int newline = indexOf(data, length, (byte) '\n', firstLine);
+        firstLine = newline < 0 ? length : newline + 1;
+      }
+      if (firstLine >= length) {
+        return;
+      }
+      if (startsWith(data, length, firstLine, STATUS_TOKEN)) {
+        this.descriptors.put(Arrays.copyOf(data, length));
+        return;
+      }
+      byte[] startToken = startsWith(data, length, firstLine,
+          SERVER_DESCRIPTOR_TOKEN) ? SERVER_DESCRIPTOR_TOKEN :
+          EXTRA_INFO_TOKEN;
+      int start = -1, sig = -1, end = -1;
+      while (end < length) {
+        start = indexOf(data, length, startToken, end);
+        if (start < 0) {
+          break;
+        }
+        sig = indexOf(data, length, SIG_TOKEN, start);
+        if (sig < 0) {
+          break;
+        }
+        sig += SIG_TOKEN.length;
+        end = indexOf(data, length, END_TOKEN, sig);
+        if (end < 0) {
+          break;
+        }
+        end += END_TOKEN.length;
+        this.descriptors.put(Arrays.copyOfRange(data, start, end));
+      }
+    }
+  }
+
   public BridgeSnapshotReader(BridgeDescriptorParser bdp,
       String bridgeDirectoriesDir) {
+    this(bdp, bridgeDirectoriesDir, 1);
+  }
+
+  public BridgeSnapshotReader(BridgeDescriptorParser bdp,
+      String bridgeDirectoriesDir, int importThreads) {
     Logger logger =
         Logger.getLogger(BridgeSnapshotReader.class.getName());
-    SortedSet<String> parsed = new TreeSet<String>();
     File bdDir = new File(bridgeDirectoriesDir);
-    File pbdFile = new File("stats/parsed-bridge-directories");
-    boolean modified = false;
     if (bdDir.exists()) {
-      if (pbdFile.exists()) {
-        logger.fine("Reading file " + pbdFile.getAbsolutePath() + "...");
-        try {
-          BufferedReader br = new BufferedReader(new FileReader(pbdFile));
-          String line = null;
-          while ((line = br.readLine()) != null) {
-            parsed.add(line);
-          }
-          br.close();
-          logger.fine("Finished reading file "
-              + pbdFile.getAbsolutePath() + ".");
-        } catch (IOException e) {
-          logger.log(Level.WARNING, "Failed reading file "
-              + pbdFile.getAbsolutePath() + "!", e);
-          return;
-        }
-      }
+      /* Tarballs are named after the time of the snapshot and never
+       * rewritten, so that we can skip directories that haven't
+       * changed. */
+      ImportLedger parsed = new ImportLedger(
+          new File("stats/parsed-bridge-directories.bin"),
+          new File("stats/parsed-bridge-directories"), true);
+      /* Names of tarballs that we queued in this execution, so that we
+       * don't parse copies of the same tarball twice. */
+      Set<String> queued = new HashSet<String>();
       logger.fine("Importing files in directory " + bridgeDirectoriesDir
-         + "/...");
+         + "/ using " + importThreads + " thread(s)...");
+      ExecutorService executor = Executors.newFixedThreadPool(
+          importThreads);
+      /* Tarballs that are being read by the reader threads, in the order
+       * in which we need to parse them. We don't let this queue grow
+       * beyond twice the number of threads to keep memory usage
+       * bounded. */
+      LinkedList<TarballReadTask> pendingTarballs =
+          new LinkedList<TarballReadTask>();
       Stack<File> filesInInputDir = new Stack<File>();
       filesInInputDir.add(bdDir);
-      while (!filesInInputDir.isEmpty()) {
-        File pop = filesInInputDir.pop();
-        if (pop.isDirectory()) {
-          for (File f : pop.listFiles()) {
-            filesInInputDir.add(f);
+      /* Shut down the reader threads even if parsing fails, or they
+       * would keep waiting for us to take their descriptors and keep
+       * the JVM from exiting. */
+      try {
+        while (!filesInInputDir.isEmpty() || !pendingTarballs.isEmpty()) {
+          if (!filesInInputDir.isEmpty() &&
+              pendingTarballs.size() < 2 * importThreads) {
+            File pop = filesInInputDir.pop();
+            if (pop.isDirectory()) {
+              for (File f : parsed.listFiles(pop)) {
+                filesInInputDir.add(f);
+              }
+            } else if (!parsed.contains(pop) && queued.add(pop.getName())) {
+              TarballReadTask task = new TarballReadTask(pop);
+              pendingTarballs.add(task);
+              executor.execute(task);
+            }
+            continue;
           }
-        } else if (!parsed.contains(pop.getName())) {
+          TarballReadTask task = pendingTarballs.removeFirst();
+          String fn = task.file.getName();
+          String dateTime = fn.substring(11, 21) + " "
+                + fn.substring(22, 24) + ":" + fn.substring(24, 26)
+                + ":" + fn.substring(26, 28);
           try {
-            FileInputStream in = new FileInputStream(pop);
-            if (in.available() > 0) {
-              GzipCompressorInputStream gcis =
-                  new GzipCompressorInputStream(in);
-              TarArchiveInputStream tais = new TarArchiveInputStream(gcis);
-              BufferedInputStream bis = new BufferedInputStream(tais);
-              String fn = pop.getName();
-              String dateTime = fn.substring(11, 21) + " "
-                    + fn.substring(22, 24) + ":" + fn.substring(24, 26)
-                    + ":" + fn.substring(26, 28);
-              while ((tais.getNextTarEntry()) != null) {
-                ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                int len;
-                byte[] data = new byte[1024];
-                while ((len = bis.read(data, 0, 1024)) >= 0) {
-                  baos.write(data, 0, len);
-                }
-                byte[] allData = baos.toByteArray();
-                if (allData.length == 0) {
-                  continue;
-                }
-                String ascii = new String(allData, "US-ASCII");
-                BufferedReader br3 = new BufferedReader(new StringReader(
-                    ascii));
-                String firstLine = null;
-                while ((firstLine = br3.readLine()) != null) {
-                  if (firstLine.startsWith("@")) {
-                    continue;
-                  } else {
-                    break;
-                  }
-                }
-                if (firstLine.startsWith("r ")) {
-                  bdp.parse(allData, dateTime, false);
-                } else {
-                  int start = -1, sig = -1, end = -1;
-                  String startToken =
-                      firstLine.startsWith("router ") ?
-                      "router " : "extra-info ";
-                  String sigToken = "\nrouter-signature\n";
-                  String endToken = "\n-----END SIGNATURE-----\n";
-                  while (end < ascii.length()) {
-                    start = ascii.indexOf(startToken, end);
-                    if (start < 0) {
-                      break;
-                    }
-                    sig = ascii.indexOf(sigToken, start);
-                    if (sig < 0) {
-                      break;
-                    }
-                    sig += sigToken.length();
-                    end = ascii.indexOf(endToken, sig);
-                    if (end < 0) {
-                      break;
-                    }
-                    end += endToken.length();
-                    byte[] descBytes = new byte[end - start];
-                    System.arraycopy(allData, start, descBytes, 0,
-                        end - start);
-                    bdp.parse(descBytes, dateTime, false);
-                  }
-                }
-              }
+            byte[] descriptor;
+            while ((descriptor = task.descriptors.take()) !=
+                END_OF_TARBALL) {
+              bdp.parse(descriptor, dateTime, false);
             }
-            in.close();
-
-            /* Let's give some memory back, or we'll run out of it. */
-            System.gc();
-
-            parsed.add(pop.getName());
-            modified = true;
-          } catch (IOException e) {
+          } catch (InterruptedException e) {
+            logger.log(Level.WARNING, "Interrupted while parsing bridge "
+                + "snapshot " + fn + "!", e);
+            break;
+          }
+          if (task.exception != null) {
             logger.log(Level.WARNING, "Could not parse bridge snapshot "
-                + pop.getName() + "!", e);
+                + fn + "!", task.exception);
             continue;
           }
+          parsed.add(task.file);
         }
+      } finally {
+        executor.shutdownNow();
       }
       logger.fine("Finished importing files in directory "
           + bridgeDirectoriesDir + "/.");
-      if (!parsed.isEmpty() && modified) {
-        logger.fine("Writing file " + pbdFile.getAbsolutePath() + "...");
-        try {
-          pbdFile.getParentFile().mkdirs();
-          BufferedWriter bw = new BufferedWriter(new FileWriter(pbdFile));
-          for (String f : parsed) {
-            bw.append(f + "\n");
-          }
-          bw.close();
-          logger.fine("Finished writing file " + pbdFile.getAbsolutePath()
-              + ".");
-        } catch (IOException e) {
-          logger.log(Level.WARNING, "Failed writing file "
-              + pbdFile.getAbsolutePath() + "!", e);
-        }
+      parsed.write();
+    }
+  }
+
+  private static byte[] asciiBytes(String s) {
+    try {
+      return s.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static boolean startsWith(byte[] data, int length, int from,
+      byte[] token) {
+    if (from + token.length > length) {
+      return false;
+    }
+    for (int i = 0; i < token.length; i++) {
+      if (data[from + i] != token[i]) {
+        return false;
       }
     }
+    return true;
+  }
+
+  private static int indexOf(byte[] data, int length, byte b, int from) {
+    for (int i = Math.max(from, 0); i < length; i++) {
+      if (data[i] == b) {
+        return i;
+      }
+    }
+    return -1;
   }
-}
 
+  private static int indexOf(byte[] data, int length, byte[] token,
+      int from) {
+    for (int i = Math.max(from, 0); i + token.length <= length; i++) {
+      if (startsWith(data, length, i, token)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+}
@@ -6,6 +6,7 @@ import java.io.*;
 import java.sql.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
 
 /**
@@ -15,39 +16,326 @@ import java.util.logging.*;
  * 24-hour period. In the next step, all bridges are excluded that have
  * been running as a relay. Finally, observations are summed up and
  * written to <code>stats/bridge-stats</code>.
+ *
+ * Observations made by single bridges are appended to monthly segments
+ * in <code>stats/bridge-stats-raw.d/</code>, and only days with new
+ * observations or with newly excluded bridges are summed up again. Only
+ * a few months of observations are kept in memory at a time, in compact
+ * form, so that memory usage doesn't grow with the number of months.
+ * Months are summed up in parallel.
  */
 public class BridgeStatsFileHandler {
 
+  /**
+   * Observations made by bridges in a given month, stored in primitive
+   * arrays. Bridge identities are stored as 20-byte hashes, dates as days
+   * since the epoch, times as seconds since midnight, countries as
+   * numbers assigned by <code>getCountryNumber</code>, and user numbers
+   * in hundredths.
+   */
+  private static class BridgeObservations {
+
+    /* Hashed bridge identities, with the identity of row i starting at
+     * i * 20. */
+    private byte[] identities = new byte[64 * 20];
+
+    /* Observation dates and times. */
+    private int[] days = new int[64], seconds = new int[64];
+
+    /* First and last (exclusive) index of a row's user numbers. */
+    private int[] usersStart = new int[64], usersEnd = new int[64];
+
+    /* Number of rows. */
+    private int rows = 0;
+
+    /* User numbers of all rows by country. Replacing a row appends its
+     * new user numbers. */
+    private short[] countries = new short[1024];
+    private int[] users = new int[1024];
+    private int usersSize = 0;
+
+    /* Rows by bridge identity and date using open addressing. Contains
+     * row numbers plus 1, or 0 for empty slots. */
+    private int[] index = new int[128];
+
+    /* Returns the row with the given bridge identity and date, or -1 if
+     * there is no such row. */
+    int find(byte[] identity, int day) {
+      return this.index[this.findSlot(identity, 0, day)] - 1;
+    }
+
+    private int findSlot(byte[] identity, int offset, int day) {
+      int hash = (identity[offset] << 24) ^
+          ((identity[offset + 1] & 0xff) << 16) ^
+          ((identity[offset + 2] & 0xff) << 8) ^
+          (identity[offset + 3] & 0xff) ^ (day * 0x9e3779b9);
+      hash ^= (hash >>> 16);
+      int mask = this.index.length - 1, slot = hash & mask;
+      while (this.index[slot] != 0) {
+        int row = this.index[slot] - 1;
+        if (this.days[row] == day && this.identityEquals(row, identity,
+            offset)) {
+          break;
+        }
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+
+    private boolean identityEquals(int row, byte[] identity,
+        int offset) {
+      for (int i = 0; i < 20; i++) {
+        if (this.identities[row * 20 + i] != identity[offset + i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /* Adds a row, replacing the row with the same bridge identity and
+     * date if it exists. */
+    void put(byte[] identity, int day, int seconds, short[] countries,
+        int[] users, int length) {
+      int slot = this.findSlot(identity, 0, day);
+      int row = this.index[slot] - 1;
+      if (row < 0) {
+        row = this.rows++;
+        if (row == this.days.length) {
+          int capacity = 2 * row;
+          this.identities = Arrays.copyOf(this.identities, 20 * capacity);
+          this.days = Arrays.copyOf(this.days, capacity);
+          this.seconds = Arrays.copyOf(this.seconds, capacity);
+          this.usersStart = Arrays.copyOf(this.usersStart, capacity);
+          this.usersEnd = Arrays.copyOf(this.usersEnd, capacity);
+        }
+        System.arraycopy(identity, 0, this.identities, row * 20, 20);
+        this.days[row] = day;
+        this.index[slot] = row + 1;
+        if (2 * this.rows > this.index.length) {
+          this.index = new int[2 * this.index.length];
+          for (int i = 0; i < this.rows; i++) {
+            this.index[this.findSlot(this.identities, i * 20,
+                this.days[i])] = i + 1;
+          }
+        }
+      }
+      this.seconds[row] = seconds;
+      if (this.usersSize + length > this.users.length) {
+        int capacity = Math.max(2 * this.users.length,
+            this.usersSize + length);
+        this.countries = Arrays.copyOf(this.countries, capacity);
+        this.users = Arrays.copyOf(this.users, capacity);
+      }
+      System.arraycopy(countries, 0, this.countries, this.usersSize,
+          length);
+      System.arraycopy(users, 0, this.users, this.usersSize, length);
+      this.usersStart[row] = this.usersSize;
+      this.usersSize += length;
+      this.usersEnd[row] = this.usersSize;
+    }
+  }
+
+  /**
+   * Maximum number of months of observations made by single bridges that
+   * we keep in memory at a time.
+   */
+  private static final int MAX_LOADED_MONTHS = 3;
+
+  /**
+   * Pool of threads that sum up months in parallel, shared by all
+   * handlers. Its threads are daemon threads and don't need to be shut
+   * down.
+   */
+  private static final ForkJoinPool AGGREGATION_POOL = new ForkJoinPool();
+
+  /**
+   * Task that sums up observations made by single bridges in one or more
+   * months to bridge users per day. Tasks for more than one month are
+   * split into two halves that are summed up in parallel, so that every
+   * month is read and summed up by its own task. The resulting days are
+   * merged in date order, which is simple, because no two months share a
+   * day.
+   */
+  private class MonthAggregation
+      extends RecursiveTask<SortedMap<Integer, long[]>> {
+
+    private static final long serialVersionUID = 1L;
+
+    /* Months formatted as "yyyy-MM" that this task sums up. */
+    private List<String> months;
+
+    /* Months that we kept in memory when adding observations. All other
+     * months are read from disk by the task summing them up. */
+    private Map<String, BridgeObservations> loadedMonths;
+
+    /* Days that need to be summed up, or null for all days. */
+    private Set<Integer> affectedDays;
+
+    MonthAggregation(List<String> months,
+        Map<String, BridgeObservations> loadedMonths,
+        Set<Integer> affectedDays) {
+      this.months = months;
+      this.loadedMonths = loadedMonths;
+      this.affectedDays = affectedDays;
+    }
+
+    protected SortedMap<Integer, long[]> compute() {
+      if (this.months.size() > 1) {
+        int middle = this.months.size() / 2;
+        MonthAggregation first = new MonthAggregation(
+            this.months.subList(0, middle), this.loadedMonths,
+            this.affectedDays);
+        MonthAggregation second = new MonthAggregation(
+            this.months.subList(middle, this.months.size()),
+            this.loadedMonths, this.affectedDays);
+        first.fork();
+        SortedMap<Integer, long[]> days = second.compute();
+        days.putAll(first.join());
+        return days;
+      }
+      SortedMap<Integer, long[]> days = new TreeMap<Integer, long[]>();
+      if (this.months.isEmpty()) {
+        return days;
+      }
+      String month = this.months.get(0);
+      BridgeObservations observations = this.loadedMonths.get(month);
+      if (observations == null) {
+        observations = readMonth(month);
+      }
+      int countryCount = getCountryCount();
+      byte[] zeroTwoTwoKey = new byte[28];
+      for (int row = 0; row < observations.rows; row++) {
+        int day = observations.days[row];
+        if (this.affectedDays != null &&
+            !this.affectedDays.contains(day)) {
+          continue;
+        }
+        if (!days.containsKey(day)) {
+          days.put(day, null);
+        }
+        if (hashedRelays.contains(observations.identities, row * 20)) {
+          continue;
+        }
+        System.arraycopy(observations.identities, row * 20,
+            zeroTwoTwoKey, 0, 20);
+        putZeroTwoTwoKeyTail(zeroTwoTwoKey, day,
+            observations.seconds[row]);
+        if (zeroTwoTwoDescriptors.contains(zeroTwoTwoKey)) {
+          continue;
+        }
+        long[] users = days.get(day);
+        if (users == null) {
+          users = new long[countryCount];
+          days.put(day, users);
+        }
+        for (int i = observations.usersStart[row];
+            i < observations.usersEnd[row]; i++) {
+          users[observations.countries[i]] += observations.users[i];
+        }
+      }
+      return days;
+    }
+  }
+
   /**
    * Two-letter country codes of known countries.
    */
   private SortedSet<String> countries;
 
+  /**
+   * Country codes by the numbers that we use to store user numbers.
+   */
+  private List<String> countryCodes;
+
+  /**
+   * Numbers that we use to store user numbers by country code.
+   */
+  private Map<String, Short> countryCodeNumbers;
+
   /**
    * Intermediate results file containing bridge user numbers by country
-   * as seen by single bridges, normalized to 24-hour periods.
+   * as seen by single bridges, normalized to 24-hour periods, in the
+   * format that we used before storing them in segments. This file is
+   * only read once to convert its contents.
    */
   private File bridgeStatsRawFile;
 
   /**
    * Bridge user numbers by country as seen by single bridges on a given
-   * day. Map keys are bridge and date written as "bridge,date", map
-   * values are lines as read from <code>stats/bridge-stats-raw</code>.
+   * day. Lines are keyed by bridge and date written as "bridge,date" and
+   * contain the time and all observations written as
+   * "bridge,date,time,country=users,...".
+   */
+  private SegmentedStatsStore bridgeUsersRawStore;
+
+  /**
+   * Bridge user numbers of the months that we have read from
+   * <code>stats/bridge-stats-raw.d/</code>, by month formatted as
+   * "yyyy-MM", in the order in which they were last used.
+   */
+  private LinkedHashMap<String, BridgeObservations> bridgeUsersRaw;
+
+  /**
+   * Helper file containing the hashed identities of all bridges that we
+   * have observations from. We use these to find out whether a new
+   * hashed relay identity requires us to sum up observations of past
+   * days again.
    */
-  private SortedMap<String, Map<String, String>> bridgeUsersRaw;
+  private File bridgeIdentitiesFile;
+
+  /**
+   * Hashed identities of all bridges that we have observations from.
+   */
+  private PackedKeySet bridgeIdentities;
+
+  /**
+   * Hashed identities of bridges that we added observations from for
+   * the first time in this execution.
+   */
+  private List<String> addedBridgeIdentities;
 
   /**
    * Helper file containing the hashed relay identities of all known
-   * relays. These hashes are compared to the bridge identity hashes to
-   * exclude bridges that have been known as relays from the statistics.
+   * relays as 20-byte keys. These hashes are compared to the bridge
+   * identity hashes to exclude bridges that have been known as relays
+   * from the statistics.
    */
   private File hashedRelayIdentitiesFile;
 
+  /**
+   * Helper file containing the hashed relay identities of all known
+   * relays as hex strings, one per line, as we wrote them before storing
+   * them in binary form. This file is only read once to convert its
+   * contents.
+   */
+  private File hashedRelayIdentitiesTextFile;
+
   /**
    * Known hashed relay identities used to exclude bridges that have been
    * running as relays.
    */
-  private SortedSet<String> hashedRelays;
+  private PackedKeySet hashedRelays;
+
+  /**
+   * Hashed relay identities that we learned about in this execution and
+   * that we need to append to
+   * <code>stats/hashed-relay-identities.bin</code>.
+   */
+  private List<byte[]> newHashedRelays;
+
+  /**
+   * Buffer for parsing hashed identities that are passed to
+   * <code>addHashedRelay</code> and <code>isKnownRelay</code> without
+   * creating new objects.
+   */
+  private byte[] identityBuffer = new byte[20];
+
+  /**
+   * Whether a bridge that we have observations from turned out to have
+   * been running as a relay in this execution, which requires us to sum
+   * up observations on all days again.
+   */
+  private boolean knownBridgeExcluded;
 
   /**
    * Helper file containing extra-info descriptors published by 0.2.2.x
@@ -57,19 +345,34 @@ public class BridgeStatsFileHandler {
   private File zeroTwoTwoDescriptorsFile;
 
   /**
-   * Extra-info descriptors published by 0.2.2.x bridges. If these
-   * descriptors contain geoip-stats, they are not included in the
-   * results, because stats are very likely broken.
+   * Extra-info descriptors published by 0.2.2.x bridges, identified by
+   * 20-byte hashed bridge identity, 4-byte day, and 4-byte time of the
+   * day. If these descriptors contain geoip-stats, they are not
+   * included in the results, because stats are very likely broken.
    */
-  private SortedSet<String> zeroTwoTwoDescriptors;
+  private PackedKeySet zeroTwoTwoDescriptors;
+
+  /**
+   * Extra-info descriptors published by 0.2.2.x bridges that we learned
+   * about in this execution and that we need to append to
+   * <code>stats/v022-bridge-descriptors</code>.
+   */
+  private List<String> newZeroTwoTwoDescriptors;
 
   /**
    * Final results file containing the number of bridge users per country
-   * and day. This file is not read in during initialization, but
-   * overwritten at the end of the execution.
+   * and day.
    */
   private File bridgeStatsFile;
 
+  /**
+   * Number of bridge users per country and day as read from
+   * <code>stats/bridge-stats</code> or summed up in this execution. Map
+   * keys are dates formatted as "yyyy-MM-dd", map values contain user
+   * numbers in hundredths by country number.
+   */
+  private SortedMap<String, long[]> bridgeUsersPerDay;
+
   /**
    * Logger for this class.
    */
@@ -78,26 +381,47 @@ public class BridgeStatsFileHandler {
   /* Database connection string. */
   private String connectionURL = null;
 
+  /* Format for parsing and formatting observation dates. */
+  private SimpleDateFormat dateFormat = null;
+
   /**
-   * Initializes this class, including reading in intermediate results
-   * files <code>stats/bridge-stats-raw</code> and
-   * <code>stats/hashed-relay-identities</code>.
+   * Initializes this class, including reading in final results file
+   * <code>stats/bridge-stats</code> and helper files
+   * <code>stats/hashed-relay-identities.bin</code>,
+   * <code>stats/v022-bridge-descriptors</code>, and
+   * <code>stats/bridge-identities</code>, and converting intermediate
+   * results file <code>stats/bridge-stats-raw</code> if it hasn't been
+   * converted to segments before.
    */
   public BridgeStatsFileHandler(String connectionURL) {
 
     /* Initialize set of known countries. */
     this.countries = new TreeSet<String>();
+    this.countryCodes = new ArrayList<String>();
+    this.countryCodeNumbers = new HashMap<String, Short>();
     this.countries.add("zy");
+    this.getCountryNumber("zy");
 
     /* Initialize local data structures to hold results. */
-    this.bridgeUsersRaw = new TreeMap<String, Map<String, String>>();
-    this.hashedRelays = new TreeSet<String>();
-    this.zeroTwoTwoDescriptors = new TreeSet<String>();
+    this.bridgeUsersRawStore = new SegmentedStatsStore(new File(
+        "stats/bridge-stats-raw.d"), 2, 1);
+    this.bridgeUsersRaw = new LinkedHashMap<String, BridgeObservations>(
+        16, 0.75F, true);
+    this.bridgeIdentities = new PackedKeySet(20);
+    this.addedBridgeIdentities = new ArrayList<String>();
+    this.hashedRelays = new PackedKeySet(20);
+    this.newHashedRelays = new ArrayList<byte[]>();
+    this.zeroTwoTwoDescriptors = new PackedKeySet(28);
+    this.newZeroTwoTwoDescriptors = new ArrayList<String>();
+    this.bridgeUsersPerDay = new TreeMap<String, long[]>();
 
     /* Initialize file names for intermediate and final results. */
     this.bridgeStatsRawFile = new File("stats/bridge-stats-raw");
     this.bridgeStatsFile = new File("stats/bridge-stats");
+    this.bridgeIdentitiesFile = new File("stats/bridge-identities");
     this.hashedRelayIdentitiesFile = new File(
+        "stats/hashed-relay-identities.bin");
+    this.hashedRelayIdentitiesTextFile = new File(
         "stats/hashed-relay-identities");
     this.zeroTwoTwoDescriptorsFile = new File(
         "stats/v022-bridge-descriptors");
@@ -105,13 +429,52 @@ public class BridgeStatsFileHandler {
     /* Initialize database connection string. */
     this.connectionURL = connectionURL;
 
+    /* Initialize format to parse observation dates. */
+    this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
     /* Initialize logger. */
     this.logger = Logger.getLogger(
         BridgeStatsFileHandler.class.getName());
 
-    /* Read in bridge user numbers by country as seen by single bridges,
+    /* Read in known hashed relay identities used to exclude bridges that
+     * have been running as relays, known extra-info descriptors
+     * published by 0.2.2.x bridges, and known bridge identities. */
+    if (this.hashedRelayIdentitiesFile.exists()) {
+      try {
+        this.logger.fine("Reading file "
+            + this.hashedRelayIdentitiesFile.getAbsolutePath() + "...");
+        this.hashedRelays.readFile(this.hashedRelayIdentitiesFile);
+        this.logger.fine("Finished reading file "
+            + this.hashedRelayIdentitiesFile.getAbsolutePath() + ".");
+      } catch (IOException e) {
+        this.logger.log(Level.WARNING, "Failed to read file "
+            + this.hashedRelayIdentitiesFile.getAbsolutePath() + "!", e);
+      }
+    } else {
+      for (String line :
+          this.readLines(this.hashedRelayIdentitiesTextFile)) {
+        this.addHashedRelay(line);
+      }
+    }
+    byte[] key = new byte[28];
+    for (String line : this.readLines(this.zeroTwoTwoDescriptorsFile)) {
+      String[] parts = line.split(",");
+      if (parts.length == 3 && this.parseZeroTwoTwoKey(parts[0],
+          parts[1], parts[2], key)) {
+        this.zeroTwoTwoDescriptors.add(key);
+      }
+    }
+    for (String line : this.readLines(this.bridgeIdentitiesFile)) {
+      if (this.parseIdentity(line, key)) {
+        this.bridgeIdentities.add(key);
+      }
+    }
+
+    /* Convert bridge user numbers by country as seen by single bridges,
      * normalized to 24-hour periods. */
-    if (this.bridgeStatsRawFile.exists()) {
+    if (!this.bridgeUsersRawStore.exists() &&
+        this.bridgeStatsRawFile.exists()) {
       try {
         this.logger.fine("Reading file "
             + this.bridgeStatsRawFile.getAbsolutePath() + "...");
@@ -171,48 +534,283 @@ public class BridgeStatsFileHandler {
       }
     }
 
-    /* Read in known hashed relay identities used to exclude bridges that
-     * have been running as relays. */
-    if (this.hashedRelayIdentitiesFile.exists()) {
+    /* Read in previous results on bridge users per country and day. */
+    if (this.bridgeStatsFile.exists()) {
       try {
         this.logger.fine("Reading file "
-            + this.hashedRelayIdentitiesFile.getAbsolutePath() + "...");
+            + this.bridgeStatsFile.getAbsolutePath() + "...");
         BufferedReader br = new BufferedReader(new FileReader(
-            this.hashedRelayIdentitiesFile));
-        String line = null;
-        /* Read in all lines from the file and memorize them. */
-        while ((line = br.readLine()) != null) {
-          this.hashedRelays.add(line);
+            this.bridgeStatsFile));
+        String line = br.readLine();
+        if (line != null && line.startsWith("date,")) {
+          String[] headers = line.split(",");
+          int[] columnCountries = new int[headers.length];
+          for (int i = 1; i < headers.length; i++) {
+            if (headers[i].equals("all")) {
+              headers[i] = "zy";
+            }
+            this.countries.add(headers[i]);
+            columnCountries[i] = this.getCountryNumber(headers[i]);
+          }
+          while ((line = br.readLine()) != null) {
+            String[] parts = line.split(",");
+            if (parts.length != headers.length) {
+              this.logger.warning("Corrupt line '" + line + "' in file "
+                  + this.bridgeStatsFile.getAbsolutePath()
+                  + "! Aborting to read this file!");
+              break;
+            }
+            long[] users = new long[this.countryCodes.size()];
+            for (int i = 1; i < parts.length; i++) {
+              users[columnCountries[i]] = this.parseUsers(parts[i]);
+            }
+            this.bridgeUsersPerDay.put(parts[0], users);
+          }
         }
         br.close();
         this.logger.fine("Finished reading file "
-            + this.hashedRelayIdentitiesFile.getAbsolutePath() + ".");
+            + this.bridgeStatsFile.getAbsolutePath() + ".");
+      } catch (NumberFormatException e) {
+        this.logger.log(Level.WARNING, "Failed to read file "
+            + this.bridgeStatsFile.getAbsolutePath() + "!", e);
       } catch (IOException e) {
         this.logger.log(Level.WARNING, "Failed to read file "
-            + this.hashedRelayIdentitiesFile.getAbsolutePath() + "!", e);
+            + this.bridgeStatsFile.getAbsolutePath() + "!", e);
+      }
+    }
+  }
+
+  /**
+   * Returns the number that we use to store user numbers of the given
+   * country, assigning a new number if we haven't seen this country
+   * before. This method is synchronized, because months of observations
+   * are read in parallel when summing them up.
+   */
+  private synchronized short getCountryNumber(String countryCode) {
+    Short number = this.countryCodeNumbers.get(countryCode);
+    if (number == null) {
+      number = (short) this.countryCodes.size();
+      this.countryCodes.add(countryCode);
+      this.countryCodeNumbers.put(countryCode, number);
+    }
+    return number;
+  }
+
+  /**
+   * Adds a country to the set of known countries.
+   */
+  private synchronized void addCountry(String countryCode) {
+    this.countries.add(countryCode);
+  }
+
+  /**
+   * Returns the number of countries that we assigned numbers to.
+   */
+  private synchronized int getCountryCount() {
+    return this.countryCodes.size();
+  }
+
+  /**
+   * Parses a user number formatted with two decimal places into
+   * hundredths.
+   */
+  private int parseUsers(String users) {
+    return (int) Math.round(Double.parseDouble(users) * 100.0D);
+  }
+
+  /**
+   * Formats a user number given in hundredths with two decimal places.
+   */
+  private String formatUsers(long users) {
+    return String.format("%.2f", ((double) users) / 100.0D);
+  }
+
+  /**
+   * Parses a hashed identity given as 40 hex characters into the first
+   * 20 bytes of <code>key</code> and returns whether it could be parsed.
+   */
+  private boolean parseIdentity(String hashedIdentity, byte[] key) {
+    if (hashedIdentity.length() != 40) {
+      return false;
+    }
+    for (int i = 0; i < 20; i++) {
+      int high = Character.digit(hashedIdentity.charAt(2 * i), 16),
+          low = Character.digit(hashedIdentity.charAt(2 * i + 1), 16);
+      if (high < 0 || low < 0) {
+        return false;
       }
+      key[i] = (byte) ((high << 4) | low);
     }
+    return true;
+  }
 
-    /* Read in known extra-info descriptors published by 0.2.2.x
-     * bridges. */
-    if (this.zeroTwoTwoDescriptorsFile.exists()) {
+  /**
+   * Parses an extra-info descriptor identifier into a 28-byte key
+   * consisting of hashed identity, day, and time of the day, and returns
+   * whether it could be parsed.
+   */
+  private boolean parseZeroTwoTwoKey(String hashedBridgeIdentity,
+      String date, String time, byte[] key) {
+    int day, seconds = this.parseSeconds(time);
+    try {
+      day = (int) (TimestampCodec.parseDate(date) / 86400000L);
+    } catch (ParseException e) {
+      return false;
+    }
+    if (!this.parseIdentity(hashedBridgeIdentity, key) || day < 0 ||
+        seconds < 0) {
+      return false;
+    }
+    this.putZeroTwoTwoKeyTail(key, day, seconds);
+    return true;
+  }
+
+  /**
+   * Writes day and time of the day into bytes 20 to 27 of an extra-info
+   * descriptor identifier key.
+   */
+  private void putZeroTwoTwoKeyTail(byte[] key, int day, int seconds) {
+    for (int i = 0; i < 4; i++) {
+      key[20 + i] = (byte) (day >>> (24 - 8 * i));
+      key[24 + i] = (byte) (seconds >>> (24 - 8 * i));
+    }
+  }
+
+  /**
+   * Parses a time formatted as "HH:mm:ss" into seconds since midnight,
+   * or returns -1 if the time cannot be parsed.
+   */
+  private int parseSeconds(String time) {
+    String[] parts = time.split(":");
+    if (parts.length != 3) {
+      return -1;
+    }
+    try {
+      return Integer.parseInt(parts[0]) * 3600
+          + Integer.parseInt(parts[1]) * 60 + Integer.parseInt(parts[2]);
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * Returns the observations made by single bridges in the given month
+   * formatted as "yyyy-MM", reading them from disk if they are not in
+   * memory. If we keep too many months in memory, the least recently
+   * used month is discarded after appending new observations to disk,
+   * whose dates the store keeps until we have written bridge-stats.
+   */
+  private BridgeObservations loadMonth(String month) {
+    BridgeObservations observations = this.bridgeUsersRaw.get(month);
+    if (observations != null) {
+      return observations;
+    }
+    if (this.bridgeUsersRaw.size() >= MAX_LOADED_MONTHS) {
+      this.bridgeUsersRawStore.flush();
+      Iterator<String> it = this.bridgeUsersRaw.keySet().iterator();
+      this.logger.fine("Discarding observations of month " + it.next()
+          + " from memory.");
+      it.remove();
+    }
+    observations = this.readMonth(month);
+    this.bridgeUsersRaw.put(month, observations);
+    return observations;
+  }
+
+  /**
+   * Reads the observations made by single bridges in the given month
+   * formatted as "yyyy-MM" from disk without keeping them in memory.
+   * Observations that have not been appended to disk yet are not
+   * included.
+   */
+  private BridgeObservations readMonth(String month) {
+    BridgeObservations observations = new BridgeObservations();
+    byte[] identity = new byte[20];
+    short[] countryNumbers = new short[16];
+    int[] users = new int[16];
+    for (String line : this.bridgeUsersRawStore.readSegment(month).
+        values()) {
+      String[] parts = line.split(",");
+      int day = -1, seconds = -1;
+      if (parts.length >= 3) {
+        try {
+          day = (int) (TimestampCodec.parseDate(parts[1]) / 86400000L);
+        } catch (ParseException e) {
+          /* Skip corrupt line below. */
+        }
+        seconds = this.parseSeconds(parts[2]);
+      }
+      if (day < 0 || seconds < 0 || !this.parseIdentity(parts[0],
+          identity)) {
+        this.logger.warning("Corrupt line '" + line + "' in segment "
+            + month + "! Skipping.");
+        continue;
+      }
+      if (parts.length > countryNumbers.length) {
+        countryNumbers = new short[parts.length];
+        users = new int[parts.length];
+      }
+      int length = 0;
+      for (int i = 3; i < parts.length; i++) {
+        int separator = parts[i].indexOf('=');
+        String value = parts[i].substring(separator + 1);
+        String countryCode = parts[i].substring(0, separator);
+        this.addCountry(countryCode);
+        if (!value.startsWith("-")) {
+          countryNumbers[length] = this.getCountryNumber(countryCode);
+          users[length++] = this.parseUsers(value);
+        }
+      }
+      observations.put(identity, day, seconds, countryNumbers, users,
+          length);
+    }
+    return observations;
+  }
+
+  /**
+   * Reads all lines of a file.
+   */
+  private List<String> readLines(File file) {
+    List<String> lines = new ArrayList<String>();
+    if (file.exists()) {
       try {
-        this.logger.fine("Reading file "
-            + this.zeroTwoTwoDescriptorsFile.getAbsolutePath() + "...");
-        BufferedReader br = new BufferedReader(new FileReader(
-            this.zeroTwoTwoDescriptorsFile));
+        this.logger.fine("Reading file " + file.getAbsolutePath()
+            + "...");
+        BufferedReader br = new BufferedReader(new FileReader(file));
         String line = null;
-        /* Read in all lines from the file and memorize them. */
         while ((line = br.readLine()) != null) {
-          this.zeroTwoTwoDescriptors.add(line);
+          lines.add(line);
         }
         br.close();
         this.logger.fine("Finished reading file "
-            + this.zeroTwoTwoDescriptorsFile.getAbsolutePath() + ".");
+            + file.getAbsolutePath() + ".");
       } catch (IOException e) {
         this.logger.log(Level.WARNING, "Failed to read file "
-            + this.zeroTwoTwoDescriptorsFile.getAbsolutePath() + "!", e);
+            + file.getAbsolutePath() + "!", e);
+      }
+    }
+    return lines;
+  }
+
+  /**
+   * Appends lines to a file.
+   */
+  private void appendLines(File file, Collection<String> lines) {
+    if (lines.isEmpty()) {
+      return;
+    }
+    try {
+      this.logger.fine("Appending " + lines.size() + " lines to file "
+          + file.getAbsolutePath() + "...");
+      file.getParentFile().mkdirs();
+      BufferedWriter bw = new BufferedWriter(new FileWriter(file, true));
+      for (String line : lines) {
+        bw.append(line + "\n");
       }
+      bw.close();
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed to append to file "
+          + file.getAbsolutePath() + "!", e);
     }
   }
 
@@ -223,10 +821,18 @@ public class BridgeStatsFileHandler {
    * higher than what we think is correct.
    */
   public void addHashedRelay(String hashedRelayIdentity) {
-    if (!this.hashedRelays.contains(hashedRelayIdentity)) {
+    byte[] key = this.identityBuffer;
+    if (this.parseIdentity(hashedRelayIdentity, key) &&
+        this.hashedRelays.add(key)) {
       this.logger.finer("Adding new hashed relay identity: "
           + hashedRelayIdentity);
-      this.hashedRelays.add(hashedRelayIdentity);
+      this.newHashedRelays.add(Arrays.copyOf(key, 20));
+      if (this.bridgeIdentities.contains(key)) {
+        this.logger.fine("Bridge " + hashedRelayIdentity + " has been "
+            + "running as a relay. Summing up bridge users on all days "
+            + "again.");
+        this.knownBridgeExcluded = true;
+      }
     }
   }
 
@@ -239,10 +845,12 @@ public class BridgeStatsFileHandler {
       String date, String time) {
     String value = hashedBridgeIdentity.toUpperCase() + "," + date + ","
         + time;
-    if (!this.zeroTwoTwoDescriptors.contains(value)) {
+    byte[] key = new byte[28];
+    if (this.parseZeroTwoTwoKey(hashedBridgeIdentity, date, time, key) &&
+        this.zeroTwoTwoDescriptors.add(key)) {
       this.logger.finer("Adding new bridge 0.2.2.x extra-info "
           + "descriptor: " + value);
-      this.zeroTwoTwoDescriptors.add(value);
+      this.newZeroTwoTwoDescriptors.add(value);
     }
   }
 
@@ -253,7 +861,8 @@ public class BridgeStatsFileHandler {
    * descriptor or not.
    */
   public boolean isKnownRelay(String hashedBridgeIdentity) {
-    return this.hashedRelays.contains(hashedBridgeIdentity);
+    return this.parseIdentity(hashedBridgeIdentity, this.identityBuffer)
+        && this.hashedRelays.contains(this.identityBuffer);
   }
 
   /**
@@ -269,168 +878,178 @@ public class BridgeStatsFileHandler {
     for (String country : obs.keySet()) {
       this.countries.add(country);
     }
-    String shortKey = hashedIdentity + "," + date;
-    String longKey = shortKey + "," + time;
-    SortedMap<String, Map<String, String>> tailMap =
-        this.bridgeUsersRaw.tailMap(shortKey);
-    String nextKey = tailMap.isEmpty() ? null : tailMap.firstKey();
-    if (nextKey == null || !nextKey.startsWith(shortKey)) {
-      this.logger.finer("Adding new bridge user numbers for key "
-          + longKey);
-      this.bridgeUsersRaw.put(longKey, obs);
-    } else if (longKey.compareTo(nextKey) > 0) {
-      this.logger.finer("Replacing existing bridge user numbers (" +
-          nextKey + " with new numbers: " + longKey);
-      this.bridgeUsersRaw.put(longKey, obs);
+    String longKey = hashedIdentity + "," + date + "," + time;
+    byte[] identity = new byte[20];
+    int day = -1, seconds = this.parseSeconds(time);
+    try {
+      day = (int) (TimestampCodec.parseDate(date) / 86400000L);
+    } catch (ParseException e) {
+      /* Skip observations below. */
+    }
+    if (day < 0 || seconds < 0 || date.length() != 10 ||
+        !this.parseIdentity(hashedIdentity, identity)) {
+      this.logger.warning("Could not parse bridge user numbers for key "
+          + longKey + ". Skipping.");
+      return;
+    }
+    BridgeObservations observations = this.loadMonth(
+        date.substring(0, 7));
+    int row = observations.find(identity, day);
+    if (row < 0 || seconds > observations.seconds[row]) {
+      if (row < 0) {
+        this.logger.finer("Adding new bridge user numbers for key "
+            + longKey);
+      } else {
+        this.logger.finer("Replacing existing bridge user numbers with "
+            + "new numbers: " + longKey);
+      }
+      StringBuilder sb = new StringBuilder(longKey);
+      short[] countryNumbers = new short[obs.size()];
+      int[] users = new int[obs.size()];
+      int length = 0;
+      for (Map.Entry<String, String> e :
+          new TreeMap<String, String>(obs).entrySet()) {
+        sb.append("," + e.getKey() + "=" + e.getValue());
+        if (!e.getValue().startsWith("-")) {
+          countryNumbers[length] = this.getCountryNumber(e.getKey());
+          users[length++] = this.parseUsers(e.getValue());
+        }
+      }
+      this.bridgeUsersRawStore.append(sb.toString());
+      observations.put(identity, day, seconds, countryNumbers, users,
+          length);
+      if (this.bridgeIdentities.add(identity)) {
+        this.addedBridgeIdentities.add(hashedIdentity);
+      }
     } else {
-      this.logger.finer("Not replacing existing bridge user numbers (" +
-          nextKey + " with new numbers (" + longKey + ").");
+      this.logger.finer("Not replacing existing bridge user numbers "
+          + "with new numbers (" + longKey + ").");
     }
   }
 
   /**
-   * Writes the list of hashed relay identities and bridge user numbers as
-   * observed by single bridges to disk, aggregates per-day statistics for
-   * all bridges, and writes those to disk, too.
+   * Appends new hashed relay identities and bridge user numbers as
+   * observed by single bridges to disk, sums up per-day statistics for
+   * all bridges on days that are affected by new observations, and
+   * writes those to disk, too.
    */
   public void writeFiles() {
 
-    /* Write hashed relay identities to disk. */
-    try {
-      this.logger.fine("Writing file "
-          + this.hashedRelayIdentitiesFile.getAbsolutePath() + "...");
-      this.hashedRelayIdentitiesFile.getParentFile().mkdirs();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.hashedRelayIdentitiesFile));
-      for (String hashedRelay : this.hashedRelays) {
-        bw.append(hashedRelay + "\n");
+    /* Find out which days we need to sum up again. These are days with
+     * new observations, including those of previous executions that we
+     * appended to disk without writing bridge-stats, days with new
+     * 0.2.2.x descriptors, and, if a bridge turned out to have been
+     * running as a relay, all days. */
+    SortedSet<String> affectedDates = new TreeSet<String>(
+        this.bridgeUsersRawStore.getModifiedDates());
+    for (String descriptor : this.newZeroTwoTwoDescriptors) {
+      affectedDates.add(descriptor.split(",")[1]);
+    }
+    Set<Integer> affectedDays = new HashSet<Integer>();
+    SortedSet<String> affectedMonths = new TreeSet<String>();
+    for (String date : affectedDates) {
+      try {
+        affectedDays.add((int) (TimestampCodec.parseDate(date)
+            / 86400000L));
+        affectedMonths.add(date.substring(0, 7));
+      } catch (ParseException e) {
+        this.logger.warning("Could not parse date '" + date + "'. "
+            + "Skipping.");
       }
-      bw.close();
-      this.logger.fine("Finished writing file "
-          + this.hashedRelayIdentitiesFile.getAbsolutePath() + ".");
-    } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Failed to write "
-          + this.hashedRelayIdentitiesFile.getAbsolutePath() + "!", e);
+    }
+    if (this.knownBridgeExcluded) {
+      affectedMonths.addAll(this.bridgeUsersRawStore.getMonths());
     }
 
-    /* Write bridge extra-info descriptor identifiers to disk. */
-    try {
-      this.logger.fine("Writing file "
-          + this.zeroTwoTwoDescriptorsFile.getAbsolutePath() + "...");
-      this.zeroTwoTwoDescriptorsFile.getParentFile().mkdirs();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.zeroTwoTwoDescriptorsFile));
-      for (String descriptorIdentifier : this.zeroTwoTwoDescriptors) {
-        bw.append(descriptorIdentifier + "\n");
+    /* Sum up per-day statistics on affected days, with one task per
+     * month. Months that we keep in memory contain observations that have
+     * not been appended to disk yet, so that tasks take them from memory
+     * rather than reading them from disk. Days are only included if we
+     * have at least one observation from a bridge that is not excluded. */
+    SortedMap<Integer, long[]> recomputedDays = AGGREGATION_POOL.invoke(
+        new MonthAggregation(new ArrayList<String>(affectedMonths),
+        new HashMap<String, BridgeObservations>(this.bridgeUsersRaw),
+        this.knownBridgeExcluded ? null : affectedDays));
+    if (this.knownBridgeExcluded) {
+      this.bridgeUsersPerDay.clear();
+    }
+    SortedMap<String, long[]> recomputedBridgeUsersPerDay =
+        new TreeMap<String, long[]>();
+    for (Map.Entry<Integer, long[]> e : recomputedDays.entrySet()) {
+      String date = this.dateFormat.format(((long) e.getKey())
+          * 24L * 60L * 60L * 1000L);
+      this.bridgeUsersRawStore.addModifiedDate(date);
+      if (e.getValue() == null) {
+        /* All observations on this day come from excluded bridges. */
+        this.bridgeUsersPerDay.remove(date);
+      } else {
+        this.bridgeUsersPerDay.put(date, e.getValue());
+        recomputedBridgeUsersPerDay.put(date, e.getValue());
       }
-      bw.close();
-      this.logger.fine("Finished writing file "
-          + this.zeroTwoTwoDescriptorsFile.getAbsolutePath() + ".");
-    } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Failed to write "
-          + this.zeroTwoTwoDescriptorsFile.getAbsolutePath() + "!", e);
     }
 
-    /* Write observations made by single bridges to disk. */
-    try {
-      this.logger.fine("Writing file "
-          + this.bridgeStatsRawFile.getAbsolutePath() + "...");
-      this.bridgeStatsRawFile.getParentFile().mkdirs();
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.bridgeStatsRawFile));
-      bw.append("bridge,date,time");
-      for (String c : this.countries) {
-        if (c.equals("zy")) {
-          bw.append(",all");
-        } else {
-          bw.append("," + c);
-        }
-      }
-      bw.append("\n");
-      for (Map.Entry<String, Map<String, String>> e :
-          this.bridgeUsersRaw.entrySet()) {
-        String longKey = e.getKey();
-        String[] parts = longKey.split(",");
-        String hashedBridgeIdentity = parts[0];
-        String date = parts[1];
-        String time = parts[2];
-        if (!this.hashedRelays.contains(hashedBridgeIdentity) &&
-            !this.zeroTwoTwoDescriptors.contains(longKey)) {
-          Map<String, String> obs = e.getValue();
-          StringBuilder sb = new StringBuilder(longKey);
-          for (String c : this.countries) {
-            sb.append("," + (obs.containsKey(c) &&
-                !obs.get(c).startsWith("-") ? obs.get(c) : "NA"));
-          }
-          String line = sb.toString();
-          bw.append(line + "\n");
-        }
-      }
-      bw.close();
-      this.logger.fine("Finished writing file "
-          + this.bridgeStatsRawFile.getAbsolutePath() + ".");
-    } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Failed to write "
-          + this.bridgeStatsRawFile.getAbsolutePath() + "!", e);
-    }
-
-    /* Aggregate per-day statistics. */
-    SortedMap<String, double[]> bridgeUsersPerDay =
-        new TreeMap<String, double[]>();
-    for (Map.Entry<String, Map<String, String>> e :
-        this.bridgeUsersRaw.entrySet()) {
-      String longKey = e.getKey();
-      String[] parts = longKey.split(",");
-      String hashedBridgeIdentity = parts[0];
-      String date = parts[1];
-      String time = parts[2];
-      if (!this.hashedRelays.contains(hashedBridgeIdentity) &&
-          !this.zeroTwoTwoDescriptors.contains(longKey)) {
-        double[] users = bridgeUsersPerDay.get(date);
-        Map<String, String> obs = e.getValue();
-        if (users == null) {
-          users = new double[this.countries.size()];
-          bridgeUsersPerDay.put(date, users);
-        }
-        int i = 0;
-        for (String c : this.countries) {
-          if (obs.containsKey(c) && !obs.get(c).startsWith("-")) {
-            users[i] += Double.parseDouble(obs.get(c));
-          }
-          i++;
-        }
+    /* Append new observations made by single bridges to disk. The store
+     * remembers all days that we have summed up, including those that
+     * are only affected by new 0.2.2.x descriptors or by excluded
+     * bridges, until we have written bridge-stats below. */
+    this.bridgeUsersRawStore.flush();
+
+    /* Append new hashed relay identities, bridge extra-info descriptor
+     * identifiers, and the identities of new bridges to disk. */
+    if (!this.newHashedRelays.isEmpty()) {
+      try {
+        this.logger.fine("Appending " + this.newHashedRelays.size()
+            + " keys to file "
+            + this.hashedRelayIdentitiesFile.getAbsolutePath() + "...");
+        PackedKeySet.appendToFile(this.hashedRelayIdentitiesFile,
+            this.newHashedRelays);
+        this.newHashedRelays.clear();
+      } catch (IOException e) {
+        this.logger.log(Level.WARNING, "Failed to append to file "
+            + this.hashedRelayIdentitiesFile.getAbsolutePath() + "!", e);
       }
     }
+    this.appendLines(this.zeroTwoTwoDescriptorsFile,
+        this.newZeroTwoTwoDescriptors);
+    this.appendLines(this.bridgeIdentitiesFile,
+        this.addedBridgeIdentities);
 
     /* Write final results of bridge users per day and country to
      * <code>stats/bridge-stats</code>. */
     try {
       this.logger.fine("Writing file "
-          + this.bridgeStatsRawFile.getAbsolutePath() + "...");
+          + this.bridgeStatsFile.getAbsolutePath() + "...");
       this.bridgeStatsFile.getParentFile().mkdirs();
       BufferedWriter bw = new BufferedWriter(new FileWriter(
           this.bridgeStatsFile));
       bw.append("date");
+      int[] columnCountries = new int[this.countries.size()];
+      int column = 0;
       for (String c : this.countries) {
         if (c.equals("zy")) {
           bw.append(",all");
         } else {
           bw.append("," + c);
         }
+        columnCountries[column++] = this.getCountryNumber(c);
       }
       bw.append("\n");
 
-      /* Write current observation. */
-      for (Map.Entry<String, double[]> e : bridgeUsersPerDay.entrySet()) {
+      /* Write current observation. Countries that we didn't know about
+       * when summing up a day didn't have any users on that day. */
+      for (Map.Entry<String, long[]> e :
+          this.bridgeUsersPerDay.entrySet()) {
         String date = e.getKey();
         bw.append(date);
-        double[] users = e.getValue();
-        for (int i = 0; i < users.length; i++) {
-          bw.append("," + String.format("%.2f", users[i]));
+        long[] users = e.getValue();
+        for (int c : columnCountries) {
+          bw.append("," + this.formatUsers(c < users.length ? users[c] :
+              0L));
         }
         bw.append("\n");
       }
       bw.close();
+      this.bridgeUsersRawStore.clearModifiedDates();
       this.logger.fine("Finished writing file "
           + this.bridgeStatsFile.getAbsolutePath() + ".");
     } catch (IOException e) {
@@ -441,74 +1060,25 @@ public class BridgeStatsFileHandler {
     /* Add daily bridge users to database. */
     if (connectionURL != null) {
       try {
-        List<String> countryList = new ArrayList<String>();
-        for (String c : this.countries) {
-          countryList.add(c);
-        }
-        Map<String, Integer> insertRows = new HashMap<String, Integer>(),
-            updateRows = new HashMap<String, Integer>();
-        for (Map.Entry<String, double[]> e :
-            bridgeUsersPerDay.entrySet()) {
-          String date = e.getKey();
-          double[] users = e.getValue();
+        AggregateStatsSink sink = new AggregateStatsSink(connectionURL,
+            "bridge_stats", new String[] { "date", "country" },
+            new int[] { Types.DATE, Types.VARCHAR },
+            new String[] { "users" }, new int[] { Types.BIGINT });
+        for (Map.Entry<String, long[]> e :
+            recomputedBridgeUsersPerDay.entrySet()) {
+          java.sql.Date date = java.sql.Date.valueOf(e.getKey());
+          long[] users = e.getValue();
           for (int i = 0; i < users.length; i++) {
-            int usersInt = (int) users[i];
-            if (usersInt < 1) {
+            long usersLong = users[i] / 100L;
+            if (usersLong < 1L) {
               continue;
             }
-            String country = countryList.get(i);
-            String key = date + "," + country;
-            insertRows.put(key, usersInt);
-          }
-        }
-        Connection conn = DriverManager.getConnection(connectionURL);
-        conn.setAutoCommit(false);
-        Statement statement = conn.createStatement();
-        ResultSet rs = statement.executeQuery(
-            "SELECT date, country, users FROM bridge_stats");
-        while (rs.next()) {
-          String date = rs.getDate(1).toString();
-          String country = rs.getString(2);
-          String key = date + "," + country;
-          if (insertRows.containsKey(key)) {
-            int insertRow = insertRows.remove(key);
-            int oldUsers = rs.getInt(3);
-            if (oldUsers != insertRow) {
-              updateRows.put(key, insertRow);
-            }
+            String country = this.countryCodes.get(i);
+            sink.put(new Object[] { date, country },
+                new Object[] { usersLong });
           }
         }
-        rs.close();
-        PreparedStatement psU = conn.prepareStatement(
-            "UPDATE bridge_stats SET users = ? "
-            + "WHERE date = ? AND country = ?");
-        for (Map.Entry<String, Integer> e : updateRows.entrySet()) {
-          String[] keyParts = e.getKey().split(",");
-          java.sql.Date date = java.sql.Date.valueOf(keyParts[0]);
-          String country = keyParts[1];
-          int users = e.getValue();
-          psU.clearParameters();
-          psU.setInt(1, users);
-          psU.setDate(2, date);
-          psU.setString(3, country);
-          psU.executeUpdate();
-        }
-        PreparedStatement psI = conn.prepareStatement(
-            "INSERT INTO bridge_stats (users, date, country) "
-            + "VALUES (?, ?, ?)");
-        for (Map.Entry<String, Integer> e : insertRows.entrySet()) {
-          String[] keyParts = e.getKey().split(",");
-          java.sql.Date date = java.sql.Date.valueOf(keyParts[0]);
-          String country = keyParts[1];
-          int users = e.getValue();
-          psI.clearParameters();
-          psI.setInt(1, users);
-          psI.setDate(2, date);
-          psI.setString(3, country);
-          psI.executeUpdate();
-        }
-        conn.commit();
-        conn.close();
+        sink.flush();
       } catch (SQLException e) {
         logger.log(Level.WARNING, "Failed to add daily bridge users to "
             + "database.", e);
@@ -516,4 +1086,3 @@ public class BridgeStatsFileHandler {
     }
   }
 }
-
@@ -25,10 +25,14 @@ public class Configuration {
   private boolean importDirectoryArchives = false;
   private String directoryArchivesDirectory = "archives/";
   private boolean keepDirectoryArchiveImportHistory = false;
+  private int directoryArchivesImportThreads = 1;
   private boolean writeRelayDescriptorDatabase = false;
   private boolean writeAggregateStatsDatabase = false;
   private String relayDescriptorDatabaseJdbc =
       "jdbc:postgresql://localhost/tordir?user=ernie&password=password";
+  private int relayDescriptorDatabaseBatchSize =
+      RelayDescriptorDatabaseImporter.DEFAULT_BATCH_SIZE;
+  private boolean relayDescriptorDatabaseUseCopy = false;
   private boolean writeRelayDescriptorsRawFiles = false;
   private String relayDescriptorRawFilesDirectory = "pg-import/";
   private boolean writeSanitizedBridges = false;
@@ -38,11 +42,13 @@ public class Configuration {
   private boolean keepSanitizedBridgesImportHistory = false;
   private boolean importBridgeSnapshots = false;
   private String bridgeSnapshotsDirectory = "bridge-directories/";
+  private int bridgeSnapshotsImportThreads = 1;
   private boolean importWriteTorperfStats = false;
   private String torperfDirectory = "torperf/";
   private boolean downloadRelayDescriptors = false;
   private List<String> downloadFromDirectoryAuthorities = Arrays.asList(
       "86.59.21.38,194.109.206.212,80.190.246.100:8180".split(","));
+  private int maxDownloadsPerDirectoryAuthority = 1;
   private boolean downloadProcessGetTorStats = false;
   private String getTorStatsUrl = "http://gettor.torproject.org:8080/"
       + "~gettor/gettor_stats.txt";
@@ -106,6 +112,14 @@ public class Configuration {
         } else if (line.startsWith("KeepDirectoryArchiveImportHistory")) {
           this.keepDirectoryArchiveImportHistory = Integer.parseInt(
               line.split(" ")[1]) != 0;
+        } else if (line.startsWith("DirectoryArchivesImportThreads")) {
+          this.directoryArchivesImportThreads = Integer.parseInt(
+              line.split(" ")[1]);
+          if (this.directoryArchivesImportThreads < 1) {
+            logger.severe("Configuration file contains illegal number of "
+                + "import threads in line '" + line + "'. Exiting!");
+            System.exit(1);
+          }
         } else if (line.startsWith("WriteRelayDescriptorDatabase")) {
           this.writeRelayDescriptorDatabase = Integer.parseInt(
               line.split(" ")[1]) != 0;
@@ -114,6 +128,17 @@ public class Configuration {
               line.split(" ")[1]) != 0;
         } else if (line.startsWith("RelayDescriptorDatabaseJDBC")) {
           this.relayDescriptorDatabaseJdbc = line.split(" ")[1];
+        } else if (line.startsWith("RelayDescriptorDatabaseBatchSize")) {
+          this.relayDescriptorDatabaseBatchSize = Integer.parseInt(
+              line.split(" ")[1]);
+          if (this.relayDescriptorDatabaseBatchSize < 1) {
+            logger.severe("Configuration file contains illegal batch "
+                + "size in line '" + line + "'. Exiting!");
+            System.exit(1);
+          }
+        } else if (line.startsWith("RelayDescriptorDatabaseUseCopy")) {
+          this.relayDescriptorDatabaseUseCopy = Integer.parseInt(
+              line.split(" ")[1]) != 0;
         } else if (line.startsWith("WriteRelayDescriptorsRawFiles")) {
           this.writeRelayDescriptorsRawFiles = Integer.parseInt(
               line.split(" ")[1]) != 0;
@@ -137,6 +162,14 @@ public class Configuration {
               line.split(" ")[1]) != 0;
         } else if (line.startsWith("BridgeSnapshotsDirectory")) {
           this.bridgeSnapshotsDirectory = line.split(" ")[1];
+        } else if (line.startsWith("BridgeSnapshotsImportThreads")) {
+          this.bridgeSnapshotsImportThreads = Integer.parseInt(
+              line.split(" ")[1]);
+          if (this.bridgeSnapshotsImportThreads < 1) {
+            logger.severe("Configuration file contains illegal number of "
+                + "import threads in line '" + line + "'. Exiting!");
+            System.exit(1);
+          }
         } else if (line.startsWith("ImportWriteTorperfStats")) {
           this.importWriteTorperfStats = Integer.parseInt(
               line.split(" ")[1]) != 0;
@@ -158,6 +191,14 @@ public class Configuration {
             new URL("http://" + dir + "/");
             this.downloadFromDirectoryAuthorities.add(dir);
           }
+        } else if (line.startsWith("MaxDownloadsPerDirectoryAuthority")) {
+          this.maxDownloadsPerDirectoryAuthority = Integer.parseInt(
+              line.split(" ")[1]);
+          if (this.maxDownloadsPerDirectoryAuthority < 1) {
+            logger.severe("Configuration file contains illegal number of "
+                + "downloads in line '" + line + "'. Exiting!");
+            System.exit(1);
+          }
         } else if (line.startsWith("DownloadProcessGetTorStats")) {
           this.downloadProcessGetTorStats = Integer.parseInt(
               line.split(" ")[1]) != 0;
@@ -296,6 +337,9 @@ public class Configuration {
   public boolean getKeepDirectoryArchiveImportHistory() {
     return this.keepDirectoryArchiveImportHistory;
   }
+  public int getDirectoryArchivesImportThreads() {
+    return this.directoryArchivesImportThreads;
+  }
   public boolean getWriteRelayDescriptorDatabase() {
     return this.writeRelayDescriptorDatabase;
   }
@@ -305,6 +349,12 @@ public class Configuration {
   public String getRelayDescriptorDatabaseJDBC() {
     return this.relayDescriptorDatabaseJdbc;
   }
+  public int getRelayDescriptorDatabaseBatchSize() {
+    return this.relayDescriptorDatabaseBatchSize;
+  }
+  public boolean getRelayDescriptorDatabaseUseCopy() {
+    return this.relayDescriptorDatabaseUseCopy;
+  }
   public boolean getWriteRelayDescriptorsRawFiles() {
     return this.writeRelayDescriptorsRawFiles;
   }
@@ -332,6 +382,9 @@ public class Configuration {
   public String getBridgeSnapshotsDirectory() {
     return this.bridgeSnapshotsDirectory;
   }
+  public int getBridgeSnapshotsImportThreads() {
+    return this.bridgeSnapshotsImportThreads;
+  }
   public boolean getImportWriteTorperfStats() {
     return this.importWriteTorperfStats;
   }
@@ -344,6 +397,9 @@ public class Configuration {
   public List<String> getDownloadFromDirectoryAuthorities() {
     return this.downloadFromDirectoryAuthorities;
   }
+  public int getMaxDownloadsPerDirectoryAuthority() {
+    return this.maxDownloadsPerDirectoryAuthority;
+  }
   public boolean getDownloadProcessGetTorStats() {
     return this.downloadProcessGetTorStats;
   }
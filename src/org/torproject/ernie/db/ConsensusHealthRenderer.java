@@ -0,0 +1,769 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Writes the comparison of the most recent consensus with its votes,
+ * as parsed by <code>ConsensusHealthChecker</code>, to
+ * <code>website/consensus-health.html</code> and logs warnings about
+ * problems found in the votes.
+ */
+public class ConsensusHealthRenderer {
+
+  /**
+   * Logger for this class.
+   */
+  private Logger logger;
+
+  public ConsensusHealthRenderer() {
+    this.logger = Logger.getLogger(
+        ConsensusHealthRenderer.class.getName());
+  }
+
+  public void writeStatusWebsite(String validAfterTime,
+      ConsensusHealthChecker.StatusSummary consensus,
+      List<ConsensusHealthChecker.StatusSummary> votes,
+      RelayFlagMatrix matrix) {
+
+    /* Prepare parsing dates. */
+    SimpleDateFormat dateTimeFormat =
+        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    StringBuilder knownFlagsResults = new StringBuilder();
+    StringBuilder numRelaysVotesResults = new StringBuilder();
+    StringBuilder consensusMethodsResults = new StringBuilder();
+    StringBuilder versionsResults = new StringBuilder();
+    StringBuilder paramsResults = new StringBuilder();
+    StringBuilder authorityKeysResults = new StringBuilder();
+    StringBuilder bandwidthScannersResults = new StringBuilder();
+    StringBuilder authorityVersionsResults = new StringBuilder();
+    SortedSet<String> allKnownVotes = new TreeSet<String>();
+    SortedMap<String, String> votesKnownFlags =
+        new TreeMap<String, String>();
+
+    /* Write relays with Authority flag and their versions. */
+    for (String[] authorityVersion : consensus.authorityVersions) {
+      authorityVersionsResults.append("          <tr>\n"
+          + "            <td>" + authorityVersion[0] + "</td>\n"
+          + "            <td>" + authorityVersion[1] + "</td>\n"
+          + "          </tr>\n");
+    }
+
+    /* Compare votes to the consensus. */
+    for (ConsensusHealthChecker.StatusSummary vote : votes) {
+      if (vote.dirSource != null) {
+        allKnownVotes.add(vote.dirSource);
+        votesKnownFlags.put(vote.dirSource, vote.knownFlags);
+      }
+
+      /* Write known flags. */
+      knownFlagsResults.append("          <tr>\n"
+          + "            <td>" + vote.dirSource + "</td>\n"
+          + "            <td>" + vote.knownFlags + "</td>\n"
+          + "          </tr>\n");
+
+      /* Write number of relays voted about. */
+      numRelaysVotesResults.append("          <tr>\n"
+          + "            <td>" + vote.dirSource + "</td>\n"
+          + "            <td>" + vote.totalRelays + " total</td>\n"
+          + "            <td>" + vote.runningRelays + " Running</td>\n"
+          + "          </tr>\n");
+
+      /* Write supported consensus methods. */
+      if (!vote.consensusMethods.contains(consensus.consensusMethods.
+          split(" ")[1])) {
+        consensusMethodsResults.append("          <tr>\n"
+            + "            <td><font color=\"red\">" + vote.dirSource
+              + "</font></td>\n"
+            + "            <td><font color=\"red\">"
+              + vote.consensusMethods + "</font></td>\n"
+            + "          </tr>\n");
+        this.logger.warning(vote.dirSource + " does not support consensus "
+            + "method " + consensus.consensusMethods.split(" ")[1] + ": "
+            + vote.consensusMethods);
+      } else {
+        consensusMethodsResults.append("          <tr>\n"
+               + "            <td>" + vote.dirSource + "</td>\n"
+               + "            <td>" + vote.consensusMethods + "</td>\n"
+               + "          </tr>\n");
+        this.logger.fine(vote.dirSource + " supports consensus method "
+            + consensus.consensusMethods.split(" ")[1] + ": "
+            + vote.consensusMethods);
+      }
+
+      /* Write recommended versions. */
+      if (vote.clientVersions == null) {
+        /* Not a versioning authority. */
+      } else if (!vote.clientVersions.equals(consensus.clientVersions)) {
+        versionsResults.append("          <tr>\n"
+            + "            <td><font color=\"red\">" + vote.dirSource
+              + "</font></td>\n"
+            + "            <td><font color=\"red\">"
+              + vote.clientVersions + "</font></td>\n"
+            + "          </tr>\n");
+        this.logger.warning(vote.dirSource + " recommends other client "
+            + "versions than the consensus: " + vote.clientVersions);
+      } else {
+        versionsResults.append("          <tr>\n"
+            + "            <td>" + vote.dirSource + "</td>\n"
+            + "            <td>" + vote.clientVersions + "</td>\n"
+            + "          </tr>\n");
+        this.logger.fine(vote.dirSource + " recommends the same client "
+            + "versions as the consensus: " + vote.clientVersions);
+      }
+      if (vote.serverVersions == null) {
+        /* Not a versioning authority. */
+      } else if (!vote.serverVersions.equals(consensus.serverVersions)) {
+        versionsResults.append("          <tr>\n"
+            + "            <td></td>\n"
+            + "            <td><font color=\"red\">"
+              + vote.serverVersions + "</font></td>\n"
+            + "          </tr>\n");
+        this.logger.warning(vote.dirSource + " recommends other server "
+            + "versions than the consensus: " + vote.serverVersions);
+      } else {
+        versionsResults.append("          <tr>\n"
+            + "            <td></td>\n"
+            + "            <td>" + vote.serverVersions + "</td>\n"
+            + "          </tr>\n");
+        this.logger.fine(vote.dirSource + " recommends the same server "
+            + "versions as the consensus: " + vote.serverVersions);
+      }
+
+      /* Write consensus parameters. */
+      boolean conflictOrInvalid = false;
+      Set<String> validParameters = new HashSet<String>(Arrays.asList(
+          "circwindow,CircuitPriorityHalflifeMsec,refuseunknownexits".
+          split(",")));
+      if (vote.params == null) {
+        /* Authority doesn't set consensus parameters. */
+      } else {
+        for (String param : vote.params.split(" ")) {
+          if (!param.equals("params") &&
+              (!consensus.params.contains(param) ||
+              !validParameters.contains(param.split("=")[0]))) {
+            conflictOrInvalid = true;
+            break;
+          }
+        }
+      }
+      if (conflictOrInvalid) {
+        paramsResults.append("          <tr>\n"
+            + "            <td><font color=\"red\">" + vote.dirSource
+              + "</font></td>\n"
+            + "            <td><font color=\"red\">"
+              + vote.params + "</font></td>\n"
+            + "          </tr>\n");
+        this.logger.warning(vote.dirSource + " sets conflicting or invalid "
+            + "consensus parameters: " + vote.params);
+      } else {
+        paramsResults.append("          <tr>\n"
+            + "            <td>" + vote.dirSource + "</td>\n"
+            + "            <td>" + vote.params + "</td>\n"
+            + "          </tr>\n");
+        this.logger.fine(vote.dirSource + " sets only non-conflicting and "
+            + "valid consensus parameters: " + vote.params);
+      }
+
+      /* Write authority key expiration date. */
+      if (vote.dirKeyExpires != null) {
+        boolean expiresIn14Days = false;
+        try {
+          expiresIn14Days = (System.currentTimeMillis()
+              + 14L * 24L * 60L * 60L * 1000L >
+              dateTimeFormat.parse(vote.dirKeyExpires.substring(
+              "dir-key-expires ".length())).getTime());
+        } catch (ParseException e) {
+          /* Can't parse the timestamp? Whatever. */
+        }
+        if (expiresIn14Days) {
+          authorityKeysResults.append("          <tr>\n"
+              + "            <td><font color=\"red\">" + vote.dirSource
+                + "</font></td>\n"
+              + "            <td><font color=\"red\">"
+                + vote.dirKeyExpires + "</font></td>\n"
+              + "          </tr>\n");
+          this.logger.warning(vote.dirSource + "'s certificate expires "
+              + "in the next 14 days: " + vote.dirKeyExpires);
+        } else {
+          authorityKeysResults.append("          <tr>\n"
+              + "            <td>" + vote.dirSource + "</td>\n"
+              + "            <td>" + vote.dirKeyExpires + "</td>\n"
+              + "          </tr>\n");
+          this.logger.fine(vote.dirSource + "'s certificate does not "
+              + "expire in the next 14 days: " + vote.dirKeyExpires);
+        }
+      }
+
+      /* Write results for bandwidth scanner status. */
+      if (vote.measuredRelays > 0) {
+        bandwidthScannersResults.append("          <tr>\n"
+            + "            <td>" + vote.dirSource + "</td>\n"
+            + "            <td>" + vote.measuredRelays
+              + " Measured values in w lines</td>\n"
+            + "          </tr>\n");
+      }
+    }
+
+    /* Check if we're missing a vote. TODO make this configurable */
+    SortedSet<String> knownAuthorities = new TreeSet<String>(
+        Arrays.asList(("dannenberg,dizum,gabelmoo,ides,maatuska,moria1,"
+        + "tor26,urras").split(",")));
+    for (String dir : allKnownVotes) {
+      knownAuthorities.remove(dir);
+    }
+    if (!knownAuthorities.isEmpty()) {
+      StringBuilder sb = new StringBuilder();
+      for (String dir : knownAuthorities) {
+        sb.append(", " + dir);
+      }
+      this.logger.warning("We're missing votes from the following "
+          + "directory authorities: " + sb.toString().substring(2));
+    }
+
+    try {
+
+      /* Keep the past two consensus health statuses. */
+      File file0 = new File("website/consensus-health.html");
+      File file1 = new File("website/consensus-health-1.html");
+      File file2 = new File("website/consensus-health-2.html");
+      if (file2.exists()) {
+        file2.delete();
+      }
+      if (file1.exists()) {
+        file1.renameTo(file2);
+      }
+      if (file0.exists()) {
+        file0.renameTo(file1);
+      }
+
+      /* Start writing web page. */
+      BufferedWriter bw = new BufferedWriter(
+          new FileWriter("website/consensus-health.html"));
+      bw.write("<!DOCTYPE HTML PUBLIC \"-//W3C//DTD HTML 4.0 "
+            + "Transitional//EN\">\n"
+          + "<html>\n"
+          + "  <head>\n"
+          + "    <title>Tor Metrics Portal: Consensus health</title>\n"
+          + "    <meta http-equiv=\"content-type\" content=\"text/html; "
+            + "charset=ISO-8859-1\">\n"
+          + "    <link href=\"/css/stylesheet-ltr.css\" type=\"text/css\" "
+            + "rel=\"stylesheet\">\n"
+          + "    <link href=\"/images/favicon.ico\" "
+            + "type=\"image/x-icon\" rel=\"shortcut icon\">\n"
+          + "  </head>\n"
+          + "  <body>\n"
+          + "    <div class=\"center\">\n"
+          + "      <table class=\"banner\" border=\"0\" "
+            + "cellpadding=\"0\" cellspacing=\"0\" summary=\"\">\n"
+          + "        <tr>\n"
+          + "          <td class=\"banner-left\"><a "
+            + "href=\"/index.html\"><img src=\"/images/top-left.png\" "
+            + "alt=\"Click to go to home page\" width=\"193\" "
+            + "height=\"79\"></a></td>\n"
+          + "          <td class=\"banner-middle\">\n"
+          + "            <a href=\"/\">Home</a>\n"
+          + "            <a href=\"graphs.html\">Graphs</a>\n"
+          + "            <a href=\"research.html\">Research</a>\n"
+          + "            <a href=\"status.html\">Status</a>\n"
+          + "            <br>\n"
+          + "            <font size=\"2\">\n"
+          + "              <a href=\"exonerator.html\">ExoneraTor</a>\n"
+          + "              <a href=\"relay-search.html\">Relay Search</a>\n"
+          + "              <a class=\"current\">Consensus Health</a>\n"
+          + "            </font>\n"
+          + "          </td>\n"
+          + "          <td class=\"banner-right\"></td>\n"
+          + "        </tr>\n"
+          + "      </table>\n"
+          + "      <div class=\"main-column\">\n"
+          + "        <h2>Tor Metrics Portal: Consensus Health</h2>\n"
+          + "        <br>\n"
+          + "        <p>This page shows statistics about the current "
+            + "consensus and votes to facilitate debugging of the "
+            + "directory consensus process.</p>\n");
+
+      /* Write valid-after time. */
+      bw.write("        <br>\n"
+          + "        <h3>Valid-after time</h3>\n"
+          + "        <br>\n"
+          + "        <p>Consensus was published ");
+      boolean consensusIsStale = false;
+      try {
+        consensusIsStale = System.currentTimeMillis()
+            - 3L * 60L * 60L * 1000L >
+            dateTimeFormat.parse(validAfterTime).getTime();
+      } catch (ParseException e) {
+        /* Can't parse the timestamp? Whatever. */
+      }
+      if (consensusIsStale) {
+        bw.write("<font color=\"red\">" + validAfterTime
+            + "</font>");
+        this.logger.warning("The last consensus published at "
+            + validAfterTime + " is more than 3 hours "
+            + "old.");
+      } else {
+        bw.write(validAfterTime);
+        this.logger.fine("The last consensus published at "
+            + validAfterTime + " is less than 3 hours "
+            + "old.");
+      }
+      bw.write(". <i>Note that it takes "
+            + "15 to 30 minutes for the metrics portal to learn about "
+            + "new consensus and votes and process them.</i></p>\n");
+
+      /* Write known flags. */
+      bw.write("        <br>\n"
+          + "        <h3>Known flags</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"640\">\n"
+          + "          </colgroup>\n");
+      if (knownFlagsResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td></tr>\n");
+      } else {
+        bw.write(knownFlagsResults.toString());
+      }
+      bw.write("          <tr>\n"
+          + "            <td><font color=\"blue\">consensus</font>"
+            + "</td>\n"
+          + "            <td><font color=\"blue\">"
+            + consensus.knownFlags + "</font></td>\n"
+          + "          </tr>\n");
+      bw.write("        </table>\n");
+
+      /* Write number of relays voted about. */
+      bw.write("        <br>\n"
+          + "        <h3>Number of relays voted about</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"320\">\n"
+          + "            <col width=\"320\">\n"
+          + "          </colgroup>\n");
+      if (numRelaysVotesResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td><td></td></tr>\n");
+      } else {
+        bw.write(numRelaysVotesResults.toString());
+      }
+      bw.write("          <tr>\n"
+          + "            <td><font color=\"blue\">consensus</font>"
+            + "</td>\n"
+          + "            <td><font color=\"blue\">"
+            + consensus.totalRelays + " total</font></td>\n"
+          + "            <td><font color=\"blue\">"
+            + consensus.runningRelays + " Running</font></td>\n"
+          + "          </tr>\n");
+      bw.write("        </table>\n");
+
+      /* Write consensus methods. */
+      bw.write("        <br>\n"
+          + "        <h3>Consensus methods</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"640\">\n"
+          + "          </colgroup>\n");
+      if (consensusMethodsResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td></tr>\n");
+      } else {
+        bw.write(consensusMethodsResults.toString());
+      }
+      bw.write("          <tr>\n"
+          + "            <td><font color=\"blue\">consensus</font>"
+            + "</td>\n"
+          + "            <td><font color=\"blue\">"
+            + consensus.consensusMethods + "</font></td>\n"
+          + "          </tr>\n");
+      bw.write("        </table>\n");
+
+      /* Write recommended versions. */
+      bw.write("        <br>\n"
+          + "        <h3>Recommended versions</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"640\">\n"
+          + "          </colgroup>\n");
+      if (versionsResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td></tr>\n");
+      } else {
+        bw.write(versionsResults.toString());
+      }
+      bw.write("          <tr>\n"
+          + "            <td><font color=\"blue\">consensus</font>"
+          + "</td>\n"
+          + "            <td><font color=\"blue\">"
+            + consensus.clientVersions + "</font></td>\n"
+          + "          </tr>\n");
+      bw.write("          <tr>\n"
+          + "            <td></td>\n"
+          + "            <td><font color=\"blue\">"
+          + consensus.serverVersions + "</font></td>\n"
+        + "          </tr>\n");
+      bw.write("        </table>\n");
+
+      /* Write consensus parameters. */
+      bw.write("        <br>\n"
+          + "        <h3>Consensus parameters</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"640\">\n"
+          + "          </colgroup>\n");
+      if (paramsResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td></tr>\n");
+      } else {
+        bw.write(paramsResults.toString());
+      }
+      bw.write("          <tr>\n"
+          + "            <td><font color=\"blue\">consensus</font>"
+            + "</td>\n"
+          + "            <td><font color=\"blue\">"
+            + consensus.params + "</font></td>\n"
+          + "          </tr>\n");
+      bw.write("        </table>\n");
+
+      /* Write authority keys. */
+      bw.write("        <br>\n"
+          + "        <h3>Authority keys</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"640\">\n"
+          + "          </colgroup>\n");
+      if (authorityKeysResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td></tr>\n");
+      } else {
+        bw.write(authorityKeysResults.toString());
+      }
+      bw.write("        </table>\n"
+          + "        <br>\n"
+          + "        <p><i>Note that expiration dates of legacy keys are "
+            + "not included in votes and therefore not listed here!</i>"
+            + "</p>\n");
+
+      /* Write bandwidth scanner status. */
+      bw.write("        <br>\n"
+           + "        <h3>Bandwidth scanner status</h3>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"640\">\n"
+          + "          </colgroup>\n");
+      if (bandwidthScannersResults.length() < 1) {
+        bw.write("          <tr><td>(No votes.)</td><td></td></tr>\n");
+      } else {
+        bw.write(bandwidthScannersResults.toString());
+      }
+      bw.write("        </table>\n");
+
+      /* Write authority versions. */
+      bw.write("        <br>\n"
+           + "        <h3>Authority versions</h3>\n"
+          + "        <br>\n");
+      if (authorityVersionsResults.length() < 1) {
+        bw.write("          <p>(No relays with Authority flag found.)"
+              + "</p>\n");
+      } else {
+        bw.write("        <table border=\"0\" cellpadding=\"4\" "
+              + "cellspacing=\"0\" summary=\"\">\n"
+            + "          <colgroup>\n"
+            + "            <col width=\"160\">\n"
+            + "            <col width=\"640\">\n"
+            + "          </colgroup>\n");
+        bw.write(authorityVersionsResults.toString());
+        bw.write("        </table>\n"
+            + "        <br>\n"
+            + "        <p><i>Note that this list of relays with the "
+              + "Authority flag may be different from the list of v3 "
+              + "directory authorities!</i></p>\n");
+      }
+
+      /* Write (huge) table with all flags. */
+      bw.write("        <br>\n"
+          + "        <h3>Relay flags</h3>\n"
+          + "        <br>\n"
+          + "        <p>The semantics of flags written in the table is "
+            + "as follows:</p>\n"
+          + "        <ul>\n"
+          + "          <li><b>In vote and consensus:</b> Flag in vote "
+            + "matches flag in consensus, or relay is not listed in "
+            + "consensus (because it doesn't have the Running "
+            + "flag)</li>\n"
+          + "          <li><b><font color=\"red\">Only in "
+            + "vote:</font></b> Flag in vote, but missing in the "
+            + "consensus, because there was no majority for the flag or "
+            + "the flag was invalidated (e.g., Named gets invalidated by "
+            + "Unnamed)</li>\n"
+          + "          <li><b><font color=\"gray\"><s>Only in "
+            + "consensus:</s></font></b> Flag in consensus, but missing "
+            + "in a vote of a directory authority voting on this "
+            + "flag</li>\n"
+          + "          <li><b><font color=\"blue\">In "
+            + "consensus:</font></b> Flag in consensus</li>\n"
+          + "        </ul>\n"
+          + "        <br>\n"
+          + "        <p>See also the summary below the table.</p>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"120\">\n"
+          + "            <col width=\"80\">\n");
+      for (int i = 0; i < allKnownVotes.size(); i++) {
+        bw.write("            <col width=\""
+            + (640 / allKnownVotes.size()) + "\">\n");
+      }
+      bw.write("          </colgroup>\n");
+      int[] sortedFlags = matrix.getSortedFlagNumbers();
+      int[] authorities = new int[allKnownVotes.size()];
+      int column = 0;
+      for (String dir : allKnownVotes) {
+        authorities[column++] = matrix.findAuthorityNumber(dir);
+      }
+      int[][] flagsAgree = new int[authorities.length][
+          RelayFlagMatrix.MAX_FLAGS],
+          flagsLost = new int[authorities.length][
+          RelayFlagMatrix.MAX_FLAGS],
+          flagsMissing = new int[authorities.length][
+          RelayFlagMatrix.MAX_FLAGS];
+      int linesWritten = 0;
+      for (int relay : this.getRelaysInVotes(matrix, authorities)) {
+        if (linesWritten++ % 10 == 0) {
+          bw.write("          <tr><td><br><b>Fingerprint</b></td>"
+              + "<td><br><b>Nickname</b></td>\n");
+          for (String dir : allKnownVotes) {
+            String shortDirName = dir.length() > 6 ?
+                dir.substring(0, 5) + "." : dir;
+            bw.write("<td><br><b>" + shortDirName + "</b></td>");
+          }
+          bw.write("<td><br><b>consensus</b></td></tr>\n");
+        }
+        String relayKey = matrix.getRelay(relay);
+        String fingerprint = relayKey.split(" ")[0].substring(0, 8);
+        String nickname = relayKey.split(" ")[1];
+        long consensusFlags = matrix.getConsensusFlags(relay);
+        boolean inConsensus = (consensusFlags &
+            RelayFlagMatrix.LISTED) != 0L;
+        bw.write("          <tr>\n");
+        if ((consensusFlags & matrix.getFlagBit("Named")) != 0L &&
+            !Character.isDigit(nickname.charAt(0))) {
+          bw.write("            <td id=\"" + nickname
+              + "\"><a href=\"relay.html?fingerprint="
+              + relayKey.split(" ")[0] + "\" target=\"_blank\">"
+              + fingerprint + "</a></td>\n");
+        } else {
+          bw.write("            <td><a href=\"relay.html?fingerprint="
+              + fingerprint + "\" target=\"_blank\">" + fingerprint
+              + "</a></td>\n");
+        }
+        bw.write("            <td>" + nickname + "</td>\n");
+        long relevantFlags = consensusFlags;
+        for (int authority : authorities) {
+          relevantFlags |= matrix.getVoteFlags(authority, relay);
+        }
+        for (int a = 0; a < authorities.length; a++) {
+          long voteFlags = matrix.getVoteFlags(authorities[a], relay);
+          if ((voteFlags & RelayFlagMatrix.LISTED) == 0L) {
+            bw.write("            <td></td>\n");
+            continue;
+          }
+          long knownFlags = matrix.getKnownFlags(authorities[a]);
+          bw.write("            <td>");
+          int flagsWritten = 0;
+          for (int flag : sortedFlags) {
+            long bit = 1L << flag;
+            if ((relevantFlags & bit) == 0L) {
+              continue;
+            }
+            bw.write(flagsWritten++ > 0 ? "<br>" : "");
+            String flagName = matrix.getFlag(flag);
+            if ((voteFlags & bit) != 0L) {
+              if (!inConsensus || (consensusFlags & bit) != 0L) {
+                bw.write(flagName);
+                flagsAgree[a][flag]++;
+              } else {
+                bw.write("<font color=\"red\">" + flagName + "</font>");
+                flagsLost[a][flag]++;
+              }
+            } else if ((knownFlags & consensusFlags & bit) != 0L) {
+              bw.write("<font color=\"gray\"><s>" + flagName
+                  + "</s></font>");
+              flagsMissing[a][flag]++;
+            }
+          }
+          bw.write("</td>\n");
+        }
+        if (inConsensus) {
+          bw.write("            <td>");
+          int flagsWritten = 0;
+          for (int flag : sortedFlags) {
+            long bit = 1L << flag;
+            if ((relevantFlags & bit) == 0L) {
+              continue;
+            }
+            bw.write(flagsWritten++ > 0 ? "<br>" : "");
+            if ((consensusFlags & bit) != 0L) {
+              bw.write("<font color=\"blue\">" + matrix.getFlag(flag)
+                  + "</font>");
+            }
+          }
+          bw.write("</td>\n");
+        } else {
+          bw.write("            <td></td>\n");
+        }
+        bw.write("          </tr>\n");
+      }
+      bw.write("        </table>\n");
+
+      /* Write summary of overlap between votes and consensus. */
+      bw.write("        <br>\n"
+           + "        <h3>Overlap between votes and consensus</h3>\n"
+          + "        <br>\n"
+          + "        <p>The semantics of columns is similar to the "
+            + "table above:</p>\n"
+          + "        <ul>\n"
+          + "          <li><b>In vote and consensus:</b> Flag in vote "
+            + "matches flag in consensus, or relay is not listed in "
+            + "consensus (because it doesn't have the Running "
+            + "flag)</li>\n"
+          + "          <li><b><font color=\"red\">Only in "
+            + "vote:</font></b> Flag in vote, but missing in the "
+            + "consensus, because there was no majority for the flag or "
+            + "the flag was invalidated (e.g., Named gets invalidated by "
+            + "Unnamed)</li>\n"
+          + "          <li><b><font color=\"gray\"><s>Only in "
+            + "consensus:</s></font></b> Flag in consensus, but missing "
+            + "in a vote of a directory authority voting on this "
+            + "flag</li>\n"
+          + "        </ul>\n"
+          + "        <br>\n"
+          + "        <table border=\"0\" cellpadding=\"4\" "
+          + "cellspacing=\"0\" summary=\"\">\n"
+          + "          <colgroup>\n"
+          + "            <col width=\"160\">\n"
+          + "            <col width=\"210\">\n"
+          + "            <col width=\"210\">\n"
+          + "            <col width=\"210\">\n"
+          + "          </colgroup>\n");
+      bw.write("          <tr><td></td><td><b>Only in vote</b></td>"
+            + "<td><b>In vote and consensus</b></td>"
+            + "<td><b>Only in consensus</b></td>\n");
+      column = 0;
+      for (String dir : allKnownVotes) {
+        int a = column++;
+        boolean firstFlagWritten = false;
+        String[] flags = votesKnownFlags.get(dir).substring(
+            "known-flags ".length()).split(" ");
+        for (String flagName : flags) {
+          int flag = matrix.getFlagNumber(flagName);
+          bw.write("          <tr>\n");
+          if (firstFlagWritten) {
+            bw.write("            <td></td>\n");
+          } else {
+            bw.write("            <td>" + dir + "</td>\n");
+            firstFlagWritten = true;
+          }
+          if (flag >= 0 && flagsLost[a][flag] > 0) {
+            bw.write("            <td><font color=\"red\"> "
+                  + flagsLost[a][flag] + " " + flagName
+                  + "</font></td>\n");
+          } else {
+            bw.write("            <td></td>\n");
+          }
+          if (flag >= 0 && flagsAgree[a][flag] > 0) {
+            bw.write("            <td>" + flagsAgree[a][flag] + " "
+                  + flagName + "</td>\n");
+          } else {
+            bw.write("            <td></td>\n");
+          }
+          if (flag >= 0 && flagsMissing[a][flag] > 0) {
+            bw.write("            <td><font color=\"gray\"><s>"
+                  + flagsMissing[a][flag] + " " + flagName
+                  + "</s></font></td>\n");
+          } else {
+            bw.write("            <td></td>\n");
+          }
+          bw.write("          </tr>\n");
+        }
+      }
+      bw.write("        </table>\n");
+
+      /* Finish writing. */
+      bw.write("      </div>\n"
+          + "    </div>\n"
+          + "    <div class=\"bottom\" id=\"bottom\">\n"
+          + "      <p>This material is supported in part by the "
+            + "National Science Foundation under Grant No. "
+            + "CNS-0959138. Any opinions, finding, and conclusions "
+            + "or recommendations expressed in this material are "
+            + "those of the author(s) and do not necessarily reflect "
+            + "the views of the National Science Foundation.</p>\n"
+          + "      <p>\"Tor\" and the \"Onion Logo\" are <a "
+            + "href=\"https://www.torproject.org/docs/trademark-faq.html"
+            + ".en\">"
+          + "registered trademarks</a> of The Tor Project, "
+            + "Inc.</p>\n"
+          + "      <p>Data on this site is freely available under a "
+            + "<a href=\"http://creativecommons.org/publicdomain/"
+            + "zero/1.0/\">CC0 no copyright declaration</a>: To the "
+            + "extent possible under law, the Tor Project has waived "
+            + "all copyright and related or neighboring rights in "
+            + "the data. Graphs are licensed under a <a "
+            + "href=\"http://creativecommons.org/licenses/by/3.0/"
+            + "us/\">Creative Commons Attribution 3.0 United States "
+            + "License</a>.</p>\n"
+          + "    </div>\n"
+          + "  </body>\n"
+          + "</html>");
+      bw.close();
+
+    } catch (IOException e) {
+    }
+  }
+
+  /**
+   * Returns the numbers of all relays that are listed in at least one of
+   * the given authorities' votes, in the order of their keys.
+   */
+  private List<Integer> getRelaysInVotes(final RelayFlagMatrix matrix,
+      int[] authorities) {
+    List<Integer> relays = new ArrayList<Integer>();
+    for (int relay = 0; relay < matrix.getRelayCount(); relay++) {
+      for (int authority : authorities) {
+        if ((matrix.getVoteFlags(authority, relay) &
+            RelayFlagMatrix.LISTED) != 0L) {
+          relays.add(relay);
+          break;
+        }
+      }
+    }
+    Collections.sort(relays, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        return matrix.getRelay(a).compareTo(matrix.getRelay(b));
+      }
+    });
+    return relays;
+  }
+}
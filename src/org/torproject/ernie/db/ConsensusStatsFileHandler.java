@@ -11,54 +11,120 @@ import java.util.logging.*;
 /**
  * Generates statistics on the average number of relays and bridges per
  * day. Accepts parse results from <code>RelayDescriptorParser</code> and
- * <code>BridgeDescriptorParser</code> and stores them in intermediate
- * result files <code>stats/consensus-stats-raw</code> and
- * <code>stats/bridge-consensus-stats-raw</code>. Writes final results to
- * <code>stats/consensus-stats</code> for all days for which at least half
- * of the expected consensuses or statuses are known.
+ * <code>BridgeDescriptorParser</code> and appends them to intermediate
+ * results in <code>stats/consensus-stats-raw.d/</code> and
+ * <code>stats/bridge-consensus-stats-raw.d/</code>. Updates final results
+ * in <code>stats/consensus-stats</code> for all days with new
+ * observations for which at least half of the expected consensuses or
+ * statuses are known.
  */
 public class ConsensusStatsFileHandler {
 
   /**
-   * Intermediate results file holding the number of relays with Exit,
-   * Fast, Guard, Running, and Stable flags per consensus.
+   * Rows of counts sorted by time in seconds since the epoch. Times and
+   * counts are kept in primitive arrays, so that summing up counts
+   * doesn't require parsing or creating any objects.
    */
-  private File consensusStatsRawFile;
+  private static class Counts {
+
+    /* Segments that keep these counts on disk, or null if the counts are
+     * only kept in memory. */
+    private SegmentedStatsStore store;
+
+    /* Months formatted as "yyyy-MM" that we have read from the store. */
+    private Set<String> loadedMonths = new HashSet<String>();
+
+    /* Number of counts per row. */
+    private int columns;
+
+    /* Row times in seconds since the epoch. */
+    private long[] times = new long[64];
+
+    /* Counts of all rows, with the counts of row i starting at
+     * i * columns. */
+    private int[] values;
+
+    /* Number of rows. */
+    private int rows = 0;
+
+    Counts(SegmentedStatsStore store, int columns) {
+      this.store = store;
+      this.columns = columns;
+      this.values = new int[this.times.length * columns];
+    }
+
+    /* Returns the row with the given time, or (-(insertion point) - 1)
+     * if there is no such row. */
+    int indexOf(long time) {
+      return Arrays.binarySearch(this.times, 0, this.rows, time);
+    }
+
+    /* Returns the first row with the given time or later. */
+    int firstIndexFrom(long time) {
+      int index = this.indexOf(time);
+      return index < 0 ? -index - 1 : index;
+    }
+
+    boolean rowEquals(int index, int[] row) {
+      for (int i = 0; i < this.columns; i++) {
+        if (this.values[index * this.columns + i] != row[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /* Adds a row, replacing the row with the same time if it exists. */
+    void put(long time, int[] row) {
+      int index = this.indexOf(time);
+      if (index < 0) {
+        index = -index - 1;
+        if (this.rows == this.times.length) {
+          this.times = Arrays.copyOf(this.times, 2 * this.rows);
+          this.values = Arrays.copyOf(this.values,
+              2 * this.rows * this.columns);
+        }
+        System.arraycopy(this.times, index, this.times, index + 1,
+            this.rows - index);
+        System.arraycopy(this.values, index * this.columns, this.values,
+            (index + 1) * this.columns, (this.rows - index) * this.columns);
+        this.times[index] = time;
+        this.rows++;
+      }
+      System.arraycopy(row, 0, this.values, index * this.columns,
+          this.columns);
+    }
+  }
 
   /**
-   * Number of relays in a given consensus with Exit, Fast, Guard,
-   * Running, and Stable flags set. Map keys are consensus valid-after
-   * times formatted as "yyyy-MM-dd HH:mm:ss", map values are lines as
-   * read from <code>stats/consensus-stats-raw</code>.
+   * Intermediate results file holding the number of relays with Exit,
+   * Fast, Guard, Running, and Stable flags per consensus in the format
+   * that we used before storing them in segments. This file is only read
+   * once to convert its contents.
    */
-  private SortedMap<String, String> relaysRaw;
+  private File consensusStatsRawFile;
 
   /**
-   * Modification flag for <code>relaysRaw</code>. This flag is used to
-   * decide whether the contents of <code>relaysRaw</code> need to be
-   * written to disk during <code>writeFiles</code>.
+   * Number of relays in a given consensus with Exit, Fast, Guard,
+   * Running, and Stable flags set, by consensus valid-after time. Only
+   * months for which we learned something new are read from
+   * <code>stats/consensus-stats-raw.d/</code>.
    */
-  private boolean relaysRawModified;
+  private Counts relaysRaw;
 
   /**
    * Intermediate results file holding the number of running bridges per
-   * bridge status.
+   * bridge status in the format that we used before storing them in
+   * segments. This file is only read once to convert its contents.
    */
   private File bridgeConsensusStatsRawFile;
 
   /**
-   * Number of running bridges in a given bridge status. Map keys are
-   * bridge status times formatted as "yyyy-MM-dd HH:mm:ss", map values
-   * are lines as read from <code>stats/bridge-consensus-stats-raw</code>.
+   * Number of running bridges in a given bridge status, by bridge status
+   * publication time. Only months for which we learned something new are
+   * read from <code>stats/bridge-consensus-stats-raw.d/</code>.
    */
-  private SortedMap<String, String> bridgesRaw;
-
-  /**
-   * Modification flag for <code>bridgesRaw</code>. This flag is used to
-   * decide whether the contents of <code>bridgesRaw</code> need to be
-   * written to disk during <code>writeFiles</code>.
-   */
-  private boolean bridgesRawModified;
+  private Counts bridgesRaw;
 
   /**
    * Final results file holding the average number of relays with Exit,
@@ -69,18 +135,14 @@ public class ConsensusStatsFileHandler {
 
   /**
    * Average number of relays with Exit, Fast, Guard, Running, and Stable
-   * flags set per day. Map keys are dates formatted as "yyyy-MM-dd", map
-   * values are lines as written to <code>stats/consensus-stats</code>
-   * without the last column that contains the number of running bridges.
+   * flags set per day, by start of the day.
    */
-  private SortedMap<String, String> relaysPerDay;
+  private Counts relaysPerDay;
 
   /**
-   * Average number of running bridges per day. Map keys are dates
-   * formatted as "yyyy-MM-dd", map values are the last column as written
-   * to <code>stats/consensus-stats</code>.
+   * Average number of running bridges per day, by start of the day.
    */
-  private SortedMap<String, String> bridgesPerDay;
+  private Counts bridgesPerDay;
 
   /**
    * Logger for this class.
@@ -92,20 +154,26 @@ public class ConsensusStatsFileHandler {
   /* Database connection string. */
   private String connectionURL = null;
 
+  /* Formats for parsing and formatting dates and timestamps. */
+  private SimpleDateFormat dateFormat = null, dateTimeFormat = null;
+
  /**
-  * Initializes this class, including reading in intermediate results
+  * Initializes this class, including reading in final results file
+  * <code>stats/consensus-stats</code> and converting intermediate results
   * files <code>stats/consensus-stats-raw</code> and
-  * <code>stats/bridge-consensus-stats-raw</code> and final results file
-  * <code>stats/consensus-stats</code>.
+  * <code>stats/bridge-consensus-stats-raw</code> if they haven't been
+  * converted to segments before.
   */
   public ConsensusStatsFileHandler(String connectionURL) {
 
     /* Initialize local data structures to hold intermediate and final
      * results. */
-    this.relaysPerDay = new TreeMap<String, String>();
-    this.bridgesPerDay = new TreeMap<String, String>();
-    this.relaysRaw = new TreeMap<String, String>();
-    this.bridgesRaw = new TreeMap<String, String>();
+    this.relaysPerDay = new Counts(null, 5);
+    this.bridgesPerDay = new Counts(null, 1);
+    this.relaysRaw = new Counts(new SegmentedStatsStore(new File(
+        "stats/consensus-stats-raw.d"), 1, 0), 5);
+    this.bridgesRaw = new Counts(new SegmentedStatsStore(new File(
+        "stats/bridge-consensus-stats-raw.d"), 1, 0), 1);
 
     /* Initialize file names for intermediate and final results files. */
     this.consensusStatsRawFile = new File("stats/consensus-stats-raw");
@@ -116,12 +184,19 @@ public class ConsensusStatsFileHandler {
     /* Initialize database connection string. */
     this.connectionURL = connectionURL;
 
+    /* Initialize formats. */
+    this.dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+    this.dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+    this.dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+    this.dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
     /* Initialize logger. */
     this.logger = Logger.getLogger(
         ConsensusStatsFileHandler.class.getName());
 
-    /* Read in number of relays with flags set per consensus. */
-    if (this.consensusStatsRawFile.exists()) {
+    /* Convert number of relays with flags set per consensus. */
+    if (!this.relaysRaw.store.exists() &&
+        this.consensusStatsRawFile.exists()) {
       try {
         this.logger.fine("Reading file "
             + this.consensusStatsRawFile.getAbsolutePath() + "...");
@@ -140,8 +215,9 @@ public class ConsensusStatsFileHandler {
                 + "! Aborting to read this file!");
             break;
           }
-          String dateTime = parts[0];
-          this.relaysRaw.put(dateTime, line);
+          this.addConsensusResults(parts[0], Integer.parseInt(parts[1]),
+              Integer.parseInt(parts[2]), Integer.parseInt(parts[3]),
+              Integer.parseInt(parts[4]), Integer.parseInt(parts[5]));
         }
         br.close();
         this.logger.fine("Finished reading file "
@@ -152,8 +228,9 @@ public class ConsensusStatsFileHandler {
       }
     }
 
-    /* Read in number of running bridges per bridge status. */
-    if (this.bridgeConsensusStatsRawFile.exists()) {
+    /* Convert number of running bridges per bridge status. */
+    if (!this.bridgesRaw.store.exists() &&
+        this.bridgeConsensusStatsRawFile.exists()) {
       try {
         this.logger.fine("Reading file "
             + this.bridgeConsensusStatsRawFile.getAbsolutePath() + "...");
@@ -172,8 +249,8 @@ public class ConsensusStatsFileHandler {
                 + "! Aborting to read this file!");
             break;
           }
-          String dateTime = parts[0];
-          this.bridgesRaw.put(dateTime, line);
+          this.addBridgeConsensusResults(parts[0],
+              Integer.parseInt(parts[1]));
         }
         br.close();
         this.logger.fine("Finished reading file "
@@ -185,6 +262,9 @@ public class ConsensusStatsFileHandler {
       }
     }
 
+    /* Converted results are not new results of this execution. */
+    this.relayResultsAdded = this.bridgeResultsAdded = 0;
+
     /* Read in previous results on average numbers of relays and running
      * bridges per day. */
     if (this.consensusStatsFile.exists()) {
@@ -206,30 +286,111 @@ public class ConsensusStatsFileHandler {
                 + "! Aborting to read this file!");
             break;
           }
-          String date = parts[0];
-          /* Split line into relay and bridge part; the relay part ends
-           * with the last comma (excluding) and the bridge part starts at
-           * that comma (including). */
-          String relayPart = line.substring(0, line.lastIndexOf(","));
-          String bridgePart = line.substring(line.lastIndexOf(","));
-          if (!relayPart.endsWith(",NA,NA,NA,NA,NA")) {
-            this.relaysPerDay.put(date, relayPart);
+          long day = this.dateFormat.parse(parts[0]).getTime() / 1000L;
+          if (!parts[1].equals("NA")) {
+            int[] relays = new int[5];
+            for (int i = 0; i < relays.length; i++) {
+              relays[i] = Integer.parseInt(parts[i + 1]);
+            }
+            this.relaysPerDay.put(day, relays);
           }
-          if (!bridgePart.equals(",NA")) {
-            this.bridgesPerDay.put(date, bridgePart);
+          if (!parts[6].equals("NA")) {
+            this.bridgesPerDay.put(day, new int[] {
+                Integer.parseInt(parts[6]) });
           }
         }
         br.close();
         this.logger.fine("Finished reading file "
             + this.consensusStatsFile.getAbsolutePath() + ".");
       } catch (IOException e) {
-        this.logger.log(Level.WARNING, "Failed to write file "
+        this.logger.log(Level.WARNING, "Failed to read file "
+            + this.consensusStatsFile.getAbsolutePath() + "!", e);
+      } catch (ParseException e) {
+        this.logger.log(Level.WARNING, "Failed to read file "
             + this.consensusStatsFile.getAbsolutePath() + "!", e);
       }
     }
+  }
 
-    /* Set modification flags to false. */
-    this.relaysRawModified = this.bridgesRawModified = false;
+  /**
+   * Reads the counts of the given month formatted as "yyyy-MM" from disk
+   * unless we have done so before.
+   */
+  private void loadMonth(Counts counts, String month) {
+    if (!counts.loadedMonths.add(month)) {
+      return;
+    }
+    for (String line : counts.store.readSegment(month).values()) {
+      String[] parts = line.split(",");
+      if (parts.length != counts.columns + 1) {
+        this.logger.warning("Corrupt line '" + line + "' in segment "
+            + month + "! Skipping.");
+        continue;
+      }
+      try {
+        int[] row = new int[counts.columns];
+        for (int i = 0; i < row.length; i++) {
+          row[i] = Integer.parseInt(parts[i + 1]);
+        }
+        counts.put(this.dateTimeFormat.parse(parts[0]).getTime() / 1000L,
+            row);
+      } catch (NumberFormatException e) {
+        this.logger.warning("Corrupt line '" + line + "' in segment "
+            + month + "! Skipping.");
+      } catch (ParseException e) {
+        this.logger.warning("Corrupt line '" + line + "' in segment "
+            + month + "! Skipping.");
+      }
+    }
+  }
+
+  /**
+   * Formats a row of counts as a line starting with the given date or
+   * timestamp.
+   */
+  private String formatRow(String dateTime, Counts counts, int index) {
+    StringBuilder sb = new StringBuilder(dateTime);
+    for (int i = 0; i < counts.columns; i++) {
+      sb.append("," + counts.values[index * counts.columns + i]);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Adds a row of counts with the given timestamp to intermediate
+   * results and appends it to disk unless we knew it before. Returns
+   * whether the row is new.
+   */
+  private boolean addRawCounts(Counts counts, String dateTime,
+      int[] row, String description) {
+    long time;
+    try {
+      time = this.dateTimeFormat.parse(dateTime).getTime() / 1000L;
+    } catch (ParseException e) {
+      this.logger.log(Level.WARNING, "Could not parse timestamp '"
+          + dateTime + "'! Skipping.", e);
+      return false;
+    }
+    this.loadMonth(counts, dateTime.substring(0, 7));
+    StringBuilder sb = new StringBuilder(dateTime);
+    for (int value : row) {
+      sb.append("," + value);
+    }
+    String line = sb.toString();
+    int index = counts.indexOf(time);
+    if (index < 0) {
+      this.logger.finer("Adding new " + description + ": " + line);
+      counts.put(time, row);
+      counts.store.append(line);
+      return true;
+    } else if (!counts.rowEquals(index, row)) {
+      this.logger.warning("The " + description + " we were just given ("
+          + line + ") are different from what we learned before ("
+          + this.formatRow(dateTime, counts, index) + ")! Overwriting!");
+      counts.put(time, row);
+      counts.store.append(line);
+    }
+    return false;
   }
 
   /**
@@ -238,20 +399,10 @@ public class ConsensusStatsFileHandler {
    */
   public void addConsensusResults(String validAfter, int exit, int fast,
       int guard, int running, int stable) {
-    String line = validAfter + "," + exit + "," + fast + "," + guard + ","
-        + running + "," + stable;
-    if (!this.relaysRaw.containsKey(validAfter)) {
-      this.logger.finer("Adding new relay numbers: " + line);
-      this.relaysRaw.put(validAfter, line);
-      this.relaysRawModified = true;
+    if (this.addRawCounts(this.relaysRaw, validAfter,
+        new int[] { exit, fast, guard, running, stable }, "numbers of "
+        + "relays with Exit, Fast, Guard, Running, and Stable flag")) {
       this.relayResultsAdded++;
-    } else if (!line.equals(this.relaysRaw.get(validAfter))) {
-      this.logger.warning("The numbers of relays with Exit, Fast, "
-        + "Guard, Running, and Stable flag we were just given (" + line
-        + ") are different from what we learned before ("
-        + this.relaysRaw.get(validAfter) + ")! Overwriting!");
-      this.relaysRaw.put(validAfter, line);
-      this.relaysRawModified = true;
     }
   }
 
@@ -260,179 +411,116 @@ public class ConsensusStatsFileHandler {
    * given bridge status to the existing observations.
    */
   public void addBridgeConsensusResults(String published, int running) {
-    String line = published + "," + running;
-    if (!this.bridgesRaw.containsKey(published)) {
-      this.logger.finer("Adding new bridge numbers: " + line);
-      this.bridgesRaw.put(published, line);
-      this.bridgesRawModified = true;
+    if (this.addRawCounts(this.bridgesRaw, published,
+        new int[] { running }, "numbers of running bridges")) {
       this.bridgeResultsAdded++;
-    } else if (!line.equals(this.bridgesRaw.get(published))) {
-      this.logger.warning("The numbers of running bridges we were just "
-        + "given (" + line + ") are different from what we learned "
-        + "before (" + this.bridgesRaw.get(published) + ")! "
-        + "Overwriting!");
-      this.bridgesRaw.put(published, line);
-      this.bridgesRawModified = true;
     }
   }
 
   /**
-   * Aggregates the raw observations on relay and bridge numbers and
-   * writes both raw and aggregate observations to disk.
+   * Calculates averages of raw counts on days for which we learned
+   * something new and adds them to the given per-day averages if at
+   * least <code>minObservations</code> raw counts are known. Returns
+   * whether any averages have changed.
    */
-  public void writeFiles() {
-
-    /* Did we learn anything new about average relay or bridge numbers in
-     * this run? */
-    boolean writeConsensusStats = false;
-
-    /* Go through raw observations of numbers of relays in consensuses,
-     * calculate averages per day, and add these averages to final
-     * results. */
-    if (!this.relaysRaw.isEmpty()) {
-      String tempDate = null;
-      int exit = 0, fast = 0, guard = 0, running = 0, stable = 0,
-          consensuses = 0;
-      Iterator<String> it = this.relaysRaw.values().iterator();
-      boolean haveWrittenFinalLine = false;
-      while (it.hasNext() || !haveWrittenFinalLine) {
-        String next = it.hasNext() ? it.next() : null;
-        /* Finished reading a day or even all lines? */
-        if (tempDate != null && (next == null
-            || !next.substring(0, 10).equals(tempDate))) {
-          /* Only write results if we have seen at least half of all
-           * consensuses. */
-          if (consensuses >= 12) {
-            String line = tempDate + "," + (exit / consensuses) + ","
-                + (fast/ consensuses) + "," + (guard/ consensuses) + ","
-                + (running/ consensuses) + "," + (stable/ consensuses);
-            /* Are our results new? */
-            if (!this.relaysPerDay.containsKey(tempDate)) {
-              this.logger.finer("Adding new average relay numbers: "
-                  + line);
-              this.relaysPerDay.put(tempDate, line);
-              writeConsensusStats = true;
-            } else if (!line.equals(this.relaysPerDay.get(tempDate))) {
-              this.logger.finer("Replacing existing average relay numbers "
-                  + "(" + this.relaysPerDay.get(tempDate) + " with new "
-                  + "numbers: " + line);
-              this.relaysPerDay.put(tempDate, line);
-              writeConsensusStats = true;
-            }
-          }
-          exit = fast = guard = running = stable = consensuses = 0;
-          haveWrittenFinalLine = (next == null);
-        }
-        /* Sum up number of relays with given flags. */
-        if (next != null) {
-          String[] parts = next.split(",");
-          tempDate = next.substring(0, 10);
-          consensuses++;
-          exit += Integer.parseInt(parts[1]);
-          fast += Integer.parseInt(parts[2]);
-          guard += Integer.parseInt(parts[3]);
-          running += Integer.parseInt(parts[4]);
-          stable += Integer.parseInt(parts[5]);
-        }
+  private boolean aggregateCounts(Counts raw, Counts perDay,
+      int minObservations, String description) {
+    boolean modified = false;
+    long[] sums = new long[raw.columns];
+    int[] averages = new int[raw.columns];
+    for (String date : raw.store.getModifiedDates()) {
+      long dayStart;
+      try {
+        dayStart = this.dateFormat.parse(date).getTime() / 1000L;
+      } catch (ParseException e) {
+        continue;
       }
-    }
-
-    /* Go through raw observations of numbers of running bridges in bridge
-     * statuses, calculate averages per day, and add these averages to
-     * final results. */
-    if (!this.bridgesRaw.isEmpty()) {
-      String tempDate = null;
-      int brunning = 0, statuses = 0;
-      Iterator<String> it = this.bridgesRaw.values().iterator();
-      boolean haveWrittenFinalLine = false;
-      while (it.hasNext() || !haveWrittenFinalLine) {
-        String next = it.hasNext() ? it.next() : null;
-        /* Finished reading a day or even all lines? */
-        if (tempDate != null && (next == null
-            || !next.substring(0, 10).equals(tempDate))) {
-          /* Only write results if we have seen at least half of all
-           * statuses. */
-          if (statuses >= 24) {
-            String line = "," + (brunning / statuses);
-            /* Are our results new? */
-            if (!this.bridgesPerDay.containsKey(tempDate)) {
-              this.logger.finer("Adding new average bridge numbers: "
-                  + tempDate + line);
-              this.bridgesPerDay.put(tempDate, line);
-              writeConsensusStats = true;
-            } else if (!line.equals(this.bridgesPerDay.get(tempDate))) {
-              this.logger.finer("Replacing existing average bridge "
-                  + "numbers (" + this.bridgesPerDay.get(tempDate)
-                  + " with new numbers: " + line);
-              this.bridgesPerDay.put(tempDate, line);
-              writeConsensusStats = true;
-            }
-          }
-          brunning = statuses = 0;
-          haveWrittenFinalLine = (next == null);
-        }
-        /* Sum up number of running bridges. */
-        if (next != null) {
-          tempDate = next.substring(0, 10);
-          statuses++;
-          brunning += Integer.parseInt(next.split(",")[1]);
+      this.loadMonth(raw, date.substring(0, 7));
+      long dayEnd = dayStart + 24L * 60L * 60L;
+      Arrays.fill(sums, 0L);
+      int observations = 0;
+      for (int i = raw.firstIndexFrom(dayStart);
+          i < raw.rows && raw.times[i] < dayEnd; i++) {
+        observations++;
+        for (int j = 0; j < raw.columns; j++) {
+          sums[j] += raw.values[i * raw.columns + j];
         }
       }
-    }
-
-    /* Write raw numbers of relays with flags set to disk. */
-    if (this.relaysRawModified) {
-      try {
-        this.logger.fine("Writing file "
-            + this.consensusStatsRawFile.getAbsolutePath() + "...");
-        this.consensusStatsRawFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            this.consensusStatsRawFile));
-        bw.append("datetime,exit,fast,guard,running,stable\n");
-        for (String line : this.relaysRaw.values()) {
-          bw.append(line + "\n");
-        }
-        bw.close();
-        this.logger.fine("Finished writing file "
-            + this.consensusStatsRawFile.getAbsolutePath() + ".");
-      } catch (IOException e) {
-        this.logger.log(Level.WARNING, "Failed to write file "
-            + this.consensusStatsRawFile.getAbsolutePath() + "!", e);
+      /* Only write results if we have seen at least half of all
+       * consensuses or statuses. */
+      if (observations < minObservations) {
+        continue;
+      }
+      for (int j = 0; j < raw.columns; j++) {
+        averages[j] = (int) (sums[j] / observations);
+      }
+      /* Are our results new? */
+      int index = perDay.indexOf(dayStart);
+      if (index < 0) {
+        perDay.put(dayStart, averages);
+        this.logger.finer("Adding new average " + description + ": "
+            + this.formatRow(date, perDay, perDay.indexOf(dayStart)));
+        modified = true;
+      } else if (!perDay.rowEquals(index, averages)) {
+        String oldLine = this.formatRow(date, perDay, index);
+        perDay.put(dayStart, averages);
+        this.logger.finer("Replacing existing average " + description
+            + " (" + oldLine + " with new numbers: "
+            + this.formatRow(date, perDay, index));
+        modified = true;
       }
-    } else {
-      this.logger.fine("Not writing file "
-          + this.consensusStatsRawFile.getAbsolutePath() + ", because "
-          + "nothing has changed.");
     }
+    return modified;
+  }
 
-    /* Write raw numbers of running bridges to disk. */
-    if (this.bridgesRawModified) {
-      try {
-        this.logger.fine("Writing file "
-            + this.bridgeConsensusStatsRawFile.getAbsolutePath() + "...");
-        this.bridgeConsensusStatsRawFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(
-            new FileWriter(this.bridgeConsensusStatsRawFile));
-        bw.append("datetime,brunning\n");
-        for (String line : this.bridgesRaw.values()) {
-          bw.append(line + "\n");
-        }
-        bw.close();
-        this.logger.fine("Finished writing file "
-            + this.bridgeConsensusStatsRawFile.getAbsolutePath() + ".");
-      } catch (IOException e) {
-        this.logger.log(Level.WARNING, "Failed to write file "
-            + this.bridgeConsensusStatsRawFile.getAbsolutePath() + "!",
-            e);
+  /**
+   * Returns the timestamp of the latest raw counts, or <code>null</code>
+   * if there are no raw counts at all.
+   */
+  private String lastDateTime(Counts counts) {
+
+    /* We might only have loaded older months in this execution, so that
+     * we need to load months starting with the newest one until the
+     * latest row we know is contained in a month that we loaded. */
+    List<String> months = new ArrayList<String>(
+        counts.store.getMonths());
+    for (int i = months.size() - 1; i >= 0; i--) {
+      this.loadMonth(counts, months.get(i));
+      if (counts.rows > 0 && this.dateTimeFormat.format(
+          counts.times[counts.rows - 1] * 1000L).substring(0, 7).
+          compareTo(months.get(i)) >= 0) {
+        break;
       }
-    } else {
-      this.logger.fine("Not writing file "
-          + this.bridgeConsensusStatsRawFile.getAbsolutePath()
-          + ", because nothing has changed.");
     }
+    return counts.rows == 0 ? null : this.dateTimeFormat.format(
+        counts.times[counts.rows - 1] * 1000L);
+  }
+
+  /**
+   * Aggregates the raw observations on relay and bridge numbers and
+   * writes both raw and aggregate observations to disk.
+   */
+  public void writeFiles() {
+
+    /* Go through raw observations of numbers of relays in consensuses
+     * and of running bridges in bridge statuses on days for which we
+     * learned something new, calculate averages per day, and add these
+     * averages to final results. Did we learn anything new about average
+     * relay or bridge numbers in this run? */
+    boolean writeConsensusStats = this.aggregateCounts(this.relaysRaw,
+        this.relaysPerDay, 12, "relay numbers");
+    writeConsensusStats |= this.aggregateCounts(this.bridgesRaw,
+        this.bridgesPerDay, 24, "bridge numbers");
+
+    /* Append new raw numbers of relays with flags set and of running
+     * bridges to disk. The segments remember the days that we have
+     * aggregated until we have written the final results below. */
+    this.relaysRaw.store.flush();
+    this.bridgesRaw.store.flush();
 
     /* Write final results of relays with flags set and running bridges
      * to disk. */
+    boolean consensusStatsWritten = !writeConsensusStats;
     if (writeConsensusStats) {
       try {
         this.logger.fine("Writing file "
@@ -443,104 +531,73 @@ public class ConsensusStatsFileHandler {
         bw.append("date,exit,fast,guard,running,stable,brunning\n");
         /* Iterate over all days, including those for which we don't have
          * observations for which we add NA's to all columns. */
-        SortedSet<String> allDates = new TreeSet<String>();
-        allDates.addAll(this.relaysPerDay.keySet());
-        allDates.addAll(this.bridgesPerDay.keySet());
-        SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-        dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-        long firstDateMillis = dateFormat.parse(allDates.first()).
-            getTime();
-        long lastDateMillis = dateFormat.parse(allDates.last()).getTime();
-        long currentDateMillis = firstDateMillis;
-        while (currentDateMillis <= lastDateMillis) {
+        long firstDay = Long.MAX_VALUE, lastDay = Long.MIN_VALUE;
+        for (Counts perDay : new Counts[] { this.relaysPerDay,
+            this.bridgesPerDay }) {
+          if (perDay.rows > 0) {
+            firstDay = Math.min(firstDay, perDay.times[0]);
+            lastDay = Math.max(lastDay, perDay.times[perDay.rows - 1]);
+          }
+        }
+        int relaysIndex = 0, bridgesIndex = 0;
+        for (long day = firstDay; day <= lastDay;
+            day += 24L * 60L * 60L) {
           /* Write observations about relays, bridges, both, or none of
            * them. */
-          String date = dateFormat.format(currentDateMillis);
-          if (this.relaysPerDay.containsKey(date)) {
-            bw.append(this.relaysPerDay.get(date));
+          String date = this.dateFormat.format(day * 1000L);
+          if (relaysIndex < this.relaysPerDay.rows &&
+              this.relaysPerDay.times[relaysIndex] == day) {
+            bw.append(this.formatRow(date, this.relaysPerDay,
+                relaysIndex++));
           } else {
             bw.append(date + ",NA,NA,NA,NA,NA");
           }
-          if (this.bridgesPerDay.containsKey(date)) {
-            bw.append(this.bridgesPerDay.get(date) + "\n");
+          if (bridgesIndex < this.bridgesPerDay.rows &&
+              this.bridgesPerDay.times[bridgesIndex] == day) {
+            bw.append(this.formatRow("", this.bridgesPerDay,
+                bridgesIndex++) + "\n");
           } else {
             bw.append(",NA\n");
           }
-          /* Advance by 1 day. */
-          currentDateMillis += 24L * 60L * 60L * 1000L;
         }
         bw.close();
+        consensusStatsWritten = true;
         this.logger.fine("Finished writing file "
             + this.consensusStatsFile.getAbsolutePath() + ".");
       } catch (IOException e) {
         this.logger.log(Level.WARNING, "Failed to write file "
             + this.consensusStatsFile.getAbsolutePath() + "!", e);
-      } catch (ParseException e) {
-        this.logger.log(Level.WARNING, "Failed to write file "
-            + this.consensusStatsFile.getAbsolutePath() + "!", e);
       }
     } else {
       this.logger.fine("Not writing file "
           + this.consensusStatsFile.getAbsolutePath()
           + ", because nothing has changed.");
     }
+    if (consensusStatsWritten) {
+      this.relaysRaw.store.clearModifiedDates();
+      this.bridgesRaw.store.clearModifiedDates();
+    }
 
     /* Add average number of bridges per day to the database. */
     if (connectionURL != null) {
       try {
-        Map<String, String> insertRows = new HashMap<String, String>(),
-            updateRows = new HashMap<String, String>();
-        insertRows.putAll(this.bridgesPerDay);
-        Connection conn = DriverManager.getConnection(connectionURL);
-        conn.setAutoCommit(false);
-        Statement statement = conn.createStatement();
-        ResultSet rs = statement.executeQuery(
-            "SELECT date, avg_running FROM bridge_network_size");
-        while (rs.next()) {
-          String date = rs.getDate(1).toString();
-          if (insertRows.containsKey(date)) {
-            String insertRow = insertRows.remove(date);
-            long newAvgRunning = Long.parseLong(insertRow.substring(1));
-            long oldAvgRunning = rs.getLong(2);
-            if (newAvgRunning != oldAvgRunning) {
-              updateRows.put(date, insertRow);
-            }
-          }
-        }
-        rs.close();
-        PreparedStatement psU = conn.prepareStatement(
-            "UPDATE bridge_network_size SET avg_running = ? "
-            + "WHERE date = ?");
-        for (Map.Entry<String, String> e : updateRows.entrySet()) {
-          java.sql.Date date = java.sql.Date.valueOf(e.getKey());
-          long avgRunning = Long.parseLong(e.getValue().substring(1));
-          psU.clearParameters();
-          psU.setLong(1, avgRunning);
-          psU.setDate(2, date);
-          psU.executeUpdate();
-        }
-        PreparedStatement psI = conn.prepareStatement(
-            "INSERT INTO bridge_network_size (avg_running, date) "
-            + "VALUES (?, ?)");
-        for (Map.Entry<String, String> e : insertRows.entrySet()) {
-          java.sql.Date date = java.sql.Date.valueOf(e.getKey());
-          long avgRunning = Long.parseLong(e.getValue().substring(1));
-          psI.clearParameters();
-          psI.setLong(1, avgRunning);
-          psI.setDate(2, date);
-          psI.executeUpdate();
+        AggregateStatsSink sink = new AggregateStatsSink(connectionURL,
+            "bridge_network_size", new String[] { "date" },
+            new int[] { Types.DATE }, new String[] { "avg_running" },
+            new int[] { Types.BIGINT });
+        for (int i = 0; i < this.bridgesPerDay.rows; i++) {
+          sink.put(new Object[] { java.sql.Date.valueOf(
+              this.dateFormat.format(this.bridgesPerDay.times[i]
+              * 1000L)) },
+              new Object[] { (long) this.bridgesPerDay.values[i] });
         }
-        conn.commit();
-        conn.close();
+        sink.flush();
       } catch (SQLException e) {
         logger.log(Level.WARNING, "Failed to add average bridge numbers "
             + "to database.", e);
       }
     }
 
-    /* Set modification flags to false again. */
-    this.relaysRawModified = this.bridgesRawModified = false;
-
     /* Write stats. */
     StringBuilder dumpStats = new StringBuilder("Finished writing "
         + "statistics on relay consensuses and bridge statuses to disk.\n"
@@ -548,40 +605,30 @@ public class ConsensusStatsFileHandler {
         + this.bridgeResultsAdded + " bridge status(es) in this "
         + "execution.");
     long now = System.currentTimeMillis();
-    SimpleDateFormat dateTimeFormat =
-        new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-    if (this.relaysRaw.isEmpty()) {
+    String lastRelayConsensus = this.lastDateTime(this.relaysRaw);
+    if (lastRelayConsensus == null) {
       dumpStats.append("\nNo relay consensus known yet.");
     } else {
       dumpStats.append("\nLast known relay consensus was published "
-          + this.relaysRaw.lastKey() + ".");
-      try {
-        if (now - 6L * 60L * 60L * 1000L > dateTimeFormat.parse(
-            this.relaysRaw.lastKey()).getTime()) {
-          logger.warning("Last known relay consensus is more than 6 hours "
-              + "old: " + this.relaysRaw.lastKey());
-        }
-      } catch (ParseException e) {
-         /* Can't parse the timestamp? Whatever. */
+          + lastRelayConsensus + ".");
+      if (now - 6L * 60L * 60L * 1000L > this.relaysRaw.times[
+          this.relaysRaw.rows - 1] * 1000L) {
+        logger.warning("Last known relay consensus is more than 6 hours "
+            + "old: " + lastRelayConsensus);
       }
     }
-    if (this.bridgesRaw.isEmpty()) {
+    String lastBridgeStatus = this.lastDateTime(this.bridgesRaw);
+    if (lastBridgeStatus == null) {
       dumpStats.append("\nNo bridge status known yet.");
     } else {
       dumpStats.append("\nLast known bridge status was published "
-          + this.bridgesRaw.lastKey() + ".");
-      try {
-        if (now - 6L * 60L * 60L * 1000L > dateTimeFormat.parse(
-            this.bridgesRaw.lastKey()).getTime()) {
-          logger.warning("Last known bridge status is more than 6 hours "
-              + "old: " + this.bridgesRaw.lastKey());
-        }
-      } catch (ParseException e) {
-         /* Can't parse the timestamp? Whatever. */
+          + lastBridgeStatus + ".");
+      if (now - 6L * 60L * 60L * 1000L > this.bridgesRaw.times[
+          this.bridgesRaw.rows - 1] * 1000L) {
+        logger.warning("Last known bridge status is more than 6 hours "
+            + "old: " + lastBridgeStatus);
       }
     }
     logger.info(dumpStats.toString());
   }
 }
-
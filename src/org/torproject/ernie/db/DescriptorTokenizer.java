@@ -0,0 +1,320 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.nio.charset.*;
+
+/**
+ * Splits a descriptor that is given as byte array into lines and
+ * space-separated tokens without converting it to a String first. Lines
+ * and tokens are only referenced by their offsets in the byte array, so
+ * that callers can decide per keyword whether they need to create Strings
+ * at all. Token offsets are kept in arrays that are reused for all lines
+ * of a descriptor.
+ */
+public class DescriptorTokenizer {
+
+  /**
+   * Character set that we use when we need to convert parts of a
+   * descriptor to Strings.
+   */
+  private static final Charset ASCII = Charset.forName("US-ASCII");
+
+  /**
+   * Base64 alphabet decoding table; -1 for bytes that are not part of the
+   * alphabet and that are skipped when decoding.
+   */
+  private static final byte[] BASE64_VALUES = new byte[256];
+  static {
+    java.util.Arrays.fill(BASE64_VALUES, (byte) -1);
+    String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz"
+        + "0123456789+/";
+    for (int i = 0; i < alphabet.length(); i++) {
+      BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+    }
+  }
+
+  /**
+   * Descriptor contents.
+   */
+  private byte[] data;
+
+  /**
+   * Offset of the first byte of the current line.
+   */
+  private int lineStart = 0;
+
+  /**
+   * Offset after the last byte of the current line, excluding the line
+   * terminator.
+   */
+  private int lineEnd = 0;
+
+  /**
+   * Offset of the first byte of the next line.
+   */
+  private int next = 0;
+
+  /**
+   * Start and end offsets of the tokens in the current line after calling
+   * <code>splitLine</code>.
+   */
+  private int[] tokenStarts = new int[16], tokenEnds = new int[16];
+
+  /**
+   * Number of tokens in the current line after calling
+   * <code>splitLine</code>.
+   */
+  private int tokenCount = 0;
+
+  public DescriptorTokenizer(byte[] data) {
+    this.data = data;
+  }
+
+  /**
+   * Returns the given keyword as byte array for comparing it to lines.
+   */
+  public static byte[] keyword(String keyword) {
+    return keyword.getBytes(ASCII);
+  }
+
+  /**
+   * Returns the offset of the first occurrence of <code>token</code> in
+   * <code>data</code> starting at <code>from</code>, or -1 if there is no
+   * such occurrence.
+   */
+  public static int indexOf(byte[] data, byte[] token, int from) {
+    int last = data.length - token.length;
+    outer:
+    for (int i = Math.max(from, 0); i <= last; i++) {
+      for (int j = 0; j < token.length; j++) {
+        if (data[i + j] != token[j]) {
+          continue outer;
+        }
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /**
+   * Advances to the next line and returns whether there was one.
+   */
+  public boolean nextLine() {
+    if (this.next >= this.data.length) {
+      return false;
+    }
+    int i = this.next;
+    this.lineStart = i;
+    while (i < this.data.length && this.data[i] != '\n') {
+      i++;
+    }
+    this.next = i + 1;
+    if (i > this.lineStart && this.data[i - 1] == '\r') {
+      i--;
+    }
+    this.lineEnd = i;
+    this.tokenCount = 0;
+    return true;
+  }
+
+  public byte[] getData() {
+    return this.data;
+  }
+
+  public int getLineStart() {
+    return this.lineStart;
+  }
+
+  public int getLineEnd() {
+    return this.lineEnd;
+  }
+
+  /**
+   * Returns whether the current line starts with the given keyword.
+   */
+  public boolean lineStartsWith(byte[] keyword) {
+    if (this.lineEnd - this.lineStart < keyword.length) {
+      return false;
+    }
+    for (int i = 0; i < keyword.length; i++) {
+      if (this.data[this.lineStart + i] != keyword[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the current line equals the given keyword.
+   */
+  public boolean lineEquals(byte[] keyword) {
+    return this.lineEnd - this.lineStart == keyword.length &&
+        this.lineStartsWith(keyword);
+  }
+
+  /**
+   * Returns the current line as String.
+   */
+  public String getLine() {
+    return this.getString(this.lineStart, this.lineEnd);
+  }
+
+  /**
+   * Returns the bytes from <code>from</code> to <code>to</code> as
+   * String.
+   */
+  public String getString(int from, int to) {
+    return new String(this.data, from, to - from, ASCII);
+  }
+
+  /**
+   * Splits the current line at single spaces and returns the number of
+   * tokens. Like <code>String.split(" ")</code>, trailing empty tokens are
+   * not counted.
+   */
+  public int splitLine() {
+    int count = 0, start = this.lineStart;
+    for (int i = this.lineStart; i <= this.lineEnd; i++) {
+      if (i == this.lineEnd || this.data[i] == ' ') {
+        if (count == this.tokenStarts.length) {
+          int[] newStarts = new int[count * 2], newEnds = new int[count * 2];
+          System.arraycopy(this.tokenStarts, 0, newStarts, 0, count);
+          System.arraycopy(this.tokenEnds, 0, newEnds, 0, count);
+          this.tokenStarts = newStarts;
+          this.tokenEnds = newEnds;
+        }
+        this.tokenStarts[count] = start;
+        this.tokenEnds[count] = i;
+        count++;
+        start = i + 1;
+      }
+    }
+    while (count > 1 &&
+        this.tokenStarts[count - 1] == this.tokenEnds[count - 1]) {
+      count--;
+    }
+    this.tokenCount = count;
+    return count;
+  }
+
+  public int getTokenStart(int index) {
+    return this.tokenStarts[index];
+  }
+
+  public int getTokenEnd(int index) {
+    return this.tokenEnds[index];
+  }
+
+  /**
+   * Returns the token at the given index as String.
+   */
+  public String getToken(int index) {
+    return this.getString(this.tokenStarts[index], this.tokenEnds[index]);
+  }
+
+  /**
+   * Returns the tokens from index <code>first</code> to index
+   * <code>last</code>, including the spaces in between, as String.
+   */
+  public String getTokens(int first, int last) {
+    return this.getString(this.tokenStarts[first], this.tokenEnds[last]);
+  }
+
+  /**
+   * Returns whether the token at the given index equals the given
+   * keyword.
+   */
+  public boolean tokenEquals(int index, byte[] keyword) {
+    int start = this.tokenStarts[index];
+    if (this.tokenEnds[index] - start != keyword.length) {
+      return false;
+    }
+    for (int i = 0; i < keyword.length; i++) {
+      if (this.data[start + i] != keyword[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns whether the token at the given index starts with the given
+   * keyword.
+   */
+  public boolean tokenStartsWith(int index, byte[] keyword) {
+    int start = this.tokenStarts[index];
+    if (this.tokenEnds[index] - start < keyword.length) {
+      return false;
+    }
+    for (int i = 0; i < keyword.length; i++) {
+      if (this.data[start + i] != keyword[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses the decimal number from <code>from</code> to <code>to</code>
+   * without creating a String, accepting the same input as
+   * <code>Long.parseLong</code> for the numbers found in descriptors.
+   */
+  public long parseLong(int from, int to) {
+    if (from >= to) {
+      throw new NumberFormatException("Empty number at offset " + from);
+    }
+    boolean negative = this.data[from] == '-';
+    int i = negative || this.data[from] == '+' ? from + 1 : from;
+    if (i >= to || to - i > 18) {
+      return Long.parseLong(this.getString(from, to));
+    }
+    long result = 0L;
+    for (; i < to; i++) {
+      int digit = this.data[i] - '0';
+      if (digit < 0 || digit > 9) {
+        throw new NumberFormatException("For input string: \""
+            + this.getString(from, to) + "\"");
+      }
+      result = result * 10L + digit;
+    }
+    return negative ? -result : result;
+  }
+
+  /**
+   * Parses the token at the given index as decimal number.
+   */
+  public long getTokenLong(int index) {
+    return this.parseLong(this.tokenStarts[index], this.tokenEnds[index]);
+  }
+
+  /**
+   * Decodes the Base64-encoded token at the given index, skipping bytes
+   * that are not part of the Base64 alphabet and a missing padding, in
+   * the same way as <code>Base64.decodeBase64</code> does.
+   */
+  public byte[] decodeBase64Token(int index) {
+    int from = this.tokenStarts[index], to = this.tokenEnds[index];
+    int chars = 0;
+    for (int i = from; i < to; i++) {
+      if (BASE64_VALUES[this.data[i] & 0xff] >= 0) {
+        chars++;
+      }
+    }
+    byte[] result = new byte[chars * 6 / 8];
+    int bits = 0, bitCount = 0, written = 0;
+    for (int i = from; i < to && written < result.length; i++) {
+      int value = BASE64_VALUES[this.data[i] & 0xff];
+      if (value < 0) {
+        continue;
+      }
+      bits = (bits << 6) | value;
+      bitCount += 6;
+      if (bitCount >= 8) {
+        bitCount -= 8;
+        result[written++] = (byte) (bits >> bitCount);
+      }
+    }
+    return result;
+  }
+}
@@ -13,6 +13,10 @@ import java.util.logging.*;
  * descriptors and writes them to a CSV file that is easily parsable by R.
  * Parse results come from <code>RelayDescriptorParser</code> and are
  * written to <code>stats/dirreq-stats</code>.
+ *
+ * Only new observations are kept in memory. They are merged into the
+ * existing results file, which is sorted by directory and date, in a
+ * single pass when writing it.
  */
 public class DirreqStatsFileHandler {
 
@@ -27,18 +31,11 @@ public class DirreqStatsFileHandler {
   private File dirreqStatsFile;
 
   /**
-   * Directory requests by directory and date. Map keys are directory and
-   * date written as "directory,statsend,seconds", map values are
-   * country-user maps.
+   * Directory requests by directory and date that we learned about in
+   * this execution. Map keys are directory and date written as
+   * "directory,statsend,seconds", map values are country-user maps.
    */
-  private SortedMap<String, Map<String, String>> dirreqs;
-
-  /**
-   * Modification flag for directory requests stored in memory. This flag
-   * is used to decide whether the contents of <code>dirreqs</code> need
-   * to be written to disk during <code>writeFile</code>.
-   */
-  private boolean dirreqsModified;
+  private SortedMap<String, Map<String, String>> newDirreqs;
 
   /**
    * Logger for this class.
@@ -54,8 +51,8 @@ public class DirreqStatsFileHandler {
   private SimpleDateFormat dateTimeFormat = null;
 
   /**
-   * Initializes this class, including reading in previous results from
-   * <code>stats/dirreq-stats</code>.
+   * Initializes this class, including reading in the countries that we
+   * were interested in when writing <code>stats/dirreq-stats</code>.
    */
   public DirreqStatsFileHandler(String connectionURL) {
 
@@ -65,7 +62,7 @@ public class DirreqStatsFileHandler {
 
     /* Initialize local data structure to hold observations received from
      * RelayDescriptorParser. */
-    this.dirreqs = new TreeMap<String, Map<String, String>>();
+    this.newDirreqs = new TreeMap<String, Map<String, String>>();
 
     /* Initialize file name for observations file. */
     this.dirreqStatsFile = new File("stats/dirreq-stats");
@@ -81,71 +78,51 @@ public class DirreqStatsFileHandler {
     this.logger = Logger.getLogger(
         DirreqStatsFileHandler.class.getName());
 
-    /* Read in previously stored results. */
+    /* Read in the headers of previously stored results. */
     if (this.dirreqStatsFile.exists()) {
       try {
-        this.logger.fine("Reading file "
-            + this.dirreqStatsFile.getAbsolutePath() + "...");
         BufferedReader br = new BufferedReader(new FileReader(
             this.dirreqStatsFile));
-        String line = br.readLine();
-        if (line != null) {
-          /* The first line should contain headers that we need to parse
-           * in order to learn what countries we were interested in when
-           * writing this file. */
-          if (!line.startsWith("directory,statsend,seconds,")) {
-            this.logger.warning("Incorrect first line '" + line + "' in "
-                + this.dirreqStatsFile.getAbsolutePath() + "! This line "
-                + "should contain headers! Aborting to read in this "
-                + "file!");
-          } else {
-            String[] headers = line.split(",");
-            for (int i = 3; i < headers.length; i++) {
-              if (!headers[i].equals("all")) {
-                this.countries.add(headers[i]);
-              }
-            }
-            /* Read in the rest of the file. */
-            while ((line = br.readLine()) != null) {
-              String[] parts = line.split(",");
-              if (parts.length != headers.length) {
-                this.logger.warning("Corrupt line '" + line + "' in file "
-                    + this.dirreqStatsFile.getAbsolutePath() + "! This "
-                    + "line has either fewer or more columns than the "
-                    + "file has column headers! Aborting to read this "
-                    + "file!");
-                break;
-              }
-              String directory = parts[0];
-              String statsEnd = parts[1];
-              long seconds = Long.parseLong(parts[2]);
-              Map<String, String> obs = new HashMap<String, String>();
-              for (int i = 3; i < parts.length; i++) {
-                if (parts[i].equals("NA")) {
-                  continue;
-                }
-                if (headers[i].equals("all")) {
-                  obs.put("zy", parts[i]);
-                } else {
-                  obs.put(headers[i], parts[i]);
-                }
-              }
-              this.addObs(directory, statsEnd, seconds, obs);
-            }
+        String[] headers = this.readHeaders(br);
+        br.close();
+        if (headers != null) {
+          for (int i = 3; i < headers.length; i++) {
+            this.countries.add(headers[i]);
           }
         }
-        br.close();
-        this.logger.fine("Finished reading file "
-            + this.dirreqStatsFile.getAbsolutePath() + ".");
       } catch (IOException e) {
         this.logger.log(Level.WARNING, "Failed to read file "
             + this.dirreqStatsFile.getAbsolutePath() + "!", e);
       }
     }
+  }
 
-    /* Set modification flag to false and counter for stats to zero. */
-    this.dirreqsModified = false;
-    this.addedResults = 0;
+  /**
+   * Reads the first line of the results file and returns its column
+   * headers with "all" replaced by "zy", or <code>null</code> if the
+   * file is empty or doesn't start with headers.
+   */
+  private String[] readHeaders(BufferedReader br) throws IOException {
+    String line = br.readLine();
+    if (line == null) {
+      return null;
+    }
+    /* The first line should contain headers that we need to parse in
+     * order to learn what countries we were interested in when writing
+     * this file. */
+    if (!line.startsWith("directory,statsend,seconds,")) {
+      this.logger.warning("Incorrect first line '" + line + "' in "
+          + this.dirreqStatsFile.getAbsolutePath() + "! This line "
+          + "should contain headers! Aborting to read in this file!");
+      return null;
+    }
+    String[] headers = line.split(",");
+    for (int i = 3; i < headers.length; i++) {
+      if (headers[i].equals("all")) {
+        headers[i] = "zy";
+      }
+    }
+    return headers;
   }
 
   /**
@@ -158,34 +135,58 @@ public class DirreqStatsFileHandler {
       this.countries.add(country);
     }
     String key = directory + "," + statsEnd + "," + seconds;
-    if (!this.dirreqs.containsKey(key)) {
-      this.logger.finer("Adding new directory request numbers: " + key);
-      this.dirreqs.put(key, obs);
-      this.dirreqsModified = true;
-      this.addedResults++;
-    } else {
-      this.logger.fine("The directory request numbers we were just "
-          + "given for " + key + " may be different from what we learned "
-          + "before. Overwriting!");
-      this.dirreqs.put(key, obs);
-      this.dirreqsModified = true;
+    this.logger.finer("Adding directory request numbers: " + key);
+    this.newDirreqs.put(key, obs);
+  }
+
+  /**
+   * Formats an observation as a line of the results file.
+   */
+  private String formatLine(String key, Map<String, String> obs) {
+    StringBuilder sb = new StringBuilder(key);
+    for (String c : this.countries) {
+      sb.append("," + (obs.containsKey(c) ? obs.get(c) : "NA"));
     }
+    return sb.toString();
   }
 
   /**
-   * Writes the v3 directory request numbers from memory to
-   * <code>stats/dirreq-stats</code> if they have changed.
+   * Merges the v3 directory request numbers that we learned about in
+   * this execution into <code>stats/dirreq-stats</code>. Previously
+   * stored lines are copied as they are, unless we learned about new
+   * countries and need to add columns for them.
    */
   public void writeFile() {
 
-    /* Only write file if we learned something new. */
-    if (this.dirreqsModified) {
-      try {
-        this.logger.fine("Writing file "
+    /* Walk through the existing results file and the new observations
+     * at the same time. Both are sorted by key, so that we can write
+     * the merged results in a single pass. We also memorize the last
+     * known observation by directory for the stats. */
+    boolean modified = !this.newDirreqs.isEmpty();
+    SortedMap<String, String> lastDates = new TreeMap<String, String>();
+    Set<String> newKeys = new HashSet<String>(this.newDirreqs.keySet());
+    File tempFile = new File("stats/dirreq-stats.tmp");
+    try {
+      BufferedReader br = null;
+      String[] headers = null;
+      if (this.dirreqStatsFile.exists()) {
+        this.logger.fine("Reading file "
             + this.dirreqStatsFile.getAbsolutePath() + "...");
-        this.dirreqStatsFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(
-            this.dirreqStatsFile));
+        br = new BufferedReader(new FileReader(this.dirreqStatsFile));
+        headers = this.readHeaders(br);
+      }
+      StringBuilder sb = new StringBuilder("directory,statsend,seconds");
+      for (String country : this.countries) {
+        sb.append(",").append(country);
+      }
+      String[] newHeaders = sb.toString().split(",");
+      boolean sameColumns = Arrays.equals(headers, newHeaders);
+      BufferedWriter bw = null;
+      if (modified) {
+        this.logger.fine("Writing file " + tempFile.getAbsolutePath()
+            + "...");
+        tempFile.getParentFile().mkdirs();
+        bw = new BufferedWriter(new FileWriter(tempFile));
         /* Write header. */
         bw.append("directory,statsend,seconds");
         for (String country : this.countries) {
@@ -196,123 +197,118 @@ public class DirreqStatsFileHandler {
           }
         }
         bw.append("\n");
-        /* Write observations. */
-        for (Map.Entry<String, Map<String, String>> e :
-            this.dirreqs.entrySet()) {
-          String key = e.getKey();
-          Map<String, String> obs = e.getValue();
-          StringBuilder sb = new StringBuilder(key);
-          for (String c : this.countries) {
-            sb.append("," + (obs.containsKey(c) ? obs.get(c) : "NA"));
+      }
+      Iterator<Map.Entry<String, Map<String, String>>> newIterator =
+          this.newDirreqs.entrySet().iterator();
+      Map.Entry<String, Map<String, String>> newEntry =
+          newIterator.hasNext() ? newIterator.next() : null;
+      String line = null;
+      while (true) {
+        String oldKey = null;
+        String[] parts = null;
+        if (headers != null && (line = br.readLine()) != null) {
+          parts = line.split(",");
+          if (parts.length != headers.length) {
+            this.logger.warning("Corrupt line '" + line + "' in file "
+                + this.dirreqStatsFile.getAbsolutePath() + "! This "
+                + "line has either fewer or more columns than the "
+                + "file has column headers! Aborting to read this "
+                + "file!");
+            headers = null;
+          } else {
+            oldKey = parts[0] + "," + parts[1] + "," + parts[2];
+          }
+        }
+
+        /* Write new observations that come before the old line or that
+         * replace it. */
+        boolean replaced = false;
+        while (newEntry != null && (oldKey == null ||
+            newEntry.getKey().compareTo(oldKey) <= 0)) {
+          String newKey = newEntry.getKey();
+          if (newKey.equals(oldKey)) {
+            this.logger.fine("The directory request numbers we were "
+                + "just given for " + newKey + " may be different from "
+                + "what we learned before. Overwriting!");
+            newKeys.remove(newKey);
+            replaced = true;
+          }
+          if (bw != null) {
+            bw.append(this.formatLine(newKey, newEntry.getValue())
+                + "\n");
+          }
+          String[] newKeyParts = newKey.split(",");
+          lastDates.put(newKeyParts[0], newKeyParts[1]);
+          newEntry = newIterator.hasNext() ? newIterator.next() : null;
+        }
+        if (oldKey == null) {
+          break;
+        } else if (replaced) {
+          continue;
+        }
+
+        /* Copy the old line, adding columns for new countries if
+         * required. */
+        if (bw != null) {
+          if (sameColumns) {
+            bw.append(line + "\n");
+          } else {
+            Map<String, String> obs = new HashMap<String, String>();
+            for (int i = 3; i < parts.length; i++) {
+              if (!parts[i].equals("NA")) {
+                obs.put(headers[i], parts[i]);
+              }
+            }
+            bw.append(this.formatLine(oldKey, obs) + "\n");
           }
-          String line = sb.toString();
-          bw.append(line + "\n");
         }
+        lastDates.put(parts[0], parts[1]);
+      }
+      if (br != null) {
+        br.close();
+      }
+      if (bw != null) {
         bw.close();
+        this.dirreqStatsFile.delete();
+        tempFile.renameTo(this.dirreqStatsFile);
         this.logger.fine("Finished writing file "
             + this.dirreqStatsFile.getAbsolutePath() + ".");
-      } catch (IOException e) {
-        this.logger.log(Level.WARNING, "Failed to write file "
-            + this.dirreqStatsFile.getAbsolutePath() + "!", e);
+      } else {
+        this.logger.fine("Not writing file "
+            + this.dirreqStatsFile.getAbsolutePath() + ", because "
+            + "nothing has changed.");
       }
-    } else {
-      this.logger.fine("Not writing file "
-          + this.dirreqStatsFile.getAbsolutePath() + ", because "
-          + "nothing has changed.");
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed to write file "
+          + this.dirreqStatsFile.getAbsolutePath() + "!", e);
     }
+    this.addedResults = newKeys.size();
 
     /* Add directory requests by country to database. */
     if (connectionURL != null) {
       try {
-        List<String> countryList = new ArrayList<String>();
-        for (String c : this.countries) {
-          countryList.add(c);
-        }
-        Map<String, String> insertRows = new HashMap<String, String>(),
-            updateRows = new HashMap<String, String>();
+        AggregateStatsSink sink = new AggregateStatsSink(connectionURL,
+            "dirreq_stats", new String[] { "source", "statsend",
+            "seconds", "country" }, new int[] { Types.VARCHAR,
+            Types.TIMESTAMP, Types.BIGINT, Types.VARCHAR },
+            new String[] { "requests" }, new int[] { Types.BIGINT });
         for (Map.Entry<String, Map<String, String>> e :
-            this.dirreqs.entrySet()) {
+            this.newDirreqs.entrySet()) {
           String[] parts = e.getKey().split(",");
           String source = parts[0];
-          String statsEnd = parts[1];
-          String seconds = parts[2];
+          Timestamp statsEnd = new Timestamp(this.dateTimeFormat.parse(
+              parts[1]).getTime());
+          long seconds = Long.parseLong(parts[2]);
           Map<String, String> obs = e.getValue();
-          int i = 0;
           for (String country : this.countries) {
             if (obs.containsKey(country)) {
-              String key = source + "," + statsEnd + "," + seconds + ","
-                  + country;
-              String requests = "" + obs.get(country);
-              insertRows.put(key, requests);
-            }
-          }
-        }
-        Connection conn = DriverManager.getConnection(connectionURL);
-        conn.setAutoCommit(false);
-        Statement statement = conn.createStatement();
-        ResultSet rs = statement.executeQuery(
-            "SELECT source, statsend, seconds, country, requests "
-            + "FROM dirreq_stats");
-        while (rs.next()) {
-          String source = rs.getString(1);
-          String statsEnd = this.dateTimeFormat.format(
-              rs.getTimestamp(2).getTime());
-          long seconds = rs.getLong(3);
-          String country = rs.getString(4);
-          String key = source + "," + statsEnd + "," + seconds + ","
-              + country;
-          if (insertRows.containsKey(key)) {
-            String insertRow = insertRows.remove(key);
-            long oldUsers = rs.getLong(5);
-            long newUsers = Long.parseLong(insertRow.split(",")[0]);
-            if (oldUsers != newUsers) {
-              updateRows.put(key, insertRow);
+              long requests = Long.parseLong(obs.get(country));
+              sink.put(new Object[] { source, statsEnd, seconds,
+                  country }, new Object[] { requests });
             }
           }
         }
-        rs.close();
-        PreparedStatement psU = conn.prepareStatement(
-            "UPDATE dirreq_stats SET requests = ? "
-            + "WHERE source = ? AND statsend = ? AND seconds = ? "
-            + "AND country = ?");
-        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        for (Map.Entry<String, String> e : updateRows.entrySet()) {
-          String[] keyParts = e.getKey().split(",");
-          String source = keyParts[0];
-          Timestamp statsEnd = new Timestamp(this.dateTimeFormat.parse(
-              keyParts[1]).getTime());
-          long seconds = Long.parseLong(keyParts[2]);
-          String country = keyParts[3];
-          long requests = Long.parseLong(e.getValue());
-          psU.clearParameters();
-          psU.setLong(1, requests);
-          psU.setString(2, source);
-          psU.setTimestamp(3, statsEnd, cal);
-          psU.setLong(4, seconds);
-          psU.setString(5, country);
-          psU.executeUpdate();
-        }
-        PreparedStatement psI = conn.prepareStatement(
-            "INSERT INTO dirreq_stats (requests, source, statsend, "
-            + "seconds, country) VALUES (?, ?, ?, ?, ?)");
-        for (Map.Entry<String, String> e : insertRows.entrySet()) {
-          String[] keyParts = e.getKey().split(",");
-          String source = keyParts[0];
-          Timestamp statsEnd = new Timestamp(this.dateTimeFormat.parse(
-              keyParts[1]).getTime());
-          long seconds = Long.parseLong(keyParts[2]);
-          String country = keyParts[3];
-          long requests = Long.parseLong(e.getValue());
-          psI.clearParameters();
-          psI.setLong(1, requests);
-          psI.setString(2, source);
-          psI.setTimestamp(3, statsEnd, cal);
-          psI.setLong(4, seconds);
-          psI.setString(5, country);
-          psI.executeUpdate();
-        }
-        conn.commit();
-        conn.close();
+        sink.flush();
       } catch (SQLException e) {
         logger.log(Level.WARNING, "Failed to add directory requests by "
             + "country to database.", e);
@@ -322,30 +318,16 @@ public class DirreqStatsFileHandler {
       }
     }
 
-    /* Set modification flag to false again. */
-    this.dirreqsModified = false;
-
     /* Write stats. */
     StringBuilder dumpStats = new StringBuilder("Finished writing "
         + "statistics on directory requests by country.\nAdded "
         + this.addedResults + " new observations in this execution.\n"
         + "Last known observations by directory are:");
-    String lastDir = null;
-    String lastDate = null;
-    for (String line : this.dirreqs.keySet()) {
-      String[] parts = line.split(",");
-      if (lastDir == null) {
-        lastDir = parts[0];
-      } else if (!parts[0].equals(lastDir)) {
-        dumpStats.append("\n" + lastDir.substring(0, 8) + " " + lastDate);
-        lastDir = parts[0];
-      }
-      lastDate = parts[1];
-    }
-    if (lastDir != null) {
-      dumpStats.append("\n" + lastDir.substring(0, 8) + " " + lastDate);
+    for (Map.Entry<String, String> e : lastDates.entrySet()) {
+      dumpStats.append("\n" + e.getKey().substring(0, 8) + " "
+          + e.getValue());
     }
     logger.info(dumpStats.toString());
+    this.newDirreqs.clear();
   }
 }
-
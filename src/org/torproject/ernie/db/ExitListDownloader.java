@@ -7,6 +7,7 @@ import java.net.*;
 import java.text.*;
 import java.util.*;
 import java.util.logging.*;
+import java.util.zip.*;
 
 public class ExitListDownloader {
   public ExitListDownloader() {
@@ -18,6 +19,7 @@ public class ExitListDownloader {
       URL u = new URL(exitAddressesUrl);
       HttpURLConnection huc = (HttpURLConnection) u.openConnection();
       huc.setRequestMethod("GET");
+      huc.setRequestProperty("Accept-Encoding", "gzip");
       huc.connect();
       int response = huc.getResponseCode();
       if (response != 200) {
@@ -25,8 +27,13 @@ public class ExitListDownloader {
             response);
         return;
       }
-      BufferedInputStream in = new BufferedInputStream(
-          huc.getInputStream());
+      /* The server may or may not gzip-compress the exit list, depending
+       * on its configuration. */
+      InputStream is = huc.getInputStream();
+      if ("gzip".equals(huc.getContentEncoding())) {
+        is = new GZIPInputStream(is);
+      }
+      BufferedInputStream in = new BufferedInputStream(is);
       SimpleDateFormat printFormat =
           new SimpleDateFormat("yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss");
       printFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
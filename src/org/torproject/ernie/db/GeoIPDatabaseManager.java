@@ -4,6 +4,8 @@ package org.torproject.ernie.db;
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.text.*;
 import java.util.*;
 import java.util.logging.*;
@@ -19,36 +21,54 @@ import java.util.zip.*;
  * 0 databases: all requests answered with ZZ
  * 1 database: all requests answered from that database
  * 2+ databases: requests answered by most recent database at given date
+ *
+ * The combined database is stored in a binary file that is memory-mapped
+ * and queried in place:
+ * - int magic number 0x47454f49 ("GEOI") and int format version,
+ * - UTF string with the last download time, or "" if we never
+ *   downloaded a database,
+ * - int number of database versions and a UTF string yyyyMMdd for each,
+ * - int number of country codes and a UTF string for each,
+ * - int number of ranges, padded with zeros to a multiple of 4 bytes,
+ * - start IP addresses of all ranges as unsigned 32-bit ints,
+ * - end IP addresses of all ranges as unsigned 32-bit ints, and
+ * - 16-bit country code numbers for every range and database version.
+ * A combined database in the previous CSV format is converted to the
+ * binary format.
  */
 public class GeoIPDatabaseManager {
 
   /**
-   * Database entry of the combined GeoIP database consisting of start IP
-   * address, end IP address, and countries of all contained database
-   * versions.
+   * Magic number and current version of the binary file format.
    */
-  private static class DatabaseEntry {
-    
-    /**
-     * Start IP address.
-     */
-    long fromIP;
-
-    /**
-     * End IP address.
-     */
-    long toIP;
-
-    /**
-     * Countries of all contained database versions.
-     */
-    String countries;
-  }
+  private static final int FILE_MAGIC = 0x47454f49, FILE_VERSION = 1;
+
+  /**
+   * Number of ranges in the combined GeoIP database.
+   */
+  private int ranges;
 
   /**
-   * Mapping from an IP address in decimal form to a database entry.
+   * Start and end IP addresses of all ranges in the combined GeoIP
+   * database in ascending order as unsigned ints. Ranges don't overlap,
+   * but there may be gaps between them.
    */
-  private SortedMap<Long, DatabaseEntry> combinedDatabase;
+  private IntBuffer fromIPs, toIPs;
+
+  /**
+   * Country code numbers of all ranges in the combined GeoIP database,
+   * stored range by range with one number per database version in the
+   * order of <code>allDatabases</code>.
+   */
+  private ShortBuffer countries;
+
+  /**
+   * Country codes as found in the database files by country code
+   * number, and the reverse mapping. Country code number 0 is always
+   * "ZZ".
+   */
+  private List<String> countryCodes;
+  private Map<String, Short> countryCodeNumbers;
 
   /**
    * Has the combined database been modified from importing database
@@ -61,6 +81,11 @@ public class GeoIPDatabaseManager {
    */
   private File combinedDatabaseFile;
 
+  /**
+   * File holding the combined GeoIP database in the previous CSV format.
+   */
+  private File csvDatabaseFile;
+
   /**
    * List of dates representing the GeoIP database versions.
    */
@@ -81,6 +106,27 @@ public class GeoIPDatabaseManager {
 
   private Set<String> unresolvedCountryCodes;
 
+  /**
+   * Number of ranges in the combined database starting before IP address
+   * <code>i &lt;&lt; 16</code> for every <code>i</code> up to 2^16, so
+   * that lookups only need to search the few ranges starting in the same
+   * /16 as the looked up address, or <code>null</code> if the lookup
+   * index needs to be (re-)built before the next lookup.
+   */
+  private int[] lookupBuckets;
+
+  /**
+   * Country codes by country code number with country codes that we
+   * don't resolve being replaced with "ZZ".
+   */
+  private String[] lookupCountryCodes;
+
+  /**
+   * Database versions as numbers of the form yyyyMMdd in ascending order,
+   * and the column of each of them in <code>countries</code>.
+   */
+  private int[] lookupDates, lookupColumns;
+
   /**
    * Initializes this class by reading in the database versions known so
    * far.
@@ -89,8 +135,14 @@ public class GeoIPDatabaseManager {
 
     /* Initialize instance variables. */
     this.geoipDir = geoipDir;
-    this.combinedDatabaseFile = new File("stats/geoip-database");
-    this.combinedDatabase = new TreeMap<Long, DatabaseEntry>();
+    this.combinedDatabaseFile = new File("stats/geoip-database.bin");
+    this.csvDatabaseFile = new File("stats/geoip-database");
+    this.fromIPs = IntBuffer.allocate(0);
+    this.toIPs = IntBuffer.allocate(0);
+    this.countries = ShortBuffer.allocate(0);
+    this.countryCodes = new ArrayList<String>();
+    this.countryCodeNumbers = new HashMap<String, Short>();
+    this.getCountryCodeNumber("ZZ");
     this.allDatabases = new ArrayList<String>();
     this.combinedDatabaseModified = false;
     this.unresolvedCountryCodes = new HashSet<String>(Arrays.asList(
@@ -101,39 +153,147 @@ public class GeoIPDatabaseManager {
 
     /* Read in combined GeoIP database. */
     if (this.combinedDatabaseFile.exists()) {
-      try {
-        this.logger.fine("Reading in "
-            + this.combinedDatabaseFile.getAbsolutePath() + "...");
-        BufferedReader br = new BufferedReader(new FileReader(
-            this.combinedDatabaseFile));
-        String line = null;
-        while ((line = br.readLine()) != null) {
-          if (line.startsWith("lastDownload")) {
-            this.lastDownloadedTime = line.substring("lastDownload ".
-                length());
-          } else if (line.startsWith("beginIpNum,endIpNum")) {
-            String[] parts = line.split(",");
-            for (int i = 2; i < parts.length; i++) {
-              this.allDatabases.add(parts[i]);
-            }
-          } else {
-            String[] parts = line.split(",");
-            DatabaseEntry e = new DatabaseEntry();
-            e.fromIP = Long.parseLong(parts[0]);
-            e.toIP = Long.parseLong(parts[1]);
-            e.countries = line.substring(line.indexOf(",",
-                line.indexOf(",") + 1));
-            this.combinedDatabase.put(e.fromIP, e);
+      this.mapCombinedDatabase();
+    } else if (this.csvDatabaseFile.exists()) {
+      this.readCsvDatabase();
+    }
+  }
+
+  /**
+   * Maps the combined GeoIP database file into memory.
+   */
+  private void mapCombinedDatabase() {
+    try {
+      this.logger.fine("Mapping "
+          + this.combinedDatabaseFile.getAbsolutePath() + "...");
+      RandomAccessFile raf = new RandomAccessFile(
+          this.combinedDatabaseFile, "r");
+      ByteBuffer bb = raf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+          0, raf.length());
+      raf.close();
+      if (bb.getInt() != FILE_MAGIC || bb.getInt() != FILE_VERSION) {
+        this.logger.warning("Unknown file format of "
+            + this.combinedDatabaseFile.getAbsolutePath() + ". Ignoring "
+            + "it.");
+        return;
+      }
+      String lastDownloadedTime = readString(bb);
+      if (lastDownloadedTime.length() > 0) {
+        this.lastDownloadedTime = lastDownloadedTime;
+      }
+      for (int i = bb.getInt(); i > 0; i--) {
+        this.allDatabases.add(readString(bb));
+      }
+      for (int i = bb.getInt(); i > 0; i--) {
+        this.getCountryCodeNumber(readString(bb));
+      }
+      int ranges = bb.getInt();
+      bb.position((bb.position() + 3) & ~3);
+      this.fromIPs = ((ByteBuffer) bb.slice().limit(4 * ranges)).
+          asIntBuffer();
+      bb.position(bb.position() + 4 * ranges);
+      this.toIPs = ((ByteBuffer) bb.slice().limit(4 * ranges)).
+          asIntBuffer();
+      bb.position(bb.position() + 4 * ranges);
+      this.countries = ((ByteBuffer) bb.slice().limit(2 * ranges
+          * this.allDatabases.size())).asShortBuffer();
+      this.ranges = ranges;
+      this.logger.fine("Finished mapping "
+          + this.combinedDatabaseFile.getAbsolutePath() + ".");
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed to map "
+          + this.combinedDatabaseFile.getAbsolutePath() + "!", e);
+    } catch (RuntimeException e) {
+      this.logger.log(Level.WARNING, "Failed to map "
+          + this.combinedDatabaseFile.getAbsolutePath() + "! The file "
+          + "seems to be corrupt.", e);
+      this.allDatabases.clear();
+      this.ranges = 0;
+    }
+  }
+
+  /**
+   * Reads a string written by <code>DataOutput.writeUTF</code>. We only
+   * write ASCII strings, so that we don't have to care about the
+   * modifications to UTF-8.
+   */
+  private static String readString(ByteBuffer bb) {
+    byte[] bytes = new byte[bb.getShort() & 0xffff];
+    bb.get(bytes);
+    try {
+      return new String(bytes, "US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Reads the combined GeoIP database in the previous CSV format and
+   * marks it as modified, so that it's written in the binary format.
+   */
+  private void readCsvDatabase() {
+    try {
+      this.logger.fine("Converting "
+          + this.csvDatabaseFile.getAbsolutePath() + " to "
+          + this.combinedDatabaseFile.getAbsolutePath() + "...");
+      BufferedReader br = new BufferedReader(new FileReader(
+          this.csvDatabaseFile));
+      String line = null;
+      int ranges = 0, versions = 0, capacity = 1024;
+      int[] fromIPs = new int[capacity], toIPs = new int[capacity];
+      short[] countries = new short[0];
+      while ((line = br.readLine()) != null) {
+        if (line.startsWith("lastDownload")) {
+          this.lastDownloadedTime = line.substring("lastDownload ".
+              length());
+        } else if (line.startsWith("beginIpNum,endIpNum")) {
+          String[] parts = line.split(",");
+          for (int i = 2; i < parts.length; i++) {
+            this.allDatabases.add(parts[i]);
+          }
+          versions = this.allDatabases.size();
+          countries = new short[capacity * versions];
+        } else {
+          String[] parts = line.split(",");
+          if (ranges == capacity) {
+            capacity *= 2;
+            fromIPs = Arrays.copyOf(fromIPs, capacity);
+            toIPs = Arrays.copyOf(toIPs, capacity);
+            countries = Arrays.copyOf(countries, capacity * versions);
           }
+          fromIPs[ranges] = (int) Long.parseLong(parts[0]);
+          toIPs[ranges] = (int) Long.parseLong(parts[1]);
+          for (int i = 2; i < parts.length && i - 2 < versions; i++) {
+            countries[ranges * versions + i - 2] =
+                this.getCountryCodeNumber(parts[i]);
+          }
+          ranges++;
         }
-        br.close();
-        this.logger.fine("Finished reading in "
-            + this.combinedDatabaseFile.getAbsolutePath() + ".");
-      } catch (IOException e) {
-        this.logger.log(Level.WARNING, "Failed to read in "
-            + this.combinedDatabaseFile.getAbsolutePath() + "!", e);
       }
+      br.close();
+      this.ranges = ranges;
+      this.fromIPs = IntBuffer.wrap(fromIPs);
+      this.toIPs = IntBuffer.wrap(toIPs);
+      this.countries = ShortBuffer.wrap(countries);
+      this.combinedDatabaseModified = true;
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed to read in "
+          + this.csvDatabaseFile.getAbsolutePath() + "!", e);
+    }
+  }
+
+  /**
+   * Returns the number of the given country code, assigning a new number
+   * if we haven't seen this country code before.
+   */
+  private short getCountryCodeNumber(String countryCode) {
+    Short number = this.countryCodeNumbers.get(countryCode);
+    if (number == null) {
+      number = (short) this.countryCodes.size();
+      this.countryCodeNumbers.put(countryCode, number);
+      this.countryCodes.add(countryCode);
     }
+    return number;
   }
 
   /**
@@ -151,15 +311,12 @@ public class GeoIPDatabaseManager {
 
     /* Find out when we tried downloading the last time to avoid making
      * too many download attempts. */
-    SimpleDateFormat dateTimeFormat = new SimpleDateFormat(
-        "yyyy-MM-dd HH:mm:ss");
-    dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     long now = System.currentTimeMillis();
     if (this.lastDownloadedTime != null) {
       long lastDownloaded = -1;
       try {
-        lastDownloaded = dateTimeFormat.parse(this.lastDownloadedTime).
-            getTime();
+        lastDownloaded = TimestampCodec.parseDateTime(
+            this.lastDownloadedTime);
       } catch (ParseException e) {
         logger.log(Level.WARNING, "Could not parse last downloaded "
             + "time '" + this.lastDownloadedTime + "'. Ignoring.");
@@ -174,10 +331,8 @@ public class GeoIPDatabaseManager {
     /* Download GeoIP database. */
     try {
       logger.fine("Downloading GeoIP database...");
-      this.lastDownloadedTime = dateTimeFormat.format(now);
-      SimpleDateFormat urlDateFormat = new SimpleDateFormat("yyyyMMdd");
-      urlDateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-      String date = urlDateFormat.format(now);
+      this.lastDownloadedTime = TimestampCodec.formatDateTime(now);
+      String date = TimestampCodec.formatCompactDate(now);
       String url = "http://www.maxmind.com/app/download_new"
           + "?edition_id=108&date=" + date + "&suffix=zip&license_key="
           + licenseKey;
@@ -221,6 +376,13 @@ public class GeoIPDatabaseManager {
   /**
    * Imports the GeoIP databases to include them in the combined GeoIP
    * database.
+   *
+   * Each database version is merged into the combined database in a
+   * single sweep over the ranges of both, which requires the ranges in
+   * the database file to be sorted. Parts of the combined database that
+   * are not contained in the new version are assigned ZZ for that
+   * version, and new ranges that are not contained in the combined
+   * database yet are assigned ZZ for all previous versions.
    */
   public void importGeoIPDatabaseFromDisk() {
     File databaseDirectory = new File(this.geoipDir);
@@ -239,133 +401,236 @@ public class GeoIPDatabaseManager {
       if (allDatabases.contains(date)) {
         continue;
       }
-      this.combinedDatabaseModified = true;
       this.logger.fine("Reading in " + filename);
-      String emptyCountryString = "";
-      for (int i = 0; i < this.allDatabases.size(); i++) {
-        emptyCountryString += ",ZZ";
-      }
+      int newRanges = 0, capacity = 1024;
+      long[] newFromIPs = new long[capacity], newToIPs = new long[capacity];
+      short[] newCountries = new short[capacity];
+      boolean sorted = true;
       try {
         BufferedReader br = new BufferedReader(new FileReader(
             databaseFile));
         String line = null;
+        String[] parts = new String[5];
         while ((line = br.readLine()) != null) {
           if (line.startsWith("Copyright") ||
               line.startsWith("\"begin")) {
             continue;
           }
-          String lineWithoutQuotes = line.replaceAll("\"", "");
-          String[] parts = lineWithoutQuotes.split(",");
-          lineWithoutQuotes = null; // does this help GC?
-          long fromIP = Long.parseLong(parts[2]);
-          long toIP = Long.parseLong(parts[3]);
-          String countryCode = parts[4];
-          SortedMap<Long, DatabaseEntry> submap =
-              combinedDatabase.headMap(toIP + 1L);
-          if (!submap.headMap(fromIP + 1L).isEmpty()) {
-            submap = submap.tailMap(submap.headMap(fromIP + 1L).
-                lastKey());
-          }
-          Set<DatabaseEntry> newEntries = new HashSet<DatabaseEntry>();
-          for (DatabaseEntry e : submap.values()) {
-            while (fromIP <= toIP && fromIP <= e.toIP &&
-                toIP >= e.fromIP) {
-              if (fromIP < e.fromIP) {
-                // duplicate entry: new entry fromIP-e.fromIP, set fromIP
-                // to e.fromIP
-                DatabaseEntry e1 = new DatabaseEntry();
-                e1.fromIP = fromIP;
-                e1.toIP = e.fromIP - 1L;
-                e1.countries = e.countries;
-                newEntries.add(e1);
-                fromIP = e.fromIP;
-              } else if (fromIP > e.fromIP) {
-                // split off existing entry; don't add yet
-                DatabaseEntry e1 = new DatabaseEntry();
-                e1.fromIP = e.fromIP;
-                e1.toIP = fromIP - 1L;
-                e1.countries = e.countries;
-                newEntries.add(e1);
-                e.fromIP = fromIP;
-                newEntries.add(e);
-              } else if (toIP < e.toIP) {
-                // split and add to first half
-                DatabaseEntry e1 = new DatabaseEntry();
-                e1.fromIP = toIP + 1L;
-                e1.toIP = e.toIP;
-                e1.countries = e.countries;
-                newEntries.add(e1);
-                e.toIP = e1.fromIP - 1L;
-                e.countries += "," + countryCode;
-                fromIP = toIP + 1L;
-              } else if (toIP >= e.toIP) {
-                // add to this entry and done, right?
-                e.countries += "," + countryCode;
-                fromIP = toIP + 1L;
-              }
+          for (int i = 0, start = 0; i < parts.length; i++) {
+            int end = line.indexOf(',', start);
+            if (end < 0) {
+              end = line.length();
             }
+            parts[i] = line.substring(start, end).replace("\"", "");
+            start = end + 1;
           }
-          if (fromIP <= toIP) {
-            DatabaseEntry entry = new DatabaseEntry();
-            entry.fromIP = fromIP;
-            entry.toIP = toIP;
-            entry.countries = emptyCountryString + "," + countryCode;
-            newEntries.add(entry);
-            fromIP = toIP + 1L;
-          }
-          for (DatabaseEntry e : newEntries) {
-            this.combinedDatabase.put(e.fromIP, e);
+          if (newRanges == capacity) {
+            capacity *= 2;
+            newFromIPs = Arrays.copyOf(newFromIPs, capacity);
+            newToIPs = Arrays.copyOf(newToIPs, capacity);
+            newCountries = Arrays.copyOf(newCountries, capacity);
           }
-        }
-        this.allDatabases.add(date);
-        for (DatabaseEntry e : this.combinedDatabase.values()) {
-          if (e.countries.substring(1).split(",").length <
-              this.allDatabases.size()) {
-            e.countries += ",ZZ";
+          newFromIPs[newRanges] = Long.parseLong(parts[2]);
+          newToIPs[newRanges] = Long.parseLong(parts[3]);
+          newCountries[newRanges] = this.getCountryCodeNumber(parts[4]);
+          if (newRanges > 0 &&
+              newFromIPs[newRanges] < newFromIPs[newRanges - 1]) {
+            sorted = false;
           }
+          newRanges++;
         }
+        br.close();
       } catch (IOException e) {
         this.logger.log(Level.WARNING, "Could not import GeoIP database "
             + "from file " + databaseFile.getAbsolutePath()
-            + ". This might leave us with an inconsistent state!");
+            + ". Skipping.", e);
+        continue;
+      }
+      if (!sorted) {
+        this.logger.fine("Ranges in " + filename + " are not sorted. "
+            + "Sorting them before merging.");
+        Integer[] order = new Integer[newRanges];
+        for (int i = 0; i < newRanges; i++) {
+          order[i] = i;
+        }
+        final long[] sortBy = newFromIPs;
+        Arrays.sort(order, new Comparator<Integer>() {
+          public int compare(Integer a, Integer b) {
+            return sortBy[a] < sortBy[b] ? -1 :
+                sortBy[a] > sortBy[b] ? 1 : 0;
+          }
+        });
+        long[] sortedFromIPs = new long[newRanges],
+            sortedToIPs = new long[newRanges];
+        short[] sortedCountries = new short[newRanges];
+        for (int i = 0; i < newRanges; i++) {
+          sortedFromIPs[i] = newFromIPs[order[i]];
+          sortedToIPs[i] = newToIPs[order[i]];
+          sortedCountries[i] = newCountries[order[i]];
+        }
+        newFromIPs = sortedFromIPs;
+        newToIPs = sortedToIPs;
+        newCountries = sortedCountries;
+      }
+      this.mergeDatabase(newRanges, newFromIPs, newToIPs, newCountries);
+      this.allDatabases.add(date);
+      this.combinedDatabaseModified = true;
+      this.lookupBuckets = null;
+    }
+  }
+
+  /**
+   * Merges a new database version with the given (sorted) ranges and
+   * country code numbers into the combined database. We sweep over both
+   * databases at the same time and start a new range in the combined
+   * database wherever a range in either database starts or ends.
+   */
+  private void mergeDatabase(int newRanges, long[] newFromIPs,
+      long[] newToIPs, short[] newCountries) {
+    int versions = this.allDatabases.size(),
+        capacity = this.ranges + 2 * newRanges + 1, merged = 0;
+    int[] mergedFromIPs = new int[capacity],
+        mergedToIPs = new int[capacity];
+    short[] mergedCountries = new short[capacity * (versions + 1)];
+    int i = 0, j = 0;
+    long next = Long.MIN_VALUE;
+    while (i < this.ranges || j < newRanges) {
+
+      /* Skip ranges that are entirely covered by previous ranges, in case
+       * one of the databases contains overlapping ranges. */
+      if (i < this.ranges && this.getToIP(i) < next) {
+        i++;
+        continue;
+      }
+      if (j < newRanges && newToIPs[j] < next) {
+        j++;
+        continue;
+      }
+
+      /* Find out whether the next range that we write to the combined
+       * database starts with an old or a new range or both, and where it
+       * ends. */
+      long oldFrom = i < this.ranges ? Math.max(this.getFromIP(i), next) :
+          Long.MAX_VALUE;
+      long newFrom = j < newRanges ? Math.max(newFromIPs[j], next) :
+          Long.MAX_VALUE;
+      long from = Math.min(oldFrom, newFrom), to;
+      boolean fromOld = oldFrom == from, fromNew = newFrom == from;
+      if (fromOld && fromNew) {
+        to = Math.min(this.getToIP(i), newToIPs[j]);
+      } else if (fromOld) {
+        to = Math.min(this.getToIP(i), newFrom - 1L);
+      } else {
+        to = Math.min(newToIPs[j], oldFrom - 1L);
+      }
+      if (merged == capacity) {
+        capacity *= 2;
+        mergedFromIPs = Arrays.copyOf(mergedFromIPs, capacity);
+        mergedToIPs = Arrays.copyOf(mergedToIPs, capacity);
+        mergedCountries = Arrays.copyOf(mergedCountries,
+            capacity * (versions + 1));
+      }
+      mergedFromIPs[merged] = (int) from;
+      mergedToIPs[merged] = (int) to;
+      if (fromOld) {
+        for (int v = 0; v < versions; v++) {
+          mergedCountries[merged * (versions + 1) + v] =
+              this.countries.get(i * versions + v);
+        }
+      }
+      if (fromNew) {
+        mergedCountries[merged * (versions + 1) + versions] =
+            newCountries[j];
+      }
+      merged++;
+      next = to + 1L;
+      if (fromOld && this.getToIP(i) <= to) {
+        i++;
+      }
+      if (fromNew && newToIPs[j] <= to) {
+        j++;
       }
     }
+    this.ranges = merged;
+    this.fromIPs = IntBuffer.wrap(mergedFromIPs);
+    this.toIPs = IntBuffer.wrap(mergedToIPs);
+    this.countries = ShortBuffer.wrap(mergedCountries);
+  }
+
+  /**
+   * Returns the start IP address of the range at the given position.
+   */
+  private long getFromIP(int range) {
+    return this.fromIPs.get(range) & 0xffffffffL;
+  }
+
+  /**
+   * Returns the end IP address of the range at the given position.
+   */
+  private long getToIP(int range) {
+    return this.toIPs.get(range) & 0xffffffffL;
   }
 
+  /**
+   * Writes the combined database to disk if it has been modified. The
+   * file is first written to a temporary file and then renamed, so that
+   * a mapping of the previous file remains valid.
+   */
   public void writeCombinedDatabase() {
     if (!combinedDatabaseModified) {
       return;
     }
+    File tempFile = new File(this.combinedDatabaseFile.getPath()
+        + ".tmp");
     try {
       this.logger.fine("Writing "
           + this.combinedDatabaseFile.getAbsolutePath() + "...");
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.combinedDatabaseFile));
-      bw.write("lastDownload " + this.lastDownloadedTime + "\n");
-      bw.write("beginIpNum,endIpNum");
-      for (String d : allDatabases) {
-        bw.write("," + d);
-      }
-      bw.write("\n");
-      for (DatabaseEntry e : this.combinedDatabase.values()) {
-        bw.write(e.fromIP + "," + e.toIP + e.countries + "\n");
-      }
-      bw.close();
+      tempFile.getParentFile().mkdirs();
+      DataOutputStream dos = new DataOutputStream(
+          new BufferedOutputStream(new FileOutputStream(tempFile)));
+      dos.writeInt(FILE_MAGIC);
+      dos.writeInt(FILE_VERSION);
+      dos.writeUTF(this.lastDownloadedTime == null ? "" :
+          this.lastDownloadedTime);
+      dos.writeInt(this.allDatabases.size());
+      for (String d : this.allDatabases) {
+        dos.writeUTF(d);
+      }
+      dos.writeInt(this.countryCodes.size());
+      for (String countryCode : this.countryCodes) {
+        dos.writeUTF(countryCode);
+      }
+      dos.writeInt(this.ranges);
+      while (dos.size() % 4 != 0) {
+        dos.writeByte(0);
+      }
+      for (int i = 0; i < this.ranges; i++) {
+        dos.writeInt(this.fromIPs.get(i));
+      }
+      for (int i = 0; i < this.ranges; i++) {
+        dos.writeInt(this.toIPs.get(i));
+      }
+      for (int i = 0; i < this.ranges * this.allDatabases.size(); i++) {
+        dos.writeShort(this.countries.get(i));
+      }
+      dos.close();
+      if (!tempFile.renameTo(this.combinedDatabaseFile)) {
+        this.logger.warning("Failed to rename " + tempFile.getAbsolutePath()
+            + " to " + this.combinedDatabaseFile.getAbsolutePath() + "!");
+        return;
+      }
       this.logger.fine("Finished writing "
           + this.combinedDatabaseFile.getAbsolutePath() + ".");
     } catch (IOException e) {
       this.logger.log(Level.WARNING, "Failed to write "
-          + this.combinedDatabaseFile.getAbsolutePath() + "!");
+          + this.combinedDatabaseFile.getAbsolutePath() + "!", e);
     }
   }
 
   public String getCountryForIPOneWeek(String ipAddress, String date) {
-    SimpleDateFormat parseFormat = new SimpleDateFormat("yyyy-MM-dd");
-    parseFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
     try {
-      String dateMinusOneWeek = parseFormat.format(new Date(
-          parseFormat.parse(date).getTime() -
-          7L * 24L * 60L * 60L * 1000L));
+      String dateMinusOneWeek = TimestampCodec.formatDate(
+          TimestampCodec.parseDate(date) - 7L * 24L * 60L * 60L * 1000L);
       return this.getCountryForIP(ipAddress, dateMinusOneWeek);
     } catch (ParseException e) {
       this.logger.log(Level.WARNING, "Could not parse date '" + date
@@ -384,41 +649,102 @@ public class GeoIPDatabaseManager {
     if (this.allDatabases.isEmpty()) {
       return "ZZ";
     }
-    String dateShort = date.substring(0, 4) + date.substring(5, 7)
-        + date.substring(8, 10); // TODO put full date in allDatabases
-    String dbDate = null;
-    if (this.allDatabases.contains(dateShort)) {
-      dbDate = dateShort;
-    } else {
-      SortedSet<String> subset = new TreeSet<String>(this.allDatabases).
-          headSet(dateShort);
-      if (!subset.isEmpty()) {
-        dbDate = subset.last();
+    if (this.lookupBuckets == null) {
+      this.buildLookupIndex();
+    }
+    int dateNum = 0;
+    for (int i = 0; i < 10; i++) {
+      if (i != 4 && i != 7) {
+        dateNum = dateNum * 10 + date.charAt(i) - '0';
+      }
+    }
+    int datePos = Arrays.binarySearch(this.lookupDates, dateNum);
+    if (datePos < 0) {
+      datePos = -datePos - 2;
+    }
+    int column = datePos >= 0 ? this.lookupColumns[datePos] : 0;
+    long ipNum = parseIPAddress(ipAddress);
+    int bucket = (int) Math.min(ipNum >>> 16, 1L << 16);
+    int low = Math.max(this.lookupBuckets[bucket] - 1, 0),
+        high = this.lookupBuckets[bucket + 1] - 1, rangePos = low - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (this.getFromIP(mid) <= ipNum) {
+        rangePos = mid;
+        low = mid + 1;
       } else {
-        dbDate = this.allDatabases.get(0);
+        high = mid - 1;
       }
     }
-    if (dbDate == null || !this.allDatabases.contains(dbDate)) {
+    if (rangePos < 0) {
       return "ZZ";
     }
-    String[] parts = ipAddress.split("\\.");
-    long ipNum = Long.parseLong(parts[0]) * 256 * 256 * 256 +
-        Long.parseLong(parts[1]) * 256 * 256 +
-        Long.parseLong(parts[2]) * 256 + Long.parseLong(parts[3]);
-    String countries = null;
-    if (this.combinedDatabase.containsKey(ipNum)) {
-      countries = this.combinedDatabase.get(ipNum).countries;
-    } else if (!this.combinedDatabase.headMap(ipNum).isEmpty()) {
-      countries = this.combinedDatabase.get(this.combinedDatabase.headMap(
-          ipNum).lastKey()).countries;
-    } else {
-      return "ZZ";
+    return this.lookupCountryCodes[this.countries.get(
+        rangePos * this.allDatabases.size() + column)];
+  }
+
+  /**
+   * Converts an IP address in dotted notation to its decimal form.
+   */
+  private static long parseIPAddress(String ipAddress) {
+    long ipNum = 0L, octet = 0L;
+    int octets = 0, digits = 0;
+    for (int i = 0; i <= ipAddress.length(); i++) {
+      char c = i < ipAddress.length() ? ipAddress.charAt(i) : '.';
+      if (c >= '0' && c <= '9') {
+        octet = octet * 10L + (c - '0');
+        digits++;
+      } else if (c == '.' && digits > 0 && octets < 4) {
+        ipNum = ipNum * 256L + octet;
+        octet = 0L;
+        digits = 0;
+        octets++;
+      } else {
+        throw new NumberFormatException("Invalid IP address '"
+            + ipAddress + "'");
+      }
     }
-    String countryCode = countries.substring(1).split(",")[
-        this.allDatabases.indexOf(dbDate)];
-    if (unresolvedCountryCodes.contains(countryCode)) {
-      return "ZZ";
+    if (octets != 4) {
+      throw new NumberFormatException("Invalid IP address '" + ipAddress
+          + "'");
+    }
+    return ipNum;
+  }
+
+  /**
+   * Builds the lookup index for the combined database, so that lookups
+   * don't have to create any objects.
+   */
+  private void buildLookupIndex() {
+    int versions = this.allDatabases.size();
+    SortedMap<Integer, Integer> dateColumns =
+        new TreeMap<Integer, Integer>();
+    for (int column = 0; column < versions; column++) {
+      dateColumns.put(Integer.parseInt(this.allDatabases.get(column)),
+          column);
+    }
+    this.lookupDates = new int[versions];
+    this.lookupColumns = new int[versions];
+    int i = 0;
+    for (Map.Entry<Integer, Integer> e : dateColumns.entrySet()) {
+      this.lookupDates[i] = e.getKey();
+      this.lookupColumns[i++] = e.getValue();
+    }
+    this.lookupCountryCodes = new String[this.countryCodes.size()];
+    for (i = 0; i < this.lookupCountryCodes.length; i++) {
+      String code = this.countryCodes.get(i);
+      this.lookupCountryCodes[i] =
+          this.unresolvedCountryCodes.contains(code) ? "ZZ" : code;
+    }
+    int[] buckets = new int[(1 << 16) + 2];
+    for (int bucket = 0, pos = 0; bucket <= 1 << 16; bucket++) {
+      while (pos < this.ranges &&
+          this.getFromIP(pos) < (long) bucket << 16) {
+        pos++;
+      }
+      buckets[bucket] = pos;
     }
-    return countryCode;
+    buckets[(1 << 16) + 1] = this.ranges;
+    this.lookupBuckets = buckets;
   }
 }
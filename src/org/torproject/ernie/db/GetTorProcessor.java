@@ -92,67 +92,22 @@ public class GetTorProcessor {
     /* Write results to database. */
     if (connectionURL != null) {
       try {
-        Map<String, Integer> updateRows = new HashMap<String, Integer>(),
-            insertRows = new HashMap<String, Integer>();
+        AggregateStatsSink sink = new AggregateStatsSink(connectionURL,
+            "gettor_stats", new String[] { "date", "bundle" },
+            new int[] { Types.DATE, Types.VARCHAR },
+            new String[] { "downloads" }, new int[] { Types.BIGINT });
         for (Map.Entry<String, Map<String, Integer>> e :
             data.entrySet()) {
-          String date = e.getKey();
+          java.sql.Date date = java.sql.Date.valueOf(e.getKey());
           Map<String, Integer> obs = e.getValue();
           for (String column : columns) {
             if (obs.containsKey(column)) {
-              Integer value = obs.get(column);
-              String key = date + "," + column;
-              insertRows.put(key, value);
+              sink.put(new Object[] { date, column },
+                  new Object[] { (long) obs.get(column) });
             }
           }
         }
-        Connection conn = DriverManager.getConnection(connectionURL);
-        PreparedStatement psI = conn.prepareStatement(
-            "INSERT INTO gettor_stats (downloads, date, bundle) "
-            + "VALUES (?, ?, ?)");
-        PreparedStatement psU = conn.prepareStatement(
-            "UPDATE gettor_stats SET downloads = ? "
-            + "WHERE date = ? AND bundle = ?");
-        conn.setAutoCommit(false);
-        Statement statement = conn.createStatement();
-        ResultSet rs = statement.executeQuery(
-            "SELECT date, bundle, downloads FROM gettor_stats");
-        while (rs.next()) {
-          String date = rs.getDate(1).toString();
-          String bundle = rs.getString(2);
-          String key = date + "," + bundle;
-          if (insertRows.containsKey(key)) {
-            int insertRow = insertRows.remove(key);
-            int oldCount = rs.getInt(3);
-            if (insertRow != oldCount) {
-              updateRows.put(key, insertRow);
-            }
-          }
-        }
-        for (Map.Entry<String, Integer> e : updateRows.entrySet()) {
-          String[] keyParts = e.getKey().split(",");
-          java.sql.Date date = java.sql.Date.valueOf(keyParts[0]);
-          String bundle = keyParts[1];
-          int downloads = e.getValue();
-          psU.clearParameters();
-          psU.setLong(1, downloads);
-          psU.setDate(2, date);
-          psU.setString(3, bundle);
-          psU.executeUpdate();
-        }
-        for (Map.Entry<String, Integer> e : insertRows.entrySet()) {
-          String[] keyParts = e.getKey().split(",");
-          java.sql.Date date = java.sql.Date.valueOf(keyParts[0]);
-          String bundle = keyParts[1];
-          int downloads = e.getValue();
-          psI.clearParameters();
-          psI.setLong(1, downloads);
-          psI.setDate(2, date);
-          psI.setString(3, bundle);
-          psI.executeUpdate();
-        }
-        conn.commit();
-        conn.close();
+        sink.flush();
       } catch (SQLException e) {
         logger.log(Level.WARNING, "Failed to add GetTor stats to "
             + "database.", e);
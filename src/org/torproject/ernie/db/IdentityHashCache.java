@@ -0,0 +1,119 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.nio.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.apache.commons.codec.digest.*;
+import org.apache.commons.codec.binary.*;
+
+/**
+ * Least-recently-used cache of SHA-1 digests of bridge identities, shared
+ * by <code>SanitizedBridgesWriter</code> and
+ * <code>BridgeDescriptorParser</code>. The same few thousand bridges show
+ * up in every bridge network status and in many descriptors, so that we
+ * can avoid computing and encoding their hashed identities over and over.
+ *
+ * Entries are keyed by the exact bytes that are hashed and contain the
+ * digest in lower-case hex and in Base64 without trailing padding.
+ */
+public class IdentityHashCache {
+
+  /**
+   * Hashed identity of a cache entry in both encodings that we need.
+   */
+  private static class HashedIdentity {
+    private String hex;
+    private String base64;
+  }
+
+  /**
+   * Cached hashed identities by hashed bytes, in the order in which they
+   * were last used.
+   */
+  private LinkedHashMap<ByteBuffer, HashedIdentity> cache;
+
+  /**
+   * Number of lookups that we could answer from the cache and that we
+   * could not answer from the cache.
+   */
+  private long hits, misses;
+
+  /**
+   * Logger for this class.
+   */
+  private Logger logger;
+
+  /**
+   * Initializes a cache holding at most <code>maxEntries</code> hashed
+   * identities.
+   */
+  public IdentityHashCache(final int maxEntries) {
+    this.cache = new LinkedHashMap<ByteBuffer, HashedIdentity>(16, 0.75F,
+        true) {
+      protected boolean removeEldestEntry(
+          Map.Entry<ByteBuffer, HashedIdentity> eldest) {
+        return this.size() > maxEntries;
+      }
+    };
+    this.logger = Logger.getLogger(IdentityHashCache.class.getName());
+  }
+
+  /**
+   * Returns the SHA-1 digest of the given bytes as 40 lower-case hex
+   * characters.
+   */
+  public String getHashedIdentityHex(byte[] identity) {
+    return this.getHashedIdentity(identity).hex;
+  }
+
+  /**
+   * Returns the SHA-1 digest of the given bytes as 27 Base64 characters
+   * without trailing padding.
+   */
+  public String getHashedIdentityBase64(byte[] identity) {
+    return this.getHashedIdentity(identity).base64;
+  }
+
+  private HashedIdentity getHashedIdentity(byte[] identity) {
+    ByteBuffer key = ByteBuffer.wrap(identity);
+    HashedIdentity hashedIdentity = this.cache.get(key);
+    if (hashedIdentity != null) {
+      this.hits++;
+      return hashedIdentity;
+    }
+    this.misses++;
+    byte[] digest = DigestUtils.sha(identity);
+    hashedIdentity = new HashedIdentity();
+    hashedIdentity.hex = Hex.encodeHexString(digest);
+    hashedIdentity.base64 = Base64.encodeBase64String(digest).
+        substring(0, 27);
+    this.cache.put(ByteBuffer.wrap(identity.clone()), hashedIdentity);
+    return hashedIdentity;
+  }
+
+  /**
+   * Returns the number of lookups that we could answer from the cache.
+   */
+  public long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Returns the number of lookups that required computing a digest.
+   */
+  public long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Logs how many lookups we could answer from the cache.
+   */
+  public void dumpStats() {
+    this.logger.info("Identity hash cache answered " + this.hits
+        + " of " + (this.hits + this.misses) + " lookups and holds "
+        + this.cache.size() + " hashed identities.");
+  }
+}
@@ -0,0 +1,217 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+import java.util.logging.*;
+
+import org.apache.commons.codec.digest.*;
+
+/**
+ * Persistent record of files that have been imported before, shared by
+ * the readers of directory archives, sanitized bridge descriptors, and
+ * bridge snapshots. Files are identified by a 24-byte key consisting of
+ * the first 8 bytes of the SHA-1 digest of their name, their size, and
+ * their last modification time, so that a file is imported again if it
+ * changes. Keys are kept in a <code>PackedKeySet</code> and only appended
+ * to the ledger file.
+ *
+ * If enabled, directories that only contain files that have been
+ * imported before are recorded in the ledger, too, together with their
+ * last modification time. As long as no files are added to, removed
+ * from, or renamed in such a directory, it is skipped without listing
+ * its contents. A file that is rewritten in place does not change the
+ * last modification time of its directory, so that we would not import
+ * it again. This is only enabled for inputs whose files are never
+ * rewritten once they exist.
+ *
+ * Import histories in the previous format, containing one file name per
+ * line, are read once when there is no ledger file yet. Files contained
+ * in such a history are added to the ledger as soon as we come across
+ * them.
+ */
+public class ImportLedger {
+
+  /**
+   * Minimum age of a directory's last modification in milliseconds
+   * before we record it as completely imported. This protects us against
+   * missing files that are added in the same instant as the last file we
+   * saw in a directory.
+   */
+  private static final long MIN_DIRECTORY_AGE = 60L * 1000L;
+
+  /**
+   * File containing the keys of imported files and directories.
+   */
+  private File ledgerFile;
+
+  /**
+   * Keys of all imported files and directories.
+   */
+  private PackedKeySet keys;
+
+  /**
+   * Keys that were added in this execution and need to be appended to
+   * the ledger file.
+   */
+  private List<byte[]> newKeys;
+
+  /**
+   * File names contained in an import history in the previous format,
+   * or <code>null</code> if we didn't read such a history.
+   */
+  private Set<String> legacyFileNames;
+
+  /**
+   * Whether we skip directories that only contained imported files when
+   * we last listed them and haven't changed since.
+   */
+  private boolean skipUnchangedDirectories;
+
+  /**
+   * Time when we started reading the ledger.
+   */
+  private long startedMillis;
+
+  /**
+   * Logger for this class.
+   */
+  private Logger logger;
+
+  /**
+   * Reads the ledger from the given file, or the import history in the
+   * previous format from <code>legacyHistoryFile</code> if the ledger
+   * doesn't exist yet. Unchanged directories are only skipped if
+   * <code>skipUnchangedDirectories</code> is true.
+   */
+  public ImportLedger(File ledgerFile, File legacyHistoryFile,
+      boolean skipUnchangedDirectories) {
+    this.ledgerFile = ledgerFile;
+    this.skipUnchangedDirectories = skipUnchangedDirectories;
+    this.keys = new PackedKeySet(24);
+    this.newKeys = new ArrayList<byte[]>();
+    this.startedMillis = System.currentTimeMillis();
+    this.logger = Logger.getLogger(ImportLedger.class.getName());
+    if (ledgerFile.exists()) {
+      try {
+        this.logger.fine("Reading file " + ledgerFile.getAbsolutePath()
+            + "...");
+        this.keys.readFile(ledgerFile);
+        this.logger.fine("Finished reading file "
+            + ledgerFile.getAbsolutePath() + ".");
+      } catch (IOException e) {
+        this.logger.log(Level.WARNING, "Failed reading file "
+            + ledgerFile.getAbsolutePath() + "!", e);
+      }
+    } else if (legacyHistoryFile != null && legacyHistoryFile.exists()) {
+      this.legacyFileNames = new HashSet<String>();
+      try {
+        this.logger.fine("Reading file "
+            + legacyHistoryFile.getAbsolutePath() + "...");
+        BufferedReader br = new BufferedReader(new FileReader(
+            legacyHistoryFile));
+        String line = null;
+        while ((line = br.readLine()) != null) {
+          this.legacyFileNames.add(line);
+        }
+        br.close();
+        this.logger.fine("Finished reading file "
+            + legacyHistoryFile.getAbsolutePath() + ".");
+      } catch (IOException e) {
+        this.logger.log(Level.WARNING, "Failed reading file "
+            + legacyHistoryFile.getAbsolutePath() + "!", e);
+      }
+    }
+  }
+
+  /**
+   * Returns whether the given file has been imported before and hasn't
+   * changed since.
+   */
+  public boolean contains(File file) {
+    byte[] key = this.getKey(file.getName(), file.length(),
+        file.lastModified());
+    if (this.keys.contains(key)) {
+      return true;
+    }
+    if (this.legacyFileNames != null &&
+        this.legacyFileNames.contains(file.getName())) {
+      this.addKey(key);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Records that the given file has been imported.
+   */
+  public void add(File file) {
+    this.addKey(this.getKey(file.getName(), file.length(),
+        file.lastModified()));
+  }
+
+  /**
+   * Returns the contents of the given directory, or an empty array if
+   * we skip unchanged directories and the directory only contained files
+   * that had been imported before when we last listed it and hasn't
+   * changed since. If all files in the directory have been imported
+   * before, the directory is recorded, so that we can skip it in the
+   * future.
+   */
+  public File[] listFiles(File directory) {
+    if (!this.skipUnchangedDirectories) {
+      File[] files = directory.listFiles();
+      return files == null ? new File[0] : files;
+    }
+    long lastModified = directory.lastModified();
+    byte[] key = this.getKey("directory " + directory.getAbsolutePath(),
+        -1L, lastModified);
+    if (this.keys.contains(key)) {
+      return new File[0];
+    }
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return new File[0];
+    }
+    boolean complete = lastModified > 0L &&
+        lastModified < this.startedMillis - MIN_DIRECTORY_AGE;
+    for (int i = 0; complete && i < files.length; i++) {
+      complete = !files[i].isDirectory() && this.contains(files[i]);
+    }
+    if (complete) {
+      this.addKey(key);
+    }
+    return files;
+  }
+
+  /**
+   * Appends the keys of files and directories that we recorded in this
+   * execution to the ledger file.
+   */
+  public void write() {
+    try {
+      this.logger.fine("Appending " + this.newKeys.size() + " keys to "
+          + "file " + this.ledgerFile.getAbsolutePath() + "...");
+      PackedKeySet.appendToFile(this.ledgerFile, this.newKeys);
+      this.newKeys.clear();
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed appending to file "
+          + this.ledgerFile.getAbsolutePath() + "!", e);
+    }
+  }
+
+  private void addKey(byte[] key) {
+    if (this.keys.add(key)) {
+      this.newKeys.add(key);
+    }
+  }
+
+  private byte[] getKey(String name, long length, long lastModified) {
+    byte[] key = new byte[24];
+    ByteBuffer.wrap(key).put(DigestUtils.sha(name), 0, 8).
+        putLong(length).putLong(lastModified);
+    return key;
+  }
+}
@@ -60,7 +60,9 @@ public class Main {
         config.getWriteRelayDescriptorDatabase() ?
         config.getRelayDescriptorDatabaseJDBC() : null,
         config.getWriteRelayDescriptorsRawFiles() ?
-        config.getRelayDescriptorRawFilesDirectory() : null) : null;
+        config.getRelayDescriptorRawFilesDirectory() : null,
+        config.getRelayDescriptorDatabaseBatchSize(),
+        config.getRelayDescriptorDatabaseUseCopy()) : null;
 
     // Prepare relay descriptor parser (only if we are writing stats or
     // directory archives to disk)
@@ -87,7 +89,8 @@ public class Main {
         boolean downloadAllExtraInfos = aw != null || dsfh != null;
         rdd = new RelayDescriptorDownloader(rdp, dirSources,
             downloadCurrentConsensus, downloadCurrentVotes,
-            downloadAllServerDescriptors, downloadAllExtraInfos);
+            downloadAllServerDescriptors, downloadAllExtraInfos,
+            config.getMaxDownloadsPerDirectoryAuthority());
         rdp.setRelayDescriptorDownloader(rdd);
       }
       if (config.getImportCachedRelayDescriptors()) {
@@ -100,7 +103,8 @@ public class Main {
       }
       if (config.getImportDirectoryArchives()) {
         new ArchiveReader(rdp, config.getDirectoryArchivesDirectory(),
-            config.getKeepDirectoryArchiveImportHistory());
+            config.getKeepDirectoryArchiveImportHistory(),
+            config.getDirectoryArchivesImportThreads());
         if (aw != null) {
           aw.intermediateStats("importing relay descriptors from local "
               + "directory");
@@ -136,15 +140,19 @@ public class Main {
       dsfh = null;
     }
 
+    // Prepare cache of hashed bridge identities, which is large enough
+    // to hold all bridges in a network status in all forms we hash them
+    IdentityHashCache ihc = new IdentityHashCache(20000);
+
     // Prepare sanitized bridge descriptor writer
     SanitizedBridgesWriter sbw = config.getWriteSanitizedBridges() ?
         new SanitizedBridgesWriter(
-        config.getSanitizedBridgesWriteDirectory()) : null;
+        config.getSanitizedBridgesWriteDirectory(), ihc) : null;
 
     // Prepare bridge descriptor parser
     BridgeDescriptorParser bdp = config.getWriteConsensusStats() ||
         config.getWriteBridgeStats() || config.getWriteSanitizedBridges()
-        ? new BridgeDescriptorParser(csfh, bsfh, sbw) : null;
+        ? new BridgeDescriptorParser(csfh, bsfh, sbw, ihc) : null;
 
     // Import bridge descriptors
     if (bdp != null && config.getImportSanitizedBridges()) {
@@ -153,7 +161,11 @@ public class Main {
           config.getKeepSanitizedBridgesImportHistory());
     }
     if (bdp != null && config.getImportBridgeSnapshots()) {
-      new BridgeSnapshotReader(bdp, config.getBridgeSnapshotsDirectory());
+      new BridgeSnapshotReader(bdp, config.getBridgeSnapshotsDirectory(),
+          config.getBridgeSnapshotsImportThreads());
+    }
+    if (bdp != null) {
+      ihc.dumpStats();
     }
 
     // Finish writing sanitized bridge descriptors to disk
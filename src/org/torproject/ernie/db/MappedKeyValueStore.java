@@ -0,0 +1,253 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+
+/**
+ * Persistent map from fixed-length binary keys to fixed-length binary
+ * values that is stored in a memory-mapped file and updated in place.
+ * Opening the store only maps the file, and putting a value only
+ * touches the slot that contains it, so that neither startup time nor
+ * the amount of data written depends on the number of entries.
+ *
+ * The file is a hash table using open addressing:
+ * - int magic number 0x4b565354 ("KVST") and int format version,
+ * - int key length, int value length,
+ * - int number of slots, which is a power of two, and int number of
+ *   entries,
+ * - one slot after the other, each consisting of a byte that is 1 for
+ *   used slots and 0 for empty slots, the key, and the value.
+ * When more than half of the slots are used, the table is written to a
+ * new file with twice as many slots, which then replaces the old file.
+ */
+public class MappedKeyValueStore {
+
+  private static final int FILE_MAGIC = 0x4b565354, FILE_VERSION = 1;
+
+  private static final int HEADER_LENGTH = 24;
+
+  /**
+   * File containing the hash table.
+   */
+  private File file;
+
+  /**
+   * Number of bytes per key and per value.
+   */
+  private int keyLength, valueLength;
+
+  /**
+   * Number of bytes per slot, including the byte marking a slot as used.
+   */
+  private int slotLength;
+
+  /**
+   * Number of slots and of entries.
+   */
+  private int capacity, size;
+
+  /**
+   * Mapped contents of the file.
+   */
+  private MappedByteBuffer buffer;
+
+  /**
+   * Opens the store in the given file, creating an empty store if the
+   * file doesn't exist yet.
+   */
+  public MappedKeyValueStore(File file, int keyLength, int valueLength)
+      throws IOException {
+    this.file = file;
+    this.keyLength = keyLength;
+    this.valueLength = valueLength;
+    this.slotLength = 1 + keyLength + valueLength;
+    if (!file.exists()) {
+      file.getParentFile().mkdirs();
+      this.create(file, 1024).force();
+    }
+    this.map();
+  }
+
+  /**
+   * Returns the number of entries in this store.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Copies the value stored under the given key into <code>value</code>
+   * and returns whether the key is contained in this store.
+   */
+  public boolean get(byte[] key, byte[] value) {
+    int slot = this.findSlot(this.buffer, this.capacity, key);
+    if (this.buffer.get(this.slotOffset(slot)) == 0) {
+      return false;
+    }
+    this.buffer.position(this.slotOffset(slot) + 1 + this.keyLength);
+    this.buffer.get(value, 0, this.valueLength);
+    return true;
+  }
+
+  /**
+   * Stores a value under the given key, replacing the value that was
+   * stored under this key before. Values are only written if they are
+   * different from the stored value.
+   */
+  public void put(byte[] key, byte[] value) throws IOException {
+    int slot = this.findSlot(this.buffer, this.capacity, key);
+    int offset = this.slotOffset(slot);
+    if (this.buffer.get(offset) != 0) {
+      boolean changed = false;
+      for (int i = 0; i < this.valueLength && !changed; i++) {
+        changed = this.buffer.get(offset + 1 + this.keyLength + i)
+            != value[i];
+      }
+      if (changed) {
+        this.buffer.position(offset + 1 + this.keyLength);
+        this.buffer.put(value, 0, this.valueLength);
+      }
+      return;
+    }
+    if (2 * (this.size + 1) > this.capacity) {
+      this.grow();
+      slot = this.findSlot(this.buffer, this.capacity, key);
+      offset = this.slotOffset(slot);
+    }
+    this.buffer.position(offset + 1);
+    this.buffer.put(key, 0, this.keyLength);
+    this.buffer.put(value, 0, this.valueLength);
+    this.buffer.put(offset, (byte) 1);
+    this.buffer.putInt(20, ++this.size);
+  }
+
+  /**
+   * Writes all changes to the storage device.
+   */
+  public void flush() {
+    this.buffer.force();
+  }
+
+  /**
+   * Maps the file into memory and reads its header.
+   */
+  private void map() throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(this.file, "rw");
+    this.buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+        raf.length());
+    raf.close();
+    if (this.buffer.capacity() < HEADER_LENGTH ||
+        this.buffer.getInt(0) != FILE_MAGIC ||
+        this.buffer.getInt(4) != FILE_VERSION ||
+        this.buffer.getInt(8) != this.keyLength ||
+        this.buffer.getInt(12) != this.valueLength) {
+      throw new IOException("Unknown file format of "
+          + this.file.getAbsolutePath() + ".");
+    }
+    this.capacity = this.buffer.getInt(16);
+    this.size = this.buffer.getInt(20);
+    if (Integer.bitCount(this.capacity) != 1 || (long) HEADER_LENGTH
+        + (long) this.capacity * this.slotLength
+        != this.buffer.capacity()) {
+      throw new IOException("File " + this.file.getAbsolutePath()
+          + " seems to be corrupt.");
+    }
+  }
+
+  /**
+   * Creates a file containing an empty table with the given number of
+   * slots and returns its mapped contents.
+   */
+  private MappedByteBuffer create(File file, int capacity)
+      throws IOException {
+    long length = HEADER_LENGTH + (long) capacity * this.slotLength;
+    if (length > Integer.MAX_VALUE) {
+      throw new IOException("Cannot store more than " + capacity / 2
+          + " entries in " + this.file.getAbsolutePath() + ".");
+    }
+    RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    raf.setLength(0L);
+    raf.setLength(length);
+    MappedByteBuffer buffer = raf.getChannel().map(
+        FileChannel.MapMode.READ_WRITE, 0, length);
+    raf.close();
+    buffer.putInt(0, FILE_MAGIC);
+    buffer.putInt(4, FILE_VERSION);
+    buffer.putInt(8, this.keyLength);
+    buffer.putInt(12, this.valueLength);
+    buffer.putInt(16, capacity);
+    buffer.putInt(20, 0);
+    return buffer;
+  }
+
+  /**
+   * Writes all entries to a new file with twice as many slots and
+   * replaces the current file with it.
+   */
+  private void grow() throws IOException {
+    File tempFile = new File(this.file.getAbsolutePath() + ".tmp");
+    int newCapacity = 2 * this.capacity;
+    MappedByteBuffer newBuffer = this.create(tempFile, newCapacity);
+    byte[] slotBytes = new byte[this.slotLength];
+    byte[] key = new byte[this.keyLength];
+    for (int slot = 0; slot < this.capacity; slot++) {
+      this.buffer.position(this.slotOffset(slot));
+      this.buffer.get(slotBytes);
+      if (slotBytes[0] == 0) {
+        continue;
+      }
+      System.arraycopy(slotBytes, 1, key, 0, this.keyLength);
+      newBuffer.position(HEADER_LENGTH + this.findSlot(newBuffer,
+          newCapacity, key) * this.slotLength);
+      newBuffer.put(slotBytes);
+    }
+    newBuffer.putInt(20, this.size);
+    newBuffer.force();
+    this.buffer.force();
+    if (!tempFile.renameTo(this.file)) {
+      this.file.delete();
+      if (!tempFile.renameTo(this.file)) {
+        throw new IOException("Could not rename "
+            + tempFile.getAbsolutePath() + " to "
+            + this.file.getAbsolutePath() + ".");
+      }
+    }
+    this.buffer = newBuffer;
+    this.capacity = newCapacity;
+  }
+
+  private int slotOffset(int slot) {
+    return HEADER_LENGTH + slot * this.slotLength;
+  }
+
+  /**
+   * Returns the slot in the given table that contains the given key, or
+   * the empty slot where it would be added.
+   */
+  private int findSlot(ByteBuffer table, int capacity, byte[] key) {
+    int hash = 1;
+    for (int i = 0; i < this.keyLength; i++) {
+      hash = 31 * hash + key[i];
+    }
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    int mask = capacity - 1, slot = hash & mask;
+    while (true) {
+      int offset = HEADER_LENGTH + slot * this.slotLength;
+      if (table.get(offset) == 0) {
+        return slot;
+      }
+      boolean equal = true;
+      for (int i = 0; i < this.keyLength && equal; i++) {
+        equal = table.get(offset + 1 + i) == key[i];
+      }
+      if (equal) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * Set of fixed-length binary keys, like 20-byte hashed identities, that
+ * are packed into a single byte array using open addressing. This takes
+ * a fraction of the memory of a set of hex strings, and looking up a key
+ * doesn't create any objects.
+ *
+ * Keys can be stored in binary files that contain keys one after the
+ * other without any separators, so that new keys can simply be appended.
+ */
+public class PackedKeySet {
+
+  /**
+   * Number of bytes per key.
+   */
+  private int keyLength;
+
+  /**
+   * Keys in their slots, with the key in slot i starting at
+   * i * keyLength.
+   */
+  private byte[] keys;
+
+  /**
+   * Whether a slot contains a key.
+   */
+  private boolean[] used;
+
+  /**
+   * Number of slots, which is always a power of two.
+   */
+  private int capacity;
+
+  /**
+   * Number of keys in this set.
+   */
+  private int size;
+
+  public PackedKeySet(int keyLength) {
+    this.keyLength = keyLength;
+    this.capacity = 1024;
+    this.keys = new byte[this.capacity * keyLength];
+    this.used = new boolean[this.capacity];
+  }
+
+  /**
+   * Returns the number of bytes per key.
+   */
+  public int getKeyLength() {
+    return this.keyLength;
+  }
+
+  /**
+   * Returns the number of keys in this set.
+   */
+  public int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns whether the key starting at the given offset is contained in
+   * this set.
+   */
+  public boolean contains(byte[] key, int offset) {
+    return this.used[this.findSlot(key, offset)];
+  }
+
+  public boolean contains(byte[] key) {
+    return this.contains(key, 0);
+  }
+
+  /**
+   * Adds the key starting at the given offset to this set and returns
+   * whether it was not contained before.
+   */
+  public boolean add(byte[] key, int offset) {
+    int slot = this.findSlot(key, offset);
+    if (this.used[slot]) {
+      return false;
+    }
+    System.arraycopy(key, offset, this.keys, slot * this.keyLength,
+        this.keyLength);
+    this.used[slot] = true;
+    if (++this.size > this.capacity / 2) {
+      this.grow();
+    }
+    return true;
+  }
+
+  public boolean add(byte[] key) {
+    return this.add(key, 0);
+  }
+
+  /**
+   * Adds all keys contained in the given file. If the file ends with a
+   * partially written key, e.g., because we were interrupted while
+   * appending to it, the file is truncated to its last complete key, so
+   * that we can safely append to it again.
+   */
+  public void readFile(File file) throws IOException {
+    long completeLength = file.length() - file.length() % this.keyLength;
+    if (completeLength < file.length()) {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      raf.setLength(completeLength);
+      raf.close();
+    }
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(
+        new FileInputStream(file)));
+    byte[] buffer = new byte[4096 * this.keyLength];
+    long remaining = completeLength;
+    while (remaining > 0L) {
+      int length = (int) Math.min(buffer.length, remaining);
+      dis.readFully(buffer, 0, length);
+      for (int offset = 0; offset < length; offset += this.keyLength) {
+        this.add(buffer, offset);
+      }
+      remaining -= length;
+    }
+    dis.close();
+  }
+
+  /**
+   * Appends the given keys to a file, creating it if it doesn't exist
+   * yet.
+   */
+  public static void appendToFile(File file, Collection<byte[]> keys)
+      throws IOException {
+    file.getParentFile().mkdirs();
+    BufferedOutputStream bos = new BufferedOutputStream(
+        new FileOutputStream(file, true));
+    for (byte[] key : keys) {
+      bos.write(key);
+    }
+    bos.close();
+  }
+
+  /**
+   * Returns the slot that contains the given key, or the empty slot
+   * where it would be added.
+   */
+  private int findSlot(byte[] key, int offset) {
+    int hash = 1;
+    for (int i = 0; i < this.keyLength; i++) {
+      hash = 31 * hash + key[offset + i];
+    }
+    hash ^= (hash >>> 20) ^ (hash >>> 12);
+    hash ^= (hash >>> 7) ^ (hash >>> 4);
+    int mask = this.capacity - 1, slot = hash & mask;
+    while (this.used[slot] && !this.keyEquals(slot, key, offset)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean keyEquals(int slot, byte[] key, int offset) {
+    int start = slot * this.keyLength;
+    for (int i = 0; i < this.keyLength; i++) {
+      if (this.keys[start + i] != key[offset + i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Doubles the number of slots and adds all keys again.
+   */
+  private void grow() {
+    byte[] oldKeys = this.keys;
+    boolean[] oldUsed = this.used;
+    this.capacity *= 2;
+    this.keys = new byte[this.capacity * this.keyLength];
+    this.used = new boolean[this.capacity];
+    for (int i = 0; i < oldUsed.length; i++) {
+      if (oldUsed[i]) {
+        int offset = i * this.keyLength;
+        int slot = this.findSlot(oldKeys, offset);
+        System.arraycopy(oldKeys, offset, this.keys,
+            slot * this.keyLength, this.keyLength);
+        this.used[slot] = true;
+      }
+    }
+  }
+}
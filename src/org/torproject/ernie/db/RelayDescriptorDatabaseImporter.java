@@ -4,9 +4,10 @@ package org.torproject.ernie.db;
 
 import java.io.*;
 import java.sql.*;
-import java.text.*;
 import java.util.*;
 import java.util.logging.*;
+import org.postgresql.*;
+import org.postgresql.copy.*;
 import org.postgresql.util.*;
 
 /**
@@ -16,95 +17,198 @@ import org.postgresql.util.*;
 public final class RelayDescriptorDatabaseImporter {
 
   /**
-   * How many records to commit with each database transaction.
+   * Rows of a single table that are waiting to be inserted into the
+   * database. Whether rows have been imported before is checked for all
+   * rows of a batch with a single query right before inserting them.
+   * When importing with COPY, rows are kept in the text format that
+   * COPY expects and are copied into a staging table, from which they are
+   * merged into the table.
    */
-  private final long autoCommitCount = 500;
+  private static class TableBatch {
+
+    /**
+     * Table name.
+     */
+    private String table;
+
+    /**
+     * Column names of inserted rows.
+     */
+    private String[] columns;
+
+    /**
+     * SQL types of inserted rows as defined in <code>java.sql.Types</code>.
+     */
+    private int[] types;
+
+    /**
+     * Indexes of the columns that we use to check whether a row, or a
+     * group of rows belonging to the same descriptor, has been imported
+     * before.
+     */
+    private int[] keyColumns;
+
+    /**
+     * Indexes of the primary key columns that we use to remove duplicates
+     * from the staging table and to decide which of its rows are merged
+     * into the table. Rows of the same descriptor may end up in
+     * different merges when a batch is full or when the database rejects
+     * some of them, so that we cannot merge by descriptor key here.
+     */
+    private int[] primaryKeyColumns;
+
+    /**
+     * Prepared statement to insert a row into the table.
+     */
+    private PreparedStatement insert;
+
+    /**
+     * Rows waiting to be copied into the staging table, one line per row.
+     */
+    private StringBuilder copyData = new StringBuilder();
+
+    /**
+     * Number of rows waiting to be copied into the staging table.
+     */
+    private int copyRows;
+
+    /**
+     * Rows waiting to be inserted.
+     */
+    private List<Object[]> rows = new ArrayList<Object[]>();
+
+    /**
+     * Keys of the rows waiting to be inserted, used to skip duplicates
+     * within the same batch.
+     */
+    private Set<List<Object>> keys = new HashSet<List<Object>>();
+
+    private TableBatch(String table, String[] columns, int[] types,
+        int[] keyColumns, int[] primaryKeyColumns) {
+      this.table = table;
+      this.columns = columns;
+      this.types = types;
+      this.keyColumns = keyColumns;
+      this.primaryKeyColumns = primaryKeyColumns;
+    }
+
+    /**
+     * Returns the comma-separated names of the given columns, optionally
+     * prefixed with a table alias.
+     */
+    private String getColumnNames(int[] indexes, String alias) {
+      StringBuilder sb = new StringBuilder();
+      for (int i = 0; i < indexes.length; i++) {
+        sb.append((i > 0 ? ", " : "") + (alias != null ? alias + "." : "")
+            + this.columns[indexes[i]]);
+      }
+      return sb.toString();
+    }
+
+    /**
+     * Returns the comma-separated names of all columns.
+     */
+    private String getColumnNames() {
+      int[] indexes = new int[this.columns.length];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = i;
+      }
+      return this.getColumnNames(indexes, null);
+    }
+
+    /**
+     * Returns the key of the given row, with timestamps converted to
+     * milliseconds.
+     */
+    private List<Object> getKey(Object[] row) {
+      List<Object> key = new ArrayList<Object>(this.keyColumns.length);
+      for (int keyColumn : this.keyColumns) {
+        Object value = row[keyColumn];
+        key.add(value instanceof Timestamp ?
+            (Object) ((Timestamp) value).getTime() : value);
+      }
+      return key;
+    }
+  }
 
   /**
-   * Keep track of the number of records committed before each transaction
+   * Default number of rows to insert and commit with each database
+   * transaction.
    */
-  private int rdsCount = 0;
-  private int resCount = 0;
-  private int rhsCount = 0;
-  private int rrsCount = 0;
-  private int rcsCount = 0;
-  private int rvsCount = 0;
+  public static final int DEFAULT_BATCH_SIZE = 500;
 
   /**
-   * Relay descriptor database connection.
+   * Number of rows per table to insert and commit with each database
+   * transaction.
    */
-  private Connection conn;
+  private int batchSize;
 
   /**
-   * Prepared statement to check whether a given network status consensus
-   * entry has been imported into the database before.
+   * Maximum number of characters of rows per table to keep in memory
+   * before copying them to the database when importing with COPY, even
+   * if there are fewer rows than the batch size.
    */
-  private PreparedStatement psRs;
+  private static final int COPY_BUFFER_CHARS = 4 * 1024 * 1024;
 
   /**
-   * Prepared statement to check whether a given extra-info descriptor has
-   * been imported into the database before.
+   * Should we import rows with COPY via staging tables rather than with
+   * batched inserts?
    */
-  private PreparedStatement psEs;
+  private boolean useCopy;
 
   /**
-   * Prepared statement to check whether the bandwidth history of an
-   * extra-info descriptor has been imported into the database before.
+   * COPY API of the database connection when importing with COPY.
    */
-  private PreparedStatement psHs;
+  private CopyManager copyManager;
 
   /**
-   * Prepared statement to check whether a given server descriptor has
-   * been imported into the database before.
+   * Relay descriptor database connection.
    */
-  private PreparedStatement psDs;
+  private Connection conn;
 
   /**
-   * Prepared statement to check whether a given network status consensus
-   * has been imported into the database before.
+   * Calendar to interpret timestamps in UTC.
    */
-  private PreparedStatement psCs;
+  private Calendar utcCalendar =
+      Calendar.getInstance(TimeZone.getTimeZone("UTC"));
 
   /**
-   * Prepared statement to check whether a given network status vote has
-   * been imported into the database before.
+   * Batch of network status consensus entries.
    */
-  private PreparedStatement psVs;
+  private TableBatch statusentryBatch;
 
   /**
-   * Prepared statement to insert a network status consensus entry into
-   * the database.
+   * Batch of server descriptors.
    */
-  private PreparedStatement psR;
+  private TableBatch descriptorBatch;
 
   /**
-   * Prepared statement to insert a server descriptor into the database.
+   * Batch of extra-info descriptors.
    */
-  private PreparedStatement psD;
+  private TableBatch extrainfoBatch;
 
   /**
-   * Prepared statement to insert an extra-info descriptor into the
-   * database.
+   * Batch of bandwidth history intervals of extra-info descriptors. The
+   * intervals of a descriptor are only inserted if there are no intervals
+   * of that descriptor in the database yet.
    */
-  private PreparedStatement psE;
+  private TableBatch bwhistBatch;
 
   /**
-   * Prepared statement to insert the bandwidth history of an extra-info
-   * descriptor into the database.
+   * Batch of network status consensuses.
    */
-  private PreparedStatement psH;
+  private TableBatch consensusBatch;
 
   /**
-   * Prepared statement to insert a network status consensus into the
-   * database.
+   * Batch of network status votes.
    */
-  private PreparedStatement psC;
+  private TableBatch voteBatch;
 
   /**
-   * Prepared statement to insert a network status vote into the
-   * database.
+   * Number of rows inserted into the database and time spent on
+   * database queries and inserts, to be included in logs.
    */
-  private PreparedStatement psV;
+  private long insertedRows = 0L, databaseMillis = 0L;
 
   /**
    * Logger for this class.
@@ -118,19 +222,31 @@ public final class RelayDescriptorDatabaseImporter {
   private BufferedWriter consensusOut;
   private BufferedWriter voteOut;
 
-  private SimpleDateFormat dateTimeFormat;
-
   /**
    * Initialize database importer by connecting to the database and
    * preparing statements.
    */
   public RelayDescriptorDatabaseImporter(String connectionURL,
       String rawFilesDirectory) {
+    this(connectionURL, rawFilesDirectory, DEFAULT_BATCH_SIZE, false);
+  }
+
+  /**
+   * Initialize database importer by connecting to the database and
+   * preparing statements, inserting up to <code>batchSize</code> rows
+   * per table at once, or, if <code>useCopy</code> is true, by preparing
+   * staging tables for streaming rows into the database with COPY.
+   */
+  public RelayDescriptorDatabaseImporter(String connectionURL,
+      String rawFilesDirectory, int batchSize, boolean useCopy) {
 
     /* Initialize logger. */
     this.logger = Logger.getLogger(
         RelayDescriptorDatabaseImporter.class.getName());
 
+    this.batchSize = batchSize;
+    this.useCopy = useCopy;
+
     if (connectionURL != null) {
       try {
         /* Connect to database. */
@@ -139,43 +255,57 @@ public final class RelayDescriptorDatabaseImporter {
         /* Turn autocommit off */
         this.conn.setAutoCommit(false);
 
-        /* Prepare statements. */
-        this.psRs = conn.prepareStatement("SELECT COUNT(*) "
-            + "FROM statusentry WHERE validafter = ? AND descriptor = ?");
-        this.psDs = conn.prepareStatement("SELECT COUNT(*) "
-            + "FROM descriptor WHERE descriptor = ?");
-        this.psEs = conn.prepareStatement("SELECT COUNT(*) "
-            + "FROM extrainfo WHERE extrainfo = ?");
-        this.psHs = conn.prepareStatement("SELECT COUNT(*) "
-            + "FROM bwhist WHERE extrainfo = ?");
-        this.psCs = conn.prepareStatement("SELECT COUNT(*) "
-            + "FROM consensus WHERE validafter = ?");
-        this.psVs = conn.prepareStatement("SELECT COUNT(*) "
-            + "FROM vote WHERE validafter = ? AND dirsource = ?");
-        this.psR = conn.prepareStatement("INSERT INTO statusentry "
-            + "(validafter, nickname, fingerprint, descriptor, "
-            + "published, address, orport, dirport, isauthority, "
-            + "isbadexit, isbaddirectory, isexit, isfast, isguard, "
-            + "ishsdir, isnamed, isstable, isrunning, isunnamed, "
-            + "isvalid, isv2dir, isv3dir, version, bandwidth, ports, "
-            + "rawdesc) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, "
-            + "?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-        this.psD = conn.prepareStatement("INSERT INTO descriptor "
-            + "(descriptor, nickname, address, orport, dirport, "
-            + "fingerprint, bandwidthavg, bandwidthburst, "
-            + "bandwidthobserved, platform, published, uptime, "
-            + "extrainfo, rawdesc) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, "
-            + "?, ?, ?, ?)");
-        this.psE = conn.prepareStatement("INSERT INTO extrainfo "
-            + "(extrainfo, nickname, fingerprint, published, rawdesc) "
-            + "VALUES (?, ?, ?, ?, ?)");
-        this.psH = conn.prepareStatement("INSERT INTO bwhist "
-            + "(fingerprint, extrainfo, intervalend, read, written, "
-            + "dirread, dirwritten) VALUES (?, ?, ?, ?, ?, ?, ?)");
-        this.psC = conn.prepareStatement("INSERT INTO consensus "
-            + "(validafter, rawdesc) VALUES (?, ?)");
-        this.psV = conn.prepareStatement("INSERT INTO vote "
-            + "(validafter, dirsource, rawdesc) VALUES (?, ?, ?)");
+        /* Prepare COPY. */
+        if (this.useCopy) {
+          this.copyManager = ((PGConnection) this.conn).getCopyAPI();
+        }
+
+        /* Prepare batches. */
+        this.statusentryBatch = this.prepareBatch("statusentry",
+            new String[] { "validafter", "nickname", "fingerprint",
+            "descriptor", "published", "address", "orport", "dirport",
+            "isauthority", "isbadexit", "isbaddirectory", "isexit",
+            "isfast", "isguard", "ishsdir", "isnamed", "isstable",
+            "isrunning", "isunnamed", "isvalid", "isv2dir", "isv3dir",
+            "version", "bandwidth", "ports", "rawdesc" },
+            new int[] { Types.TIMESTAMP, Types.VARCHAR, Types.VARCHAR,
+            Types.VARCHAR, Types.TIMESTAMP, Types.VARCHAR, Types.BIGINT,
+            Types.BIGINT, Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN,
+            Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN,
+            Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN,
+            Types.BOOLEAN, Types.BOOLEAN, Types.BOOLEAN, Types.VARCHAR,
+            Types.BIGINT, Types.VARCHAR, Types.BINARY },
+            new int[] { 0, 3 }, new int[] { 0, 2 });
+        this.descriptorBatch = this.prepareBatch("descriptor",
+            new String[] { "descriptor", "nickname", "address", "orport",
+            "dirport", "fingerprint", "bandwidthavg", "bandwidthburst",
+            "bandwidthobserved", "platform", "published", "uptime",
+            "extrainfo", "rawdesc" },
+            new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.INTEGER, Types.INTEGER, Types.VARCHAR, Types.BIGINT,
+            Types.BIGINT, Types.BIGINT, Types.VARCHAR, Types.TIMESTAMP,
+            Types.BIGINT, Types.VARCHAR, Types.BINARY },
+            new int[] { 0 }, new int[] { 0 });
+        this.extrainfoBatch = this.prepareBatch("extrainfo",
+            new String[] { "extrainfo", "nickname", "fingerprint",
+            "published", "rawdesc" },
+            new int[] { Types.VARCHAR, Types.VARCHAR, Types.VARCHAR,
+            Types.TIMESTAMP, Types.BINARY },
+            new int[] { 0 }, new int[] { 0 });
+        this.bwhistBatch = this.prepareBatch("bwhist",
+            new String[] { "fingerprint", "extrainfo", "intervalend",
+            "read", "written", "dirread", "dirwritten" },
+            new int[] { Types.VARCHAR, Types.VARCHAR, Types.TIMESTAMP,
+            Types.BIGINT, Types.BIGINT, Types.BIGINT, Types.BIGINT },
+            new int[] { 1 }, new int[] { 1, 2 });
+        this.consensusBatch = this.prepareBatch("consensus",
+            new String[] { "validafter", "rawdesc" },
+            new int[] { Types.TIMESTAMP, Types.BINARY },
+            new int[] { 0 }, new int[] { 0 });
+        this.voteBatch = this.prepareBatch("vote",
+            new String[] { "validafter", "dirsource", "rawdesc" },
+            new int[] { Types.TIMESTAMP, Types.VARCHAR, Types.BINARY },
+            new int[] { 0, 1 }, new int[] { 0, 1 });
       } catch (SQLException e) {
         this.logger.log(Level.WARNING, "Could not connect to database or "
             + "prepare statements.", e);
@@ -201,9 +331,300 @@ public final class RelayDescriptorDatabaseImporter {
         this.logger.log(Level.WARNING, "Could not open raw database "
             + "import files.", e);
       }
+    }
+  }
+
+  /**
+   * Prepares the insert statement and, when importing with COPY, the
+   * staging table for the given table and returns an empty batch.
+   */
+  private TableBatch prepareBatch(String table, String[] columns,
+      int[] types, int[] keyColumns, int[] primaryKeyColumns)
+      throws SQLException {
+    TableBatch batch = new TableBatch(table, columns, types, keyColumns,
+        primaryKeyColumns);
+    if (this.useCopy) {
+      Statement statement = this.conn.createStatement();
+      statement.execute("CREATE TEMPORARY TABLE " + table + "_staging "
+          + "(LIKE " + table + ") ON COMMIT DELETE ROWS");
+      statement.close();
+
+      /* Commit the staging table right away, or a rollback after a
+       * failed merge would drop it again. */
+      this.conn.commit();
+    }
+    StringBuilder sb = new StringBuilder("INSERT INTO " + table + " (");
+    StringBuilder values = new StringBuilder();
+    for (int i = 0; i < columns.length; i++) {
+      sb.append((i > 0 ? ", " : "") + columns[i]);
+      values.append(i > 0 ? ", ?" : "?");
+    }
+    sb.append(") VALUES (" + values.toString() + ")");
+    batch.insert = this.conn.prepareStatement(sb.toString());
+    return batch;
+  }
+
+  /**
+   * Adds a row to a batch, unless a row with the same key is already
+   * waiting to be inserted, and inserts the batch once it is full.
+   */
+  private void addRow(TableBatch batch, Object[] row)
+      throws SQLException {
+    if (batch.keys.add(batch.getKey(row))) {
+      batch.rows.add(row);
+      if (batch.rows.size() >= this.batchSize) {
+        this.flush(batch);
+      }
+    }
+  }
 
-      this.dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-      this.dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+  /**
+   * Adds a group of rows sharing the same key to a batch, unless rows
+   * with that key are already waiting to be inserted, and inserts the
+   * batch once it is full.
+   */
+  private void addRows(TableBatch batch, List<Object[]> rows)
+      throws SQLException {
+    if (!rows.isEmpty() && batch.keys.add(batch.getKey(rows.get(0)))) {
+      batch.rows.addAll(rows);
+      if (batch.rows.size() >= this.batchSize) {
+        this.flush(batch);
+      }
+    }
+  }
+
+  /**
+   * Sets a statement parameter to the given value of the given SQL type.
+   */
+  private void setParameter(PreparedStatement ps, int index, int type,
+      Object value) throws SQLException {
+    if (value == null) {
+      ps.setNull(index, type);
+    } else if (type == Types.TIMESTAMP) {
+      ps.setTimestamp(index, (Timestamp) value, this.utcCalendar);
+    } else if (type == Types.BINARY) {
+      ps.setBytes(index, (byte[]) value);
+    } else if (type == Types.BIGINT) {
+      ps.setLong(index, (Long) value);
+    } else if (type == Types.INTEGER) {
+      ps.setInt(index, (Integer) value);
+    } else if (type == Types.BOOLEAN) {
+      ps.setBoolean(index, (Boolean) value);
+    } else {
+      ps.setString(index, (String) value);
+    }
+  }
+
+  /**
+   * Looks up which of the keys in the given batch exist in the database
+   * already, using a single query.
+   */
+  private Set<List<Object>> findExistingKeys(TableBatch batch)
+      throws SQLException {
+    StringBuilder keyColumns = new StringBuilder(), keyValues =
+        new StringBuilder(batch.keyColumns.length == 1 ? "?" : "(?");
+    for (int i = 0; i < batch.keyColumns.length; i++) {
+      keyColumns.append((i > 0 ? ", " : "")
+          + batch.columns[batch.keyColumns[i]]);
+      if (i > 0) {
+        keyValues.append(", ?");
+      }
+    }
+    if (batch.keyColumns.length > 1) {
+      keyValues.append(")");
+    }
+    StringBuilder sb = new StringBuilder("SELECT DISTINCT "
+        + keyColumns.toString() + " FROM " + batch.table + " WHERE "
+        + (batch.keyColumns.length > 1 ? "(" + keyColumns.toString()
+        + ")" : keyColumns.toString()) + " IN (");
+    for (int i = 0; i < batch.keys.size(); i++) {
+      sb.append((i > 0 ? ", " : "") + keyValues.toString());
+    }
+    sb.append(")");
+    PreparedStatement ps = this.conn.prepareStatement(sb.toString());
+    int index = 1;
+    for (List<Object> key : batch.keys) {
+      for (int i = 0; i < batch.keyColumns.length; i++) {
+        Object value = key.get(i);
+        this.setParameter(ps, index++,
+            batch.types[batch.keyColumns[i]],
+            value instanceof Long &&
+            batch.types[batch.keyColumns[i]] == Types.TIMESTAMP ?
+            new Timestamp((Long) value) : value);
+      }
+    }
+    Set<List<Object>> existingKeys = new HashSet<List<Object>>();
+    ResultSet rs = ps.executeQuery();
+    while (rs.next()) {
+      List<Object> key = new ArrayList<Object>(batch.keyColumns.length);
+      for (int i = 0; i < batch.keyColumns.length; i++) {
+        if (batch.types[batch.keyColumns[i]] == Types.TIMESTAMP) {
+          key.add(rs.getTimestamp(i + 1, this.utcCalendar).getTime());
+        } else {
+          key.add(rs.getString(i + 1));
+        }
+      }
+      existingKeys.add(key);
+    }
+    rs.close();
+    ps.close();
+    return existingKeys;
+  }
+
+  /**
+   * Inserts all rows of a batch that have not been imported before and
+   * commits them.
+   */
+  private void flush(TableBatch batch) throws SQLException {
+    if (this.useCopy) {
+      this.copyAndMerge(batch);
+      return;
+    }
+    if (batch.rows.isEmpty()) {
+      return;
+    }
+    long started = System.currentTimeMillis();
+    try {
+      Set<List<Object>> existingKeys = this.findExistingKeys(batch);
+      int inserted = 0;
+      for (Object[] row : batch.rows) {
+        if (existingKeys.contains(batch.getKey(row))) {
+          continue;
+        }
+        for (int i = 0; i < row.length; i++) {
+          this.setParameter(batch.insert, i + 1, batch.types[i], row[i]);
+        }
+        batch.insert.addBatch();
+        inserted++;
+      }
+      if (inserted > 0) {
+        batch.insert.executeBatch();
+      }
+      this.conn.commit();
+      this.insertedRows += inserted;
+    } catch (SQLException e) {
+      this.conn.rollback();
+      throw e;
+    } finally {
+      batch.rows.clear();
+      batch.keys.clear();
+      this.databaseMillis += System.currentTimeMillis() - started;
+    }
+  }
+
+  /**
+   * Adds a line in COPY text format to a batch and copies the batch into
+   * the database once it contains as many rows as the batch size or its
+   * buffer is full.
+   */
+  private void addCopyData(TableBatch batch, String line)
+      throws SQLException {
+    batch.copyData.append(line);
+    if (++batch.copyRows >= this.batchSize ||
+        batch.copyData.length() >= COPY_BUFFER_CHARS) {
+      this.copyAndMerge(batch);
+    }
+  }
+
+  /**
+   * Copies the rows of a batch into its staging table and merges those
+   * rows into the table that are not contained in the table yet.
+   */
+  private void copyAndMerge(TableBatch batch) throws SQLException {
+    if (batch.copyRows == 0) {
+      return;
+    }
+    long started = System.currentTimeMillis();
+    String data = batch.copyData.toString();
+    int rows = batch.copyRows;
+    batch.copyData.setLength(0);
+    batch.copyRows = 0;
+    try {
+      this.copyAndMerge(batch, data);
+    } catch (SQLException e) {
+      this.logger.warning("Could not copy all of " + rows + " rows "
+          + "into table " + batch.table + ". Skipping the rest.");
+      throw e;
+    } finally {
+      this.databaseMillis += System.currentTimeMillis() - started;
+    }
+  }
+
+  /**
+   * Copies the given lines in COPY text format into the staging table of
+   * a batch and merges those rows into the table whose primary keys are
+   * not contained in the table yet, all in one transaction. The staging
+   * table is emptied on commit.
+   *
+   * If the database rejects the data, for example because a single row
+   * contains a value that doesn't fit into its column, we copy the two
+   * halves of the lines separately, so that only the rejected rows are
+   * skipped. All other errors are passed on.
+   */
+  private void copyAndMerge(TableBatch batch, String data)
+      throws SQLException {
+    String columnNames = batch.getColumnNames();
+    try {
+      this.copyManager.copyIn("COPY " + batch.table + "_staging ("
+          + columnNames + ") FROM STDIN", new StringReader(data));
+      StringBuilder keyCondition = new StringBuilder();
+      for (int i = 0; i < batch.primaryKeyColumns.length; i++) {
+        String column = batch.columns[batch.primaryKeyColumns[i]];
+        keyCondition.append((i > 0 ? " AND " : "") + "t." + column
+            + " = s." + column);
+      }
+      Statement statement = this.conn.createStatement();
+      int inserted = statement.executeUpdate("INSERT INTO " + batch.table
+          + " (" + columnNames + ") SELECT DISTINCT ON ("
+          + batch.getColumnNames(batch.primaryKeyColumns, "s") + ") "
+          + columnNames + " FROM " + batch.table + "_staging s WHERE NOT "
+          + "EXISTS (SELECT 1 FROM " + batch.table + " t WHERE "
+          + keyCondition.toString() + ")");
+      statement.close();
+      this.conn.commit();
+      this.insertedRows += inserted;
+    } catch (IOException e) {
+      this.conn.rollback();
+      throw new SQLException("Could not copy rows into staging table "
+          + batch.table + "_staging: " + e.getMessage());
+    } catch (SQLException e) {
+      this.conn.rollback();
+
+      /* SQL states of class 22 (data exception) and 23 (integrity
+       * constraint violation) tell us that some of the rows were
+       * rejected, not that the database is unavailable. */
+      String state = e.getSQLState();
+      if (state == null || !(state.startsWith("22") ||
+          state.startsWith("23"))) {
+        throw e;
+      }
+      int split = data.indexOf('\n', data.length() / 2);
+      if (split == data.length() - 1) {
+        split = data.lastIndexOf('\n', data.length() / 2 - 1);
+      }
+      if (split < 0) {
+        this.logger.warning("Skipping row that could not be copied "
+            + "into table " + batch.table + ": " + e.getMessage()
+            + " Row starts with: " + data.substring(0,
+            Math.min(data.length(), 200)));
+        return;
+      }
+      this.copyAndMerge(batch, data.substring(0, split + 1));
+      this.copyAndMerge(batch, data.substring(split + 1));
+    }
+  }
+
+  /**
+   * Writes a line in COPY text format to a raw import file and, when
+   * importing with COPY, adds it to the batch of the corresponding table.
+   */
+  private void writeLine(BufferedWriter out, TableBatch batch,
+      String line) throws IOException, SQLException {
+    if (out != null) {
+      out.write(line);
+    }
+    if (batch != null && this.useCopy) {
+      this.addCopyData(batch, line);
     }
   }
 
@@ -216,55 +637,25 @@ public final class RelayDescriptorDatabaseImporter {
       SortedSet<String> flags, String version, long bandwidth,
       String ports, byte[] rawDescriptor) {
     try {
-      if (this.psRs != null && this.psR != null) {
-        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        Timestamp validAfterTimestamp = new Timestamp(validAfter);
-        this.psRs.setTimestamp(1, validAfterTimestamp, cal);
-        this.psRs.setString(2, descriptor);
-        ResultSet rs = psRs.executeQuery();
-        rs.next();
-        if (rs.getInt(1) == 0) {
-          this.psR.clearParameters();
-          this.psR.setTimestamp(1, validAfterTimestamp, cal);
-          this.psR.setString(2, nickname);
-          this.psR.setString(3, fingerprint);
-          this.psR.setString(4, descriptor);
-          this.psR.setTimestamp(5, new Timestamp(published), cal);
-          this.psR.setString(6, address);
-          this.psR.setLong(7, orPort);
-          this.psR.setLong(8, dirPort);
-          this.psR.setBoolean(9, flags.contains("Authority"));
-          this.psR.setBoolean(10, flags.contains("BadExit"));
-          this.psR.setBoolean(11, flags.contains("BadDirectory"));
-          this.psR.setBoolean(12, flags.contains("Exit"));
-          this.psR.setBoolean(13, flags.contains("Fast"));
-          this.psR.setBoolean(14, flags.contains("Guard"));
-          this.psR.setBoolean(15, flags.contains("HSDir"));
-          this.psR.setBoolean(16, flags.contains("Named"));
-          this.psR.setBoolean(17, flags.contains("Stable"));
-          this.psR.setBoolean(18, flags.contains("Running"));
-          this.psR.setBoolean(19, flags.contains("Unnamed"));
-          this.psR.setBoolean(20, flags.contains("Valid"));
-          this.psR.setBoolean(21, flags.contains("V2Dir"));
-          this.psR.setBoolean(22, flags.contains("V3Dir"));
-          this.psR.setString(23, version);
-          this.psR.setLong(24, bandwidth);
-          this.psR.setString(25, ports);
-          this.psR.setBytes(26, rawDescriptor);
-          this.psR.executeUpdate();
-          rrsCount++;
-          if (rrsCount % autoCommitCount == 0)  {
-            this.conn.commit();
-            rrsCount = 0;
-          }
-        }
+      if (this.statusentryBatch != null && !this.useCopy) {
+        this.addRow(this.statusentryBatch, new Object[] {
+            new Timestamp(validAfter), nickname, fingerprint, descriptor,
+            new Timestamp(published), address, orPort, dirPort,
+            flags.contains("Authority"), flags.contains("BadExit"),
+            flags.contains("BadDirectory"), flags.contains("Exit"),
+            flags.contains("Fast"), flags.contains("Guard"),
+            flags.contains("HSDir"), flags.contains("Named"),
+            flags.contains("Stable"), flags.contains("Running"),
+            flags.contains("Unnamed"), flags.contains("Valid"),
+            flags.contains("V2Dir"), flags.contains("V3Dir"), version,
+            bandwidth, ports, rawDescriptor });
       }
-      if (this.statusentryOut != null) {
-        this.statusentryOut.write(
-            this.dateTimeFormat.format(validAfter) + "\t" + nickname
-            + "\t" + fingerprint.toLowerCase() + "\t"
+      if (this.statusentryOut != null ||
+          (this.statusentryBatch != null && this.useCopy)) {
+        String line = TimestampCodec.formatDateTime(validAfter) + "\t"
+            + nickname + "\t" + fingerprint.toLowerCase() + "\t"
             + descriptor.toLowerCase() + "\t"
-            + this.dateTimeFormat.format(published) + "\t" + address
+            + TimestampCodec.formatDateTime(published) + "\t" + address
             + "\t" + orPort + "\t" + dirPort + "\t"
             + (flags.contains("Authority") ? "t" : "f") + "\t"
             + (flags.contains("BadExit") ? "t" : "f") + "\t"
@@ -282,9 +673,10 @@ public final class RelayDescriptorDatabaseImporter {
             + (flags.contains("V3Dir") ? "t" : "f") + "\t"
             + (version != null ? version : "\\N") + "\t"
             + (bandwidth >= 0 ? bandwidth : "\\N") + "\t"
-            + (ports != null ? ports : "\\N") + "\t");
-        this.statusentryOut.write(PGbytea.toPGString(rawDescriptor).
-            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n");
+            + (ports != null ? ports : "\\N") + "\t"
+            + PGbytea.toPGString(rawDescriptor).
+            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n";
+        this.writeLine(this.statusentryOut, this.statusentryBatch, line);
       }
     } catch (SQLException e) {
       this.logger.log(Level.WARNING, "Could not add network status "
@@ -304,48 +696,28 @@ public final class RelayDescriptorDatabaseImporter {
       String platform, long published, long uptime,
       String extraInfoDigest, byte[] rawDescriptor) {
     try {
-      if (this.psDs != null && this.psD != null) {
-        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        this.psDs.setString(1, descriptor);
-        ResultSet rs = psDs.executeQuery();
-        rs.next();
-        if (rs.getInt(1) == 0) {
-          this.psD.clearParameters();
-          this.psD.setString(1, descriptor);
-          this.psD.setString(2, nickname);
-          this.psD.setString(3, address);
-          this.psD.setInt(4, orPort);
-          this.psD.setInt(5, dirPort);
-          this.psD.setString(6, relayIdentifier);
-          this.psD.setLong(7, bandwidthAvg);
-          this.psD.setLong(8, bandwidthBurst);
-          this.psD.setLong(9, bandwidthObserved);
-          this.psD.setString(10, new String(platform.getBytes(),
-              "US-ASCII"));
-          this.psD.setTimestamp(11, new Timestamp(published), cal);
-          this.psD.setLong(12, uptime);
-          this.psD.setString(13, extraInfoDigest);
-          this.psD.setBytes(14, rawDescriptor);
-          this.psD.executeUpdate();
-          rdsCount++;
-          if (rdsCount % autoCommitCount == 0)  {
-            this.conn.commit();
-            rdsCount = 0;
-          }
-        }
+      if (this.descriptorBatch != null && !this.useCopy) {
+        this.addRow(this.descriptorBatch, new Object[] { descriptor,
+            nickname, address, orPort, dirPort, relayIdentifier,
+            bandwidthAvg, bandwidthBurst, bandwidthObserved,
+            new String(platform.getBytes(), "US-ASCII"),
+            new Timestamp(published), uptime, extraInfoDigest,
+            rawDescriptor });
       }
-      if (this.descriptorOut != null) {
-        this.descriptorOut.write(descriptor.toLowerCase() + "\t"
+      if (this.descriptorOut != null ||
+          (this.descriptorBatch != null && this.useCopy)) {
+        String line = descriptor.toLowerCase() + "\t"
             + nickname + "\t" + address + "\t" + orPort + "\t" + dirPort
             + "\t" + relayIdentifier + "\t" + bandwidthAvg + "\t"
             + bandwidthBurst + "\t" + bandwidthObserved + "\t"
             + (platform != null && platform.length() > 0
             ? new String(platform.getBytes(), "US-ASCII") : "\\N") + "\t"
-            + this.dateTimeFormat.format(published) + "\t"
+            + TimestampCodec.formatDateTime(published) + "\t"
             + (uptime >= 0 ? uptime : "\\N") + "\t"
-            + (extraInfoDigest != null ? extraInfoDigest : "\\N") + "\t");
-        this.descriptorOut.write(PGbytea.toPGString(rawDescriptor).
-            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n");
+            + (extraInfoDigest != null ? extraInfoDigest : "\\N") + "\t"
+            + PGbytea.toPGString(rawDescriptor).
+            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n";
+        this.writeLine(this.descriptorOut, this.descriptorBatch, line);
       }
     } catch (UnsupportedEncodingException e) {
       this.logger.log(Level.WARNING, "Could not add server descriptor.",
@@ -366,126 +738,84 @@ public final class RelayDescriptorDatabaseImporter {
       String nickname, String fingerprint, long published,
       byte[] rawDescriptor, SortedMap<String, String> bandwidthHistory) {
     try {
-      Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-      if (this.psEs != null && this.psE != null) {
-        this.psEs.setString(1, extraInfoDigest);
-        ResultSet rs = psEs.executeQuery();
-        rs.next();
-        if (rs.getInt(1) == 0) {
-          this.psE.clearParameters();
-          this.psE.setString(1, extraInfoDigest);
-          this.psE.setString(2, nickname);
-          this.psE.setString(3, fingerprint);
-          this.psE.setTimestamp(4, new Timestamp(published), cal);
-          this.psE.setBytes(5, rawDescriptor);
-          this.psE.executeUpdate();
-          resCount++;
-          if (resCount % autoCommitCount == 0)  {
-            this.conn.commit();
-            resCount = 0;
-          }
-        }
+      if (this.extrainfoBatch != null && !this.useCopy) {
+        this.addRow(this.extrainfoBatch, new Object[] { extraInfoDigest,
+            nickname, fingerprint, new Timestamp(published),
+            rawDescriptor });
       }
-      if ((this.psHs != null && this.psH != null) ||
-          this.bwhistOut != null) {
-        boolean addToDatabase = false;
-        if (psHs != null && this.psH != null) {
-          this.psHs.setString(1, extraInfoDigest);
-          ResultSet rs = this.psHs.executeQuery();
-          rs.next();
-          if (rs.getInt(1) == 0) {
-            addToDatabase = true;
-          }
-        }
-        if (addToDatabase || this.bwhistOut != null) {
-          String lastIntervalEnd = null;
-          List<String> bandwidthHistoryValues = new ArrayList<String>();
-          bandwidthHistoryValues.addAll(bandwidthHistory.values());
-          bandwidthHistoryValues.add("EOL");
-          String readBytes = null, writtenBytes = null,
-              dirReadBytes = null, dirWrittenBytes = null;
-          for (String bandwidthHistoryValue : bandwidthHistoryValues) {
-            String[] entryParts = bandwidthHistoryValue.split(",");
-            String intervalEnd = entryParts[0];
-            if ((intervalEnd.equals("EOL") ||
-                !intervalEnd.equals(lastIntervalEnd)) &&
-                lastIntervalEnd != null) {
-              if (addToDatabase) {
-                this.psH.clearParameters();
-                this.psH.setString(1, fingerprint);
-                this.psH.setString(2, extraInfoDigest);
-                try {
-                  this.psH.setTimestamp(3, new Timestamp(Long.parseLong(
-                      lastIntervalEnd)), cal);
-                  if (readBytes != null) {
-                    this.psH.setLong(4, Long.parseLong(readBytes));
-                  } else {
-                    this.psH.setNull(4, Types.BIGINT);
-                  }
-                  if (writtenBytes != null) {
-                    this.psH.setLong(5, Long.parseLong(writtenBytes));
-                  } else {
-                    this.psH.setNull(5, Types.BIGINT);
-                  }
-                  if (dirReadBytes != null) {
-                    this.psH.setLong(6, Long.parseLong(dirReadBytes));
-                  } else {
-                    this.psH.setNull(6, Types.BIGINT);
-                  }
-                  if (dirWrittenBytes != null) {
-                    this.psH.setLong(7, Long.parseLong(dirWrittenBytes));
-                  } else {
-                    this.psH.setNull(7, Types.BIGINT);
-                  }
-                } catch (NumberFormatException e) {
-                  break;
-                }
-                this.psH.executeUpdate();
+      if (this.bwhistBatch != null || this.bwhistOut != null) {
+        List<Object[]> bwhistRows = new ArrayList<Object[]>();
+        String lastIntervalEnd = null;
+        List<String> bandwidthHistoryValues = new ArrayList<String>();
+        bandwidthHistoryValues.addAll(bandwidthHistory.values());
+        bandwidthHistoryValues.add("EOL");
+        String readBytes = null, writtenBytes = null,
+            dirReadBytes = null, dirWrittenBytes = null;
+        for (String bandwidthHistoryValue : bandwidthHistoryValues) {
+          String[] entryParts = bandwidthHistoryValue.split(",");
+          String intervalEnd = entryParts[0];
+          if ((intervalEnd.equals("EOL") ||
+              !intervalEnd.equals(lastIntervalEnd)) &&
+              lastIntervalEnd != null) {
+            if (this.bwhistBatch != null && !this.useCopy) {
+              try {
+                bwhistRows.add(new Object[] { fingerprint,
+                    extraInfoDigest,
+                    new Timestamp(Long.parseLong(lastIntervalEnd)),
+                    readBytes != null ? Long.parseLong(readBytes) : null,
+                    writtenBytes != null ? Long.parseLong(writtenBytes)
+                    : null,
+                    dirReadBytes != null ? Long.parseLong(dirReadBytes)
+                    : null,
+                    dirWrittenBytes != null ?
+                    Long.parseLong(dirWrittenBytes) : null });
+              } catch (NumberFormatException e) {
+                break;
               }
-              if (this.bwhistOut != null) {
-               this.bwhistOut.write(fingerprint.toLowerCase() + "\t"
-                   + extraInfoDigest.toLowerCase() + "\t"
-                   + this.dateTimeFormat.format(Long.parseLong(
-                   lastIntervalEnd)) + "\t"
-                   + (readBytes != null ? readBytes : "\\N") + "\t"
-                   + (writtenBytes != null ? writtenBytes : "\\N") + "\t"
-                   + (dirReadBytes != null ? dirReadBytes : "\\N") + "\t"
-                   + (dirWrittenBytes != null ? dirWrittenBytes : "\\N")
-                   + "\n");
-              }
-              readBytes = writtenBytes = dirReadBytes = dirWrittenBytes = null;
-            }
-            if (intervalEnd.equals("EOL")) {
-              break;
             }
-            lastIntervalEnd = intervalEnd;
-            String type = entryParts[1];
-            String bytes = entryParts[2];
-            if (type.equals("read-history")) {
-              readBytes = bytes;
-            } else if (type.equals("write-history")) {
-              writtenBytes = bytes;
-            } else if (type.equals("dirreq-read-history")) {
-              dirReadBytes = bytes;
-            } else if (type.equals("dirreq-write-history")) {
-              dirWrittenBytes = bytes;
+            if (this.bwhistOut != null ||
+                (this.bwhistBatch != null && this.useCopy)) {
+             this.writeLine(this.bwhistOut, this.bwhistBatch,
+                 fingerprint.toLowerCase() + "\t"
+                 + extraInfoDigest.toLowerCase() + "\t"
+                 + TimestampCodec.formatDateTime(Long.parseLong(
+                 lastIntervalEnd)) + "\t"
+                 + (readBytes != null ? readBytes : "\\N") + "\t"
+                 + (writtenBytes != null ? writtenBytes : "\\N") + "\t"
+                 + (dirReadBytes != null ? dirReadBytes : "\\N") + "\t"
+                 + (dirWrittenBytes != null ? dirWrittenBytes : "\\N")
+                 + "\n");
             }
+            readBytes = writtenBytes = dirReadBytes = dirWrittenBytes = null;
           }
-          if (addToDatabase) {
-            rhsCount++;
-            if (rhsCount % autoCommitCount == 0)  {
-              this.conn.commit();
-              rhsCount = 0;
-            }
+          if (intervalEnd.equals("EOL")) {
+            break;
+          }
+          lastIntervalEnd = intervalEnd;
+          String type = entryParts[1];
+          String bytes = entryParts[2];
+          if (type.equals("read-history")) {
+            readBytes = bytes;
+          } else if (type.equals("write-history")) {
+            writtenBytes = bytes;
+          } else if (type.equals("dirreq-read-history")) {
+            dirReadBytes = bytes;
+          } else if (type.equals("dirreq-write-history")) {
+            dirWrittenBytes = bytes;
           }
         }
+        if (this.bwhistBatch != null && !this.useCopy) {
+          this.addRows(this.bwhistBatch, bwhistRows);
+        }
       }
-      if (this.extrainfoOut != null) {
-        this.extrainfoOut.write(extraInfoDigest.toLowerCase() + "\t"
+      if (this.extrainfoOut != null ||
+          (this.extrainfoBatch != null && this.useCopy)) {
+        String line = extraInfoDigest.toLowerCase() + "\t"
             + nickname + "\t" + fingerprint.toLowerCase() + "\t"
-            + this.dateTimeFormat.format(published) + "\t");
-        this.extrainfoOut.write(PGbytea.toPGString(rawDescriptor).
-            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n");
+            + TimestampCodec.formatDateTime(published) + "\t"
+            + PGbytea.toPGString(rawDescriptor).
+            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n";
+        this.writeLine(this.extrainfoOut, this.extrainfoBatch, line);
       }
     } catch (SQLException e) {
       this.logger.log(Level.WARNING, "Could not add extra-info "
@@ -501,29 +831,16 @@ public final class RelayDescriptorDatabaseImporter {
    */
   public void addConsensus(long validAfter, byte[] rawDescriptor) {
     try {
-      if (this.psCs != null && this.psC != null) {
-        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        Timestamp validAfterTimestamp = new Timestamp(validAfter);
-        this.psCs.setTimestamp(1, validAfterTimestamp, cal);
-        ResultSet rs = psCs.executeQuery();
-        rs.next();
-        if (rs.getInt(1) == 0) {
-          this.psC.clearParameters();
-          this.psC.setTimestamp(1, validAfterTimestamp, cal);
-          this.psC.setBytes(2, rawDescriptor);
-          this.psC.executeUpdate();
-          rcsCount++;
-          if (rcsCount % autoCommitCount == 0)  {
-            this.conn.commit();
-            rcsCount = 0;
-          }
-        }
+      if (this.consensusBatch != null && !this.useCopy) {
+        this.addRow(this.consensusBatch, new Object[] {
+            new Timestamp(validAfter), rawDescriptor });
       }
-      if (this.consensusOut != null) {
-        this.consensusOut.write(this.dateTimeFormat.format(validAfter)
-            + "\t");
-        this.consensusOut.write(PGbytea.toPGString(rawDescriptor).
-            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n");
+      if (this.consensusOut != null ||
+          (this.consensusBatch != null && this.useCopy)) {
+        String line = TimestampCodec.formatDateTime(validAfter) + "\t"
+            + PGbytea.toPGString(rawDescriptor).
+            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n";
+        this.writeLine(this.consensusOut, this.consensusBatch, line);
       }
     } catch (SQLException e) {
       this.logger.log(Level.WARNING, "Could not add network status "
@@ -540,31 +857,17 @@ public final class RelayDescriptorDatabaseImporter {
   public void addVote(long validAfter, String dirSource,
       byte[] rawDescriptor) {
     try {
-      if (this.psVs != null && this.psV != null) {
-        Calendar cal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
-        Timestamp validAfterTimestamp = new Timestamp(validAfter);
-        this.psVs.setTimestamp(1, validAfterTimestamp, cal);
-        this.psVs.setString(2, dirSource);
-        ResultSet rs = psVs.executeQuery();
-        rs.next();
-        if (rs.getInt(1) == 0) {
-          this.psV.clearParameters();
-          this.psV.setTimestamp(1, validAfterTimestamp, cal);
-          this.psV.setString(2, dirSource);
-          this.psV.setBytes(3, rawDescriptor);
-          this.psV.executeUpdate();
-          rvsCount++;
-          if (rvsCount % autoCommitCount == 0)  {
-            this.conn.commit();
-            rvsCount = 0;
-          }
-        }
+      if (this.voteBatch != null && !this.useCopy) {
+        this.addRow(this.voteBatch, new Object[] {
+            new Timestamp(validAfter), dirSource, rawDescriptor });
       }
-      if (this.voteOut != null) {
-        this.voteOut.write(this.dateTimeFormat.format(validAfter) + "\t"
-            + dirSource + "\t");
-        this.voteOut.write(PGbytea.toPGString(rawDescriptor).
-            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n");
+      if (this.voteOut != null ||
+          (this.voteBatch != null && this.useCopy)) {
+        String line = TimestampCodec.formatDateTime(validAfter) + "\t"
+            + dirSource + "\t"
+            + PGbytea.toPGString(rawDescriptor).
+            replaceAll("\\\\\\\\", "\\\\\\\\\\\\\\\\") + "\n";
+        this.writeLine(this.voteOut, this.voteBatch, line);
       }
     } catch (SQLException e) {
       this.logger.log(Level.WARNING, "Could not add network status vote.",
@@ -579,14 +882,27 @@ public final class RelayDescriptorDatabaseImporter {
    * Close the relay descriptor database connection.
    */
   public void closeConnection() {
-    /* commit any stragglers before closing */
+    /* insert and commit any stragglers before closing */
     if (this.conn != null) {
-      try {
-        this.conn.commit();
-      } catch (SQLException e)  {
-        this.logger.log(Level.WARNING, "Could not commit final records to "
-            + "database", e);
+      TableBatch[] batches = new TableBatch[] { this.statusentryBatch,
+          this.descriptorBatch, this.extrainfoBatch, this.bwhistBatch,
+          this.consensusBatch, this.voteBatch };
+      for (TableBatch batch : batches) {
+        if (batch != null) {
+          try {
+            this.flush(batch);
+          } catch (SQLException e)  {
+            this.logger.log(Level.WARNING, "Could not commit final "
+                + "records to table " + batch.table + ".", e);
+          }
+        }
       }
+      this.logger.info("Inserted " + this.insertedRows + " rows into the "
+          + "relay descriptor database in batches of up to "
+          + this.batchSize + " rows, spending " + this.databaseMillis
+          + " milliseconds on database queries ("
+          + (this.databaseMillis > 0 ? this.insertedRows * 1000L
+          / this.databaseMillis : this.insertedRows) + " rows/s).");
       try {
         this.conn.close();
       } catch (SQLException e) {
@@ -620,4 +936,3 @@ public final class RelayDescriptorDatabaseImporter {
     }
   }
 }
-
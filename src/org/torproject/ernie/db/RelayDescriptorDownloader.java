@@ -6,7 +6,9 @@ import java.io.*;
 import java.net.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.logging.*;
+import java.util.zip.*;
 
 /**
  * Downloads missing relay descriptors from the directories via HTTP.
@@ -17,6 +19,22 @@ import java.util.logging.*;
  */
 public class RelayDescriptorDownloader {
 
+  /**
+   * Maximum number of server or extra-info descriptor digests that we
+   * combine into a single request, which is the same limit that Tor
+   * clients use.
+   */
+  private static final int MAX_DIGESTS_PER_REQUEST = 96;
+
+  /**
+   * Keywords that start a server or extra-info descriptor in a response
+   * to a request for multiple descriptors, including the preceding
+   * newline.
+   */
+  private static final byte[]
+      ROUTER = DescriptorTokenizer.keyword("\nrouter "),
+      EXTRA_INFO = DescriptorTokenizer.keyword("\nextra-info ");
+
   /**
    * Text file containing the descriptors that we are missing and that we
    * want to download in <code>downloadMissingDescriptors</code>.
@@ -52,6 +70,11 @@ public class RelayDescriptorDownloader {
    */
   private Map<String, Integer> dirRequests;
 
+  /**
+   * Maximum number of concurrent requests to a single directory.
+   */
+  private int maxDownloadsPerAuthority;
+
   /**
    * Should we try to download the current consensus if we don't have it?
    */
@@ -116,11 +139,12 @@ public class RelayDescriptorDownloader {
   public RelayDescriptorDownloader(RelayDescriptorParser rdp,
       List<String> dirSources, boolean downloadCurrentConsensus,
       boolean downloadCurrentVotes, boolean downloadAllServerDescriptors,
-      boolean downloadAllExtraInfos) {
+      boolean downloadAllExtraInfos, int maxDownloadsPerAuthority) {
 
     /* Memorize argument values. */
     this.rdp = rdp;
     this.dirSources = dirSources;
+    this.maxDownloadsPerAuthority = maxDownloadsPerAuthority;
     this.downloadCurrentConsensus = downloadCurrentConsensus;
     this.downloadCurrentVotes = downloadCurrentVotes;
     this.downloadAllServerDescriptors = downloadAllServerDescriptors;
@@ -367,8 +391,12 @@ public class RelayDescriptorDownloader {
      * when there are no new URLs anymore. */
     while (true) {
 
-      /* Compile list of URLs to download in this iteration. */
+      /* Compile list of URLs to download in this iteration. Server and
+       * extra-info descriptors are requested in batches of up to
+       * MAX_DIGESTS_PER_REQUEST digests joined by +. */
       urls.clear();
+      List<String> serverDigests = new ArrayList<String>(),
+          extraDigests = new ArrayList<String>();
       for (Map.Entry<String, String> e :
           this.missingDescriptors.entrySet()) {
         if (e.getValue().equals("NA")) {
@@ -384,14 +412,16 @@ public class RelayDescriptorDownloader {
           } else if (parts[0].equals("server") &&
               this.downloadAllServerDescriptors &&
               this.descriptorCutOff.compareTo(parts[1]) <= 0) {
-            urls.add("/tor/server/d/" + parts[3]);
+            serverDigests.add(parts[3]);
           } else if (parts[0].equals("extra") &&
               this.downloadAllExtraInfos &&
               this.descriptorCutOff.compareTo(parts[1]) <= 0) {
-            urls.add("/tor/extra/d/" + parts[3]);
+            extraDigests.add(parts[3]);
           }
         }
       }
+      this.addBatchedUrls(urls, "/tor/server/d/", serverDigests);
+      this.addBatchedUrls(urls, "/tor/extra/d/", extraDigests);
 
       /* Stop if we don't have (new) URLs to download. */
       if (urls.isEmpty()) {
@@ -404,91 +434,138 @@ public class RelayDescriptorDownloader {
         } else if (url.contains("status-vote")) {
           this.triedVotes++;
         } else if (url.contains("server")) {
-          this.triedServerDescriptors++;
+          this.triedServerDescriptors += countDigests(url);
         } else if (url.contains("extra")) {
-          this.triedExtraInfoDescriptors++;
+          this.triedExtraInfoDescriptors += countDigests(url);
         }
       }
 
       /* Log what we're downloading. */
       StringBuilder sb = new StringBuilder("Downloading " + urls.size()
-          + " descriptors:");
+          + " URLs:");
       for (String url : urls) {
         sb.append("\n" + url);
       }
       this.logger.fine(sb.toString());
 
-      /* We are trying to download these descriptors from each directory
-       * source one after the other until we got it from one. For each
-       * directory source we are removing the URLs from urls and putting
-       * those the we want to retry into retryUrls. Once we are done, we
-       * move the URLs back to urls and try the next directory source. */
-      SortedSet<String> currentDirSources =
-          new TreeSet<String>(remainingDirSources);
-      SortedSet<String> retryUrls = new TreeSet<String>();
-      int numDownloaded = 0;
-      while (!currentDirSources.isEmpty() && !urls.isEmpty()) {
-        String authority = currentDirSources.first();
-        String url = urls.first();
-        String fullUrl = "http://" + authority + url;
-        byte[] allData = null;
-        if (!downloaded.contains(fullUrl)) {
-          downloaded.add(fullUrl);
-          numDownloaded++;
-          this.dirRequests.put(authority, dirRequests.get(authority) + 1);
-          try {
-            URL u = new URL(fullUrl);
-            HttpURLConnection huc =
-                (HttpURLConnection) u.openConnection();
-            huc.setRequestMethod("GET");
-            huc.connect();
-            int response = huc.getResponseCode();
-            logger.fine("Downloading http://" + authority + url + " -> "
-                + response);
-            if (response == 200) {
-              BufferedInputStream in = new BufferedInputStream(
-                  huc.getInputStream());
-              ByteArrayOutputStream baos = new ByteArrayOutputStream();
-              int len;
-              byte[] data = new byte[1024];
-              while ((len = in.read(data, 0, 1024)) >= 0) {
-                baos.write(data, 0, len);
-              }
-              in.close();
-              allData = baos.toByteArray();
-              rdp.parse(allData);
-              if (url.endsWith("consensus")) {
-                this.downloadedConsensuses++;
-              } else if (url.contains("status-vote")) {
-                this.downloadedVotes++;
-              } else if (url.contains("server")) {
-                this.downloadedServerDescriptors++;
-              } else if (url.contains("extra")) {
-                this.downloadedExtraInfoDescriptors++;
+      /* We are trying to download these descriptors from the directory
+       * sources in parallel, starting each URL at a different directory
+       * source to spread the load, and trying the next directory source
+       * if a download fails. Downloads run on a thread pool, but we never
+       * have more than maxDownloadsPerAuthority requests to the same
+       * directory source at a time. Everything else, including parsing
+       * downloaded descriptors, happens in this thread. */
+      List<String> currentDirSources = new ArrayList<String>(
+          new TreeSet<String>(remainingDirSources));
+      if (currentDirSources.isEmpty()) {
+        break;
+      }
+      Map<String, Integer> firstDirSource = new HashMap<String, Integer>();
+      Map<String, Integer> triedDirSources =
+          new HashMap<String, Integer>();
+      Map<String, LinkedList<String>> queuedUrls =
+          new HashMap<String, LinkedList<String>>();
+      Map<String, Integer> runningDownloads =
+          new HashMap<String, Integer>();
+      for (String authority : currentDirSources) {
+        queuedUrls.put(authority, new LinkedList<String>());
+        runningDownloads.put(authority, 0);
+      }
+      int numDownloaded = 0, running = 0;
+      for (String url : urls) {
+        firstDirSource.put(url, firstDirSource.size() %
+            currentDirSources.size());
+        triedDirSources.put(url, 0);
+        this.queueUrl(url, currentDirSources, remainingDirSources,
+            downloaded, firstDirSource, triedDirSources, queuedUrls);
+      }
+      ExecutorService executor = Executors.newFixedThreadPool(
+          this.maxDownloadsPerAuthority * currentDirSources.size());
+      CompletionService<DownloadResult> completionService =
+          new ExecutorCompletionService<DownloadResult>(executor);
+      try {
+        while (true) {
+
+          /* Start as many downloads as we may. */
+          for (String authority : currentDirSources) {
+            LinkedList<String> queue = queuedUrls.get(authority);
+            while (!queue.isEmpty() && runningDownloads.get(authority) <
+                this.maxDownloadsPerAuthority) {
+              String url = queue.removeFirst();
+              String fullUrl = "http://" + authority + url;
+              if (!remainingDirSources.contains(authority) ||
+                  downloaded.contains(fullUrl)) {
+                this.queueUrl(url, currentDirSources, remainingDirSources,
+                    downloaded, firstDirSource, triedDirSources,
+                    queuedUrls);
+                continue;
               }
+              downloaded.add(fullUrl);
+              numDownloaded++;
+              this.dirRequests.put(authority,
+                  dirRequests.get(authority) + 1);
+              completionService.submit(new DownloadTask(authority, url));
+              runningDownloads.put(authority,
+                  runningDownloads.get(authority) + 1);
+              running++;
             }
-          } catch (IOException e) {
-            remainingDirSources.remove(authority);
-            currentDirSources.remove(authority);
+          }
+          if (running < 1) {
+            break;
+          }
+
+          /* Process the next finished download. */
+          DownloadResult result = completionService.take().get();
+          running--;
+          runningDownloads.put(result.authority,
+              runningDownloads.get(result.authority) - 1);
+          String url = result.url;
+          if (result.exception != null) {
+            remainingDirSources.remove(result.authority);
             if (!remainingDirSources.isEmpty()) {
               logger.log(Level.FINE, "Failed downloading from "
-                  + authority + "!", e);
+                  + result.authority + "!", result.exception);
             } else {
               logger.log(Level.WARNING, "Failed downloading from "
-                  + authority + "! We have no authorities left to download "
-                  + "from!", e);
+                  + result.authority + "! We have no authorities left to "
+                  + "download from!", result.exception);
+            }
+          } else if (result.data != null) {
+            if (url.endsWith("consensus")) {
+              rdp.parse(result.data);
+              this.downloadedConsensuses++;
+            } else if (url.contains("status-vote")) {
+              rdp.parse(result.data);
+              this.downloadedVotes++;
+            } else if (url.contains("server")) {
+              for (byte[] descriptor : splitDescriptors(result.data,
+                  ROUTER)) {
+                rdp.parse(descriptor);
+                this.downloadedServerDescriptors++;
+              }
+            } else if (url.contains("extra")) {
+              for (byte[] descriptor : splitDescriptors(result.data,
+                  EXTRA_INFO)) {
+                rdp.parse(descriptor);
+                this.downloadedExtraInfoDescriptors++;
+              }
             }
           }
+          if (result.data == null) {
+            this.queueUrl(url, currentDirSources, remainingDirSources,
+                downloaded, firstDirSource, triedDirSources, queuedUrls);
+          }
         }
-        if (allData == null) {
-          retryUrls.add(url);
-        }
-        urls.remove(url);
-        if (urls.isEmpty()) {
-          currentDirSources.remove(authority);
-          urls.addAll(retryUrls);
-          retryUrls.clear();
-        }
+      } catch (InterruptedException e) {
+        logger.log(Level.WARNING, "Interrupted while downloading "
+            + "descriptors.", e);
+        break;
+      } catch (ExecutionException e) {
+        logger.log(Level.WARNING, "Unexpected problem while downloading "
+            + "descriptors.", e);
+        break;
+      } finally {
+        executor.shutdownNow();
       }
 
       /* If we haven't downloaded a single descriptor in this iteration,
@@ -499,6 +576,188 @@ public class RelayDescriptorDownloader {
     }
   }
 
+  /**
+   * Adds URLs for downloading the given descriptor digests to
+   * <code>urls</code>, combining up to MAX_DIGESTS_PER_REQUEST digests in
+   * a single URL.
+   */
+  private void addBatchedUrls(SortedSet<String> urls, String prefix,
+      List<String> digests) {
+    StringBuilder sb = new StringBuilder();
+    int inBatch = 0;
+    for (String digest : digests) {
+      sb.append(inBatch == 0 ? prefix : "+").append(digest);
+      if (++inBatch == MAX_DIGESTS_PER_REQUEST) {
+        urls.add(sb.toString());
+        sb.setLength(0);
+        inBatch = 0;
+      }
+    }
+    if (inBatch > 0) {
+      urls.add(sb.toString());
+    }
+  }
+
+  /**
+   * Returns the number of descriptor digests contained in a URL.
+   */
+  private static int countDigests(String url) {
+    int count = 1;
+    for (int i = url.indexOf('+'); i >= 0; i = url.indexOf('+', i + 1)) {
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Splits the response to a request for multiple descriptors into the
+   * single descriptors, each of which starts with a line beginning with
+   * the given <code>keyword</code> (that includes the preceding newline).
+   * Anything before the first descriptor is discarded, unless the
+   * response doesn't contain the keyword at all, in which case it is
+   * returned unchanged and left for the parser to complain about.
+   */
+  private static List<byte[]> splitDescriptors(byte[] data,
+      byte[] keyword) {
+    List<byte[]> descriptors = new ArrayList<byte[]>();
+    boolean atStart = data.length >= keyword.length - 1;
+    for (int i = 1; atStart && i < keyword.length; i++) {
+      atStart = data[i - 1] == keyword[i];
+    }
+    int start = atStart ? 0 :
+        DescriptorTokenizer.indexOf(data, keyword, 0) + 1;
+    if (start < 1 && !atStart) {
+      descriptors.add(data);
+      return descriptors;
+    }
+    while (start < data.length) {
+      int next = DescriptorTokenizer.indexOf(data, keyword, start);
+      int end = next < 0 ? data.length : next + 1;
+      descriptors.add(start == 0 && end == data.length ? data :
+          Arrays.copyOfRange(data, start, end));
+      start = end;
+    }
+    return descriptors;
+  }
+
+  /**
+   * Queues a URL for downloading from the next directory source that we
+   * haven't tried in this iteration, that hasn't failed, and that we
+   * haven't downloaded this URL from before. Gives up on the URL if there
+   * is no such directory source left.
+   */
+  private void queueUrl(String url, List<String> currentDirSources,
+      List<String> remainingDirSources, Set<String> downloaded,
+      Map<String, Integer> firstDirSource,
+      Map<String, Integer> triedDirSources,
+      Map<String, LinkedList<String>> queuedUrls) {
+    int tried = triedDirSources.get(url);
+    while (tried < currentDirSources.size()) {
+      String authority = currentDirSources.get(
+          (firstDirSource.get(url) + tried) % currentDirSources.size());
+      tried++;
+      if (remainingDirSources.contains(authority) &&
+          !downloaded.contains("http://" + authority + url)) {
+        queuedUrls.get(authority).add(url);
+        break;
+      }
+    }
+    triedDirSources.put(url, tried);
+  }
+
+  /**
+   * Result of downloading a URL from a directory source: the downloaded
+   * data if the response code was 200, <code>null</code> for other
+   * response codes, or the exception that made the download fail.
+   */
+  private static class DownloadResult {
+    private String authority;
+    private String url;
+    private byte[] data;
+    private IOException exception;
+  }
+
+  /**
+   * Downloads a single URL from a directory source. We always request the
+   * deflate-compressed variant of a URL by appending ".z", which reduces
+   * transferred bytes for consensuses and votes considerably. Responses
+   * are only inflated if they are actually compressed, and if inflating
+   * fails anyway, we request the uncompressed URL from the same directory
+   * source rather than giving up on it.
+   */
+  private static class DownloadTask implements Callable<DownloadResult> {
+    private String authority;
+    private String url;
+    private Logger logger;
+    private DownloadTask(String authority, String url) {
+      this.authority = authority;
+      this.url = url;
+      this.logger = Logger.getLogger(
+          RelayDescriptorDownloader.class.getName());
+    }
+    public DownloadResult call() {
+      DownloadResult result = new DownloadResult();
+      result.authority = this.authority;
+      result.url = this.url;
+      try {
+        try {
+          result.data = this.download(this.url + ".z");
+        } catch (ZipException e) {
+          this.logger.log(Level.FINE, "Could not inflate response for "
+              + "http://" + this.authority + this.url + ".z. Requesting "
+              + "uncompressed variant.", e);
+          result.data = this.download(this.url);
+        }
+      } catch (IOException e) {
+        result.exception = e;
+      }
+      return result;
+    }
+
+    /**
+     * Downloads the given path and returns the response body, or
+     * <code>null</code> if the response code is not 200.
+     */
+    private byte[] download(String path) throws IOException {
+      URL u = new URL("http://" + this.authority + path);
+      HttpURLConnection huc = (HttpURLConnection) u.openConnection();
+      huc.setRequestMethod("GET");
+      huc.connect();
+      int response = huc.getResponseCode();
+      this.logger.fine("Downloading http://" + this.authority + path
+          + " -> " + response);
+      if (response != 200) {
+        return null;
+      }
+      /* Directory sources mark compressed responses with a
+       * Content-Encoding header, but not all of them do, and some
+       * answer requests for .z URLs uncompressed. If there is no such
+       * header, look for a zlib header at the start of the response. */
+      BufferedInputStream in = new BufferedInputStream(
+          huc.getInputStream());
+      String encoding = huc.getContentEncoding();
+      boolean deflated;
+      if (encoding != null) {
+        deflated = encoding.equals("deflate");
+      } else {
+        in.mark(2);
+        int cmf = in.read(), flg = in.read();
+        in.reset();
+        deflated = cmf >= 0 && flg >= 0 && (cmf & 0x0f) == 8 &&
+            (cmf * 256 + flg) % 31 == 0;
+      }
+      InputStream is = deflated ? new InflaterInputStream(in) : in;
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      int len;
+      byte[] data = new byte[1024];
+      while ((len = is.read(data, 0, 1024)) >= 0) {
+        baos.write(data, 0, len);
+      }
+      is.close();
+      return baos.toByteArray();
+    }
+  }
+
   public void writeFile() {
     int missingConsensuses = 0, missingVotes = 0,
         missingServerDescriptors = 0, missingExtraInfoDescriptors = 0;
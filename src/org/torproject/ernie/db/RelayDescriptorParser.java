@@ -59,8 +59,6 @@ public class RelayDescriptorParser {
    */
   private Logger logger;
 
-  private SimpleDateFormat dateTimeFormat;
-
   /**
    * Initializes this class.
    */
@@ -77,9 +75,6 @@ public class RelayDescriptorParser {
 
     /* Initialize logger. */
     this.logger = Logger.getLogger(RelayDescriptorParser.class.getName());
-
-    this.dateTimeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    this.dateTimeFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
   }
 
   public void setRelayDescriptorDownloader(
@@ -87,23 +82,85 @@ public class RelayDescriptorParser {
     this.rdd = rdd;
   }
 
+  /* Keywords that we look for when parsing descriptors. */
+  private static final byte[] NETWORK_STATUS_VERSION_3 =
+      DescriptorTokenizer.keyword("network-status-version 3"),
+      VOTE_STATUS_VOTE = DescriptorTokenizer.keyword("vote-status vote"),
+      VALID_AFTER = DescriptorTokenizer.keyword("valid-after "),
+      DIR_SOURCE = DescriptorTokenizer.keyword("dir-source "),
+      VOTE_DIGEST = DescriptorTokenizer.keyword("vote-digest "),
+      FINGERPRINT = DescriptorTokenizer.keyword("fingerprint"),
+      OPT_FINGERPRINT = DescriptorTokenizer.keyword("opt fingerprint"),
+      R = DescriptorTokenizer.keyword("r "),
+      S = DescriptorTokenizer.keyword("s "),
+      S_EMPTY = DescriptorTokenizer.keyword("s"),
+      V = DescriptorTokenizer.keyword("v "),
+      W = DescriptorTokenizer.keyword("w "),
+      P = DescriptorTokenizer.keyword("p "),
+      BANDWIDTH_WEIGHT = DescriptorTokenizer.keyword("Bandwidth="),
+      ROUTER = DescriptorTokenizer.keyword("router "),
+      EXTRA_INFO = DescriptorTokenizer.keyword("extra-info "),
+      PLATFORM = DescriptorTokenizer.keyword("platform "),
+      PUBLISHED = DescriptorTokenizer.keyword("published "),
+      BANDWIDTH = DescriptorTokenizer.keyword("bandwidth "),
+      EXTRA_INFO_DIGEST = DescriptorTokenizer.keyword(
+          "extra-info-digest "),
+      OPT_EXTRA_INFO_DIGEST = DescriptorTokenizer.keyword(
+          "opt extra-info-digest "),
+      UPTIME = DescriptorTokenizer.keyword("uptime "),
+      READ_HISTORY = DescriptorTokenizer.keyword("read-history "),
+      WRITE_HISTORY = DescriptorTokenizer.keyword("write-history "),
+      DIRREQ_READ_HISTORY = DescriptorTokenizer.keyword(
+          "dirreq-read-history "),
+      DIRREQ_WRITE_HISTORY = DescriptorTokenizer.keyword(
+          "dirreq-write-history "),
+      DIRREQ_STATS_END = DescriptorTokenizer.keyword("dirreq-stats-end "),
+      DIRREQ_V3_REQS = DescriptorTokenizer.keyword("dirreq-v3-reqs "),
+      NETWORK_STATUS_START = DescriptorTokenizer.keyword(
+          "network-status-version "),
+      DIRECTORY_SIGNATURE = DescriptorTokenizer.keyword(
+          "directory-signature "),
+      ROUTER_SIGNATURE = DescriptorTokenizer.keyword(
+          "\nrouter-signature\n");
+
+  /* Relay flags that we count for the consensus stats. */
+  private static final byte[] FLAG_EXIT = DescriptorTokenizer.keyword(
+      "Exit"), FLAG_FAST = DescriptorTokenizer.keyword("Fast"),
+      FLAG_GUARD = DescriptorTokenizer.keyword("Guard"),
+      FLAG_RUNNING = DescriptorTokenizer.keyword("Running"),
+      FLAG_STABLE = DescriptorTokenizer.keyword("Stable");
+
+  /**
+   * Known relay flags that we pass to the database importer without
+   * creating a new String for every status entry.
+   */
+  private static final String[] KNOWN_FLAGS = new String[] { "Authority",
+      "BadDirectory", "BadExit", "Exit", "Fast", "Guard", "HSDir",
+      "Named", "Running", "Stable", "Unnamed", "V2Dir", "V3Dir",
+      "Valid" };
+  private static final byte[][] KNOWN_FLAG_BYTES =
+      new byte[KNOWN_FLAGS.length][];
+  static {
+    for (int i = 0; i < KNOWN_FLAGS.length; i++) {
+      KNOWN_FLAG_BYTES[i] = DescriptorTokenizer.keyword(KNOWN_FLAGS[i]);
+    }
+  }
+
+  /**
+   * Parses a descriptor and passes the results to the configured
+   * handlers. The descriptor is tokenized directly on its bytes, and
+   * Strings are only created for the parts that at least one handler is
+   * interested in.
+   */
   public void parse(byte[] data) {
     try {
-      /* Convert descriptor to ASCII for parsing. This means we'll lose
-       * the non-ASCII chars, but we don't care about them for parsing
-       * anyway. */
-      BufferedReader br = new BufferedReader(new StringReader(new String(
-          data, "US-ASCII")));
-      String line = br.readLine();
-      if (line == null) {
+      DescriptorTokenizer t = new DescriptorTokenizer(data);
+      if (!t.nextLine()) {
         this.logger.fine("We were given an empty descriptor for "
             + "parsing. Ignoring.");
         return;
       }
-      SimpleDateFormat parseFormat =
-          new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-      parseFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
-      if (line.equals("network-status-version 3")) {
+      if (t.lineEquals(NETWORK_STATUS_VERSION_3)) {
         // TODO when parsing the current consensus, check the fresh-until
         // time to see when we switch from hourly to half-hourly
         // consensuses
@@ -119,23 +176,13 @@ public class RelayDescriptorParser {
         SortedSet<String> serverDescriptors = new TreeSet<String>();
         SortedSet<String> hashedRelayIdentities = new TreeSet<String>();
         SortedSet<String> relayFlags = null;
-        StringBuilder rawStatusEntry = null;
-        while ((line = br.readLine()) != null) {
-          if (line.equals("vote-status vote")) {
-            isConsensus = false;
-          } else if (line.startsWith("valid-after ")) {
-            validAfterTime = line.substring("valid-after ".length());
-            validAfter = parseFormat.parse(validAfterTime).getTime();
-          } else if (line.startsWith("dir-source ")) {
-            dirSource = line.split(" ")[2];
-          } else if (line.startsWith("vote-digest ")) {
-            dirSources.add(dirSource);
-          } else if (line.startsWith("fingerprint ")) {
-            fingerprint = line.split(" ")[1];
-          } else if (line.startsWith("r ")) {
+        ByteArrayOutputStream rawStatusEntry = null;
+        while (t.nextLine()) {
+          int lineStart = t.getLineStart(), lineEnd = t.getLineEnd();
+          if (t.lineStartsWith(R)) {
             if (isConsensus && relayIdentity != null &&
                 this.rddi != null) {
-              byte[] rawDescriptor = rawStatusEntry.toString().getBytes();
+              byte[] rawDescriptor = rawStatusEntry.toByteArray();
               this.rddi.addStatusEntry(validAfter, nickname,
                   relayIdentity, serverDesc, published, address, orPort,
                   dirPort, relayFlags, version, bandwidth, ports,
@@ -145,67 +192,108 @@ public class RelayDescriptorParser {
               bandwidth = -1L;
               ports = null;
             }
-            rawStatusEntry = new StringBuilder(line + "\n");
-            String[] parts = line.split(" ");
-            if (parts.length < 9) {
+            if (rawStatusEntry == null) {
+              rawStatusEntry = new ByteArrayOutputStream();
+            }
+            rawStatusEntry.reset();
+            rawStatusEntry.write(data, lineStart, lineEnd - lineStart);
+            rawStatusEntry.write('\n');
+            if (t.splitLine() < 9) {
               this.logger.log(Level.WARNING, "Could not parse r line '"
-                  + line + "' in descriptor. Skipping.");
+                  + t.getLine() + "' in descriptor. Skipping.");
               break;
             }
-            String publishedTime = parts[4] + " " + parts[5];
-            nickname = parts[1];
-            relayIdentity = Hex.encodeHexString(
-                Base64.decodeBase64(parts[2] + "=")).
-                toLowerCase();
-            serverDesc = Hex.encodeHexString(Base64.decodeBase64(
-                parts[3] + "=")).toLowerCase();
-            serverDescriptors.add(publishedTime + "," + relayIdentity
-                + "," + serverDesc);
-            hashedRelayIdentities.add(DigestUtils.shaHex(
-                Base64.decodeBase64(parts[2] + "=")).
-                toUpperCase());
-            published = parseFormat.parse(parts[4] + " " + parts[5]).
-                getTime();
-            address = parts[6];
-            orPort = Long.parseLong(parts[7]);
-            dirPort = Long.parseLong(parts[8]);
-          } else if (line.startsWith("s ") || line.equals("s")) {
-            rawStatusEntry.append(line + "\n");
-            if (line.contains(" Running")) {
-              exit += line.contains(" Exit") ? 1 : 0;
-              fast += line.contains(" Fast") ? 1 : 0;
-              guard += line.contains(" Guard") ? 1 : 0;
-              stable += line.contains(" Stable") ? 1 : 0;
-              running++;
+            byte[] identity = t.decodeBase64Token(2);
+            if (this.rddi != null || this.rdd != null) {
+              relayIdentity = Hex.encodeHexString(identity);
+              serverDesc = Hex.encodeHexString(t.decodeBase64Token(3));
+            }
+            if (this.rdd != null) {
+              serverDescriptors.add(t.getTokens(4, 5) + ","
+                  + relayIdentity + "," + serverDesc);
             }
-            relayFlags = new TreeSet<String>();
-            if (line.length() > 2) {
-              for (String flag : line.substring(2).split(" ")) {
-                relayFlags.add(flag);
+            if (this.bsfh != null && isConsensus) {
+              hashedRelayIdentities.add(DigestUtils.shaHex(identity).
+                  toUpperCase());
+            }
+            if (this.rddi != null) {
+              nickname = t.getToken(1);
+              published = TimestampCodec.parseDateTime(t.getTokens(4, 5));
+              address = t.getToken(6);
+            }
+            orPort = t.getTokenLong(7);
+            dirPort = t.getTokenLong(8);
+          } else if (t.lineStartsWith(S) || t.lineEquals(S_EMPTY)) {
+            rawStatusEntry.write(data, lineStart, lineEnd - lineStart);
+            rawStatusEntry.write('\n');
+            int tokens = t.splitLine();
+            boolean isExit = false, isFast = false, isGuard = false,
+                isRunning = false, isStable = false;
+            if (this.rddi != null) {
+              relayFlags = new TreeSet<String>();
+            }
+            for (int i = 1; i < tokens; i++) {
+              isExit |= t.tokenEquals(i, FLAG_EXIT);
+              isFast |= t.tokenEquals(i, FLAG_FAST);
+              isGuard |= t.tokenEquals(i, FLAG_GUARD);
+              isRunning |= t.tokenEquals(i, FLAG_RUNNING);
+              isStable |= t.tokenEquals(i, FLAG_STABLE);
+              if (relayFlags != null) {
+                relayFlags.add(this.getFlag(t, i));
               }
             }
-          } else if (line.startsWith("v ")) {
-            rawStatusEntry.append(line + "\n");
-            version = line.substring(2);
-          } else if (line.startsWith("w ")) {
-            rawStatusEntry.append(line + "\n");
-            String[] parts = line.split(" ");
-            for (String part : parts) {
-              if (part.startsWith("Bandwidth=")) {
-                bandwidth = Long.parseLong(part.substring(
-                    "Bandwidth=".length()));
+            if (isRunning) {
+              exit += isExit ? 1 : 0;
+              fast += isFast ? 1 : 0;
+              guard += isGuard ? 1 : 0;
+              stable += isStable ? 1 : 0;
+              running++;
+            }
+          } else if (t.lineStartsWith(V)) {
+            rawStatusEntry.write(data, lineStart, lineEnd - lineStart);
+            rawStatusEntry.write('\n');
+            if (this.rddi != null) {
+              version = t.getString(lineStart + 2, lineEnd);
+            }
+          } else if (t.lineStartsWith(W)) {
+            rawStatusEntry.write(data, lineStart, lineEnd - lineStart);
+            rawStatusEntry.write('\n');
+            int tokens = t.splitLine();
+            for (int i = 0; i < tokens; i++) {
+              if (t.tokenStartsWith(i, BANDWIDTH_WEIGHT)) {
+                bandwidth = t.parseLong(t.getTokenStart(i)
+                    + BANDWIDTH_WEIGHT.length, t.getTokenEnd(i));
               }
             }
-          } else if (line.startsWith("p ")) {
-            rawStatusEntry.append(line + "\n");
-            ports = line.substring(2);
+          } else if (t.lineStartsWith(P)) {
+            rawStatusEntry.write(data, lineStart, lineEnd - lineStart);
+            rawStatusEntry.write('\n');
+            if (this.rddi != null) {
+              ports = t.getString(lineStart + 2, lineEnd);
+            }
+          } else if (t.lineEquals(VOTE_STATUS_VOTE)) {
+            isConsensus = false;
+          } else if (t.lineStartsWith(VALID_AFTER)) {
+            validAfterTime = t.getString(lineStart + VALID_AFTER.length,
+                lineEnd);
+            validAfter = TimestampCodec.parseDateTime(validAfterTime);
+          } else if (t.lineStartsWith(DIR_SOURCE)) {
+            t.splitLine();
+            dirSource = t.getToken(2);
+          } else if (t.lineStartsWith(VOTE_DIGEST)) {
+            dirSources.add(dirSource);
+          } else if (t.lineStartsWith(FINGERPRINT) &&
+              lineEnd - lineStart > FINGERPRINT.length &&
+              data[lineStart + FINGERPRINT.length] == ' ') {
+            t.splitLine();
+            fingerprint = t.getToken(1);
           }
         }
         if (isConsensus) {
           if (this.rddi != null) {
             this.rddi.addConsensus(validAfter, data);
             if (relayIdentity != null) {
-              byte[] rawDescriptor = rawStatusEntry.toString().getBytes();
+              byte[] rawDescriptor = rawStatusEntry.toByteArray();
               this.rddi.addStatusEntry(validAfter, nickname,
                   relayIdentity, serverDesc, published, address, orPort,
                   dirPort, relayFlags, version, bandwidth, ports,
@@ -240,13 +328,12 @@ public class RelayDescriptorParser {
                 serverDescriptors);
           }
           if (this.aw != null) {
-            String ascii = new String(data, "US-ASCII");
-            String startToken = "network-status-version ";
-            String sigToken = "directory-signature ";
-            int start = ascii.indexOf(startToken);
-            int sig = ascii.indexOf(sigToken);
+            int start = DescriptorTokenizer.indexOf(data,
+                NETWORK_STATUS_START, 0);
+            int sig = DescriptorTokenizer.indexOf(data,
+                DIRECTORY_SIGNATURE, 0);
             if (start >= 0 && sig >= 0 && sig > start) {
-              sig += sigToken.length();
+              sig += DIRECTORY_SIGNATURE.length;
               byte[] forDigest = new byte[sig - start];
               System.arraycopy(data, start, forDigest, 0, sig - start);
               String digest = DigestUtils.shaHex(forDigest).toUpperCase();
@@ -259,49 +346,42 @@ public class RelayDescriptorParser {
             this.chc.processVote(validAfterTime, dirSource, data);
           }
         }
-      } else if (line.startsWith("router ")) {
+      } else if (t.lineStartsWith(ROUTER)) {
         String platformLine = null, publishedLine = null,
             publishedTime = null, bandwidthLine = null,
             extraInfoDigest = null, relayIdentifier = null;
-        String[] parts = line.split(" ");
-        String nickname = parts[1];
-        String address = parts[2];
-        int orPort = Integer.parseInt(parts[3]);
-        int dirPort = Integer.parseInt(parts[4]);
+        t.splitLine();
+        String nickname = t.getToken(1);
+        String address = t.getToken(2);
+        int orPort = Integer.parseInt(t.getToken(3));
+        int dirPort = Integer.parseInt(t.getToken(4));
         long published = -1L, uptime = -1L;
-        while ((line = br.readLine()) != null) {
-          if (line.startsWith("platform ")) {
-            platformLine = line;
-          } else if (line.startsWith("published ")) {
-            publishedTime = line.substring("published ".length());
-            published = parseFormat.parse(publishedTime).getTime();
-          } else if (line.startsWith("opt fingerprint") ||
-              line.startsWith("fingerprint")) {
+        while (t.nextLine()) {
+          if (t.lineStartsWith(PLATFORM)) {
+            platformLine = t.getLine();
+          } else if (t.lineStartsWith(PUBLISHED)) {
+            publishedTime = t.getString(t.getLineStart()
+                + PUBLISHED.length, t.getLineEnd());
+            published = TimestampCodec.parseDateTime(publishedTime);
+          } else if (t.lineStartsWith(OPT_FINGERPRINT) ||
+              t.lineStartsWith(FINGERPRINT)) {
+            String line = t.getLine();
             relayIdentifier = line.substring(line.startsWith("opt ") ?
                 "opt fingerprint".length() : "fingerprint".length()).
                 replaceAll(" ", "").toLowerCase();
-          } else if (line.startsWith("bandwidth ")) {
-            bandwidthLine = line;
-          } else if (line.startsWith("opt extra-info-digest ") ||
-              line.startsWith("extra-info-digest ")) {
-            extraInfoDigest = line.startsWith("opt ") ?
-                line.split(" ")[2].toLowerCase() :
-                line.split(" ")[1].toLowerCase();
-          } else if (line.startsWith("uptime ")) {
-            uptime = Long.parseLong(line.substring("uptime ".length()));
+          } else if (t.lineStartsWith(BANDWIDTH)) {
+            bandwidthLine = t.getLine();
+          } else if (t.lineStartsWith(OPT_EXTRA_INFO_DIGEST) ||
+              t.lineStartsWith(EXTRA_INFO_DIGEST)) {
+            t.splitLine();
+            extraInfoDigest = t.lineStartsWith(OPT_EXTRA_INFO_DIGEST) ?
+                t.getToken(2).toLowerCase() : t.getToken(1).toLowerCase();
+          } else if (t.lineStartsWith(UPTIME)) {
+            uptime = t.parseLong(t.getLineStart() + UPTIME.length,
+                t.getLineEnd());
           }
         }
-        String ascii = new String(data, "US-ASCII");
-        String startToken = "router ";
-        String sigToken = "\nrouter-signature\n";
-        int start = ascii.indexOf(startToken);
-        int sig = ascii.indexOf(sigToken) + sigToken.length();
-        String digest = null;
-        if (start >= 0 || sig >= 0 || sig > start) {
-          byte[] forDigest = new byte[sig - start];
-          System.arraycopy(data, start, forDigest, 0, sig - start);
-          digest = DigestUtils.shaHex(forDigest);
-        }
+        String digest = this.computeDescriptorDigest(data, ROUTER);
         if (this.aw != null && digest != null) {
           this.aw.storeServerDescriptor(data, digest, published);
         }
@@ -320,30 +400,33 @@ public class RelayDescriptorParser {
               bandwidthObserved, platform, published, uptime,
               extraInfoDigest, data);
         }
-      } else if (line.startsWith("extra-info ")) {
-        String nickname = line.split(" ")[1];
-        String publishedTime = null, relayIdentifier = line.split(" ")[2];
+      } else if (t.lineStartsWith(EXTRA_INFO)) {
+        t.splitLine();
+        String nickname = t.getToken(1);
+        String publishedTime = null, relayIdentifier = t.getToken(2);
         long published = -1L;
-        String dir = line.split(" ")[2];
+        String dir = relayIdentifier;
         String statsEnd = null;
         long seconds = -1L;
         SortedMap<String, String> bandwidthHistory =
             new TreeMap<String, String>();
         boolean skip = false;
-        while ((line = br.readLine()) != null) {
-          if (line.startsWith("published ")) {
-            publishedTime = line.substring("published ".length());
-            published = parseFormat.parse(publishedTime).getTime();
-          } else if (line.startsWith("read-history ") ||
-              line.startsWith("write-history ") ||
-              line.startsWith("dirreq-read-history ") ||
-              line.startsWith("dirreq-write-history ")) {
+        while (t.nextLine()) {
+          if (t.lineStartsWith(PUBLISHED)) {
+            publishedTime = t.getString(t.getLineStart()
+                + PUBLISHED.length, t.getLineEnd());
+            published = TimestampCodec.parseDateTime(publishedTime);
+          } else if (t.lineStartsWith(READ_HISTORY) ||
+              t.lineStartsWith(WRITE_HISTORY) ||
+              t.lineStartsWith(DIRREQ_READ_HISTORY) ||
+              t.lineStartsWith(DIRREQ_WRITE_HISTORY)) {
+            String line = t.getLine();
             String[] parts = line.split(" ");
             if (parts.length == 6) {
               String type = parts[0];
               String intervalEndTime = parts[1] + " " + parts[2];
-              long intervalEnd = dateTimeFormat.parse(intervalEndTime).
-                  getTime();
+              long intervalEnd = TimestampCodec.parseDateTime(
+                  intervalEndTime);
               if (Math.abs(published - intervalEnd) >
                   7L * 24L * 60L * 60L * 1000L) {
                 this.logger.fine("Extra-info descriptor publication time "
@@ -369,18 +452,21 @@ public class RelayDescriptorParser {
                 break;
               }
             }
-          } else if (line.startsWith("dirreq-stats-end ")) {
-            String[] parts = line.split(" ");
-            if (parts.length < 5) {
+          } else if (t.lineStartsWith(DIRREQ_STATS_END)) {
+            if (t.splitLine() < 5) {
               this.logger.warning("Could not parse dirreq-stats-end "
-                  + "line '" + line + "' in descriptor. Skipping.");
+                  + "line '" + t.getLine() + "' in descriptor. "
+                  + "Skipping.");
               break;
             }
-            statsEnd = parts[1] + " " + parts[2];
-            seconds = Long.parseLong(parts[3].substring(1));
-          } else if (line.startsWith("dirreq-v3-reqs ")
-              && line.length() > "dirreq-v3-reqs ".length()) {
+            statsEnd = t.getTokens(1, 2);
+            seconds = t.parseLong(t.getTokenStart(3) + 1,
+                t.getTokenEnd(3));
+          } else if (t.lineStartsWith(DIRREQ_V3_REQS)
+              && t.getLineEnd() - t.getLineStart() >
+              DIRREQ_V3_REQS.length) {
             if (this.dsfh != null) {
+              String line = t.getLine();
               try {
                 int allUsers = 0;
                 Map<String, String> obs = new HashMap<String, String>();
@@ -403,17 +489,7 @@ public class RelayDescriptorParser {
             }
           }
         }
-        String ascii = new String(data, "US-ASCII");
-        String startToken = "extra-info ";
-        String sigToken = "\nrouter-signature\n";
-        String digest = null;
-        int start = ascii.indexOf(startToken);
-        int sig = ascii.indexOf(sigToken) + sigToken.length();
-        if (start >= 0 || sig >= 0 || sig > start) {
-          byte[] forDigest = new byte[sig - start];
-          System.arraycopy(data, start, forDigest, 0, sig - start);
-          digest = DigestUtils.shaHex(forDigest);
-        }
+        String digest = this.computeDescriptorDigest(data, EXTRA_INFO);
         if (this.aw != null && digest != null) {
           this.aw.storeExtraInfoDescriptor(data, digest, published);
         }
@@ -426,12 +502,40 @@ public class RelayDescriptorParser {
               dir.toLowerCase(), published, data, bandwidthHistory);
         }
       }
-    } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Could not parse descriptor. "
-          + "Skipping.", e);
     } catch (ParseException e) {
       this.logger.log(Level.WARNING, "Could not parse descriptor. "
           + "Skipping.", e);
     }
   }
+
+  /**
+   * Returns the String for the relay flag at the given token index,
+   * re-using the String constant for known flags.
+   */
+  private String getFlag(DescriptorTokenizer t, int index) {
+    for (int i = 0; i < KNOWN_FLAG_BYTES.length; i++) {
+      if (t.tokenEquals(index, KNOWN_FLAG_BYTES[i])) {
+        return KNOWN_FLAGS[i];
+      }
+    }
+    return t.getToken(index);
+  }
+
+  /**
+   * Computes the hex-encoded SHA-1 digest of a server or extra-info
+   * descriptor from its start token up to and including the
+   * router-signature line.
+   */
+  private String computeDescriptorDigest(byte[] data, byte[] startToken) {
+    int start = DescriptorTokenizer.indexOf(data, startToken, 0);
+    int sig = DescriptorTokenizer.indexOf(data, ROUTER_SIGNATURE, 0)
+        + ROUTER_SIGNATURE.length;
+    String digest = null;
+    if (start >= 0 || sig >= 0 || sig > start) {
+      byte[] forDigest = new byte[sig - start];
+      System.arraycopy(data, start, forDigest, 0, sig - start);
+      digest = DigestUtils.shaHex(forDigest);
+    }
+    return digest;
+  }
 }
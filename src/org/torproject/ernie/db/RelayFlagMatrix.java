@@ -0,0 +1,235 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.util.*;
+
+/**
+ * Relay flags assigned by the directory authorities in their votes and
+ * by the consensus. Relays, authorities, and flags are numbered in the
+ * order in which we learn about them, and the flags of a relay in a
+ * vote or in the consensus are kept in a bitset with one bit per flag
+ * number, so that comparing votes and consensus for a relay only
+ * requires bit operations.
+ */
+public class RelayFlagMatrix {
+
+  /**
+   * Bit that is set in the bitset of a relay if the relay is listed in a
+   * vote or in the consensus. The remaining bits are available for
+   * flags.
+   */
+  public static final long LISTED = 1L << 63;
+
+  /**
+   * Maximum number of distinct flags that we can keep.
+   */
+  public static final int MAX_FLAGS = 63;
+
+  /**
+   * Flag names by flag number, and flag numbers by name.
+   */
+  private List<String> flags = new ArrayList<String>();
+  private Map<String, Integer> flagNumbers =
+      new HashMap<String, Integer>();
+
+  /**
+   * Relay keys consisting of fingerprint and nickname by relay number,
+   * and relay numbers by key.
+   */
+  private List<String> relays = new ArrayList<String>();
+  private Map<String, Integer> relayNumbers =
+      new HashMap<String, Integer>();
+
+  /**
+   * Authority names by authority number, and authority numbers by name.
+   */
+  private List<String> authorities = new ArrayList<String>();
+  private Map<String, Integer> authorityNumbers =
+      new HashMap<String, Integer>();
+
+  /**
+   * Flags that authorities vote on, by authority number.
+   */
+  private long[] knownFlags = new long[8];
+
+  /**
+   * Flags assigned by authorities, by authority number and relay number.
+   */
+  private long[][] voteFlags = new long[8][];
+
+  /**
+   * Flags assigned by the consensus, by relay number.
+   */
+  private long[] consensusFlags = new long[1024];
+
+  /**
+   * Returns the number of the given flag, assigning a new number if we
+   * haven't seen this flag before, or -1 if there are more distinct
+   * flags than we can keep.
+   */
+  public int getFlagNumber(String flag) {
+    Integer number = this.flagNumbers.get(flag);
+    if (number == null) {
+      if (this.flags.size() >= MAX_FLAGS) {
+        return -1;
+      }
+      number = this.flags.size();
+      this.flags.add(flag);
+      this.flagNumbers.put(flag, number);
+    }
+    return number;
+  }
+
+  /**
+   * Returns the bit of the given flag, or 0 if we haven't seen this flag
+   * before.
+   */
+  public long getFlagBit(String flag) {
+    Integer number = this.flagNumbers.get(flag);
+    return number == null ? 0L : 1L << number;
+  }
+
+  /**
+   * Returns the name of the flag with the given number.
+   */
+  public String getFlag(int number) {
+    return this.flags.get(number);
+  }
+
+  /**
+   * Returns the numbers of all flags in the order of flag names.
+   */
+  public int[] getSortedFlagNumbers() {
+    List<String> sortedFlags = new ArrayList<String>(this.flags);
+    Collections.sort(sortedFlags);
+    int[] numbers = new int[sortedFlags.size()];
+    for (int i = 0; i < numbers.length; i++) {
+      numbers[i] = this.flagNumbers.get(sortedFlags.get(i));
+    }
+    return numbers;
+  }
+
+  /**
+   * Returns the number of the relay with the given key, assigning a new
+   * number if we haven't seen this relay before.
+   */
+  public int getRelayNumber(String relayKey) {
+    Integer number = this.relayNumbers.get(relayKey);
+    if (number == null) {
+      number = this.relays.size();
+      this.relays.add(relayKey);
+      this.relayNumbers.put(relayKey, number);
+      if (number == this.consensusFlags.length) {
+        this.consensusFlags = Arrays.copyOf(this.consensusFlags,
+            2 * number);
+      }
+    }
+    return number;
+  }
+
+  /**
+   * Returns the key of the relay with the given number.
+   */
+  public String getRelay(int number) {
+    return this.relays.get(number);
+  }
+
+  /**
+   * Returns the number of relays listed in any vote or in the consensus.
+   */
+  public int getRelayCount() {
+    return this.relays.size();
+  }
+
+  /**
+   * Returns the number of the authority with the given name, assigning
+   * a new number if we haven't seen a vote by this authority before.
+   */
+  public int getAuthorityNumber(String authority) {
+    Integer number = this.authorityNumbers.get(authority);
+    if (number == null) {
+      number = this.authorities.size();
+      this.authorities.add(authority);
+      this.authorityNumbers.put(authority, number);
+      if (number == this.voteFlags.length) {
+        this.voteFlags = Arrays.copyOf(this.voteFlags, 2 * number);
+        this.knownFlags = Arrays.copyOf(this.knownFlags, 2 * number);
+      }
+      this.voteFlags[number] = new long[this.consensusFlags.length];
+    }
+    return number;
+  }
+
+  /**
+   * Returns the number of the given authority, or -1 if we haven't seen
+   * a vote by this authority.
+   */
+  public int findAuthorityNumber(String authority) {
+    Integer number = this.authorityNumbers.get(authority);
+    return number == null ? -1 : number;
+  }
+
+  /**
+   * Sets the flags that the given authority votes on.
+   */
+  public void setKnownFlags(int authority, long bits) {
+    this.knownFlags[authority] = bits;
+  }
+
+  /**
+   * Returns the flags that the given authority votes on.
+   */
+  public long getKnownFlags(int authority) {
+    return this.knownFlags[authority];
+  }
+
+  /**
+   * Sets the flags that the given authority assigned to the given relay
+   * and marks the relay as listed in the authority's vote.
+   */
+  public void setVoteFlags(int authority, int relay, long bits) {
+    long[] column = this.voteFlags[authority];
+    if (relay >= column.length) {
+      column = Arrays.copyOf(column, this.consensusFlags.length);
+      this.voteFlags[authority] = column;
+    }
+    column[relay] = bits | LISTED;
+  }
+
+  /**
+   * Forgets all flags that the given authority assigned to relays, as if
+   * we hadn't parsed its vote.
+   */
+  public void clearVoteFlags(int authority) {
+    Arrays.fill(this.voteFlags[authority], 0L);
+    this.knownFlags[authority] = 0L;
+  }
+
+  /**
+   * Returns the flags that the given authority assigned to the given
+   * relay, including the <code>LISTED</code> bit, or 0 if the relay was
+   * not listed in the authority's vote.
+   */
+  public long getVoteFlags(int authority, int relay) {
+    long[] column = this.voteFlags[authority];
+    return relay < column.length ? column[relay] : 0L;
+  }
+
+  /**
+   * Sets the flags that the consensus assigned to the given relay and
+   * marks the relay as listed in the consensus.
+   */
+  public void setConsensusFlags(int relay, long bits) {
+    this.consensusFlags[relay] = bits | LISTED;
+  }
+
+  /**
+   * Returns the flags that the consensus assigned to the given relay,
+   * including the <code>LISTED</code> bit, or 0 if the relay was not
+   * listed in the consensus.
+   */
+  public long getConsensusFlags(int relay) {
+    return this.consensusFlags[relay];
+  }
+}
@@ -11,23 +11,9 @@ public class SanitizedBridgesReader {
       String bridgesDir, boolean keepImportHistory) {
     Logger logger =
         Logger.getLogger(SanitizedBridgesReader.class.getName());
-    SortedSet<String> bridgesImportHistory = new TreeSet<String>();
-    File bridgesImportHistoryFile =
-        new File("stats/bridges-import-history");
-    if (keepImportHistory && bridgesImportHistoryFile.exists()) {
-      try {
-        BufferedReader br = new BufferedReader(new FileReader(
-            bridgesImportHistoryFile));
-        String line = null;
-        while ((line = br.readLine()) != null) {
-          bridgesImportHistory.add(line);
-        }
-        br.close();
-      } catch (IOException e) {
-        logger.log(Level.WARNING, "Could not read in bridge descriptor "
-            + "import history file. Skipping.");
-      }
-    }
+    ImportLedger bridgesImportHistory = keepImportHistory ?
+        new ImportLedger(new File("stats/bridges-import-history.bin"),
+        new File("stats/bridges-import-history"), false) : null;
     if (new File(bridgesDir).exists()) {
       logger.fine("Importing files in directory " + bridgesDir + "/...");
       Stack<File> filesInInputDir = new Stack<File>();
@@ -36,12 +22,13 @@ public class SanitizedBridgesReader {
       while (!filesInInputDir.isEmpty()) {
         File pop = filesInInputDir.pop();
         if (pop.isDirectory()) {
-          for (File f : pop.listFiles()) {
+          for (File f : keepImportHistory ?
+              bridgesImportHistory.listFiles(pop) : pop.listFiles()) {
             filesInInputDir.add(f);
           }
           continue;
         } else if (keepImportHistory && bridgesImportHistory.contains(
-            pop.getName())) {
+            pop)) {
           continue;
         } else {
           try {
@@ -63,7 +50,7 @@ public class SanitizedBridgesReader {
                 + ":" + fn.substring(11, 13) + ":" + fn.substring(13, 15);
             bdp.parse(allData, dateTime, true);
             if (keepImportHistory) {
-              bridgesImportHistory.add(pop.getName());
+              bridgesImportHistory.add(pop);
             }
           } catch (IOException e) {
             problems.add(pop);
@@ -90,18 +77,7 @@ public class SanitizedBridgesReader {
         logger.warning(sb.toString());
       }
       if (keepImportHistory) {
-        try {
-          bridgesImportHistoryFile.getParentFile().mkdirs();
-          BufferedWriter bw = new BufferedWriter(new FileWriter(
-              bridgesImportHistoryFile));
-          for (String line : bridgesImportHistory) {
-            bw.write(line + "\n");
-          }
-          bw.close();
-        } catch (IOException e) {
-          logger.log(Level.WARNING, "Could not write bridge descriptor "
-              + "import history file.");
-        }
+        bridgesImportHistory.write();
       }
     }
   }
@@ -3,6 +3,7 @@
 package org.torproject.ernie.db;
 
 import java.io.*;
+import java.nio.*;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
@@ -42,7 +43,10 @@ import org.apache.commons.codec.binary.*;
  * descriptor and (c) an extra-info descriptor, both of which are
  * published at the same time. Using this data structure, we can repair
  * references as soon as we learn more about the descriptor and regardless
- * of the order of incoming bridge descriptors.
+ * of the order of incoming bridge descriptors. The descriptor mapping is
+ * stored in a memory-mapped hash table with binary keys, so that we only
+ * need to look up the descriptors that we parse and only need to write
+ * the mappings that we change.
  *
  * The process of sanitizing a bridge descriptor is as follows, depending
  * on the type of descriptor:
@@ -72,6 +76,11 @@ import org.apache.commons.codec.binary.*;
  * might be referencing server descriptors which have been (re-)written
  * during this execution are re-written, too. This may be necessary in
  * order to update previously broken references to server descriptors.
+ * We keep an index of the descriptors referenced from network statuses
+ * written in this execution, so that we only need to look at network
+ * statuses on disk that were written in previous executions, and every
+ * network status is re-written at most once and only if one of its
+ * references has changed.
  */
 public class SanitizedBridgesWriter {
 
@@ -116,6 +125,20 @@ public class SanitizedBridgesWriter {
     private String serverDescriptorIdentifier;
     private String extraInfoDescriptorIdentifier;
 
+    /**
+     * Server descriptor identifier in Base64 as written to network
+     * statuses, and the hex identifier that it was encoded from.
+     */
+    private String serverDescriptorIdentifierBase64;
+    private String serverDescriptorIdentifierBase64Source;
+
+    /**
+     * Publication times of network statuses written in this execution
+     * that reference this descriptor, or <code>null</code> if there are
+     * none.
+     */
+    private List<String> referencingStatuses;
+
     /**
      * Returns a string representation of this descriptor mapping that can
      * be written to the persistent mapping file.
@@ -129,22 +152,44 @@ public class SanitizedBridgesWriter {
 
   /**
    * File containing the mapping between network status entries, server
-   * descriptors, and extra-info descriptors.
+   * descriptors, and extra-info descriptors as comma-separated values, as
+   * we wrote it before storing it in binary form. This file is only read
+   * once to convert its contents.
    */
   private File bridgeDescriptorMappingsFile;
 
+  /**
+   * File containing the mapping between network status entries, server
+   * descriptors, and extra-info descriptors in binary form.
+   */
+  private File bridgeDescriptorMappingsStoreFile;
+
   /**
    * Mapping between status entries, server descriptors, and extra-info
    * descriptors. This mapping is required to re-establish the references
    * from status entries to server descriptors and from server descriptors
    * to extra-info descriptors. The original references are broken when
    * sanitizing, because descriptor contents change and so do the
-   * descriptor digests that are used for referencing. Map key contains
-   * hashed bridge identity and descriptor publication time, map value
-   * contains map key plus new server descriptor identifier and new
-   * extra-info descriptor identifier.
+   * descriptor digests that are used for referencing. Keys consist of the
+   * 20-byte hashed bridge identity and the descriptor publication time as
+   * 8-byte seconds since the epoch, values consist of the 20-byte new
+   * server descriptor identifier and the 20-byte new extra-info
+   * descriptor identifier. This is <code>null</code> if the store could
+   * not be opened, in which case we only keep mappings in memory.
    */
-  private SortedMap<String, DescriptorMapping> bridgeDescriptorMappings;
+  private MappedKeyValueStore bridgeDescriptorMappingsStore;
+
+  /**
+   * Descriptor mappings that we looked up or added in this execution. Map
+   * keys contain hashed bridge identity and descriptor publication time.
+   * These mappings are written to the store at the end of the execution.
+   */
+  private Map<String, DescriptorMapping> bridgeDescriptorMappings;
+
+  /**
+   * Format of descriptor publication times in descriptor mappings.
+   */
+  private SimpleDateFormat mappingPublishedFormat;
 
   /**
    * Logger for this class.
@@ -152,68 +197,235 @@ public class SanitizedBridgesWriter {
   private Logger logger;
 
   /**
-   * Publication times of server descriptors and extra-info descriptors
-   * parsed in the current execution. These times are used to determine
-   * which statuses need to be rewritten at the end of the execution.
+   * Publication times of server descriptors whose identifiers changed in
+   * the current execution. These times are used to determine which
+   * statuses written in previous executions need to be rewritten at the
+   * end of the execution.
    */
   private SortedSet<String> descriptorPublicationTimes;
 
+  /**
+   * Publication times of network statuses written in the current
+   * execution. The descriptors they reference are contained in the
+   * <code>referencingStatuses</code> lists of descriptor mappings.
+   */
+  private SortedSet<String> writtenStatuses;
+
+  /**
+   * Publication times of network statuses written in the current
+   * execution that reference a server descriptor whose identifier has
+   * changed after writing the status.
+   */
+  private SortedSet<String> statusesToRewrite;
+
   /**
    * Output directory for writing sanitized bridge descriptors.
    */
   private String sanitizedBridgesDir;
 
+  /**
+   * Cache of hashed bridge identities that we share with
+   * <code>BridgeDescriptorParser</code>.
+   */
+  private IdentityHashCache identityHashCache;
+
   /**
    * Initializes this class, including reading in the known descriptor
    * mapping.
    */
-  public SanitizedBridgesWriter(String dir) {
+  public SanitizedBridgesWriter(String dir,
+      IdentityHashCache identityHashCache) {
 
     /* Memorize argument values. */
     this.sanitizedBridgesDir = dir;
+    this.identityHashCache = identityHashCache;
 
     /* Initialize logger. */
     this.logger = Logger.getLogger(
         SanitizedBridgesWriter.class.getName());
 
     /* Initialize data structure. */
-    this.bridgeDescriptorMappings = new TreeMap<String,
+    this.bridgeDescriptorMappings = new HashMap<String,
         DescriptorMapping>();
     this.descriptorPublicationTimes = new TreeSet<String>();
-
-    /* Read known descriptor mappings from disk. */
+    this.writtenStatuses = new TreeSet<String>();
+    this.statusesToRewrite = new TreeSet<String>();
+    this.mappingPublishedFormat = new SimpleDateFormat(
+        "yyyy-MM-dd HH:mm:ss");
+    this.mappingPublishedFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+    /* Open the store of known descriptor mappings, and convert the
+     * descriptor mappings file if we haven't done so before. */
     this.bridgeDescriptorMappingsFile = new File(
         "stats/bridge-descriptor-mappings");
-    if (this.bridgeDescriptorMappingsFile.exists()) {
-      try {
-        BufferedReader br = new BufferedReader(new FileReader(
-            this.bridgeDescriptorMappingsFile));
-        String line = null;
-        while ((line = br.readLine()) != null) {
-          if (line.split(",").length == 4) {
-            String[] parts = line.split(",");
-            DescriptorMapping dm = new DescriptorMapping(line);
-            dm.hashedBridgeIdentity = parts[0];
-            dm.published = parts[1];
-            dm.serverDescriptorIdentifier = parts[2];
-            dm.extraInfoDescriptorIdentifier = parts[3];
-            this.bridgeDescriptorMappings.put(line.split(",")[0] + ","
-                + line.split(",")[1], dm);
-          } else {
-            this.logger.warning("Corrupt line '" + line + "' in "
-                + this.bridgeDescriptorMappingsFile.getAbsolutePath()
-                + ". Skipping.");
-            continue;
-          }
+    this.bridgeDescriptorMappingsStoreFile = new File(
+        "stats/bridge-descriptor-mappings.bin");
+    boolean convertMappingsFile =
+        !this.bridgeDescriptorMappingsStoreFile.exists() &&
+        this.bridgeDescriptorMappingsFile.exists();
+    try {
+      this.bridgeDescriptorMappingsStore = new MappedKeyValueStore(
+          this.bridgeDescriptorMappingsStoreFile, 28, 40);
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Could not open "
+          + this.bridgeDescriptorMappingsStoreFile.getAbsolutePath()
+          + ". Not storing descriptor mappings in this execution.", e);
+      return;
+    }
+    if (convertMappingsFile) {
+      this.convertDescriptorMappingsFile();
+    }
+  }
+
+  /**
+   * Reads the descriptor mappings file that we wrote before storing
+   * descriptor mappings in binary form and adds its contents to the
+   * store.
+   */
+  private void convertDescriptorMappingsFile() {
+    try {
+      this.logger.fine("Converting "
+          + this.bridgeDescriptorMappingsFile.getAbsolutePath() + "...");
+      BufferedReader br = new BufferedReader(new FileReader(
+          this.bridgeDescriptorMappingsFile));
+      String line = null;
+      while ((line = br.readLine()) != null) {
+        DescriptorMapping dm = null;
+        byte[] key = null, value = null;
+        if (line.split(",").length == 4) {
+          dm = new DescriptorMapping(line);
+          key = this.getMappingKey(dm.hashedBridgeIdentity,
+              dm.published);
+          value = this.getMappingValue(dm);
         }
-        br.close();
-      } catch (IOException e) {
-        this.logger.log(Level.WARNING, "Could not read in "
-            + this.bridgeDescriptorMappingsFile.getAbsolutePath()
-            + ".");
-        return;
+        if (key == null || value == null) {
+          this.logger.warning("Corrupt line '" + line + "' in "
+              + this.bridgeDescriptorMappingsFile.getAbsolutePath()
+              + ". Skipping.");
+          continue;
+        }
+        this.bridgeDescriptorMappingsStore.put(key, value);
+      }
+      br.close();
+      this.bridgeDescriptorMappingsStore.flush();
+      this.logger.fine("Finished converting "
+          + this.bridgeDescriptorMappingsFile.getAbsolutePath() + ".");
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Could not convert "
+          + this.bridgeDescriptorMappingsFile.getAbsolutePath() + ".", e);
+    }
+  }
+
+  /**
+   * Returns the key of a descriptor mapping in the store, or
+   * <code>null</code> if the hashed bridge identity or publication time
+   * cannot be parsed.
+   */
+  private byte[] getMappingKey(String hashedBridgeIdentity,
+      String published) {
+    try {
+      byte[] identity = Hex.decodeHex(hashedBridgeIdentity.toCharArray());
+      long publishedMillis = this.mappingPublishedFormat.parse(
+          published).getTime();
+      if (identity.length != 20 || !published.equals(
+          this.mappingPublishedFormat.format(publishedMillis))) {
+        return null;
       }
+      byte[] key = new byte[28];
+      ByteBuffer.wrap(key).put(identity).putLong(publishedMillis / 1000L);
+      return key;
+    } catch (DecoderException e) {
+      return null;
+    } catch (ParseException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the value of a descriptor mapping in the store, or
+   * <code>null</code> if the descriptor identifiers cannot be parsed.
+   */
+  private byte[] getMappingValue(DescriptorMapping mapping) {
+    try {
+      byte[] serverDescriptorIdentifier = Hex.decodeHex(
+          mapping.serverDescriptorIdentifier.toCharArray());
+      byte[] extraInfoDescriptorIdentifier = Hex.decodeHex(
+          mapping.extraInfoDescriptorIdentifier.toCharArray());
+      if (serverDescriptorIdentifier.length != 20 ||
+          extraInfoDescriptorIdentifier.length != 20) {
+        return null;
+      }
+      byte[] value = new byte[40];
+      ByteBuffer.wrap(value).put(serverDescriptorIdentifier).
+          put(extraInfoDescriptorIdentifier);
+      return value;
+    } catch (DecoderException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the server descriptor identifier of a descriptor mapping in
+   * the Base64 encoding used in network statuses, reusing the encoded
+   * identifier as long as the identifier doesn't change.
+   */
+  private String getServerDescriptorIdentifierBase64(
+      DescriptorMapping mapping) throws DecoderException {
+    if (!mapping.serverDescriptorIdentifier.equals(
+        mapping.serverDescriptorIdentifierBase64Source)) {
+      mapping.serverDescriptorIdentifierBase64 =
+          Base64.encodeBase64String(Hex.decodeHex(
+          mapping.serverDescriptorIdentifier.toCharArray())).
+          substring(0, 27);
+      mapping.serverDescriptorIdentifierBase64Source =
+          mapping.serverDescriptorIdentifier;
+    }
+    return mapping.serverDescriptorIdentifierBase64;
+  }
+
+  /**
+   * Returns the descriptor mapping for the given hashed bridge identity
+   * and descriptor publication time, or <code>null</code> if we don't
+   * know this descriptor.
+   */
+  private DescriptorMapping lookUpDescriptorMapping(
+      String hashedBridgeIdentity, String published) {
+    hashedBridgeIdentity = hashedBridgeIdentity.toLowerCase();
+    String mappingKey = hashedBridgeIdentity + "," + published;
+    DescriptorMapping mapping =
+        this.bridgeDescriptorMappings.get(mappingKey);
+    if (mapping == null && this.bridgeDescriptorMappingsStore != null) {
+      byte[] key = this.getMappingKey(hashedBridgeIdentity, published);
+      byte[] value = new byte[40];
+      if (key != null &&
+          this.bridgeDescriptorMappingsStore.get(key, value)) {
+        mapping = new DescriptorMapping(hashedBridgeIdentity, published);
+        mapping.serverDescriptorIdentifier = Hex.encodeHexString(
+            Arrays.copyOfRange(value, 0, 20));
+        mapping.extraInfoDescriptorIdentifier = Hex.encodeHexString(
+            Arrays.copyOfRange(value, 20, 40));
+        this.bridgeDescriptorMappings.put(mappingKey, mapping);
+      }
+    }
+    return mapping;
+  }
+
+  /**
+   * Returns the descriptor mapping for the given hashed bridge identity
+   * and descriptor publication time, adding a new mapping with all 0's
+   * as descriptor digests if we don't know this descriptor.
+   */
+  private DescriptorMapping getDescriptorMapping(
+      String hashedBridgeIdentity, String published) {
+    DescriptorMapping mapping = this.lookUpDescriptorMapping(
+        hashedBridgeIdentity, published);
+    if (mapping == null) {
+      hashedBridgeIdentity = hashedBridgeIdentity.toLowerCase();
+      mapping = new DescriptorMapping(hashedBridgeIdentity, published);
+      this.bridgeDescriptorMappings.put(hashedBridgeIdentity + ","
+          + published, mapping);
     }
+    return mapping;
   }
 
   /**
@@ -225,6 +437,8 @@ public class SanitizedBridgesWriter {
 
     /* Parse the given network status line by line. */
     StringBuilder scrubbed = new StringBuilder();
+    List<DescriptorMapping> referencedMappings =
+        new ArrayList<DescriptorMapping>();
     try {
       BufferedReader br = new BufferedReader(new StringReader(new String(
           data, "US-ASCII")));
@@ -244,27 +458,18 @@ public class SanitizedBridgesWriter {
 
           /* Look up the descriptor in the descriptor mapping, or add a
            * new mapping entry if there is none. */
-          String hashedBridgeIdentityHex = Hex.encodeHexString(
-              DigestUtils.sha(Base64.decodeBase64(bridgeIdentity
-              + "=="))).toLowerCase();
-          String mappingKey = hashedBridgeIdentityHex + ","
-              + descPublicationTime;
-          DescriptorMapping mapping = null;
-          if (this.bridgeDescriptorMappings.containsKey(mappingKey)) {
-            mapping = this.bridgeDescriptorMappings.get(mappingKey);
-          } else {
-            mapping = new DescriptorMapping(hashedBridgeIdentityHex.
-                toLowerCase(), descPublicationTime);
-            this.bridgeDescriptorMappings.put(mappingKey, mapping);
-          }
+          byte[] bridgeIdentityBytes = Base64.decodeBase64(bridgeIdentity
+              + "==");
+          String hashedBridgeIdentityHex = this.identityHashCache.
+              getHashedIdentityHex(bridgeIdentityBytes);
+          DescriptorMapping mapping = this.getDescriptorMapping(
+              hashedBridgeIdentityHex, descPublicationTime);
+          referencedMappings.add(mapping);
 
           /* Write scrubbed r line to buffer. */
-          String hashedBridgeIdentityBase64 = Base64.encodeBase64String(
-              DigestUtils.sha(Base64.decodeBase64(bridgeIdentity
-              + "=="))).substring(0, 27);
-          String sdi = Base64.encodeBase64String(Hex.decodeHex(
-                mapping.serverDescriptorIdentifier.toCharArray())).
-                substring(0, 27);
+          String hashedBridgeIdentityBase64 = this.identityHashCache.
+              getHashedIdentityBase64(bridgeIdentityBytes);
+          String sdi = this.getServerDescriptorIdentifierBase64(mapping);
           scrubbed.append("r Unnamed "
               + hashedBridgeIdentityBase64 + " " + sdi + " "
               + descPublicationTime + " 127.0.0.1 " + orPort + " "
@@ -296,33 +501,8 @@ public class SanitizedBridgesWriter {
     }
 
     /* Write the sanitized network status to disk. */
-    try {
-
-      /* Determine file name. */
-      String syear = publicationTime.substring(0, 4);
-      String smonth = publicationTime.substring(5, 7);
-      String sday = publicationTime.substring(8, 10);
-      String stime = publicationTime.substring(11, 13)
-          + publicationTime.substring(14, 16)
-          + publicationTime.substring(17, 19);
-      File statusFile = new File(this.sanitizedBridgesDir + "/" + syear
-          + "/" + smonth + "/statuses/" + sday + "/" + syear + smonth
-          + sday + "-" + stime + "-"
-          + "4A0CCD2DDC7995083D73F5D667100C8A5831F16D");
-
-      /* Create all parent directories to write this network status. */
-      statusFile.getParentFile().mkdirs();
-
-      /* Write sanitized network status to disk. */
-      BufferedWriter bw = new BufferedWriter(new FileWriter(statusFile));
-      bw.write(scrubbed.toString());
-      bw.close();
-
-    } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Could not write sanitized bridge "
-          + "network status to disk.", e);
-      return;
-    }
+    this.writeNetworkStatus(publicationTime, scrubbed.toString(),
+        referencedMappings);
   }
 
   /**
@@ -353,14 +533,8 @@ public class SanitizedBridgesWriter {
          * there is none. */
         if (mapping == null && published != null &&
             hashedBridgeIdentity != null) {
-          String mappingKey = hashedBridgeIdentity + "," + published;
-          if (this.bridgeDescriptorMappings.containsKey(mappingKey)) {
-            mapping = this.bridgeDescriptorMappings.get(mappingKey);
-          } else {
-            mapping = new DescriptorMapping(hashedBridgeIdentity,
-                published);
-            this.bridgeDescriptorMappings.put(mappingKey, mapping);
-          }
+          mapping = this.getDescriptorMapping(hashedBridgeIdentity,
+              published);
         }
 
         /* Skip all crypto parts that might be used to derive the bridge's
@@ -376,12 +550,10 @@ public class SanitizedBridgesWriter {
               + line.split(" ")[3] + " " + line.split(" ")[4] + " "
               + line.split(" ")[5] + "\n");
 
-        /* Parse the publication time and add it to the list of descriptor
-         * publication times to re-write network statuses at the end of
-         * the sanitizing procedure. */
+        /* Parse the publication time to look up the descriptor in the
+         * descriptor mapping. */
         } else if (line.startsWith("published ")) {
           published = line.substring("published ".length());
-          this.descriptorPublicationTimes.add(published);
           scrubbed.append(line + "\n");
 
         /* Parse the fingerprint to determine the hashed bridge
@@ -390,8 +562,9 @@ public class SanitizedBridgesWriter {
           String fingerprint = line.substring(line.startsWith("opt ") ?
               "opt fingerprint".length() : "fingerprint".length()).
               replaceAll(" ", "").toLowerCase();
-          hashedBridgeIdentity = DigestUtils.shaHex(Hex.decodeHex(
-              fingerprint.toCharArray())).toLowerCase();
+          hashedBridgeIdentity = this.identityHashCache.
+              getHashedIdentityHex(Hex.decodeHex(
+              fingerprint.toCharArray()));
           scrubbed.append("opt fingerprint");
           for (int i = 0; i < hashedBridgeIdentity.length() / 4; i++)
             scrubbed.append(" " + hashedBridgeIdentity.substring(4 * i,
@@ -436,7 +609,8 @@ public class SanitizedBridgesWriter {
           StringBuilder familyLine = new StringBuilder("family");
           for (String s : line.substring(7).split(" ")) {
             if (s.startsWith("$")) {
-              familyLine.append(" $" + DigestUtils.shaHex(Hex.decodeHex(
+              familyLine.append(" $" + this.identityHashCache.
+                  getHashedIdentityHex(Hex.decodeHex(
                   s.substring(1).toCharArray())).toUpperCase());
             } else {
               familyLine.append(" Unnamed");
@@ -478,7 +652,7 @@ public class SanitizedBridgesWriter {
     /* Determine new descriptor digest and write it to descriptor
      * mapping. */
     String scrubbedHash = DigestUtils.shaHex(scrubbedDesc);
-    mapping.serverDescriptorIdentifier = scrubbedHash;
+    this.setServerDescriptorIdentifier(mapping, scrubbedHash);
 
     /* Determine filename of sanitized server descriptor. */
     String dyear = mapping.published.substring(0, 4);
@@ -532,27 +706,21 @@ public class SanitizedBridgesWriter {
          * there is none. */
         if (mapping == null && published != null &&
             hashedBridgeIdentity != null) {
-          String mappingKey = hashedBridgeIdentity + "," + published;
-          if (this.bridgeDescriptorMappings.containsKey(mappingKey)) {
-            mapping = this.bridgeDescriptorMappings.get(mappingKey);
-          } else {
-            mapping = new DescriptorMapping(hashedBridgeIdentity,
-                published);
-            this.bridgeDescriptorMappings.put(mappingKey, mapping);
-          }
+          mapping = this.getDescriptorMapping(hashedBridgeIdentity,
+              published);
         }
 
         /* Parse bridge identity from extra-info line and replace it with
          * its hash in the sanitized descriptor. */
         if (line.startsWith("extra-info ")) {
-          hashedBridgeIdentity = DigestUtils.shaHex(Hex.decodeHex(
-              line.split(" ")[2].toCharArray())).toLowerCase();
+          hashedBridgeIdentity = this.identityHashCache.
+              getHashedIdentityHex(Hex.decodeHex(
+              line.split(" ")[2].toCharArray()));
           scrubbed = new StringBuilder("extra-info Unnamed "
               + hashedBridgeIdentity.toUpperCase() + "\n");
 
-        /* Parse the publication time and add it to the list of descriptor
-         * publication times to re-write network statuses at the end of
-         * the sanitizing procedure. */
+        /* Parse the publication time to look up the descriptor in the
+         * descriptor mapping. */
         } else if (line.startsWith("published ")) {
           scrubbed.append(line + "\n");
           published = line.substring("published ".length());
@@ -607,7 +775,6 @@ public class SanitizedBridgesWriter {
     if (extraInfoDescriptorIdentifierHasChanged &&
         !mapping.serverDescriptorIdentifier.equals(NULL_REFERENCE)) {
       this.rewriteServerDescriptor(mapping);
-      this.descriptorPublicationTimes.add(published);
     }
 
     /* Determine filename of sanitized server descriptor. */
@@ -633,10 +800,33 @@ public class SanitizedBridgesWriter {
   }
 
   public void storeSanitizedNetworkStatus(byte[] data, String published) {
+    List<DescriptorMapping> referencedMappings =
+        new ArrayList<DescriptorMapping>();
     String scrubbed = null;
     try {
-      String ascii = new String(data, "US-ASCII");
-      BufferedReader br2 = new BufferedReader(new StringReader(ascii));
+      scrubbed = this.updateServerDescriptorReferences(new String(data,
+          "US-ASCII"), referencedMappings);
+    } catch (UnsupportedEncodingException e) {
+      this.logger.log(Level.WARNING, "Could not parse previously "
+          + "sanitized network status.", e);
+      return;
+    }
+    if (scrubbed != null) {
+      this.writeNetworkStatus(published, scrubbed, referencedMappings);
+    }
+  }
+
+  /**
+   * Replaces the server descriptor identifiers in a previously sanitized
+   * network status with the ones we know from our descriptor mapping and
+   * returns the updated network status, or <code>null</code> if it
+   * cannot be parsed. Adds the descriptor mappings of all referenced
+   * server descriptors to <code>referencedMappings</code>.
+   */
+  private String updateServerDescriptorReferences(String status,
+      List<DescriptorMapping> referencedMappings) {
+    try {
+      BufferedReader br2 = new BufferedReader(new StringReader(status));
       StringBuilder sb = new StringBuilder();
       String line = null;
       while ((line = br2.readLine()) != null) {
@@ -650,20 +840,15 @@ public class SanitizedBridgesWriter {
               toLowerCase();
           String descPublished = line.split(" ")[4] + " "
               + line.split(" ")[5];
-          String mappingKey = (hashedBridgeIdentity + ","
-              + descPublished).toLowerCase();
-          DescriptorMapping mapping = null;
-          if (this.bridgeDescriptorMappings.containsKey(mappingKey)) {
-            mapping = this.bridgeDescriptorMappings.get(mappingKey);
-          } else {
-            mapping = new DescriptorMapping(hashedBridgeIdentity.
-                toLowerCase(), descPublished);
+          DescriptorMapping mapping = this.lookUpDescriptorMapping(
+              hashedBridgeIdentity, descPublished);
+          if (mapping == null) {
+            mapping = this.getDescriptorMapping(hashedBridgeIdentity,
+                descPublished);
             mapping.serverDescriptorIdentifier = readServerDescId;
-            this.bridgeDescriptorMappings.put(mappingKey, mapping);
           }
-          String sdi = Base64.encodeBase64String(Hex.decodeHex(
-              mapping.serverDescriptorIdentifier.toCharArray())).
-              substring(0, 27);
+          referencedMappings.add(mapping);
+          String sdi = this.getServerDescriptorIdentifierBase64(mapping);
           String orPort = line.split(" ")[7];
           String dirPort = line.split(" ")[8];
           sb.append("r Unnamed "
@@ -674,44 +859,88 @@ public class SanitizedBridgesWriter {
           sb.append(line + "\n");
         }
       }
-      scrubbed = sb.toString();
       br2.close();
+      return sb.toString();
     } catch (DecoderException e) {
       this.logger.log(Level.WARNING, "Could not parse server descriptor "
           + "identifier. This must be a bug.", e);
-      return;
+      return null;
     } catch (IOException e) {
       this.logger.log(Level.WARNING, "Could not parse previously "
           + "sanitized network status.", e);
-      return;
+      return null;
     }
+  }
 
+  /**
+   * Returns the file that a network status with the given publication
+   * time is written to.
+   */
+  private File getNetworkStatusFile(String published) {
+    String syear = published.substring(0, 4);
+    String smonth = published.substring(5, 7);
+    String sday = published.substring(8, 10);
+    String stime = published.substring(11, 13)
+        + published.substring(14, 16)
+        + published.substring(17, 19);
+    return new File(this.sanitizedBridgesDir + "/" + syear
+        + "/" + smonth + "/statuses/" + sday + "/" + syear + smonth
+        + sday + "-" + stime + "-"
+        + "4A0CCD2DDC7995083D73F5D667100C8A5831F16D");
+  }
+
+  /**
+   * Writes a sanitized network status to disk and remembers which
+   * descriptors it references, so that we can rewrite it if one of
+   * their server descriptor identifiers changes in this execution.
+   */
+  private void writeNetworkStatus(String published, String status,
+      List<DescriptorMapping> referencedMappings) {
     try {
-      /* Determine file name. */
-      String syear = published.substring(0, 4);
-      String smonth = published.substring(5, 7);
-      String sday = published.substring(8, 10);
-      String stime = published.substring(11, 13)
-          + published.substring(14, 16)
-          + published.substring(17, 19);
-      File statusFile = new File(this.sanitizedBridgesDir + "/" + syear
-          + "/" + smonth + "/statuses/" + sday + "/" + syear + smonth
-          + sday + "-" + stime + "-"
-          + "4A0CCD2DDC7995083D73F5D667100C8A5831F16D");
+      File statusFile = this.getNetworkStatusFile(published);
 
       /* Create all parent directories to write this network status. */
       statusFile.getParentFile().mkdirs();
 
       /* Write sanitized network status to disk. */
       BufferedWriter bw = new BufferedWriter(new FileWriter(statusFile));
-      bw.write(scrubbed);
+      bw.write(status);
       bw.close();
     } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Could not write previously "
-          + "sanitized network status.", e);
+      this.logger.log(Level.WARNING, "Could not write sanitized bridge "
+          + "network status to disk.", e);
+      return;
+    }
+
+    /* Add the network status to the index of referenced descriptors. */
+    this.writtenStatuses.add(published);
+    for (DescriptorMapping mapping : referencedMappings) {
+      if (mapping.referencingStatuses == null) {
+        mapping.referencingStatuses = new ArrayList<String>(1);
+      }
+      mapping.referencingStatuses.add(published);
+    }
+  }
+
+  /**
+   * Sets the server descriptor identifier of a descriptor mapping. If the
+   * identifier changes, network statuses written in this execution that
+   * reference the descriptor are noted down to be rewritten, and so is
+   * the descriptor publication time to find network statuses written in
+   * previous executions.
+   */
+  private void setServerDescriptorIdentifier(DescriptorMapping mapping,
+      String serverDescriptorIdentifier) {
+    if (serverDescriptorIdentifier.equals(
+        mapping.serverDescriptorIdentifier)) {
       return;
     }
-  } 
+    mapping.serverDescriptorIdentifier = serverDescriptorIdentifier;
+    this.descriptorPublicationTimes.add(mapping.published);
+    if (mapping.referencingStatuses != null) {
+      this.statusesToRewrite.addAll(mapping.referencingStatuses);
+    }
+  }
 
   public void storeSanitizedServerDescriptor(byte[] data) {
     try {
@@ -724,15 +953,8 @@ public class SanitizedBridgesWriter {
       while ((line2 = br2.readLine()) != null) {
         if (mapping == null && published != null &&
             hashedBridgeIdentity != null) {
-          String mappingKey = (hashedBridgeIdentity + "," + published).
-              toLowerCase();
-          if (this.bridgeDescriptorMappings.containsKey(mappingKey)) {
-            mapping = this.bridgeDescriptorMappings.get(mappingKey);
-          } else {
-            mapping = new DescriptorMapping(hashedBridgeIdentity.
-                toLowerCase(), published);
-            this.bridgeDescriptorMappings.put(mappingKey, mapping);
-          }
+          mapping = this.getDescriptorMapping(hashedBridgeIdentity,
+              published);
         }
         if (line2.startsWith("router ")) {
           sb.append("router Unnamed 127.0.0.1 " + line2.split(" ")[3]
@@ -741,7 +963,6 @@ public class SanitizedBridgesWriter {
         } else if (line2.startsWith("published ")) {
           published = line2.substring("published ".length());
           sb.append(line2 + "\n");
-          this.descriptorPublicationTimes.add(published);
         } else if (line2.startsWith("opt fingerprint ")) {
           hashedBridgeIdentity = line2.substring("opt fingerprint".
               length()).replaceAll(" ", "").toLowerCase();
@@ -758,7 +979,7 @@ public class SanitizedBridgesWriter {
       String scrubbedDesc = sb.toString();
       String scrubbedHash = DigestUtils.shaHex(scrubbedDesc);
 
-      mapping.serverDescriptorIdentifier = scrubbedHash;
+      this.setServerDescriptorIdentifier(mapping, scrubbedHash);
       String dyear = published.substring(0, 4);
       String dmonth = published.substring(5, 7);
       File newFile = new File(this.sanitizedBridgesDir + "/"
@@ -790,15 +1011,8 @@ public class SanitizedBridgesWriter {
       while ((line2 = br2.readLine()) != null) {
         if (mapping == null && published != null &&
             hashedBridgeIdentity != null) {
-          String mappingKey = (hashedBridgeIdentity + "," + published).
-              toLowerCase();
-          if (this.bridgeDescriptorMappings.containsKey(mappingKey)) {
-            mapping = this.bridgeDescriptorMappings.get(mappingKey);
-          } else {
-            mapping = new DescriptorMapping(hashedBridgeIdentity.
-                toLowerCase(), published);
-            this.bridgeDescriptorMappings.put(mappingKey, mapping);
-          }
+          mapping = this.getDescriptorMapping(hashedBridgeIdentity,
+              published);
         }
         if (line2.startsWith("extra-info ")) {
           hashedBridgeIdentity = line2.split(" ")[2];
@@ -807,7 +1021,6 @@ public class SanitizedBridgesWriter {
         } else if (line2.startsWith("published ")) {
           sb.append(line2 + "\n");
           published = line2.substring("published ".length());
-          this.descriptorPublicationTimes.add(published);
         } else {
           sb.append(line2 + "\n");
         }
@@ -847,8 +1060,17 @@ public class SanitizedBridgesWriter {
         baos.write(data2, 0, len);
       }
       fis.close();
-      byte[] allData = baos.toByteArray();
-      this.storeSanitizedNetworkStatus(allData, published);
+      String content = new String(baos.toByteArray(), "US-ASCII");
+      List<DescriptorMapping> referencedMappings =
+          new ArrayList<DescriptorMapping>();
+      String rewritten = this.updateServerDescriptorReferences(content,
+          referencedMappings);
+      if (rewritten != null && !rewritten.equals(content)) {
+        this.logger.finer("Rewriting network status "
+            + status.getAbsolutePath());
+        this.writeNetworkStatus(published, rewritten,
+            referencedMappings);
+      }
     } catch (IOException e) {
       this.logger.log(Level.WARNING, "Could not rewrite network "
           + "status.", e);
@@ -903,19 +1125,16 @@ public class SanitizedBridgesWriter {
         new SimpleDateFormat("yyyyMMdd-HHmmss");
     statusFileFormat.setTimeZone(TimeZone.getTimeZone("UTC"));    
 
-    /* Iterate over publication timestamps of previously sanitized
-     * descriptors. For every publication timestamp, we want to re-write
-     * the network statuses that we published up to 24 hours after that
-     * descriptor. We keep the timestamp of the last re-written network
-     * status in order to make sure we re-writing any network status at
-     * most once. */
-    String lastDescriptorPublishedPlus24Hours = "1970-01-01 00:00:00";
+    /* Find the network statuses written in previous executions that
+     * might reference server descriptors whose identifiers changed in
+     * this execution. These are all statuses that have been published
+     * up to 24 hours after any such server descriptor. We list every
+     * status directory at most once. Statuses written in this execution
+     * are contained in our index, so that we know already whether they
+     * need to be rewritten. */
+    SortedSet<Long> changedDescriptorTimes = new TreeSet<Long>();
+    SortedSet<String> statusDays = new TreeSet<String>();
     for (String published : this.descriptorPublicationTimes) {
-      if (published.compareTo(lastDescriptorPublishedPlus24Hours) <= 0) {
-        continue;
-      }
-      // find statuses 24 hours after published
-      SortedSet<File> statusesToRewrite = new TreeSet<File>();
       long publishedTime;
       try {
         publishedTime = dateTimeFormat.parse(published).getTime();
@@ -924,54 +1143,71 @@ public class SanitizedBridgesWriter {
             + "timestamp '" + published + "'. Skipping.", e);
         continue;
       }
-      String[] dayOne = dateFormat.format(publishedTime).split("-");
-
-      File publishedDayOne = new File(this.sanitizedBridgesDir + "/"
-          + dayOne[0] + "/" + dayOne[1] + "/statuses/" + dayOne[2]);
-      if (publishedDayOne.exists()) {
-        statusesToRewrite.addAll(Arrays.asList(publishedDayOne.
-            listFiles()));
-      }
-      long plus24Hours = publishedTime + 24L * 60L * 60L * 1000L;
-      lastDescriptorPublishedPlus24Hours = dateFormat.format(plus24Hours);
-      String[] dayTwo = dateFormat.format(plus24Hours).split("-");
-      File publishedDayTwo = new File(this.sanitizedBridgesDir + "/"
-          + dayTwo[0] + "/" + dayTwo[1] + "/statuses/" + dayTwo[2]);
-      if (publishedDayTwo.exists()) {
-        statusesToRewrite.addAll(Arrays.asList(publishedDayTwo.
-            listFiles()));
+      changedDescriptorTimes.add(publishedTime);
+      statusDays.add(dateFormat.format(publishedTime));
+      statusDays.add(dateFormat.format(publishedTime
+          + 24L * 60L * 60L * 1000L));
+    }
+    for (String statusDay : statusDays) {
+      String[] day = statusDay.split("-");
+      File statusDirectory = new File(this.sanitizedBridgesDir + "/"
+          + day[0] + "/" + day[1] + "/statuses/" + day[2]);
+      if (!statusDirectory.exists()) {
+        continue;
       }
-      for (File status : statusesToRewrite) {
-        String statusPublished = status.getName().substring(0, 15);
+      for (File status : statusDirectory.listFiles()) {
+        String statusPublished = status.getName().substring(0,
+            Math.min(15, status.getName().length()));
         long statusTime;
         try {
           statusTime = statusFileFormat.parse(statusPublished).getTime();
         } catch (ParseException e) {
           this.logger.log(Level.WARNING, "Could not parse network "
-              + "status publication timestamp '" + published
+              + "status publication timestamp '" + statusPublished
               + "'. Skipping.", e);
           continue;
         }
-        if (statusTime < publishedTime || statusTime > plus24Hours) {
+        String published = dateTimeFormat.format(statusTime);
+        if (this.writtenStatuses.contains(published)) {
           continue;
         }
-        this.rewriteNetworkStatus(status,
-            dateTimeFormat.format(statusTime));
+        SortedSet<Long> descriptorTimes = changedDescriptorTimes.subSet(
+            statusTime - 24L * 60L * 60L * 1000L, statusTime + 1L);
+        if (!descriptorTimes.isEmpty()) {
+          this.statusesToRewrite.add(published);
+        }
       }
     }
 
-    /* Write descriptor mappings to disk. */
-    try {
-      BufferedWriter bw = new BufferedWriter(new FileWriter(
-          this.bridgeDescriptorMappingsFile));
-      for (DescriptorMapping mapping :
-          this.bridgeDescriptorMappings.values()) {
-        bw.write(mapping.toString() + "\n");
+    /* Rewrite each of these network statuses once. Statuses are only
+     * written to disk if one of their references has changed. */
+    for (String published : this.statusesToRewrite) {
+      this.rewriteNetworkStatus(this.getNetworkStatusFile(published),
+          published);
+    }
+
+    /* Write descriptor mappings that we looked up or added in this
+     * execution to the store. The store only writes mappings that have
+     * changed. */
+    if (this.bridgeDescriptorMappingsStore != null) {
+      try {
+        for (DescriptorMapping mapping :
+            this.bridgeDescriptorMappings.values()) {
+          byte[] key = this.getMappingKey(mapping.hashedBridgeIdentity,
+              mapping.published);
+          byte[] value = this.getMappingValue(mapping);
+          if (key == null || value == null) {
+            this.logger.warning("Could not store descriptor mapping '"
+                + mapping + "'. Skipping.");
+            continue;
+          }
+          this.bridgeDescriptorMappingsStore.put(key, value);
+        }
+        this.bridgeDescriptorMappingsStore.flush();
+      } catch (IOException e) {
+        this.logger.log(Level.WARNING, "Could not write descriptor "
+            + "mappings to disk.", e);
       }
-      bw.close();
-    } catch (IOException e) {
-      this.logger.log(Level.WARNING, "Could not write descriptor "
-          + "mappings to disk.", e);
     }
   }
 }
@@ -0,0 +1,355 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.io.*;
+import java.util.*;
+import java.util.logging.*;
+
+/**
+ * Stores lines of intermediate statistics results in append-only segment
+ * files in a given directory, with one file per month. Lines are
+ * identified by their first <code>keyColumns</code> comma-separated
+ * columns, and the month is taken from the date in column
+ * <code>dateColumn</code>, which must be part of the key. A line that is
+ * appended to a segment replaces all lines with the same key that were
+ * appended before.
+ *
+ * Segments are only read when we add lines to them or when we need them
+ * for aggregating statistics, so that adding a few new observations
+ * doesn't require reading or rewriting the whole history.
+ *
+ * The dates of added lines are written to file
+ * <code>modified-dates</code> in the same directory before appending
+ * lines to segment files, and they are only forgotten when the caller
+ * has written all results derived from them. If we are interrupted in
+ * between, we aggregate these dates again in the next execution.
+ */
+public class SegmentedStatsStore {
+
+  /**
+   * Directory containing the segment files named "yyyy-MM".
+   */
+  private File directory;
+
+  /**
+   * Number of leading columns that identify a line.
+   */
+  private int keyColumns;
+
+  /**
+   * Column containing a date or timestamp starting with "yyyy-MM-dd".
+   */
+  private int dateColumn;
+
+  /**
+   * Segments that we have read, by month formatted "yyyy-MM". Map values
+   * map keys to lines.
+   */
+  private Map<String, SortedMap<String, String>> segments;
+
+  /**
+   * Lines that we need to append to segment files, by month.
+   */
+  private SortedMap<String, List<String>> newLines;
+
+  /**
+   * Dates formatted "yyyy-MM-dd" of lines that we added or replaced.
+   */
+  private SortedSet<String> modifiedDates;
+
+  /**
+   * File containing the dates of lines that we appended to segment files
+   * without writing the results derived from them yet.
+   */
+  private File modifiedDatesFile;
+
+  /**
+   * Whether we added dates that we have not written to disk yet.
+   */
+  private boolean modifiedDatesChanged = false;
+
+  /**
+   * Logger for this class.
+   */
+  private Logger logger;
+
+  public SegmentedStatsStore(File directory, int keyColumns,
+      int dateColumn) {
+    this.directory = directory;
+    this.keyColumns = keyColumns;
+    this.dateColumn = dateColumn;
+    this.segments = new HashMap<String, SortedMap<String, String>>();
+    this.newLines = new TreeMap<String, List<String>>();
+    this.modifiedDates = new TreeSet<String>();
+    this.modifiedDatesFile = new File(directory, "modified-dates");
+    this.logger = Logger.getLogger(SegmentedStatsStore.class.getName());
+    this.readModifiedDates();
+  }
+
+  /**
+   * Returns whether segment files have been written before.
+   */
+  public boolean exists() {
+    return this.directory.exists();
+  }
+
+  /**
+   * Returns the months of all segments, including those that have not
+   * been written to disk yet.
+   */
+  public SortedSet<String> getMonths() {
+    SortedSet<String> months = new TreeSet<String>(this.newLines.keySet());
+    if (this.directory.exists()) {
+      for (File file : this.directory.listFiles()) {
+        if (file.getName().matches("\\d{4}-\\d{2}")) {
+          months.add(file.getName());
+        }
+      }
+    }
+    return months;
+  }
+
+  /**
+   * Returns all lines of the segment for the given month formatted
+   * "yyyy-MM" by key, reading the segment file if we haven't done so
+   * before.
+   */
+  public SortedMap<String, String> getSegment(String month) {
+    SortedMap<String, String> segment = this.segments.get(month);
+    if (segment == null) {
+      segment = this.readSegment(month);
+      this.segments.put(month, segment);
+    }
+    return segment;
+  }
+
+  /**
+   * Reads and returns all lines of the segment file for the given month
+   * formatted "yyyy-MM" by key without keeping them in memory. Lines
+   * that have been added but not flushed yet are not included.
+   */
+  public SortedMap<String, String> readSegment(String month) {
+    SortedMap<String, String> segment = new TreeMap<String, String>();
+    File segmentFile = new File(this.directory, month);
+    if (segmentFile.exists()) {
+      try {
+        this.logger.fine("Reading file " + segmentFile.getAbsolutePath()
+            + "...");
+        BufferedReader br = new BufferedReader(new FileReader(
+            segmentFile));
+        String line = null;
+        while ((line = br.readLine()) != null) {
+          String key = this.getKey(line);
+          if (key == null) {
+            this.logger.warning("Corrupt line '" + line + "' in file "
+                + segmentFile.getAbsolutePath() + "! Skipping.");
+            continue;
+          }
+          segment.put(key, line);
+        }
+        br.close();
+        this.logger.fine("Finished reading file "
+            + segmentFile.getAbsolutePath() + ".");
+      } catch (IOException e) {
+        this.logger.log(Level.WARNING, "Failed to read file "
+            + segmentFile.getAbsolutePath() + "!", e);
+      }
+    }
+    return segment;
+  }
+
+  /**
+   * Returns the line with the given key, or <code>null</code> if there
+   * is no such line.
+   */
+  public String get(String key) {
+    return this.getSegment(this.getDate(key).substring(0, 7)).get(key);
+  }
+
+  /**
+   * Adds a line, replacing any line with the same key, and returns
+   * whether the line is new or different from the line it replaces.
+   */
+  public boolean put(String line) {
+    String key = this.getKey(line);
+    if (key == null) {
+      throw new IllegalArgumentException("Line '" + line + "' contains "
+          + "fewer than " + this.keyColumns + " columns.");
+    }
+    String month = this.getDate(key).substring(0, 7);
+    if (line.equals(this.getSegment(month).put(key, line))) {
+      return false;
+    }
+    this.append(line);
+    return true;
+  }
+
+  /**
+   * Adds a line that the caller knows to be new or different from the
+   * line it replaces, without reading the segment that it belongs to.
+   */
+  public void append(String line) {
+    String key = this.getKey(line);
+    if (key == null) {
+      throw new IllegalArgumentException("Line '" + line + "' contains "
+          + "fewer than " + this.keyColumns + " columns.");
+    }
+    String date = this.getDate(key), month = date.substring(0, 7);
+    SortedMap<String, String> segment = this.segments.get(month);
+    if (segment != null) {
+      segment.put(key, line);
+    }
+    if (!this.newLines.containsKey(month)) {
+      this.newLines.put(month, new ArrayList<String>());
+    }
+    this.newLines.get(month).add(line);
+    this.addModifiedDate(date.substring(0, 10));
+  }
+
+  /**
+   * Adds a date formatted "yyyy-MM-dd" to the modified dates without
+   * adding a line, for example because the caller learned something
+   * new about that date that is not kept in this store.
+   */
+  public void addModifiedDate(String date) {
+    if (this.modifiedDates.add(date)) {
+      this.modifiedDatesChanged = true;
+    }
+  }
+
+  /**
+   * Returns the dates formatted "yyyy-MM-dd" of all lines that have been
+   * added or replaced since the caller last cleared them, including
+   * dates of previous executions.
+   */
+  public SortedSet<String> getModifiedDates() {
+    return this.modifiedDates;
+  }
+
+  /**
+   * Forgets the dates of all lines that have been added or replaced.
+   * Callers invoke this method after flushing and after writing all
+   * results derived from these lines.
+   */
+  public void clearModifiedDates() {
+    this.modifiedDates.clear();
+    this.modifiedDatesChanged = false;
+    if (this.modifiedDatesFile.exists() &&
+        !this.modifiedDatesFile.delete()) {
+      this.logger.warning("Could not delete file "
+          + this.modifiedDatesFile.getAbsolutePath() + ". Dates in this "
+          + "file will be aggregated again in the next execution.");
+    }
+  }
+
+  /**
+   * Appends all added lines to their segment files, after writing the
+   * modified dates to disk.
+   */
+  public void flush() {
+    if (this.newLines.isEmpty() && !this.modifiedDatesChanged) {
+      return;
+    }
+    this.directory.mkdirs();
+    this.writeModifiedDates();
+    for (Map.Entry<String, List<String>> e : this.newLines.entrySet()) {
+      File segmentFile = new File(this.directory, e.getKey());
+      try {
+        this.logger.fine("Appending " + e.getValue().size() + " lines to "
+            + "file " + segmentFile.getAbsolutePath() + "...");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(
+            segmentFile, true));
+        for (String line : e.getValue()) {
+          bw.append(line + "\n");
+        }
+        bw.close();
+      } catch (IOException ex) {
+        this.logger.log(Level.WARNING, "Failed to append to file "
+            + segmentFile.getAbsolutePath() + "!", ex);
+      }
+    }
+    this.newLines.clear();
+  }
+
+  /**
+   * Reads the dates of lines that have been appended to segment files in
+   * a previous execution without writing the results derived from them.
+   */
+  private void readModifiedDates() {
+    if (!this.modifiedDatesFile.exists()) {
+      return;
+    }
+    try {
+      BufferedReader br = new BufferedReader(new FileReader(
+          this.modifiedDatesFile));
+      String line = null;
+      while ((line = br.readLine()) != null) {
+        if (line.matches("\\d{4}-\\d{2}-\\d{2}")) {
+          this.modifiedDates.add(line);
+        } else {
+          this.logger.warning("Corrupt line '" + line + "' in file "
+              + this.modifiedDatesFile.getAbsolutePath()
+              + "! Skipping.");
+        }
+      }
+      br.close();
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed to read file "
+          + this.modifiedDatesFile.getAbsolutePath() + "!", e);
+    }
+  }
+
+  /**
+   * Writes the dates of all lines that have been added or replaced to
+   * disk, replacing the file only once it has been written completely.
+   */
+  private void writeModifiedDates() {
+    File tempFile = new File(this.directory, "modified-dates.tmp");
+    try {
+      BufferedWriter bw = new BufferedWriter(new FileWriter(tempFile));
+      for (String date : this.modifiedDates) {
+        bw.append(date + "\n");
+      }
+      bw.close();
+      if (tempFile.renameTo(this.modifiedDatesFile)) {
+        this.modifiedDatesChanged = false;
+      } else {
+        this.logger.warning("Could not rename file "
+            + tempFile.getAbsolutePath() + " to "
+            + this.modifiedDatesFile.getAbsolutePath() + ".");
+      }
+    } catch (IOException e) {
+      this.logger.log(Level.WARNING, "Failed to write file "
+          + tempFile.getAbsolutePath() + "!", e);
+    }
+  }
+
+  /**
+   * Returns the key of a line, or <code>null</code> if the line has too
+   * few columns.
+   */
+  private String getKey(String line) {
+    int end = -1;
+    for (int i = 0; i < this.keyColumns; i++) {
+      end = line.indexOf(',', end + 1);
+      if (end < 0) {
+        return i == this.keyColumns - 1 && line.length() > 0 ? line :
+            null;
+      }
+    }
+    return line.substring(0, end);
+  }
+
+  /**
+   * Returns the date column of a key.
+   */
+  private String getDate(String key) {
+    int start = 0;
+    for (int i = 0; i < this.dateColumn; i++) {
+      start = key.indexOf(',', start) + 1;
+    }
+    int end = key.indexOf(',', start);
+    return end < 0 ? key.substring(start) : key.substring(start, end);
+  }
+}
@@ -0,0 +1,245 @@
+/* Copyright 2010 The Tor Project
+ * See LICENSE for licensing information */
+package org.torproject.ernie.db;
+
+import java.text.*;
+
+/**
+ * Converts between milliseconds since the epoch and the UTC timestamps
+ * of the form yyyy-MM-dd HH:mm:ss that we find in descriptors and that
+ * we use in file names and in the database.
+ *
+ * Timestamps are parsed and formatted by looking at their digits rather
+ * than using <code>SimpleDateFormat</code>, which is slow to create and
+ * cannot be shared between threads. Descriptors that we parse in a row
+ * mostly contain the same few timestamps, so that the most recent
+ * conversions are kept in two small caches. Cache entries are immutable
+ * and replaced as a whole, so that all methods are safe to be called
+ * from multiple threads without synchronization.
+ */
+public final class TimestampCodec {
+
+  /**
+   * Timestamp and the second since the epoch that it stands for.
+   */
+  private static final class Entry {
+    private final long seconds;
+    private final String dateTime;
+    private Entry(long seconds, String dateTime) {
+      this.seconds = seconds;
+      this.dateTime = dateTime;
+    }
+  }
+
+  /**
+   * Number of cache entries, which must be a power of 2.
+   */
+  private static final int CACHE_SIZE = 256;
+
+  /**
+   * Most recently formatted timestamps by second, and most recently
+   * parsed timestamps by hash code of the timestamp string.
+   */
+  private static final Entry[] formatCache = new Entry[CACHE_SIZE],
+      parseCache = new Entry[CACHE_SIZE];
+
+  private static final long MILLIS_PER_SECOND = 1000L,
+      SECONDS_PER_DAY = 24L * 60L * 60L;
+
+  private TimestampCodec() {
+  }
+
+  /**
+   * Parses a timestamp of the form yyyy-MM-dd HH:mm:ss and returns the
+   * milliseconds since the epoch. Anything following the timestamp is
+   * ignored.
+   */
+  public static long parseDateTime(String dateTime)
+      throws ParseException {
+    int index = dateTime.hashCode() & (CACHE_SIZE - 1);
+    Entry entry = parseCache[index];
+    if (entry != null && entry.dateTime.equals(dateTime)) {
+      return entry.seconds * MILLIS_PER_SECOND;
+    }
+    if (dateTime.length() < 19 || dateTime.charAt(10) != ' ' ||
+        dateTime.charAt(13) != ':' || dateTime.charAt(16) != ':') {
+      throw unparseable(dateTime);
+    }
+    long seconds = parseDays(dateTime) * SECONDS_PER_DAY
+        + parseNumber(dateTime, 11, 2, 0, 23) * 3600L
+        + parseNumber(dateTime, 14, 2, 0, 59) * 60L
+        + parseNumber(dateTime, 17, 2, 0, 60);
+    parseCache[index] = new Entry(seconds, dateTime);
+    return seconds * MILLIS_PER_SECOND;
+  }
+
+  /**
+   * Parses a date of the form yyyy-MM-dd and returns the milliseconds
+   * since the epoch of its first second. Anything following the date is
+   * ignored.
+   */
+  public static long parseDate(String date) throws ParseException {
+    if (date.length() < 10) {
+      throw unparseable(date);
+    }
+    return parseDays(date) * SECONDS_PER_DAY * MILLIS_PER_SECOND;
+  }
+
+  /**
+   * Formats the given milliseconds since the epoch as
+   * yyyy-MM-dd HH:mm:ss.
+   */
+  public static String formatDateTime(long millis) {
+    long seconds = floorDiv(millis, MILLIS_PER_SECOND);
+    int index = (int) seconds & (CACHE_SIZE - 1);
+    Entry entry = formatCache[index];
+    if (entry != null && entry.seconds == seconds) {
+      return entry.dateTime;
+    }
+    long days = floorDiv(seconds, SECONDS_PER_DAY);
+    int secondOfDay = (int) (seconds - days * SECONDS_PER_DAY);
+    StringBuilder sb = new StringBuilder(19);
+    appendDate(sb, days);
+    sb.append(' ');
+    appendTime(sb, secondOfDay);
+    String dateTime = sb.toString();
+    formatCache[index] = new Entry(seconds, dateTime);
+    return dateTime;
+  }
+
+  /**
+   * Formats the given milliseconds since the epoch as yyyy-MM-dd.
+   */
+  public static String formatDate(long millis) {
+    return formatDateTime(millis).substring(0, 10);
+  }
+
+  /**
+   * Formats the given milliseconds since the epoch as yyyyMMdd.
+   */
+  public static String formatCompactDate(long millis) {
+    return formatDate(millis).replace("-", "");
+  }
+
+  /**
+   * Formats the given milliseconds since the epoch as the directory
+   * yyyy/MM/ that we use to store descriptors published in that month.
+   */
+  public static String formatMonthDirectory(long millis) {
+    String dateTime = formatDateTime(millis);
+    return dateTime.substring(0, 4) + "/" + dateTime.substring(5, 7)
+        + "/";
+  }
+
+  /**
+   * Formats the given milliseconds since the epoch as the path
+   * yyyy/MM/dd/yyyy-MM-dd-HH-mm-ss that we use to store consensuses and
+   * votes with that valid-after time.
+   */
+  public static String formatStatusPath(long millis) {
+    String dateTime = formatDateTime(millis);
+    return dateTime.substring(0, 4) + "/" + dateTime.substring(5, 7)
+        + "/" + dateTime.substring(8, 10) + "/"
+        + dateTime.replace(' ', '-').replace(':', '-');
+  }
+
+  /**
+   * Parses the date at the start of the given string and returns the
+   * days since the epoch.
+   */
+  private static long parseDays(String date) throws ParseException {
+    if (date.charAt(4) != '-' || date.charAt(7) != '-') {
+      throw unparseable(date);
+    }
+    long year = parseNumber(date, 0, 4, 0, 9999);
+    int month = parseNumber(date, 5, 2, 1, 12);
+    int day = parseNumber(date, 8, 2, 1, 31);
+
+    /* Count days in eras of 400 years and in years starting on March 1,
+     * so that leap days come last. */
+    if (month <= 2) {
+      year--;
+    }
+    long era = (year >= 0 ? year : year - 399) / 400;
+    long yearOfEra = year - era * 400;
+    long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+        + day - 1;
+    long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+        + dayOfYear;
+    return era * 146097 + dayOfEra - 719468;
+  }
+
+  /**
+   * Parses the decimal number of the given length at the given position
+   * and checks that it is in the given range.
+   */
+  private static int parseNumber(String s, int start, int length,
+      int min, int max) throws ParseException {
+    int number = 0;
+    for (int i = start; i < start + length; i++) {
+      char c = s.charAt(i);
+      if (c < '0' || c > '9') {
+        throw unparseable(s);
+      }
+      number = number * 10 + (c - '0');
+    }
+    if (number < min || number > max) {
+      throw unparseable(s);
+    }
+    return number;
+  }
+
+  /**
+   * Appends the date of the given day since the epoch as yyyy-MM-dd.
+   */
+  private static void appendDate(StringBuilder sb, long days) {
+    long shifted = days + 719468;
+    long era = (shifted >= 0 ? shifted : shifted - 146096) / 146097;
+    long dayOfEra = shifted - era * 146097;
+    long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524
+        - dayOfEra / 146096) / 365;
+    long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4
+        - yearOfEra / 100);
+    int shiftedMonth = (int) ((5 * dayOfYear + 2) / 153);
+    int day = (int) (dayOfYear - (153 * shiftedMonth + 2) / 5 + 1);
+    int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+    long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+    appendPadded(sb, year, 4);
+    sb.append('-');
+    appendPadded(sb, month, 2);
+    sb.append('-');
+    appendPadded(sb, day, 2);
+  }
+
+  /**
+   * Appends the time of the given second of the day as HH:mm:ss.
+   */
+  private static void appendTime(StringBuilder sb, int secondOfDay) {
+    appendPadded(sb, secondOfDay / 3600, 2);
+    sb.append(':');
+    appendPadded(sb, secondOfDay / 60 % 60, 2);
+    sb.append(':');
+    appendPadded(sb, secondOfDay % 60, 2);
+  }
+
+  private static void appendPadded(StringBuilder sb, long number,
+      int digits) {
+    String s = String.valueOf(number);
+    for (int i = s.length(); i < digits; i++) {
+      sb.append('0');
+    }
+    sb.append(s);
+  }
+
+  private static long floorDiv(long dividend, long divisor) {
+    long quotient = dividend / divisor;
+    if (dividend % divisor != 0 && dividend < 0) {
+      quotient--;
+    }
+    return quotient;
+  }
+
+  private static ParseException unparseable(String s) {
+    return new ParseException("Unparseable date: \"" + s + "\"", 0);
+  }
+}
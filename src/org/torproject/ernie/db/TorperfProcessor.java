@@ -8,17 +8,51 @@ import java.text.*;
 import java.util.*;
 import java.util.logging.*;
 
+/**
+ * Imports torperf measurements and writes quartiles of download times
+ * per source and day to <code>stats/torperf-stats</code>.
+ *
+ * Torperf appends new measurements to its .data files, so that we
+ * remember up to which byte we have read each file and only parse what
+ * was appended since. Raw measurements are appended to month segments in
+ * <code>stats/torperf-raw.d/</code>, and quartiles are only computed
+ * again for days with new measurements, using selection on the download
+ * times of a day rather than sorting them.
+ */
 public class TorperfProcessor {
+
+  /**
+   * Download times of a single source on a single day.
+   */
+  private static class Measurements {
+    private long[] values = new long[288];
+    private int count;
+    private void add(long value) {
+      if (this.count == this.values.length) {
+        this.values = Arrays.copyOf(this.values, 2 * this.count);
+      }
+      this.values[this.count++] = value;
+    }
+  }
+
   public TorperfProcessor(String torperfDirectory, String connectionURL) {
     Logger logger = Logger.getLogger(TorperfProcessor.class.getName());
     File rawFile = new File("stats/torperf-raw");
+    SegmentedStatsStore rawStore = new SegmentedStatsStore(
+        new File("stats/torperf-raw.d"), 3, 1);
+    File offsetsFile = new File("stats/torperf-data-offsets");
     File statsFile = new File("stats/torperf-stats");
     File torperfDir = new File(torperfDirectory);
-    SortedMap<String, String> rawObs = new TreeMap<String, String>();
+    SortedMap<String, Long> offsets = new TreeMap<String, Long>();
     SortedMap<String, String> stats = new TreeMap<String, String>();
+    AggregateStatsSink sink = connectionURL == null ? null :
+        new AggregateStatsSink(connectionURL, "torperf_stats",
+        new String[] { "date", "source" }, new int[] { Types.DATE,
+        Types.VARCHAR }, new String[] { "q1", "md", "q3" },
+        new int[] { Types.BIGINT, Types.BIGINT, Types.BIGINT });
     int addedRawObs = 0;
     try {
-      if (rawFile.exists()) {
+      if (!rawStore.exists() && rawFile.exists()) {
         logger.fine("Reading file " + rawFile.getAbsolutePath() + "...");
         BufferedReader br = new BufferedReader(new FileReader(rawFile));
         String line = br.readLine(); // ignore header
@@ -36,12 +70,27 @@ public class TorperfProcessor {
                 line.lastIndexOf(",") + 1)) + 100000000L;
             line = key + "," + newValue;
           }
-          rawObs.put(key, line);
+          rawStore.append(line);
         }
         br.close();
         logger.fine("Finished reading file " + rawFile.getAbsolutePath()
             + ".");
       }
+      if (offsetsFile.exists()) {
+        logger.fine("Reading file " + offsetsFile.getAbsolutePath()
+            + "...");
+        BufferedReader br = new BufferedReader(new FileReader(
+            offsetsFile));
+        String line = null;
+        while ((line = br.readLine()) != null) {
+          int separator = line.lastIndexOf(",");
+          offsets.put(line.substring(0, separator),
+              Long.parseLong(line.substring(separator + 1)));
+        }
+        br.close();
+        logger.fine("Finished reading file "
+            + offsetsFile.getAbsolutePath() + ".");
+      }
       if (statsFile.exists()) {
         logger.fine("Reading file " + statsFile.getAbsolutePath()
             + "...");
@@ -57,6 +106,9 @@ public class TorperfProcessor {
       }
       if (torperfDir.exists()) {
         logger.fine("Importing files in " + torperfDirectory + "/...");
+        SimpleDateFormat formatter =
+            new SimpleDateFormat("yyyy-MM-dd,HH:mm:ss");
+        formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
         Stack<File> filesInInputDir = new Stack<File>();
         filesInInputDir.add(torperfDir);
         while (!filesInInputDir.isEmpty()) {
@@ -77,12 +129,16 @@ public class TorperfProcessor {
             }
             receivedBytes *= Long.parseLong(size.substring(0,
                 size.length() - "xb.data".length()));
-            BufferedReader br = new BufferedReader(new FileReader(pop));
-            String line = null;
-            SimpleDateFormat formatter =
-                new SimpleDateFormat("yyyy-MM-dd,HH:mm:ss");
-            formatter.setTimeZone(TimeZone.getTimeZone("UTC"));
-            while ((line = br.readLine()) != null) {
+
+            /* Only read what was appended since we last read this file,
+             * unless the file has become shorter since. */
+            Long offset = offsets.get(pop.getPath());
+            if (offset == null || offset > pop.length()) {
+              offset = 0L;
+            }
+            List<String> lines = new ArrayList<String>();
+            offsets.put(pop.getPath(), readLines(pop, offset, lines));
+            for (String line : lines) {
               String[] parts = line.split(" ");
               // remove defective lines as they occurred on gabelmoo as well
               // as incomplete downloads
@@ -96,62 +152,84 @@ public class TorperfProcessor {
                     - Long.parseLong(parts[0]) * 1000L
                     + Long.parseLong(parts[1]) / 1000L;
                 String key = source + "," + dateTime;
-                String value = key + "," + completeMillis;
-                if (!rawObs.containsKey(key)) {
-                  rawObs.put(key, value);
+                if (rawStore.get(key) == null) {
+                  rawStore.append(key + "," + completeMillis);
                   addedRawObs++;
-                  // TODO if torperf-stats generation takes long, compile
-                  // list of dates that have changes for torperf-stats and
-                  // only re-generate those
                 }
               }
             }
-            br.close();
           }
         }
         logger.fine("Finished importing files in " + torperfDirectory
             + "/.");
       }
-      if (rawObs.size() > 0) {
-        logger.fine("Writing file " + rawFile.getAbsolutePath() + "...");
-        rawFile.getParentFile().mkdirs();
-        BufferedWriter bw = new BufferedWriter(new FileWriter(rawFile));
-        bw.append("source,date,start,completemillis\n");
-        String tempSourceDate = null;
-        Iterator<Map.Entry<String, String>> it =
-            rawObs.entrySet().iterator();
-        List<Long> dlTimes = new ArrayList<Long>();
-        boolean haveWrittenFinalLine = false;
-        while (it.hasNext() || !haveWrittenFinalLine) {
-          Map.Entry<String, String> next = it.hasNext() ? it.next() : null;
-          if (tempSourceDate != null
-              && (next == null || !(next.getValue().split(",")[0] + ","
-              + next.getValue().split(",")[1]).equals(tempSourceDate))) {
-            if (dlTimes.size() > 4) {
-              Collections.sort(dlTimes);
-              long q1 = dlTimes.get(dlTimes.size() / 4 - 1);
-              long md = dlTimes.get(dlTimes.size() / 2 - 1);
-              long q3 = dlTimes.get(dlTimes.size() * 3 / 4 - 1);
-              stats.put(tempSourceDate, tempSourceDate + "," + q1 + ","
-                  + md + "," + q3);
-            }
-            dlTimes.clear();
-            if (next == null) {
-              haveWrittenFinalLine = true;
-            }
+
+      /* Compute quartiles again for days with new measurements,
+       * including days of previous executions that we appended to disk
+       * without writing torperf-stats. */
+      SortedSet<String> modifiedDates = rawStore.getModifiedDates();
+      SortedSet<String> modifiedMonths = new TreeSet<String>();
+      for (String date : modifiedDates) {
+        modifiedMonths.add(date.substring(0, 7));
+      }
+      boolean statsModified = false;
+      for (String month : modifiedMonths) {
+        SortedMap<String, Measurements> measurements =
+            new TreeMap<String, Measurements>();
+        for (String line : rawStore.getSegment(month).values()) {
+          String[] parts = line.split(",");
+          if (!modifiedDates.contains(parts[1])) {
+            continue;
+          }
+          String sourceDate = parts[0] + "," + parts[1];
+          Measurements m = measurements.get(sourceDate);
+          if (m == null) {
+            m = new Measurements();
+            measurements.put(sourceDate, m);
           }
-          if (next != null) {
-            bw.append(next.getValue() + "\n");
-            String[] parts = next.getValue().split(",");
-            tempSourceDate = parts[0] + "," + parts[1];
-            dlTimes.add(Long.parseLong(parts[3]));
+          m.add(Long.parseLong(parts[3]));
+        }
+        for (Map.Entry<String, Measurements> e :
+            measurements.entrySet()) {
+          String sourceDate = e.getKey();
+          long[] dlTimes = e.getValue().values;
+          int count = e.getValue().count;
+          if (count <= 4) {
+            continue;
           }
+          long q1 = select(dlTimes, count, count / 4 - 1);
+          long md = select(dlTimes, count, count / 2 - 1);
+          long q3 = select(dlTimes, count, count * 3 / 4 - 1);
+          String statsLine = sourceDate + "," + q1 + "," + md + ","
+              + q3;
+          if (!statsLine.equals(stats.put(sourceDate, statsLine))) {
+            statsModified = true;
+            if (sink != null) {
+              String[] parts = sourceDate.split(",");
+              sink.put(new Object[] { java.sql.Date.valueOf(parts[1]),
+                  parts[0] }, new Object[] { q1, md, q3 });
+            }
+          }
+        }
+      }
+      /* The store keeps the dates of new measurements on disk until we
+       * have written torperf-stats, and measurements that we read again
+       * after failing to write offsets are skipped as known. */
+      rawStore.flush();
+      if (!offsets.isEmpty()) {
+        logger.fine("Writing file " + offsetsFile.getAbsolutePath()
+            + "...");
+        offsetsFile.getParentFile().mkdirs();
+        BufferedWriter bw = new BufferedWriter(new FileWriter(
+            offsetsFile));
+        for (Map.Entry<String, Long> e : offsets.entrySet()) {
+          bw.append(e.getKey() + "," + e.getValue() + "\n");
         }
         bw.close();
-        logger.fine("Finished writing file " + rawFile.getAbsolutePath()
-            + ".");
+        logger.fine("Finished writing file "
+            + offsetsFile.getAbsolutePath() + ".");
       }
-      if (stats.size() > 0) {
+      if (statsModified) {
         logger.fine("Writing file " + statsFile.getAbsolutePath()
             + "...");
         statsFile.getParentFile().mkdirs();
@@ -165,6 +243,7 @@ public class TorperfProcessor {
         logger.fine("Finished writing file " + statsFile.getAbsolutePath()
             + ".");
       }
+      rawStore.clearModifiedDates();
     } catch (IOException e) {
       logger.log(Level.WARNING, "Failed writing "
           + rawFile.getAbsolutePath() + " or "
@@ -175,98 +254,99 @@ public class TorperfProcessor {
     StringBuilder dumpStats = new StringBuilder("Finished writing "
         + "statistics on torperf results.\nAdded " + addedRawObs
         + " new observations in this execution.\n"
-        + "Last known obserations by source and file size are:");
-    String lastSource = null;
-    String lastLine = null;
-    for (String s : rawObs.keySet()) {
-      String[] parts = s.split(",");
-      if (lastSource == null) {
-        lastSource = parts[0];
-      } else if (!parts[0].equals(lastSource)) {
-        dumpStats.append("\n" + lastSource + " " + lastLine.split(",")[1]
-            + " " + lastLine.split(",")[2]);
-        lastSource = parts[0];
+        + "Last known daily statistics by source and file size are:");
+    String lastSourceDate = null;
+    for (String s : stats.keySet()) {
+      if (lastSourceDate != null && !s.substring(0, s.indexOf(",")).
+          equals(lastSourceDate.substring(0,
+          lastSourceDate.indexOf(",")))) {
+        dumpStats.append("\n" + lastSourceDate.replace(",", " "));
       }
-      lastLine = s;
+      lastSourceDate = s;
     }
-    if (lastSource != null) {
-      dumpStats.append("\n" + lastSource + " " + lastLine.split(",")[1]
-          + " " + lastLine.split(",")[2]);
+    if (lastSourceDate != null) {
+      dumpStats.append("\n" + lastSourceDate.replace(",", " "));
     }
     logger.info(dumpStats.toString());
 
-    /* Write results to database. */
-    if (connectionURL != null) {
+    /* Write results that changed in this execution to database. */
+    if (sink != null) {
       try {
-        Map<String, String> insertRows = new HashMap<String, String>();
-        insertRows.putAll(stats);
-        Set<String> updateRows = new HashSet<String>();
-        Connection conn = DriverManager.getConnection(connectionURL);
-        conn.setAutoCommit(false);
-        Statement statement = conn.createStatement();
-        ResultSet rs = statement.executeQuery(
-            "SELECT date, source, q1, md, q3 FROM torperf_stats");
-        while (rs.next()) {
-          String date = rs.getDate(1).toString();
-          String source = rs.getString(2);
-          String key = source + "," + date;
-          if (insertRows.containsKey(key)) {
-            String insertRow = insertRows.remove(key);
-            String[] newStats = insertRow.split(",");
-            long newQ1 = Long.parseLong(newStats[2]);
-            long newMd = Long.parseLong(newStats[3]);
-            long newQ3 = Long.parseLong(newStats[4]);
-            long oldQ1 = rs.getLong(3);
-            long oldMd = rs.getLong(4);
-            long oldQ3 = rs.getLong(5);
-            if (newQ1 != oldQ1 || newMd != oldMd || newQ3 != oldQ3) {
-              updateRows.add(insertRow);
-            }
-          }
-        }
-        PreparedStatement psU = conn.prepareStatement(
-            "UPDATE torperf_stats SET q1 = ?, md = ?, q3 = ? "
-            + "WHERE date = ? AND source = ?");
-        for (String row : updateRows) {
-          String[] newStats = row.split(",");
-          String source = newStats[0];
-          java.sql.Date date = java.sql.Date.valueOf(newStats[1]);
-          long q1 = Long.parseLong(newStats[2]);
-          long md = Long.parseLong(newStats[3]);
-          long q3 = Long.parseLong(newStats[4]);
-          psU.clearParameters();
-          psU.setLong(1, q1);
-          psU.setLong(2, md);
-          psU.setLong(3, q3);
-          psU.setDate(4, date);
-          psU.setString(5, source);
-          psU.executeUpdate();
-        }
-        PreparedStatement psI = conn.prepareStatement(
-            "INSERT INTO torperf_stats (q1, md, q3, date, source) "
-            + "VALUES (?, ?, ?, ?, ?)");
-        for (String row : insertRows.values()) {
-          String[] newStats = row.split(",");
-          String source = newStats[0];
-          java.sql.Date date = java.sql.Date.valueOf(newStats[1]);
-          long q1 = Long.parseLong(newStats[2]);
-          long md = Long.parseLong(newStats[3]);
-          long q3 = Long.parseLong(newStats[4]);
-          psI.clearParameters();
-          psI.setLong(1, q1);
-          psI.setLong(2, md);
-          psI.setLong(3, q3);
-          psI.setDate(4, date);
-          psI.setString(5, source);
-          psI.executeUpdate();
-        }
-        conn.commit();
-        conn.close();
+        sink.flush();
       } catch (SQLException e) {
         logger.log(Level.WARNING, "Failed to add torperf stats to "
             + "database.", e);
       }
     }
   }
-}
 
+  /**
+   * Adds all complete lines of the given file starting at the given byte
+   * offset to <code>lines</code> and returns the offset after the last
+   * complete line. Lines that torperf is still writing are left for the
+   * next execution.
+   */
+  private static long readLines(File file, long offset,
+      List<String> lines) throws IOException {
+    BufferedInputStream bis = new BufferedInputStream(
+        new FileInputStream(file));
+    try {
+      long skipped = 0L;
+      while (skipped < offset) {
+        long s = bis.skip(offset - skipped);
+        if (s <= 0L) {
+          return skipped;
+        }
+        skipped += s;
+      }
+      ByteArrayOutputStream line = new ByteArrayOutputStream();
+      int b;
+      while ((b = bis.read()) >= 0) {
+        if (b == '\n') {
+          offset += line.size() + 1;
+          lines.add(line.toString("US-ASCII"));
+          line.reset();
+        } else {
+          line.write(b);
+        }
+      }
+      return offset;
+    } finally {
+      bis.close();
+    }
+  }
+
+  /**
+   * Returns the <code>k</code>-th smallest of the first
+   * <code>length</code> values, counting from 0, and partially reorders
+   * the values in doing so.
+   */
+  private static long select(long[] values, int length, int k) {
+    int left = 0, right = length - 1;
+    while (left < right) {
+      long pivot = values[(left + right) >>> 1];
+      int i = left, j = right;
+      while (i <= j) {
+        while (values[i] < pivot) {
+          i++;
+        }
+        while (values[j] > pivot) {
+          j--;
+        }
+        if (i <= j) {
+          long swap = values[i];
+          values[i++] = values[j];
+          values[j--] = swap;
+        }
+      }
+      if (k <= j) {
+        right = j;
+      } else if (k >= i) {
+        left = i;
+      } else {
+        return values[k];
+      }
+    }
+    return values[k];
+  }
+}